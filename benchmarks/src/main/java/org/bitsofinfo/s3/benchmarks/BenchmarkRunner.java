@@ -0,0 +1,33 @@
+package org.bitsofinfo.s3.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks in this package and writes the results as JSON so they 
+ * can be archived and diffed between builds.
+ *
+ * args: [resultFile (default jmh-result.json)] [include regex (default all in this package)]
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception {
+
+		String resultFile = (args.length > 0 ? args[0] : "jmh-result.json");
+		String include = (args.length > 1 ? args[1] : BenchmarkRunner.class.getPackage().getName() + ".*Benchmark.*");
+
+		Options opts = new OptionsBuilder()
+							.include(include)
+							.forks(1)
+							.warmupIterations(5)
+							.measurementIterations(5)
+							.resultFormat(ResultFormatType.JSON)
+							.result(resultFile)
+							.build();
+
+		new Runner(opts).run();
+	}
+
+}
@@ -0,0 +1,63 @@
+package org.bitsofinfo.s3.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bitsofinfo.s3.cmd.TocPathOpResult;
+import org.bitsofinfo.s3.toc.TOCPayload.MODE;
+import org.bitsofinfo.s3.util.CompressUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.gson.Gson;
+
+/**
+ * Compress + b64 round trips of error report sized json payloads
+ * as sent over the control channel
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompressUtilBenchmark {
+
+	@Param({"10", "1000"})
+	public int failures;
+
+	private byte[] jsonBytes = null;
+	private byte[] compressedBytes = null;
+
+	@Setup
+	public void setup() throws Exception {
+		List<TocPathOpResult> results = new ArrayList<TocPathOpResult>();
+		for (int i=0; i<failures; i++) {
+			results.add(new TocPathOpResult(MODE.WRITE, false, "/some/target/dir/file_" + i + ".dat", "rsync", "exitCode: 23 some rsync stderr output"));
+		}
+
+		this.jsonBytes = new Gson().toJson(results).getBytes("UTF-8");
+		this.compressedBytes = CompressUtil.compressAndB64EncodeUTF8Bytes(jsonBytes).getBytes("UTF-8");
+	}
+
+	@Benchmark
+	public String compress() throws Exception {
+		return CompressUtil.compressAndB64EncodeUTF8Bytes(jsonBytes);
+	}
+
+	@Benchmark
+	public char[] decompress() throws Exception {
+		return CompressUtil.decompressAndB64DecodeUTF8Bytes(compressedBytes);
+	}
+
+	@Benchmark
+	public char[] roundTrip() throws Exception {
+		return CompressUtil.decompressAndB64DecodeUTF8Bytes(
+				CompressUtil.compressAndB64EncodeUTF8Bytes(jsonBytes).getBytes("UTF-8"));
+	}
+
+}
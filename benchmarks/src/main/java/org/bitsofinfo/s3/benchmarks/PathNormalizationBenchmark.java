@@ -0,0 +1,29 @@
+package org.bitsofinfo.s3.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bitsofinfo.s3.toc.FileCopyTOCPayloadHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Source/target path building, done twice per TOC entry in FileCopyTOCPayloadHandler
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PathNormalizationBenchmark {
+
+	private String rootPath = "/opt/s3BucketLoader/";
+	private String tocPath = "/some/fairly/deep/source/directory/structure/with/a/file_name_0001234.dat";
+
+	@Benchmark
+	public String normalizePath() {
+		return FileCopyTOCPayloadHandler.normalizePath(rootPath, tocPath);
+	}
+
+}
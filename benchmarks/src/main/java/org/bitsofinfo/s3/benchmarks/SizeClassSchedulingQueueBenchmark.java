@@ -0,0 +1,56 @@
+package org.bitsofinfo.s3.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bitsofinfo.s3.master.SizeClassSchedulingQueue;
+import org.bitsofinfo.s3.toc.TocInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Same shape as the TocInfoSizeAwareQueueBenchmark but against
+ * the SizeClassSchedulingQueue w/ entries spread over all the default size classes
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SizeClassSchedulingQueueBenchmark {
+
+	private SizeClassSchedulingQueue queue = null;
+	private TocInfo[] files = null;
+	private int added = 0;
+
+	@Setup
+	public void setup() {
+		this.queue = new SizeClassSchedulingQueue();
+
+		long[] bounds = SizeClassSchedulingQueue.DEFAULT_CLASS_UPPER_BOUNDS;
+		this.files = new TocInfo[bounds.length + 1];
+		for (int i=0; i<bounds.length; i++) {
+			this.files[i] = new TocInfo("/some/dir/class" + i + ".dat", bounds[i] - 1);
+		}
+		this.files[bounds.length] = new TocInfo("/some/dir/huge.dat", bounds[bounds.length-1] * 2);
+	}
+
+	@Benchmark
+	@Group("addPoll")
+	@GroupThreads(1)
+	public boolean add() {
+		return queue.add(files[++added % files.length]);
+	}
+
+	@Benchmark
+	@Group("addPoll")
+	@GroupThreads(8)
+	public TocInfo poll() {
+		return queue.poll();
+	}
+
+}
@@ -0,0 +1,55 @@
+package org.bitsofinfo.s3.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bitsofinfo.s3.toc.TOCPayload;
+import org.bitsofinfo.s3.toc.TOCPayload.MODE;
+import org.bitsofinfo.s3.toc.TocInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.gson.Gson;
+
+/**
+ * TOCPayload json round trips, done once per TOC entry per mode
+ * by the master (serialize) and every worker consumer (deserialize)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TOCPayloadGsonBenchmark {
+
+	private Gson gson = null;
+	private TOCPayload payload = null;
+	private String payloadJson = null;
+
+	@Setup
+	public void setup() {
+		this.gson = new Gson();
+
+		TocInfo tocInfo = new TocInfo("/some/fairly/deep/source/directory/structure/with/a/file_name_0001234.dat", 1048576);
+		tocInfo.setIsDirectory(false);
+
+		this.payload = new TOCPayload();
+		this.payload.mode = MODE.WRITE;
+		this.payload.tocInfo = tocInfo;
+
+		this.payloadJson = gson.toJson(payload);
+	}
+
+	@Benchmark
+	public String serialize() {
+		return gson.toJson(payload);
+	}
+
+	@Benchmark
+	public TOCPayload deserialize() {
+		return gson.fromJson(payloadJson, TOCPayload.class);
+	}
+
+}
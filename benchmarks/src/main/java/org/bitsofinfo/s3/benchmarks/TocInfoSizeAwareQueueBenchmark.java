@@ -0,0 +1,55 @@
+package org.bitsofinfo.s3.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bitsofinfo.s3.master.TocInfoSizeAwareQueue;
+import org.bitsofinfo.s3.toc.TocInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The TOC generator thread adds to the TocInfoSizeAwareQueue while
+ * the 'master.tocqueue.dispatch.threads' concurrently poll from it
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TocInfoSizeAwareQueueBenchmark {
+
+	private static final long LARGE_FILE_MIN_SIZE_BYTES = 100000000;
+
+	private TocInfoSizeAwareQueue queue = null;
+	private TocInfo smallFile = null;
+	private TocInfo largeFile = null;
+	private int added = 0;
+
+	@Setup
+	public void setup() {
+		this.queue = new TocInfoSizeAwareQueue(LARGE_FILE_MIN_SIZE_BYTES);
+		this.smallFile = new TocInfo("/some/dir/small.dat", 4096);
+		this.largeFile = new TocInfo("/some/dir/large.dat", LARGE_FILE_MIN_SIZE_BYTES * 2);
+	}
+
+	@Benchmark
+	@Group("addPoll")
+	@GroupThreads(1)
+	public boolean add() {
+		// ~1 in 100 are large
+		return queue.add((++added % 100 == 0) ? largeFile : smallFile);
+	}
+
+	@Benchmark
+	@Group("addPoll")
+	@GroupThreads(8)
+	public TocInfo poll() {
+		return queue.poll();
+	}
+
+}
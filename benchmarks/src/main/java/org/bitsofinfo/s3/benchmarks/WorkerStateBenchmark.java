@@ -0,0 +1,56 @@
+package org.bitsofinfo.s3.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bitsofinfo.s3.cmd.TocPathOpResult;
+import org.bitsofinfo.s3.toc.TOCPayload.MODE;
+import org.bitsofinfo.s3.worker.WorkerState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * WorkerState updates, every TOCQueue consumer thread records
+ * one result per TOC entry into the shared WorkerState
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WorkerStateBenchmark {
+
+	private WorkerState workerState = null;
+	private TocPathOpResult result = null;
+
+	// fresh state each iteration so the lists do not grow unbounded
+	@Setup(Level.Iteration)
+	public void setup() {
+		this.workerState = new WorkerState("benchWorker", "127.0.0.1");
+		this.result = new TocPathOpResult(MODE.WRITE, true, "/some/target/dir/file.dat", "mkdir + rsync + ?chown + ?chmod", "[]");
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void addTocPathWrittenSingleThread() {
+		workerState.addTocPathWritten(result);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void addTocPathWrittenContended() {
+		workerState.addTocPathWritten(result);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public int addAndReadTotals() {
+		workerState.addTocPathWritten(result);
+		return workerState.getTotalWritesProcessed();
+	}
+
+}
@@ -0,0 +1,62 @@
+package org.bitsofinfo.s3.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bitsofinfo.s3.yas3fs.Yas3fsS3UploadMonitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Regex parsing of a ~32k yas3fs log tail in one go vs. line by line
+ * as the Yas3fsS3UploadMonitor's incremental tailer does it
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Yas3fsLogParseBenchmark {
+
+	private static final int LOG_TAIL_BYTES = 32768;
+
+	private String logTail = null;
+	private String[] logLines = null;
+	private Yas3fsS3UploadMonitor monitor = null;
+
+	@Setup
+	public void setup() {
+		StringBuffer sb = new StringBuffer();
+		int i = 0;
+		while (sb.length() < LOG_TAIL_BYTES) {
+			sb.append("2014-10-22 19:11:29,799 INFO entries, mem_size, disk_size, download_queue, prefetch_queue, s3_queue: 1, 0, 0, 0, 0, " + (i % 7) + "\n");
+			sb.append("2014-10-22 19:11:29,801 DEBUG upload_to_s3 /some/dir/file_" + i + ".dat\n");
+			sb.append("2014-10-22 19:11:29,802 INFO multipart_uploads_in_progress = " + (i % 3) + "\n");
+			i++;
+		}
+		this.logTail = sb.substring(sb.length() - LOG_TAIL_BYTES);
+		this.logLines = logTail.split("\n");
+		this.monitor = new Yas3fsS3UploadMonitor();
+	}
+
+	@Benchmark
+	public int parseS3UploadQueueSize() {
+		return Yas3fsS3UploadMonitor.parseS3UploadQueueSize(logTail);
+	}
+
+	@Benchmark
+	public int parseMultipartUploadsInProgress() {
+		return Yas3fsS3UploadMonitor.parseMultipartUploadsInProgress(logTail);
+	}
+
+	@Benchmark
+	public int handleLogLines() {
+		for (String line : logLines) {
+			monitor.handleLogLine(line);
+		}
+		return monitor.getS3UploadQueueSize();
+	}
+
+}
@@ -0,0 +1,14 @@
+package org.bitsofinfo.s3;
+
+import java.util.Properties;
+
+/**
+ * Implemented by custom 'aws.s3.client.class' clients that need
+ * to configure themselves from the loader's properties
+ *
+ */
+public interface ConfigurableS3Client {
+
+	public void configure(Properties props) throws Exception;
+
+}
@@ -3,6 +3,8 @@ package org.bitsofinfo.s3;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import org.apache.log4j.Logger;
@@ -15,6 +17,7 @@ public class S3BucketLoader {
 	
 	private static Master master = null;
 	private static Worker worker = null;
+	private static List<Worker> localWorkers = new ArrayList<Worker>();
 
 	public static void main(String[] args) throws Exception {
 		
@@ -42,6 +45,12 @@ public class S3BucketLoader {
 
 			if (isMaster) {
 				execAsMaster(props);
+				
+				// optional workers living in this same JVM (i.e. w/ the InMemoryTransport)
+				if (System.getProperty("localWorkers") != null) {
+					execLocalWorkers(props, Integer.valueOf(System.getProperty("localWorkers")));
+				}
+				
 			} else {
 				execAsWorker(props);
 			}
@@ -63,6 +72,7 @@ public class S3BucketLoader {
 			try {
 				logger.debug("ShutdownHook invoked...");
 				if (worker != null) {worker.destroy();}
+				for (Worker w : localWorkers) {w.destroy();}
 				if (master != null) {master.destroy();}
 			} catch(Exception ignore){}
 		}
@@ -74,6 +84,15 @@ public class S3BucketLoader {
 		master.start();
 	}
 	
+	private static void execLocalWorkers(Properties props, int total) {
+		logger.info("Spawning " + total + " local workers in this JVM");
+		for (int i=0; i<total; i++) {
+			Worker w = new Worker(props);
+			w.startConsuming();
+			localWorkers.add(w);
+		}
+	}
+	
 	public static void execAsWorker(Properties props) {
 		worker = new Worker(props);
 		worker.startConsuming();
@@ -2,9 +2,11 @@ package org.bitsofinfo.s3;
 
 import java.io.File;
 import java.util.List;
+import java.util.Properties;
 
 import org.apache.log4j.Logger;
 
+import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
@@ -72,4 +74,24 @@ public class S3Util {
 		
 	}
 
+	/**
+	 * Creates the S3 client, by default an AmazonS3Client w/ the configured
+	 * 'aws.access.key' and 'aws.secret.key' unless 'aws.s3.client.class' is set.
+	 */
+	public AmazonS3Client newS3Client(Properties props) throws Exception {
+		
+		String className = props.getProperty("aws.s3.client.class");
+		if (className == null) {
+			return new AmazonS3Client(new BasicAWSCredentials(props.getProperty("aws.access.key"), props.getProperty("aws.secret.key")));
+		}
+		
+		AmazonS3Client s3Client = (AmazonS3Client)Class.forName(className.trim()).newInstance();
+		
+		if (s3Client instanceof ConfigurableS3Client) {
+			((ConfigurableS3Client)s3Client).configure(props);
+		}
+		
+		return s3Client;
+	}
+
 }
@@ -0,0 +1,26 @@
+package org.bitsofinfo.s3.bench;
+
+public class BenchmarkResult {
+
+	public int workers;
+	public int consumerThreadsPerWorker;
+	public String transport;
+
+	public boolean completed = false;
+	public String finalMode;
+
+	public int tocEntries;
+	public int files;
+	public long bytes;
+
+	public long writePhaseMS;
+	public double writeFilesPerSec;
+	public double writeBytesPerSec;
+
+	public long validatePhaseMS;
+	public double validateFilesPerSec;
+	public double validateBytesPerSec;
+
+	public long totalMS;
+
+}
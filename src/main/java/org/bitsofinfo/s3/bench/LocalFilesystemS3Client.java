@@ -0,0 +1,204 @@
+package org.bitsofinfo.s3.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.bitsofinfo.s3.ConfigurableS3Client;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Filesystem backed stand-in for S3, each bucket is a directory
+ * under 'rootDir' and each key a path relative to it. Only the calls
+ * the loader makes are supported (object metadata, copy, put and list)
+ *
+ * Used by the LocalLoadBenchmark so the write/validate
+ * paths can be exercised w/o AWS.
+ *
+ */
+public class LocalFilesystemS3Client extends AmazonS3Client implements ConfigurableS3Client {
+
+	private static final Logger logger = Logger.getLogger(LocalFilesystemS3Client.class);
+
+	private File rootDir = null;
+
+	public LocalFilesystemS3Client() {
+		super();
+	}
+
+	public LocalFilesystemS3Client(File rootDir) {
+		super();
+		setRootDir(rootDir);
+	}
+
+	/**
+	 * Used when created via 'aws.s3.client.class', see S3Util
+	 */
+	public void configure(Properties props) throws Exception {
+		String rootDir = props.getProperty("aws.s3.client.local.root.dir");
+		if (rootDir == null || rootDir.trim().length() == 0) {
+			throw new Exception("'aws.s3.client.local.root.dir' is required when using " + getClass().getName());
+		}
+		setRootDir(new File(rootDir.trim()));
+	}
+
+	public void setRootDir(File rootDir) {
+		this.rootDir = rootDir;
+		this.rootDir.mkdirs();
+	}
+
+	public File getRootDir() {
+		return rootDir;
+	}
+
+	public File getBucketDir(String bucketName) {
+		return new File(rootDir, bucketName);
+	}
+
+	private File toFile(String bucketName, String key) {
+		return new File(getBucketDir(bucketName), key);
+	}
+
+	private AmazonS3Exception notFound(String bucketName, String key) {
+		AmazonS3Exception e = new AmazonS3Exception("Not Found: " + bucketName + "/" + key);
+		e.setStatusCode(404);
+		return e;
+	}
+
+	@Override
+	public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest req) throws AmazonClientException {
+		File file = toFile(req.getBucketName(), req.getKey());
+
+		// keys ending in / are "directories"
+		if (!file.exists() || (req.getKey().endsWith("/") && !file.isDirectory())) {
+			throw notFound(req.getBucketName(), req.getKey());
+		}
+
+		ObjectMetadata md = new ObjectMetadata();
+		md.setContentLength(file.isFile() ? file.length() : 0);
+		md.setLastModified(new Date(file.lastModified()));
+		return md;
+	}
+
+	@Override
+	public CopyObjectResult copyObject(CopyObjectRequest req) throws AmazonClientException {
+		File source = toFile(req.getSourceBucketName(), req.getSourceKey());
+		File target = toFile(req.getDestinationBucketName(), req.getDestinationKey());
+
+		if (!source.exists()) {
+			throw notFound(req.getSourceBucketName(), req.getSourceKey());
+		}
+
+		try {
+			if (source.isDirectory()) {
+				target.mkdirs();
+			} else {
+				target.getParentFile().mkdirs();
+				FileUtils.copyFile(source, target);
+			}
+		} catch(Exception e) {
+			throw new AmazonClientException("copyObject() error copying " + source + " -> " + target + ": " + e.getMessage(), e);
+		}
+
+		CopyObjectResult result = new CopyObjectResult();
+		result.setLastModifiedDate(new Date(target.lastModified()));
+		return result;
+	}
+
+	@Override
+	public PutObjectResult putObject(PutObjectRequest req) throws AmazonClientException {
+		File target = toFile(req.getBucketName(), req.getKey());
+		target.getParentFile().mkdirs();
+
+		try {
+			if (req.getFile() != null) {
+				FileUtils.copyFile(req.getFile(), target);
+
+			} else if (req.getInputStream() != null) {
+				FileOutputStream out = new FileOutputStream(target);
+				try {
+					IOUtils.copy(req.getInputStream(), out);
+				} finally {
+					IOUtils.closeQuietly(out);
+					IOUtils.closeQuietly(req.getInputStream());
+				}
+			}
+		} catch(Exception e) {
+			throw new AmazonClientException("putObject() error writing " + target + ": " + e.getMessage(), e);
+		}
+
+		return new PutObjectResult();
+	}
+
+	/**
+	 * Note everything matching the prefix is returned in one listing (never truncated)
+	 */
+	@Override
+	public ObjectListing listObjects(ListObjectsRequest req) throws AmazonClientException {
+		File bucketDir = getBucketDir(req.getBucketName());
+		String prefix = (req.getPrefix() != null ? req.getPrefix() : "");
+
+		List<File> files = new ArrayList<File>();
+		if (bucketDir.exists()) {
+			collect(bucketDir, files);
+		}
+
+		ObjectListing listing = new ObjectListing();
+		listing.setBucketName(req.getBucketName());
+		listing.setPrefix(req.getPrefix());
+		listing.setTruncated(false);
+
+		String bucketPath = bucketDir.getAbsolutePath();
+		for (File f : files) {
+			String key = f.getAbsolutePath().substring(bucketPath.length()+1);
+			if (f.isDirectory()) {
+				key += "/";
+			}
+			if (!key.startsWith(prefix)) {
+				continue;
+			}
+
+			S3ObjectSummary summary = new S3ObjectSummary();
+			summary.setBucketName(req.getBucketName());
+			summary.setKey(key);
+			summary.setSize(f.isFile() ? f.length() : 0);
+			summary.setLastModified(new Date(f.lastModified()));
+			listing.getObjectSummaries().add(summary);
+		}
+
+		logger.debug("listObjects() " + req.getBucketName() + " prefix:" + prefix + " returned: " + listing.getObjectSummaries().size());
+		return listing;
+	}
+
+	private void collect(File dir, List<File> files) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File f : children) {
+			files.add(f);
+			if (f.isDirectory()) {
+				collect(f, files);
+			}
+		}
+	}
+
+}
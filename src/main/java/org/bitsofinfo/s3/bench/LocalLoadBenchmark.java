@@ -0,0 +1,222 @@
+package org.bitsofinfo.s3.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.bitsofinfo.s3.control.CCMode;
+import org.bitsofinfo.s3.master.Master;
+import org.bitsofinfo.s3.toc.TocInfo;
+import org.bitsofinfo.s3.transport.InMemoryTransport;
+import org.bitsofinfo.s3.worker.Worker;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * End to end throughput benchmark that runs a Master and N Workers
+ * in this JVM against local stand-ins: the InMemoryTransport for the TOC queue
+ * and control channel, and the LocalFilesystemS3Client for S3. A synthetic source
+ * tree is generated, written (cp) to the local "bucket" directory and then validated
+ * both locally and via the S3 stand-in.
+ *
+ * Reports files/sec, bytes/sec and the WRITE and VALIDATE phase durations.
+ *
+ * Configured via system properties (all optional):
+ *
+ * -Dbench.workDir=/tmp/s3BucketLoaderBench  (wiped on start)
+ * -Dbench.files=2000
+ * -Dbench.filesPerDir=100
+ * -Dbench.dirsPerDir=4
+ * -Dbench.sizeDistribution=4096:70,1048576:25,16777216:5
+ * -Dbench.seed=1
+ * -Dbench.workers=2
+ * -Dbench.consumerThreads=8
+ * -Dbench.timeoutMinutes=60
+ * -Dbench.resultFile=/path/to/result.json
+ * -DconfigFilePath=/path/to/overrides.properties  (merged over the generated config)
+ *
+ */
+public class LocalLoadBenchmark {
+
+	private static final Logger logger = Logger.getLogger(LocalLoadBenchmark.class);
+
+	private static final String BUCKET_NAME = "bench-bucket";
+
+	public static void main(String[] args) throws Exception {
+
+		File workDir = new File(System.getProperty("bench.workDir", System.getProperty("java.io.tmpdir") + "/s3BucketLoaderBench"));
+		int files = Integer.valueOf(System.getProperty("bench.files", "2000"));
+		int filesPerDir = Integer.valueOf(System.getProperty("bench.filesPerDir", "100"));
+		int dirsPerDir = Integer.valueOf(System.getProperty("bench.dirsPerDir", "4"));
+		String sizeDistribution = System.getProperty("bench.sizeDistribution", "4096:70,1048576:25,16777216:5");
+		long seed = Long.valueOf(System.getProperty("bench.seed", "1"));
+		int workers = Integer.valueOf(System.getProperty("bench.workers", "2"));
+		int consumerThreads = Integer.valueOf(System.getProperty("bench.consumerThreads", "8"));
+		long timeoutMS = Long.valueOf(System.getProperty("bench.timeoutMinutes", "60")) * 60000;
+		String resultFile = System.getProperty("bench.resultFile");
+
+		int exitCode = 1;
+		try {
+			FileUtils.deleteQuietly(workDir);
+
+			File sourceDir = new File(workDir, "source");
+			File s3RootDir = new File(workDir, "s3");
+			File targetDir = new File(s3RootDir, BUCKET_NAME);
+			targetDir.mkdirs();
+
+			SyntheticTreeGenerator generator = new SyntheticTreeGenerator(files, filesPerDir, dirsPerDir, sizeDistribution, seed);
+			generator.generate(sourceDir);
+
+			Properties props = buildProperties(sourceDir, s3RootDir, targetDir, workers, consumerThreads);
+
+			BenchmarkResult result = run(props, workers, consumerThreads, timeoutMS);
+
+			String json = new GsonBuilder().setPrettyPrinting().create().toJson(result);
+			logger.info("\n-------------------------------------------\n" +
+						"BENCHMARK RESULT\n" + json + "\n" +
+						"-------------------------------------------\n");
+
+			if (resultFile != null) {
+				Writer writer = new FileWriter(resultFile);
+				try {
+					writer.write(json);
+				} finally {
+					writer.close();
+				}
+			}
+
+			exitCode = (result.completed ? 0 : 1);
+
+		} catch(Exception e) {
+			logger.error("main() unexpected error: " + e.getMessage(),e);
+		}
+
+		System.exit(exitCode);
+	}
+
+	private static Properties buildProperties(File sourceDir, File s3RootDir, File targetDir, int workers, int consumerThreads) throws Exception {
+
+		Properties props = new Properties();
+
+		props.setProperty("transport.class", InMemoryTransport.class.getName());
+		props.setProperty("aws.sns.control.topic.name", "benchControlChannel");
+		props.setProperty("aws.sqs.queue.name", "benchTOCQueue");
+		props.setProperty("aws.access.key", "bench");
+		props.setProperty("aws.secret.key", "bench");
+		props.setProperty("aws.s3.client.class", LocalFilesystemS3Client.class.getName());
+		props.setProperty("aws.s3.client.local.root.dir", s3RootDir.getAbsolutePath());
+
+		props.setProperty("master.workers.total", String.valueOf(workers));
+		props.setProperty("master.workers.ec2.managed", "false");
+		props.setProperty("master.tocqueue.dispatch.threads", "4");
+		props.setProperty("master.failfast.on.worker.current.summary.error", "true");
+		props.setProperty("master.s3.log.worker.files", "");
+		props.setProperty("master.s3.log.master.files", "");
+
+		props.setProperty("tocGenerator.class", "org.bitsofinfo.s3.toc.DirectoryCrawler");
+		props.setProperty("tocGenerator.source.dir", sourceDir.getAbsolutePath());
+
+		props.setProperty("worker.toc.consumer.threads.num", String.valueOf(consumerThreads));
+		props.setProperty("worker.toc.consumer.threads.min.requests.before.idle", "3");
+		props.setProperty("worker.toc.consumer.threads.idle.after.ms", "2000");
+		props.setProperty("worker.self.monitor.every.ms", "1000");
+		props.setProperty("worker.exit.on.shutdown", "false");
+
+		props.setProperty("tocPayloadHandler.write.class", "org.bitsofinfo.s3.toc.FileCopyTOCPayloadHandler");
+		props.setProperty("tocPayloadHandler.write.use.rsync", "false");
+		props.setProperty("tocPayloadHandler.write.retries", "1");
+		props.setProperty("tocPayloadHandler.write.retries.sleep.ms", "1000");
+		props.setProperty("tocPayloadHandler.source.dir.root", sourceDir.getAbsolutePath());
+		props.setProperty("tocPayloadHandler.target.dir.root", targetDir.getAbsolutePath());
+
+		props.setProperty("tocPayloadHandler.validate.class", "org.bitsofinfo.s3.toc.ValidatingTOCPayloadHandler");
+		props.setProperty("tocPayloadHandler.validate.mode", "validateEverywhere");
+		props.setProperty("tocPayloadHandler.validate.s3.bucketName", BUCKET_NAME);
+
+		// optional overrides
+		String confPath = System.getProperty("configFilePath");
+		if (confPath != null) {
+			logger.info("Merging override props from: " + confPath);
+			InputStream input = new FileInputStream(confPath);
+			try {
+				props.load(input);
+			} finally {
+				input.close();
+			}
+		}
+
+		return props;
+	}
+
+	private static BenchmarkResult run(Properties props, int totalWorkers, int consumerThreads, long timeoutMS) throws Exception {
+
+		BenchmarkResult result = new BenchmarkResult();
+		result.workers = totalWorkers;
+		result.consumerThreadsPerWorker = consumerThreads;
+		result.transport = props.getProperty("transport.class");
+
+		long start = System.currentTimeMillis();
+
+		// master first, so the queue and control topic exist
+		Master master = new Master(props);
+		master.start();
+
+		List<Worker> workers = new ArrayList<Worker>();
+		for (int i=0; i<totalWorkers; i++) {
+			Worker worker = new Worker(props);
+			worker.startConsuming();
+			workers.add(worker);
+		}
+
+		// wait for VALIDATE to complete or for the master to give up
+		while (master.getValidationsEndAt() == null && master.getCurrentMode() != CCMode.REPORT_ERRORS) {
+			if ((System.currentTimeMillis() - start) > timeoutMS) {
+				logger.error("run() timed out after " + timeoutMS + "ms in mode: " + master.getCurrentMode());
+				break;
+			}
+			Thread.currentThread().sleep(250);
+		}
+
+		result.totalMS = System.currentTimeMillis() - start;
+		result.finalMode = String.valueOf(master.getCurrentMode());
+		result.completed = (master.getValidationsEndAt() != null && master.getCurrentMode() != CCMode.REPORT_ERRORS);
+
+		Collection<TocInfo> toc = master.getToc();
+		if (toc != null) {
+			result.tocEntries = toc.size();
+			for (TocInfo tocInfo : toc) {
+				if (!tocInfo.isDirectory()) {
+					result.files++;
+					result.bytes += tocInfo.getSize();
+				}
+			}
+		}
+
+		if (master.getWritesEndAt() != null) {
+			result.writePhaseMS = master.getWritesEndAt().getTime() - master.getWritesStartAt().getTime();
+			result.writeFilesPerSec = perSec(result.files, result.writePhaseMS);
+			result.writeBytesPerSec = perSec(result.bytes, result.writePhaseMS);
+		}
+
+		if (master.getValidationsEndAt() != null) {
+			result.validatePhaseMS = master.getValidationsEndAt().getTime() - master.getValidationsStartAt().getTime();
+			result.validateFilesPerSec = perSec(result.files, result.validatePhaseMS);
+			result.validateBytesPerSec = perSec(result.bytes, result.validatePhaseMS);
+		}
+
+		return result;
+	}
+
+	private static double perSec(long count, long ms) {
+		return (ms > 0 ? (count * 1000.0) / ms : 0);
+	}
+
+}
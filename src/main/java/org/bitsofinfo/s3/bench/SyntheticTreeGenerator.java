@@ -0,0 +1,142 @@
+package org.bitsofinfo.s3.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Generates a synthetic source tree of 'totalFiles' files spread
+ * across nested directories ('filesPerDir' files and 'dirsPerDir' sub-dirs per directory).
+ *
+ * File sizes are drawn from a distribution spec of comma delimited
+ * [maxBytes]:[weight] buckets, i.e. "4096:70,1048576:25,67108864:5" means 70% of files
+ * are 0-4KB, 25% 4KB-1MB and 5% 1MB-64MB (uniform within each bucket)
+ *
+ */
+public class SyntheticTreeGenerator {
+
+	private static final Logger logger = Logger.getLogger(SyntheticTreeGenerator.class);
+
+	private int totalFiles = 1000;
+	private int filesPerDir = 100;
+	private int dirsPerDir = 4;
+	private long seed = 1;
+
+	private long[] bucketMaxBytes = null;
+	private int[] bucketWeights = null;
+	private int totalWeight = 0;
+
+	private long totalBytesGenerated = 0;
+	private int totalFilesGenerated = 0;
+	private int totalDirsGenerated = 0;
+
+	private byte[] buffer = new byte[64*1024];
+
+	public SyntheticTreeGenerator(int totalFiles, int filesPerDir, int dirsPerDir, String sizeDistribution, long seed) {
+		this.totalFiles = totalFiles;
+		this.filesPerDir = filesPerDir;
+		this.dirsPerDir = Math.max(1, dirsPerDir);
+		this.seed = seed;
+		setSizeDistribution(sizeDistribution);
+	}
+
+	private void setSizeDistribution(String spec) {
+		String[] buckets = spec.split(",");
+		this.bucketMaxBytes = new long[buckets.length];
+		this.bucketWeights = new int[buckets.length];
+
+		for (int i=0; i<buckets.length; i++) {
+			String[] parts = buckets[i].trim().split(":");
+			this.bucketMaxBytes[i] = Long.valueOf(parts[0].trim());
+			this.bucketWeights[i] = Integer.valueOf(parts[1].trim());
+			this.totalWeight += this.bucketWeights[i];
+
+			if (i > 0 && this.bucketMaxBytes[i] < this.bucketMaxBytes[i-1]) {
+				throw new IllegalArgumentException("size distribution buckets must be in ascending order: " + spec);
+			}
+		}
+	}
+
+	private long nextSize(Random rand) {
+		int pick = rand.nextInt(totalWeight);
+		for (int i=0; i<bucketWeights.length; i++) {
+			if (pick < bucketWeights[i]) {
+				long min = (i == 0 ? 0 : bucketMaxBytes[i-1]);
+				long range = bucketMaxBytes[i] - min;
+				return min + (range > 0 ? (long)(rand.nextDouble() * range) : 0);
+			}
+			pick -= bucketWeights[i];
+		}
+		return bucketMaxBytes[bucketMaxBytes.length-1];
+	}
+
+	/**
+	 * Generates the tree under rootDir (created if needed)
+	 */
+	public void generate(File rootDir) throws Exception {
+
+		long start = System.currentTimeMillis();
+		Random rand = new Random(seed);
+		rand.nextBytes(buffer);
+
+		rootDir.mkdirs();
+
+		// breadth first so the tree stays shallow
+		List<File> dirs = new ArrayList<File>();
+		dirs.add(rootDir);
+		int dirIdx = 0;
+
+		while (totalFilesGenerated < totalFiles) {
+			File dir = dirs.get(dirIdx++);
+
+			for (int i=0; i<filesPerDir && totalFilesGenerated < totalFiles; i++) {
+				writeFile(new File(dir, "file_" + totalFilesGenerated + ".dat"), nextSize(rand));
+			}
+
+			for (int i=0; i<dirsPerDir; i++) {
+				File sub = new File(dir, "dir_" + totalDirsGenerated++);
+				sub.mkdirs();
+				dirs.add(sub);
+			}
+		}
+
+		logger.info("generate() " + totalFilesGenerated + " files, " + totalDirsGenerated + " dirs, " +
+				totalBytesGenerated + " bytes under " + rootDir.getAbsolutePath() + " in " + (System.currentTimeMillis()-start) + "ms");
+	}
+
+	private void writeFile(File file, long size) throws Exception {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			long remaining = size;
+			while (remaining > 0) {
+				int len = (int)Math.min(remaining, buffer.length);
+				out.write(buffer, 0, len);
+				remaining -= len;
+			}
+		} finally {
+			out.close();
+		}
+
+		totalFilesGenerated++;
+		totalBytesGenerated += size;
+	}
+
+	public long getTotalBytesGenerated() {
+		return totalBytesGenerated;
+	}
+
+	public int getTotalFilesGenerated() {
+		return totalFilesGenerated;
+	}
+
+	public int getTotalDirsGenerated() {
+		return totalDirsGenerated;
+	}
+
+}
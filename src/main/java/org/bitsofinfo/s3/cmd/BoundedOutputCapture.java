@@ -0,0 +1,91 @@
+package org.bitsofinfo.s3.cmd;
+
+import java.io.Writer;
+
+/**
+ * Captures a command's output keeping at most the first and last maxChars/2
+ * characters, the middle of a large output (i.e. a verbose rsync of a huge
+ * tree) is dropped and replaced with a marker stating how much was dropped.
+ * The tail is kept in a ring buffer so memory is bounded regardless of
+ * how much is written.
+ */
+public class BoundedOutputCapture extends Writer {
+
+	private char[] head = null;
+	private int headLength = 0;
+
+	private char[] tail = null;
+	private int tailStart = 0; // oldest char in the ring
+	private int tailLength = 0;
+
+	private long total = 0;
+
+	public BoundedOutputCapture(int maxChars) {
+		if (maxChars < 2) {
+			throw new RuntimeException("BoundedOutputCapture invalid maxChars: " + maxChars);
+		}
+		this.head = new char[maxChars / 2];
+		this.tail = new char[maxChars - head.length];
+	}
+
+	@Override
+	public synchronized void write(char[] cbuf, int off, int len) {
+		total += len;
+
+		// fill the head first
+		int toHead = Math.min(len, head.length - headLength);
+		System.arraycopy(cbuf, off, head, headLength, toHead);
+		headLength += toHead;
+		off += toHead;
+		len -= toHead;
+
+		// only the last tail.length of the rest can survive
+		if (len > tail.length) {
+			off += (len - tail.length);
+			len = tail.length;
+		}
+
+		for (int i=0; i<len; i++) {
+			int pos = (tailStart + tailLength) % tail.length;
+			tail[pos] = cbuf[off+i];
+			if (tailLength < tail.length) {
+				tailLength++;
+			} else {
+				tailStart = (tailStart + 1) % tail.length;
+			}
+		}
+	}
+
+	/**
+	 * Total chars written, including those dropped
+	 */
+	public synchronized long getTotal() {
+		return total;
+	}
+
+	public synchronized boolean isTruncated() {
+		return total > (headLength + tailLength);
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder(headLength + tailLength + 64);
+		sb.append(head, 0, headLength);
+
+		if (isTruncated()) {
+			sb.append("\n...[" + (total - headLength - tailLength) + " chars truncated]...\n");
+		}
+
+		for (int i=0; i<tailLength; i++) {
+			sb.append(tail[(tailStart + i) % tail.length]);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public void flush() {}
+
+	@Override
+	public void close() {}
+
+}
@@ -5,6 +5,8 @@ public class CmdResult {
 	private int exitCode;
 	private String stdOut;
 	private String stdErr;
+	private int timeouts; // attempts that timed out
+	private int processesKilled; // processes killed by those timeouts
 	
 	public CmdResult(int exitCode, String stdOut, String stdErr) {
 		super();
@@ -31,5 +33,17 @@ public class CmdResult {
 	public void setStdErr(String stdErr) {
 		this.stdErr = stdErr;
 	}
+	public int getTimeouts() {
+		return timeouts;
+	}
+	public void setTimeouts(int timeouts) {
+		this.timeouts = timeouts;
+	}
+	public int getProcessesKilled() {
+		return processesKilled;
+	}
+	public void setProcessesKilled(int processesKilled) {
+		this.processesKilled = processesKilled;
+	}
 
 }
@@ -1,70 +1,163 @@
 package org.bitsofinfo.s3.cmd;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
-import org.apache.commons.exec.ExecuteStreamHandler;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.exec.ExecuteException;
+import org.apache.commons.exec.PumpStreamHandler;
+import org.apache.commons.io.output.WriterOutputStream;
 import org.apache.log4j.Logger;
+import org.bitsofinfo.s3.metrics.Counter;
+import org.bitsofinfo.s3.metrics.MetricsRegistry;
 
-
+/**
+ * Executes commands w/ retries. Optionally each command type (executable name
+ * i.e. 'rsync') can have a timeout after which its whole process tree is killed,
+ * so a command hung on i.e. an NFS read cannot hold the calling thread forever.
+ * Captured stdout/stderr are bounded to the head and tail of maxCaptureChars.
+ */
 public class CommandExecutor {
 
 	private static final Logger logger = Logger.getLogger(CommandExecutor.class);
 
+	public static final int DEFAULT_MAX_CAPTURE_CHARS = 65536;
+
+	private long defaultTimeoutMS = 0; // none
+	private Map<String,Long> timeoutsMS = new HashMap<String,Long>();
+	private int maxCaptureChars = DEFAULT_MAX_CAPTURE_CHARS;
+
+	private MetricsRegistry metrics = MetricsRegistry.getInstance();
+	private Counter timeouts = metrics.counter("cmd_timeouts", "Commands killed for exceeding their timeout");
+	private Counter processesKilled = metrics.counter("cmd_processes_killed", "Processes (incl. children) killed by command timeouts");
+
 	public CmdResult execute(CommandLine cmdLine, int maxAttempts) {
-		
+
 		CmdResult lastCmdResult = null;
-		
+		long timeoutMS = getTimeoutMS(cmdLine);
+		int timedOut = 0;
+		int killed = 0;
+
 		int attempts = 0;
 		while(attempts < maxAttempts) {
-		
+
 			attempts++;
-			
-			final StringWriter stdOut = new StringWriter();
-			final StringWriter stdErr = new StringWriter();
-			
+
+			final BoundedOutputCapture stdOut = new BoundedOutputCapture(maxCaptureChars);
+			final BoundedOutputCapture stdErr = new BoundedOutputCapture(maxCaptureChars);
+
 			try {
-			
-				DefaultExecutor executor = new DefaultExecutor();
-				executor.setStreamHandler(new ExecuteStreamHandler() {
-						public void setProcessOutputStream(InputStream is) throws IOException {IOUtils.copy(is, stdOut, "UTF-8");}
-						public void setProcessErrorStream(InputStream is) throws IOException {IOUtils.copy(is, stdErr, "UTF-8");}
-						public void stop() throws IOException {}
-						public void start() throws IOException {}
-						public void setProcessInputStream(OutputStream os) throws IOException {}
-					});
-					
+
 				logger.trace("Executing: attempt:" + attempts + " " + cmdLine.toString());
-					
-				int exitValue = executor.execute(cmdLine);
+
+				int exitValue = executeOnce(cmdLine, timeoutMS, stdOut, stdErr);
 				if (exitValue > 0) {
 					logger.error("ERROR: attempt #: " + attempts+ " exitCode: "+exitValue+" cmd=" + cmdLine.toString());
 				}
-				
+
 				//System.out.println("STDOUT:"+stdOut);
 				//System.out.println("STDERR:"+stdErr);
-				
+
 				lastCmdResult = new CmdResult(exitValue,stdOut.toString(),stdErr.toString());
-				
+
 				// if successful exit loop immediately...
 				if (exitValue == 0) {
 					logger.trace("SUCCESS! exitCode = 0: " + cmdLine.toString());
 					break;
 				}
-				
+
+			} catch(CommandTimeoutException e) {
+				timedOut++;
+				killed += e.getProcessesKilled();
+				timeouts.inc();
+				processesKilled.inc(e.getProcessesKilled());
+
+				logger.error("execute() attempt #: " + attempts+ " cmd:"+cmdLine.toString() + " " + e.getMessage());
+				lastCmdResult = new CmdResult(9999, stdOut.toString(), "attempt #: " + attempts+ " exception: " + e.getMessage() + " stdErr: " + stdErr.toString());
+
 			} catch(Exception e) {
 				logger.error("execute() attempt #: " + attempts+ " cmd:"+cmdLine.toString() + " exception:"+e.getMessage(),e);
 				lastCmdResult = new CmdResult(9999, stdOut.toString(), "attempt #: " + attempts+ " exception: " + e.getMessage() + " stdErr: " + stdErr.toString());
 			}
 		}
-		
+
+		if (lastCmdResult != null) {
+			lastCmdResult.setTimeouts(timedOut);
+			lastCmdResult.setProcessesKilled(killed);
+		}
 		return lastCmdResult;
 	}
-	
+
+	/**
+	 * Runs the command once, capturing its output, like DefaultExecutor
+	 * a non-zero exit is raised as an ExecuteException, a timeout
+	 * (timeoutMS > 0) as a CommandTimeoutException
+	 */
+	protected int executeOnce(CommandLine cmdLine, long timeoutMS, Writer stdOut, Writer stdErr) throws Exception {
+		DefaultExecutor executor = new DefaultExecutor();
+		
+		// pumped on their own threads, copying them in setProcessOutputStream() would
+		// block DefaultExecutor until the process exits, before it starts the watchdog
+		executor.setStreamHandler(new PumpStreamHandler(new WriterOutputStream(stdOut, "UTF-8"), 
+														new WriterOutputStream(stdErr, "UTF-8")));
+
+		TreeKillingWatchdog watchdog = null;
+		if (timeoutMS > 0) {
+			watchdog = new TreeKillingWatchdog(timeoutMS);
+			executor.setWatchdog(watchdog);
+		}
+
+		int exitValue = 0;
+		try {
+			exitValue = executor.execute(cmdLine);
+
+		} catch(ExecuteException e) {
+			if (watchdog == null || !watchdog.isTimedOut()) {
+				throw e;
+			}
+			exitValue = e.getExitValue();
+		}
+
+		if (watchdog != null && watchdog.isTimedOut()) {
+			throw new CommandTimeoutException("timed out after " + timeoutMS + "ms, killed " +
+					watchdog.getProcessesKilled() + " processes", exitValue, watchdog.getProcessesKilled());
+		}
+		return exitValue;
+	}
+
+	/**
+	 * Timeout for the command's executable, else the default
+	 */
+	protected long getTimeoutMS(CommandLine cmdLine) {
+		String executable = cmdLine.getExecutable();
+		executable = executable.substring(executable.lastIndexOf('/')+1);
+
+		Long timeoutMS = timeoutsMS.get(executable);
+		return (timeoutMS != null ? timeoutMS : defaultTimeoutMS);
+	}
+
+	/**
+	 * Timeout for commands w/ the given executable name (i.e. 'rsync'), <= 0 for none
+	 */
+	public void setTimeoutMS(String executable, long timeoutMS) {
+		this.timeoutsMS.put(executable, timeoutMS);
+	}
+
+	public void setDefaultTimeoutMS(long defaultTimeoutMS) {
+		this.defaultTimeoutMS = defaultTimeoutMS;
+	}
+
+	public void setMaxCaptureChars(int maxCaptureChars) {
+		this.maxCaptureChars = maxCaptureChars;
+	}
+
+	public int getMaxCaptureChars() {
+		return maxCaptureChars;
+	}
+
+	public void destroy() {}
+
 
 }
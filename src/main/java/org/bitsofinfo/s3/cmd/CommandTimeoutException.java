@@ -0,0 +1,23 @@
+package org.bitsofinfo.s3.cmd;
+
+import org.apache.commons.exec.ExecuteException;
+
+/**
+ * A command ran longer than its timeout and its process tree was killed
+ */
+public class CommandTimeoutException extends ExecuteException {
+
+	private static final long serialVersionUID = 1L;
+
+	private int processesKilled = 0;
+
+	public CommandTimeoutException(String message, int exitValue, int processesKilled) {
+		super(message, exitValue);
+		this.processesKilled = processesKilled;
+	}
+
+	public int getProcessesKilled() {
+		return processesKilled;
+	}
+
+}
@@ -0,0 +1,302 @@
+package org.bitsofinfo.s3.cmd;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.ExecuteException;
+import org.apache.log4j.Logger;
+import org.bitsofinfo.s3.metrics.Counter;
+import org.bitsofinfo.s3.metrics.MetricsRegistry;
+
+/**
+ * CommandExecutor that rather than forking every command from the (large) JVM
+ * keeps a pool of up to 'shells' long lived /bin/sh coprocesses and feeds the
+ * commands to them over their stdin. Each command is written as a single line,
+ * every argument single quoted, followed by a marker (random per shell) echoed
+ * to stdout with the exit code and to stderr:
+ *
+ *   'mkdir' '-p' '/some/dir' </dev/null; printf '\n%s %d\n' MARKER $?; printf '\n%s\n' MARKER >&2
+ *
+ * the lines read before the marker on each stream are the command's output.
+ * The shells still fork the commands themselves, but that is cheap compared
+ * to a fork of a multi-GB JVM.
+ *
+ * Drop in for CommandExecutor: same retries, same ExecuteException on a non-zero
+ * exit. A shell that fails (i.e. it died) is discarded and replaced on demand.
+ * On a timeout the processes the shell is running are killed, the shell is kept,
+ * unless they cannot be found (no pid or /proc) in which case the shell is
+ * killed w/ them and discarded.
+ */
+public class CoprocessCommandExecutor extends CommandExecutor {
+
+	private static final Logger logger = Logger.getLogger(CoprocessCommandExecutor.class);
+
+	public static final String SHELL = "/bin/sh";
+
+	private static final int WATCHING = 0;
+	private static final int KILLING = 1;
+	private static final int DONE = 2;
+
+	private int shells = 0;
+	private AtomicInteger created = new AtomicInteger(0);
+	private BlockingQueue<Coprocess> idle = new LinkedBlockingQueue<Coprocess>();
+	private volatile boolean destroyed = false;
+	private ScheduledExecutorService watchdogTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "coprocess-watchdog");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private MetricsRegistry metrics = MetricsRegistry.getInstance();
+	private Counter spawned = metrics.counter("cmd_coprocess_spawned", "Coprocess shells started by the CoprocessCommandExecutor");
+
+	public CoprocessCommandExecutor(int shells) {
+		if (shells < 1) {
+			throw new RuntimeException("CoprocessCommandExecutor invalid shells: " + shells);
+		}
+		this.shells = shells;
+	}
+
+	@Override
+	protected int executeOnce(CommandLine cmdLine, long timeoutMS, Writer stdOut, Writer stdErr) throws Exception {
+		final Coprocess coprocess = borrow();
+		boolean healthy = false;
+		
+		// on timeout kill what the shell is running, the shell itself survives
+		final AtomicInteger killed = new AtomicInteger(0);
+		final AtomicBoolean shellKilled = new AtomicBoolean(false);
+		final AtomicInteger watchdogState = new AtomicInteger(WATCHING);
+		final CountDownLatch killDone = new CountDownLatch(1);
+		ScheduledFuture<?> watchdog = null;
+		if (timeoutMS > 0) {
+			watchdog = watchdogTimer.schedule(new Runnable() {
+				public void run() {
+					if (!watchdogState.compareAndSet(WATCHING, KILLING)) {
+						return; // command already done
+					}
+					try {
+						// nothing killed means the command just finished, the shell is fine
+						if (ProcessTreeKiller.canKillDescendants(coprocess.process)) {
+							killed.set(ProcessTreeKiller.killTree(coprocess.process, false));
+						} else {
+							shellKilled.set(true);
+							killed.set(ProcessTreeKiller.killTree(coprocess.process, true));
+						}
+					} finally {
+						killDone.countDown();
+					}
+				}
+			}, timeoutMS, TimeUnit.MILLISECONDS);
+		}
+		
+		try {
+			int exitValue = 0;
+			try {
+				exitValue = coprocess.execute(cmdLine, stdOut, stdErr);
+				healthy = true;
+			} finally {
+				// let a kill in progress finish before anyone else can use the shell
+				if (watchdog != null) {
+					watchdog.cancel(false);
+					if (!watchdogState.compareAndSet(WATCHING, DONE)) {
+						killDone.await();
+					}
+				}
+			}
+
+			if (killed.get() > 0) {
+				throw new CommandTimeoutException("timed out after " + timeoutMS + "ms, killed " + 
+						killed.get() + " processes", exitValue, killed.get());
+			}
+			
+			if (exitValue != 0) {
+				throw new ExecuteException("Process exited with an error: " + exitValue, exitValue);
+			}
+			return exitValue;
+
+		} catch(CommandTimeoutException e) {
+			throw e;
+			
+		} catch(IOException e) {
+			// the shell went away under the command, did we take it down?
+			if (killed.get() > 0) {
+				throw new CommandTimeoutException("timed out after " + timeoutMS + "ms, killed " + 
+						killed.get() + " processes (incl. the coprocess)", 9999, killed.get());
+			}
+			throw e;
+			
+		} finally {
+			if (healthy && !destroyed && !shellKilled.get()) {
+				idle.add(coprocess);
+			} else {
+				coprocess.destroy();
+				created.decrementAndGet();
+			}
+		}
+	}
+
+	private Coprocess borrow() throws Exception {
+		Coprocess coprocess = idle.poll();
+		if (coprocess != null) {
+			return coprocess;
+		}
+
+		// room for another?
+		if (created.incrementAndGet() <= shells) {
+			try {
+				coprocess = new Coprocess(getMaxCaptureChars());
+				spawned.inc();
+				return coprocess;
+			} catch(Exception e) {
+				created.decrementAndGet();
+				throw e;
+			}
+		}
+		created.decrementAndGet();
+
+		while ((coprocess = idle.poll(1, TimeUnit.SECONDS)) == null) {
+			if (destroyed) {
+				throw new Exception("CoprocessCommandExecutor is destroyed");
+			}
+			// one may have been discarded in the meantime
+			if (created.get() < shells) {
+				return borrow();
+			}
+		}
+		return coprocess;
+	}
+
+	@Override
+	public void destroy() {
+		destroyed = true;
+		watchdogTimer.shutdownNow();
+		Coprocess coprocess = null;
+		while ((coprocess = idle.poll()) != null) {
+			coprocess.destroy();
+		}
+	}
+
+	/**
+	 * Single quotes the argument for the shell, ' becomes '\''
+	 */
+	protected static String quote(String arg) {
+		return "'" + arg.replace("'", "'\\''") + "'";
+	}
+
+	/**
+	 * One /bin/sh and the thread draining its stderr into frames, each
+	 * bounded to maxCaptureChars like the CommandExecutor's own capture
+	 */
+	private static class Coprocess implements Runnable {
+
+		private Process process = null;
+		private String marker = "__S3BL_" + UUID.randomUUID().toString().replace("-", "");
+		private Writer stdIn = null;
+		private BufferedReader stdOut = null;
+		private BufferedReader stdErr = null;
+		private BlockingQueue<String> stdErrFrames = new LinkedBlockingQueue<String>();
+		private int maxCaptureChars = 0;
+
+		public Coprocess(int maxCaptureChars) throws Exception {
+			this.maxCaptureChars = maxCaptureChars;
+			this.process = new ProcessBuilder(SHELL).start();
+			this.stdIn = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), "UTF-8"));
+			this.stdOut = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+			this.stdErr = new BufferedReader(new InputStreamReader(process.getErrorStream(), "UTF-8"));
+
+			Thread stdErrReader = new Thread(this, "coprocess-stderr");
+			stdErrReader.setDaemon(true);
+			stdErrReader.start();
+		}
+
+		public int execute(CommandLine cmdLine, Writer out, Writer err) throws Exception {
+			StringBuilder cmd = new StringBuilder();
+			for (String part : cmdLine.toStrings()) {
+				if (cmd.length() > 0) {
+					cmd.append(' ');
+				}
+				cmd.append(quote(part));
+			}
+			cmd.append(" </dev/null; printf '\\n%s %d\\n' ").append(marker).append(" $?; printf '\\n%s\\n' ")
+				.append(marker).append(" >&2\n");
+
+			stdIn.write(cmd.toString());
+			stdIn.flush();
+
+			String exitLine = readFrame(stdOut, out);
+			if (exitLine == null) {
+				throw new IOException("coprocess " + SHELL + " exited while running: " + cmdLine);
+			}
+
+			String errFrame = stdErrFrames.take();
+			if (errFrame.equals(marker)) {
+				throw new IOException("coprocess " + SHELL + " stderr closed while running: " + cmdLine);
+			}
+			err.write(errFrame);
+
+			return Integer.valueOf(exitLine.substring(marker.length()).trim());
+		}
+
+		/**
+		 * Copies the lines before the marker line, returning the marker line (or null at EOF).
+		 * Our printf puts a \n before the marker, so re-joining the lines w/ \n
+		 * reproduces the command's output exactly
+		 */
+		private String readFrame(BufferedReader reader, Writer frame) throws IOException {
+			boolean first = true;
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(marker)) {
+					return line;
+				}
+				if (!first) {
+					frame.write('\n');
+				}
+				frame.write(line);
+				first = false;
+			}
+			return null;
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					BoundedOutputCapture frame = new BoundedOutputCapture(maxCaptureChars);
+					if (readFrame(stdErr, frame) == null) {
+						break;
+					}
+					stdErrFrames.add(frame.toString());
+				}
+			} catch(Exception e) {
+				logger.debug("coprocess stderr reader exiting: " + e.getMessage());
+			}
+			stdErrFrames.add(marker); // EOF, a frame can never be the marker itself
+		}
+
+		public void destroy() {
+			try {
+				stdIn.close();
+			} catch(Exception ignore) {}
+			process.destroy();
+		}
+	}
+
+}
@@ -0,0 +1,164 @@
+package org.bitsofinfo.s3.cmd;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Kills a process and everything it forked (i.e. rsync's generator/receiver
+ * children) rather than only the direct child Process.destroy() signals.
+ * Descendants are found by walking the ppids in /proc/[pid]/stat, so this
+ * only kills the tree on linux, elsewhere just the Process itself.
+ */
+public class ProcessTreeKiller {
+
+	private static final Logger logger = Logger.getLogger(ProcessTreeKiller.class);
+
+	/**
+	 * pid of the Process, -1 if it cannot be determined
+	 */
+	public static int getPid(Process process) {
+		try {
+			// java 9+
+			return ((Number)Process.class.getMethod("pid").invoke(process)).intValue();
+		} catch(Exception ignore) {}
+
+		try {
+			// java 6-8 UNIXProcess
+			Field pid = process.getClass().getDeclaredField("pid");
+			pid.setAccessible(true);
+			return pid.getInt(process);
+		} catch(Exception e) {
+			logger.debug("getPid() cannot determine pid of: " + process.getClass().getName() + " " + e.getMessage());
+		}
+		return -1;
+	}
+
+	/**
+	 * True if killTree() can find the Process' descendants (its pid is known and /proc exists)
+	 */
+	public static boolean canKillDescendants(Process process) {
+		return getPid(process) > 0 && new File("/proc").isDirectory();
+	}
+
+	/**
+	 * All (transitive) children of the pid, parents before their children
+	 */
+	public static List<Integer> getDescendants(int pid) {
+		List<Integer> descendants = new ArrayList<Integer>();
+
+		File[] procs = new File("/proc").listFiles();
+		if (pid <= 0 || procs == null) {
+			return descendants;
+		}
+
+		Map<Integer,List<Integer>> children = new HashMap<Integer,List<Integer>>();
+		for (File proc : procs) {
+			int child = toPid(proc.getName());
+			if (child > 0) {
+				int parent = readPPid(proc);
+				if (parent > 0) {
+					List<Integer> siblings = children.get(parent);
+					if (siblings == null) {
+						siblings = new ArrayList<Integer>();
+						children.put(parent, siblings);
+					}
+					siblings.add(child);
+				}
+			}
+		}
+
+		LinkedList<Integer> toVisit = new LinkedList<Integer>();
+		toVisit.add(pid);
+		while (!toVisit.isEmpty()) {
+			List<Integer> kids = children.get(toVisit.removeFirst());
+			if (kids != null) {
+				descendants.addAll(kids);
+				toVisit.addAll(kids);
+			}
+		}
+		return descendants;
+	}
+
+	/**
+	 * SIGKILLs the descendants of the Process (and the Process itself if
+	 * includeProcess), returns the number of processes signaled
+	 */
+	public static int killTree(Process process, boolean includeProcess) {
+		int pid = getPid(process);
+		List<Integer> toKill = getDescendants(pid);
+
+		// the process first (in the same kill) so it cannot carry on w/ anything else
+		if (includeProcess && pid > 0) {
+			toKill.add(0, pid);
+		}
+
+		int killed = kill(toKill);
+		if (includeProcess && pid <= 0) {
+			process.destroy();
+			killed++;
+		}
+		return killed;
+	}
+
+	private static int kill(List<Integer> pids) {
+		if (pids.isEmpty()) {
+			return 0;
+		}
+
+		List<String> cmd = new ArrayList<String>();
+		cmd.add("kill");
+		cmd.add("-9");
+		for (Integer pid : pids) {
+			cmd.add(String.valueOf(pid));
+		}
+
+		try {
+			logger.debug("kill() killing: " + pids);
+			Process kill = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+			kill.getOutputStream().close();
+			kill.getInputStream().close();
+			kill.waitFor(); // some may have exited in the meantime, ignore the exit code
+		} catch(Exception e) {
+			logger.error("kill() error killing: " + pids + " " + e.getMessage(),e);
+		}
+		return pids.size();
+	}
+
+	private static int toPid(String name) {
+		for (int i=0; i<name.length(); i++) {
+			if (!Character.isDigit(name.charAt(i))) {
+				return -1;
+			}
+		}
+		return (name.length() > 0 ? Integer.valueOf(name) : -1);
+	}
+
+	/**
+	 * 1234 (rsync) S 1200 ... the comm can contain spaces and parens, so parse from the last ')'
+	 */
+	private static int readPPid(File proc) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(new File(proc, "stat")), "UTF-8"));
+			try {
+				String stat = reader.readLine();
+				String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+				return Integer.valueOf(fields[1]);
+			} finally {
+				reader.close();
+			}
+		} catch(Exception e) {
+			return -1; // exited while we looked
+		}
+	}
+
+}
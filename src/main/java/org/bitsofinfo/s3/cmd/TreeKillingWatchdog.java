@@ -0,0 +1,47 @@
+package org.bitsofinfo.s3.cmd;
+
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.commons.exec.Watchdog;
+
+/**
+ * ExecuteWatchdog that on timeout kills the whole process tree of the
+ * command, not only the process it started
+ */
+public class TreeKillingWatchdog extends ExecuteWatchdog {
+
+	private Process process = null;
+	private volatile int processesKilled = 0;
+	private volatile boolean timedOut = false;
+
+	public TreeKillingWatchdog(long timeoutMS) {
+		super(timeoutMS);
+	}
+
+	@Override
+	public synchronized void start(Process process) {
+		this.process = process;
+		super.start(process);
+	}
+
+	@Override
+	public synchronized void timeoutOccured(Watchdog w) {
+		timedOut = true;
+		if (process != null) {
+			processesKilled = ProcessTreeKiller.killTree(process, true);
+		}
+		super.timeoutOccured(w);
+	}
+
+	/**
+	 * Unlike killedProcess() also true when the process was 
+	 * already gone by the time super looked
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	public int getProcessesKilled() {
+		return processesKilled;
+	}
+
+}
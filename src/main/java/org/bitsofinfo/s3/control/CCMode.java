@@ -7,6 +7,7 @@ public enum CCMode {
 	WRITE,
 	IDLE,
 	VALIDATE,
-	REPORT_ERRORS
+	REPORT_ERRORS,
+	CONTINUOUS // after VALIDATE, WRITE source changes as they are found
 	
 }
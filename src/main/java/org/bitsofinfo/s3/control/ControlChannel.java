@@ -1,47 +1,25 @@
 package org.bitsofinfo.s3.control;
 
 import java.net.InetAddress;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
+import org.bitsofinfo.s3.transport.SqsSnsTransport;
+import org.bitsofinfo.s3.transport.Transport;
+import org.bitsofinfo.s3.transport.TransportMessage;
 
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.auth.policy.Policy;
-import com.amazonaws.auth.policy.Principal;
-import com.amazonaws.auth.policy.Resource;
-import com.amazonaws.auth.policy.Statement;
-import com.amazonaws.auth.policy.Statement.Effect;
-import com.amazonaws.auth.policy.actions.SQSActions;
-import com.amazonaws.auth.policy.conditions.ConditionFactory;
-import com.amazonaws.services.sns.AmazonSNSClient;
-import com.amazonaws.services.sns.model.CreateTopicResult;
-import com.amazonaws.services.sns.model.ListTopicsResult;
-import com.amazonaws.services.sns.model.SubscribeResult;
-import com.amazonaws.services.sns.model.Topic;
-import com.amazonaws.services.sqs.AmazonSQSClient;
-import com.amazonaws.services.sqs.model.CreateQueueResult;
-import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
-import com.amazonaws.services.sqs.model.ReceiveMessageResult;
-import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 
 public class ControlChannel implements Runnable {
 	
 	private static final Logger logger = Logger.getLogger(ControlChannel.class);
 	
-	private AmazonSNSClient snsClient = null;
-	private AmazonSQSClient sqsClient = null;
+	private Transport transport = null;
 	
 	private String snsTopicARN = null;
 	private String snsSubscriptionARN = null;
 	private String sqsQueueUrl = null;
-	private String sqsQueueARN = null;
 	
 	private Gson gson = new Gson();
 	
@@ -62,6 +40,26 @@ public class ControlChannel implements Runnable {
 						  String userAccountPrincipalId, 
 						  String userARN, 
 						  CCPayloadHandler ccPayloadHandler) throws Exception {
+		this(callerIsMaster, newSqsSnsTransport(awsAccessKey, awsSecretKey, userARN), snsControlTopicName, ccPayloadHandler);
+	}
+	
+	public ControlChannel(boolean callerIsMaster,
+						  Transport transport, 
+						  String snsControlTopicName, 
+						  CCPayloadHandler ccPayloadHandler) throws Exception {
+		this(callerIsMaster, transport, snsControlTopicName, ccPayloadHandler, null);
+	}
+	
+	/**
+	 * @param sourceIdentifier if non-null, used in place of a newly generated one, so a 
+	 * 			restarted master re-attaches to the topic (and its own topic subscription queue) 
+	 * 			it created before (see getMySourceIdentifier())
+	 */
+	public ControlChannel(boolean callerIsMaster,
+						  Transport transport, 
+						  String snsControlTopicName, 
+						  CCPayloadHandler ccPayloadHandler,
+						  String sourceIdentifier) throws Exception {
 		super();
 		
 		try {
@@ -70,7 +68,7 @@ public class ControlChannel implements Runnable {
 			logger.error("Error getting local inet address: " + e.getMessage());
 		}
 		
-		mySourceIdentifier = determineHostName() + "-" +uuid;
+		mySourceIdentifier = (sourceIdentifier != null ? sourceIdentifier : determineHostName() + "-" +uuid);
 		this.snsControlTopicName = snsControlTopicName;
 		
 		if (callerIsMaster) {
@@ -80,114 +78,49 @@ public class ControlChannel implements Runnable {
 		
 		this.ccPayloadHandler = ccPayloadHandler;
 		
-		sqsClient = new AmazonSQSClient(new BasicAWSCredentials(awsAccessKey, awsSecretKey));
-		snsClient = new AmazonSNSClient(new BasicAWSCredentials(awsAccessKey, awsSecretKey));
-		
-		
-		this.connectToTopic(callerIsMaster, 1000, userAccountPrincipalId, userARN);
+		this.transport = transport;
 		
-	
+		this.connectToTopic(callerIsMaster, 1000);
 
 	}
-
-	
-	public void connectToTopic(boolean callerIsMaster, int maxAttempts, String userAccountPrincipalId, String userARN) throws Exception {
-		
-		
-		// try up to max attempts to connect to pre-existing topic
-		for (int i=0; i<maxAttempts; i++) {
-			
-			logger.debug("connectToTopic() attempt: " + (i+1));
-			
-			ListTopicsResult listResult = snsClient.listTopics();
-			List<Topic> topics = listResult.getTopics();
-			
-			while(topics != null) {
-				
-				for (Topic topic : topics) {
 	
-					// note we do index of match....
-					if (topic.getTopicArn().indexOf(snsControlTopicName) != -1) {
-						snsTopicARN = topic.getTopicArn();
-						logger.info("Found existing SNS topic by name: "+snsControlTopicName + " @ " + snsTopicARN);
-						break;
-					}
-				}
+	private static Transport newSqsSnsTransport(String awsAccessKey, String awsSecretKey, String userARN) {
+		SqsSnsTransport transport = new SqsSnsTransport(awsAccessKey, awsSecretKey);
+		transport.setUserARN(userARN);
+		return transport;
+	}
+
 	
-				String nextToken = listResult.getNextToken();
-				
-				if (nextToken != null && snsTopicARN == null) {
-					listResult = snsClient.listTopics(nextToken);
-					topics = listResult.getTopics();
-					
-				} else {
-					break;
-				}
-			}
-			
-			// if consumer, retry, otherwise is master, so just exit quick to create...
-			if (snsTopicARN == null && !callerIsMaster) {
-				Thread.currentThread().sleep(1000);
-				continue;
-			} else {
-				break; // exit;
-			}
-		}
-		
+	public void connectToTopic(boolean callerIsMaster, int maxAttempts) throws Exception {
 		
-		
-		// if master only he can create...
-		if (snsTopicARN == null && callerIsMaster) {
+		// if master only he can create... (max 80 len)
+		if (callerIsMaster) {
 			this.snsControlTopicName = this.snsControlTopicName.substring(0,(snsControlTopicName.length() > 80 ? 80 : this.snsControlTopicName.length()));
-			
-			logger.info("Attempting to create new SNS control channel topic by name: "+this.snsControlTopicName);
-			
-			CreateTopicResult createTopicResult = snsClient.createTopic(this.snsControlTopicName);
-			snsTopicARN = createTopicResult.getTopicArn();
-			snsClient.addPermission(snsTopicARN, "Permit_SNSAdd", 
-									Arrays.asList(new String[]{userARN}), 
-									Arrays.asList(new String[]{"Publish","Subscribe","Receive"}));
-			logger.info("Created new SNS control channel topic by name: "+this.snsControlTopicName + " @ " + snsTopicARN);
-			
-		} else if (snsTopicARN == null) {
-			throw new Exception("Worker() cannot start, snsControlTopicName has yet to be created by master?: " + this.snsControlTopicName);
 		}
 		
-		// http://www.jorgjanke.com/2013/01/aws-sns-topic-subscriptions-with-sqs.html
+		try {
+			snsTopicARN = transport.connectToTopic(this.snsControlTopicName, callerIsMaster, maxAttempts);
+		} catch(Exception e) {
+			throw new Exception("Worker() cannot start, snsControlTopicName has yet to be created by master?: " + this.snsControlTopicName, e);
+		}
 		
-		// create SQS queue to get SNS notifications (max 80 len)
+		// create queue to get topic notifications (max 80 len)
 		String prefix =  ("s3bktLoaderCC_" + mySourceIdentifier);
 		String sqsQueueName = prefix.substring(0,(prefix.length() > 80 ? 80 : prefix.length()));
 		
-		CreateQueueResult createQueueResult = sqsClient.createQueue(sqsQueueName);
-		this.sqsQueueUrl = createQueueResult.getQueueUrl();
-		this.sqsQueueARN = sqsClient.getQueueAttributes(sqsQueueUrl, Arrays.asList(new String[]{"QueueArn"})).getAttributes().get("QueueArn");
-
-		Statement statement = new Statement(Effect.Allow)
-								.withActions(SQSActions.SendMessage)
-								 .withPrincipals(new Principal("*"))
-								 .withConditions(ConditionFactory.newSourceArnCondition(snsTopicARN))
-								 .withResources(new Resource(sqsQueueARN));
-		Policy policy = new Policy("SubscriptionPermission").withStatements(statement);
-
-		HashMap<String, String> attributes = new HashMap<String, String>();
-		attributes.put("Policy", policy.toJson());
-		SetQueueAttributesRequest request = new SetQueueAttributesRequest(sqsQueueUrl, attributes);
-		sqsClient.setQueueAttributes(request);
-
-		logger.info("Created SQS queue: " + sqsQueueARN + " @ " + sqsQueueUrl);
+		this.sqsQueueUrl = transport.connectToQueue(sqsQueueName, true, 1);
+		logger.info("Created control channel queue: " + sqsQueueUrl);
 		
-		// subscribe our SQS queue to the SNS:s3MountTest topic
-		SubscribeResult subscribeResult = snsClient.subscribe(snsTopicARN,"sqs",sqsQueueARN);
-		snsSubscriptionARN = subscribeResult.getSubscriptionArn();
-		logger.info("Subscribed for messages from SNS control channel:" + snsTopicARN + " ----> SQS: "+sqsQueueARN);
+		// subscribe our queue to the topic
+		snsSubscriptionARN = transport.subscribe(snsTopicARN, sqsQueueUrl);
+		logger.info("Subscribed for messages from control channel:" + snsTopicARN + " ----> "+sqsQueueUrl);
 		logger.info("Subscription ARN: " + snsSubscriptionARN);
 		
 		this.consumerThread = new Thread(this,"ControlChannel msg consumer thread");
 		this.consumerThread.start();
 
 		logger.info("\n-------------------------------------------\n" +
-					"CONTROL CHANNEL: ALL SNS/SQS resources hooked up OK\n" +
+					"CONTROL CHANNEL: ALL transport resources hooked up OK\n" +
 					"-------------------------------------------\n");
 	}
 		
@@ -208,7 +141,7 @@ public class ControlChannel implements Runnable {
 		logger.debug("Sending: " + type + "="+value);
 		
 		// send!
-		this.snsClient.publish(this.snsTopicARN, gson.toJson(payload));
+		this.transport.broadcast(this.snsTopicARN, gson.toJson(payload));
 	}
 
 	public void run() {
@@ -217,29 +150,21 @@ public class ControlChannel implements Runnable {
 			
 			try {
 				
-				ReceiveMessageRequest req = new ReceiveMessageRequest();
-				req.setWaitTimeSeconds(10);
-				req.setMaxNumberOfMessages(10);
-				req.setVisibilityTimeout(300);
-				req.setQueueUrl(sqsQueueUrl);
-				
-				ReceiveMessageResult msgResult = sqsClient.receiveMessage(req);
-				List<Message> messages = msgResult.getMessages();
+				List<TransportMessage> messages = transport.receive(sqsQueueUrl, 10, 10, 300);
 				
-				for (Message msg : messages) {
+				for (TransportMessage msg : messages) {
 					
 					CCPayload payload = null;
 
 					try {
-						Map<String,String> body = gson.fromJson(msg.getBody(), new TypeToken<Map<String, String>>(){}.getType()); 
-						payload = gson.fromJson(body.get("Message"), CCPayload.class);
+						payload = gson.fromJson(msg.getBody(), CCPayload.class);
 					
 					} catch(Exception e) {
-						logger.error("ERROR: unexpected error converting SQS Message " +
+						logger.error("ERROR: unexpected error converting control channel message " +
 								"body (json -> CCPayload) body= " + msg.getBody() + " error="+e.getMessage());
 						
 						// delete the message we just analyzed
-						sqsClient.deleteMessage(sqsQueueUrl, msg.getReceiptHandle());
+						transport.ack(sqsQueueUrl, msg);
 						
 						continue;
 					}
@@ -250,7 +175,7 @@ public class ControlChannel implements Runnable {
 					}
 					
 					// delete the message we just analyzed
-					sqsClient.deleteMessage(sqsQueueUrl, msg.getReceiptHandle());
+					transport.ack(sqsQueueUrl, msg);
 				}
 
 			} catch(Exception e) {
@@ -272,28 +197,28 @@ public class ControlChannel implements Runnable {
 		
 		Thread.currentThread().sleep(30000);
 
-		if (snsClient != null) {
+		if (transport != null) {
 			try {
 				logger.debug("destroy() unsubscribe " + this.snsSubscriptionARN);
-				snsClient.unsubscribe(snsSubscriptionARN);
+				transport.unsubscribe(snsSubscriptionARN);
 			} catch(Exception e) {
 				logger.debug("destroy() error: " + e.getMessage());
 			}
 		}
 		
-		if (sqsClient != null) {
+		if (transport != null) {
 			try {
 				logger.debug("destroy() " + this.sqsQueueUrl);
-				sqsClient.deleteQueue(sqsQueueUrl);
+				transport.deleteQueue(sqsQueueUrl);
 			} catch(Exception e) {
 				logger.debug("destroy() error: " + e.getMessage());
 			}
 		}
 		
-		if (canDestroyTopic && snsClient != null) {
+		if (canDestroyTopic && transport != null) {
 			try {
 				logger.debug("destroy() " + this.snsTopicARN);
-				snsClient.deleteTopic(this.snsTopicARN);
+				transport.deleteTopic(this.snsTopicARN);
 			} catch(Exception e) {
 				logger.debug("destroy() error: " + e.getMessage());
 			}
@@ -301,12 +226,8 @@ public class ControlChannel implements Runnable {
 
 	}
 	
-	public AmazonSNSClient getSnsClient() {
-		return snsClient;
-	}
-
-	public void setSnsClient(AmazonSNSClient snsClient) {
-		this.snsClient = snsClient;
+	public Transport getTransport() {
+		return transport;
 	}
 	
 	private static String determineHostName() throws Exception {
@@ -334,10 +255,6 @@ public class ControlChannel implements Runnable {
 		return logger;
 	}
 
-	public AmazonSQSClient getSqsClient() {
-		return sqsClient;
-	}
-
 	public String getSnsTopicARN() {
 		return snsTopicARN;
 	}
@@ -350,10 +267,6 @@ public class ControlChannel implements Runnable {
 		return sqsQueueUrl;
 	}
 
-	public String getSqsQueueARN() {
-		return sqsQueueARN;
-	}
-
 	public Gson getGson() {
 		return gson;
 	}
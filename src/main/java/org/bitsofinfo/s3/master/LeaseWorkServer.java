@@ -0,0 +1,377 @@
+package org.bitsofinfo.s3.master;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.bitsofinfo.s3.toc.JsonTOCPayloadCodec;
+import org.bitsofinfo.s3.toc.TOCPayload;
+import org.bitsofinfo.s3.toc.TOCPayload.MODE;
+import org.bitsofinfo.s3.toc.TOCPayloadCodec;
+import org.bitsofinfo.s3.toc.TocInfo;
+
+/**
+ * Lightweight TCP work server that lets workers lease batches of TocInfo
+ * directly from the master's TocDispatchQueue rather than going through SQS.
+ * Workers connect w/ the DirectLeaseTransport.
+ *
+ * Line based protocol, one request/response per line:
+ *
+ * HELLO [workerId]           -> OK
+ * LEASE [max]                -> N [count] followed by [count] lines of "[itemId]\t[TOCPayload json]"
+ * ACK [itemId] [itemId]...   -> OK
+ * RETURN [itemId] [itemId].. -> OK   (put back for immediate re-delivery)
+ * EXTEND [seconds] [itemId]..-> OK   (lease expires [seconds] from now, ERR if no longer held)
+ * SUBMIT [TOCPayload]        -> OK   (new work from a worker, i.e. a split crawl subtree, leased before the source)
+ *
+ * The number of items handed out per LEASE adapts to each connection's
+ * completion (ACK) rate so that a lease holds about 'leaseTargetSeconds' worth of work.
+ * Leases not ACKed within 'leaseTimeoutSeconds' (or held by a connection that drops)
+ * are put back for re-delivery, giving the same at-least-once semantics as
+ * SQS visibility timeouts.
+ *
+ */
+public class LeaseWorkServer implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(LeaseWorkServer.class);
+
+	private static final double EWMA_ALPHA = 0.3;
+
+	private int port = 0;
+	private long leaseTimeoutMS = 1800 * 1000;
+	private long leaseTargetSeconds = 30;
+	private int leaseMaxBatch = 100;
+
+	private ServerSocket serverSocket = null;
+	private Thread acceptThread = null;
+	private Thread reaperThread = null;
+	private boolean running = true;
+
+	private TOCPayloadCodec codec = new JsonTOCPayloadCodec();
+
+	// current source of work, set via serve()
+	private volatile Queue<TocInfo> source = null;
+	private volatile MODE mode = null;
+
+	// returned and expired leases, these go out before anything from the source
+	private Queue<Leased> redeliver = new ConcurrentLinkedQueue<Leased>();
+
+	// outstanding leases by itemId
+	private Map<Long,Leased> leased = new ConcurrentHashMap<Long,Leased>();
+
+	private AtomicLong itemIdSequence = new AtomicLong();
+	private AtomicLong totalLeased = new AtomicLong();
+	private AtomicLong totalAcked = new AtomicLong();
+	private AtomicLong totalExpired = new AtomicLong();
+
+	public LeaseWorkServer(int port, int leaseTimeoutSeconds, int leaseTargetSeconds, int leaseMaxBatch) {
+		this.port = port;
+		this.leaseTimeoutMS = leaseTimeoutSeconds * 1000L;
+		this.leaseTargetSeconds = leaseTargetSeconds;
+		this.leaseMaxBatch = leaseMaxBatch;
+	}
+
+	public void start() throws Exception {
+		this.serverSocket = new ServerSocket(port);
+
+		this.acceptThread = new Thread(this, "LeaseWorkServer accept thread");
+		this.acceptThread.start();
+
+		this.reaperThread = new Thread(new LeaseReaper(), "LeaseWorkServer lease reaper");
+		this.reaperThread.start();
+
+		logger.info("LeaseWorkServer listening on port: " + port + " leaseTimeoutMS: " + leaseTimeoutMS);
+	}
+
+	/**
+	 * Start handing out work from the given queue in the given mode, anything
+	 * still leased or pending re-delivery from a prior mode is discarded.
+	 */
+	public void serve(MODE mode, Queue<TocInfo> source) {
+		this.redeliver.clear();
+		this.leased.clear();
+		this.mode = mode;
+		this.source = source;
+		logger.info("serve() now leasing work for MODE: " + mode);
+	}
+
+	/**
+	 * Total items pending re-delivery + outstanding leases
+	 */
+	public int getPendingSize() {
+		return redeliver.size() + leased.size();
+	}
+
+	public void destroy() {
+		logger.debug("Destroy...");
+		this.running = false;
+		try {
+			this.serverSocket.close();
+		} catch(Exception ignore){}
+	}
+
+	public void run() {
+		while(running) {
+			try {
+				Socket socket = serverSocket.accept();
+				Thread t = new Thread(new LeaseConnection(socket), "LeaseWorkServer conn " + socket.getRemoteSocketAddress());
+				t.setDaemon(true);
+				t.start();
+
+			} catch(Exception e) {
+				if (running) {
+					logger.error("run() error accepting connection: " + e.getMessage(),e);
+				}
+			}
+		}
+	}
+
+	private Leased nextItem() throws Exception {
+		Leased item = redeliver.poll();
+		if (item != null) {
+			return item;
+		}
+
+		Queue<TocInfo> src = this.source;
+		if (src == null) {
+			return null;
+		}
+
+		TocInfo tocInfo = src.poll();
+		if (tocInfo == null) {
+			return null;
+		}
+
+		TOCPayload payload = new TOCPayload();
+		payload.tocInfo = tocInfo;
+		payload.mode = this.mode;
+
+		return new Leased(itemIdSequence.incrementAndGet(), codec.encode(payload));
+	}
+
+	private static class Leased {
+		private long itemId = 0;
+		private String payloadBody = null;
+		private LeaseConnection holder = null;
+		private volatile long expiresAt = 0;
+
+		private Leased(long itemId, String payloadBody) {
+			this.itemId = itemId;
+			this.payloadBody = payloadBody;
+		}
+	}
+
+	private class LeaseReaper implements Runnable {
+		public void run() {
+			while(running) {
+				try {
+					Thread.currentThread().sleep(10000);
+
+					long now = System.currentTimeMillis();
+					int expired = 0;
+					for (Iterator<Leased> itr = leased.values().iterator(); itr.hasNext(); ) {
+						Leased item = itr.next();
+						if (item.expiresAt <= now) {
+							itr.remove();
+							redeliver.add(item);
+							expired++;
+						}
+					}
+
+					if (expired > 0) {
+						totalExpired.addAndGet(expired);
+						logger.warn("LeaseReaper re-queued " + expired + " expired leases, totalExpired: " + totalExpired.get());
+					}
+
+				} catch(InterruptedException e) {
+					return;
+				} catch(Exception e) {
+					logger.error("LeaseReaper error: " + e.getMessage(),e);
+				}
+			}
+		}
+	}
+
+	private class LeaseConnection implements Runnable {
+
+		private Socket socket = null;
+		private String workerId = null;
+
+		// acks/sec for this connection, drives the lease size
+		private double ackRateEWMA = 0;
+		private long acksSinceLastLease = 0;
+		private long lastLeaseAt = -1;
+
+		private LeaseConnection(Socket socket) {
+			this.socket = socket;
+			this.workerId = String.valueOf(socket.getRemoteSocketAddress());
+		}
+
+		private int nextLeaseSize(int requestedMax) {
+			long now = System.currentTimeMillis();
+
+			if (lastLeaseAt > 0 && now > lastLeaseAt) {
+				double rate = acksSinceLastLease / ((now - lastLeaseAt) / 1000.0);
+				ackRateEWMA = (EWMA_ALPHA * rate) + ((1 - EWMA_ALPHA) * ackRateEWMA);
+			}
+			acksSinceLastLease = 0;
+			lastLeaseAt = now;
+
+			int size = (int)Math.ceil(ackRateEWMA * leaseTargetSeconds);
+			if (size < 1) {
+				size = 1;
+			}
+			if (size > leaseMaxBatch) {
+				size = leaseMaxBatch;
+			}
+			if (requestedMax > 0 && size > requestedMax) {
+				size = requestedMax;
+			}
+			return size;
+		}
+
+		public void run() {
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+				BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+
+				String line = null;
+				while(running && (line = reader.readLine()) != null) {
+
+					String[] parts = line.trim().split(" ");
+					String cmd = parts[0];
+
+					if (cmd.equals("HELLO")) {
+						if (parts.length > 1) {
+							this.workerId = parts[1];
+						}
+						logger.info("LeaseConnection HELLO from worker: " + workerId);
+						writer.write("OK\n");
+
+					} else if (cmd.equals("LEASE")) {
+						int max = parts.length > 1 ? Integer.valueOf(parts[1]) : leaseMaxBatch;
+						int size = nextLeaseSize(max);
+
+						long expiresAt = System.currentTimeMillis() + leaseTimeoutMS;
+						List<Leased> items = new ArrayList<Leased>();
+						for (int i=0; i<size; i++) {
+							Leased item = nextItem();
+							if (item == null) {
+								break;
+							}
+							item.holder = this;
+							item.expiresAt = expiresAt;
+							leased.put(item.itemId, item);
+							items.add(item);
+						}
+						totalLeased.addAndGet(items.size());
+
+						writer.write("N " + items.size() + "\n");
+						for (Leased item : items) {
+							writer.write(item.itemId + "\t" + item.payloadBody + "\n");
+						}
+
+					} else if (cmd.equals("ACK")) {
+						for (int i=1; i<parts.length; i++) {
+							if (leased.remove(Long.valueOf(parts[i])) != null) {
+								acksSinceLastLease++;
+								totalAcked.incrementAndGet();
+							}
+						}
+						writer.write("OK\n");
+
+					} else if (cmd.equals("RETURN")) {
+						for (int i=1; i<parts.length; i++) {
+							Leased item = leased.remove(Long.valueOf(parts[i]));
+							if (item != null) {
+								redeliver.add(item);
+							}
+						}
+						writer.write("OK\n");
+
+					} else if (cmd.equals("SUBMIT")) {
+						String body = line.trim().substring(cmd.length()).trim();
+						if (body.length() == 0) {
+							writer.write("ERR SUBMIT requires a payload\n");
+						} else {
+							redeliver.add(new Leased(itemIdSequence.incrementAndGet(), body));
+							writer.write("OK\n");
+						}
+
+					} else if (cmd.equals("EXTEND")) {
+						long expiresAt = System.currentTimeMillis() + (Long.valueOf(parts[1]) * 1000L);
+						int lost = 0;
+						for (int i=2; i<parts.length; i++) {
+							Leased item = leased.get(Long.valueOf(parts[i]));
+							if (item != null && item.holder == this) {
+								item.expiresAt = expiresAt;
+							} else {
+								lost++;
+							}
+						}
+						writer.write(lost == 0 ? "OK\n" : "ERR " + lost + " lease(s) no longer held\n");
+
+					} else {
+						writer.write("ERR unknown command: " + cmd + "\n");
+					}
+
+					writer.flush();
+				}
+
+			} catch(Exception e) {
+				logger.warn("LeaseConnection["+workerId+"] error: " + e.getMessage());
+
+			} finally {
+
+				// anything this connection still holds goes back out
+				int returned = 0;
+				for (Iterator<Leased> itr = leased.values().iterator(); itr.hasNext(); ) {
+					Leased item = itr.next();
+					if (item.holder == this) {
+						itr.remove();
+						redeliver.add(item);
+						returned++;
+					}
+				}
+
+				logger.info("LeaseConnection["+workerId+"] closed, re-queued " + returned + " outstanding leases");
+
+				try {
+					socket.close();
+				} catch(Exception ignore){}
+			}
+		}
+	}
+
+	/**
+	 * How leased TOCPayloads are encoded, the workers' TOCQueue detects it
+	 */
+	public void setCodec(TOCPayloadCodec codec) {
+		this.codec = codec;
+	}
+
+	public long getTotalLeased() {
+		return totalLeased.get();
+	}
+
+	public long getTotalAcked() {
+		return totalAcked.get();
+	}
+
+	public long getTotalExpired() {
+		return totalExpired.get();
+	}
+
+}
@@ -12,6 +12,14 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.log4j.Logger;
@@ -24,23 +32,44 @@ import org.bitsofinfo.s3.control.CCPayload;
 import org.bitsofinfo.s3.control.CCPayloadHandler;
 import org.bitsofinfo.s3.control.CCPayloadType;
 import org.bitsofinfo.s3.control.ControlChannel;
+import org.bitsofinfo.s3.metrics.Counter;
+import org.bitsofinfo.s3.metrics.Gauge;
+import org.bitsofinfo.s3.metrics.Histogram;
+import org.bitsofinfo.s3.metrics.MetricsHttpServer;
+import org.bitsofinfo.s3.metrics.MetricsRegistry;
+import org.bitsofinfo.s3.toc.DirectoryChangeWatcher;
 import org.bitsofinfo.s3.toc.DirectoryCrawler;
+import org.bitsofinfo.s3.toc.ManifestShardGenerator;
 import org.bitsofinfo.s3.toc.S3BucketObjectLister;
+import org.bitsofinfo.s3.toc.SizeBands;
 import org.bitsofinfo.s3.toc.SourceTOCGenerator;
+import org.bitsofinfo.s3.toc.SubtreeCrawlGenerator;
 import org.bitsofinfo.s3.toc.TOCManifestBasedGenerator;
 import org.bitsofinfo.s3.toc.TOCPayload.MODE;
+import org.bitsofinfo.s3.toc.TOCPayloadCodec;
+import org.bitsofinfo.s3.toc.TOCPayloadCodecs;
 import org.bitsofinfo.s3.toc.TOCQueue;
 import org.bitsofinfo.s3.toc.TocInfo;
+import org.bitsofinfo.s3.toc.TocSnapshot;
+import org.bitsofinfo.s3.transport.DirectLeaseTransport;
+import org.bitsofinfo.s3.transport.Transport;
+import org.bitsofinfo.s3.transport.TransportFactory;
 import org.bitsofinfo.s3.util.CompressUtil;
 
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceStatus;
+import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 
 
 public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHandler {
@@ -49,15 +78,24 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 
 	
 	private TOCQueue tocQueue = null;
+	private SizeBands sizeBands = null;
+	private List<TOCQueue> bandTocQueues = new ArrayList<TOCQueue>();
 	private ControlChannel controlChannel = null;
 	private Properties props = null;
 	
 	private Collection<TocInfo> toc = null;
 	
 	private WorkerRegistry workerRegistry = new WorkerRegistry();
-	private int totalExpectedWorkers = 0;
+	private volatile int totalExpectedWorkers = 0;
 	
-	private CCMode currentMode = null;
+	private volatile CCMode currentMode = null;
+	
+	// inbound control channel payloads (and our own MasterEvents), drained in order by 
+	// the single state machine thread; long running actions go to the action executor
+	private BlockingQueue<CCPayload> inbox = new LinkedBlockingQueue<CCPayload>();
+	private ExecutorService stateMachineExecutor = Executors.newSingleThreadExecutor();
+	private ExecutorService actionExecutor = Executors.newCachedThreadPool();
+	private ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
 	
 	private Date masterStartAt = null;
 	private Date validationsStartAt = null;
@@ -79,7 +117,7 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 	private Thread masterMonitor = null;
 	private boolean masterMonitorRunning = true;
 	
-	private TOCGeneratorAndSender tocGeneratorAndSender = null;
+	private volatile TOCGeneratorAndSender tocGeneratorAndSender = null;
 	private int tocDispatchThreadsTotal = 4;
 	
 	private Ec2Util ec2util = null;
@@ -88,6 +126,7 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 	private boolean failfastOnWorkerCurrentSummaryError = false;
 	
 	private TOCQueueEmptier tocQueueEmptier = null;
+	private LeaseWorkServer leaseWorkServer = null;
 	
 	private int ec2MinutesToWait = 10;
 	
@@ -109,6 +148,25 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 	
 	private long autoShutdownAfterMS = -1;
 	
+	private MetricsHttpServer metricsHttpServer = null;
+	private ProgressTracker progressTracker = null;
+	
+	// optional, VALIDATE only a stratified sample of the TOC
+	private TocSampler validateSampler = null;
+	
+	// optional, the TOC snapshot incremental DirectoryCrawler runs diff against
+	private TocSnapshot tocSnapshot = null;
+	
+	// optional, after VALIDATE keep replicating changes to the source (CONTINUOUS mode)
+	private volatile DirectoryChangeWatcher changeWatcher = null;
+	private boolean changeWatcherBaselining = false;
+	
+	// optional crash-safe checkpointing, and the checkpoint being resumed from (if any)
+	private MasterCheckpointer checkpointer = null;
+	private MasterCheckpoint resumeFrom = null;
+	private Counter payloadsReceived = null;
+	private Histogram payloadProcessLatency = null;
+	
 	public Master(Properties props) {
 		
 		try {
@@ -116,11 +174,14 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 			this.s3util = new S3Util();
 			
 			this.props = props;
+			
+			// before anything registers metrics
+			MetricsRegistry.getInstance().configure(props);
+			this.payloadsReceived = MetricsRegistry.getInstance().counter("master_control_payloads_received", "Control channel payloads received from workers");
+			this.payloadProcessLatency = MetricsRegistry.getInstance().histogram("master_control_payload_process_micros", "Time for the state machine to process a control channel payload (micros)");
 
 			String snsControlTopicName = props.getProperty("aws.sns.control.topic.name");
 			String sqsQueueName = 		 props.getProperty("aws.sqs.queue.name");
-			String userAccountPrincipalId =   props.getProperty("aws.account.principal.id");
-			String userARN = 				  props.getProperty("aws.user.arn");
 			this.totalExpectedWorkers = 	Integer.valueOf(props.getProperty("master.workers.total"));
 
 			this.awsAccessKey = 		 props.getProperty("aws.access.key");
@@ -150,7 +211,7 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 			
 			// connect to ec2 & s3
 			this.ec2Client = new AmazonEC2Client(new BasicAWSCredentials(this.awsAccessKey, this.awsSecretKey));
-			this.s3Client = new AmazonS3Client(new BasicAWSCredentials(this.awsAccessKey, this.awsSecretKey));
+			this.s3Client = s3util.newS3Client(props);
 			
 			if (props.getProperty("master.workers.ec2.minutes.to.wait.for.worker.init") != null) {
 				ec2MinutesToWait = Integer.valueOf(props.getProperty("master.workers.ec2.minutes.to.wait.for.worker.init"));
@@ -165,12 +226,93 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 			
 			this.workerErrorReportsLogFile = props.getProperty("master.workers.error.report.logfile");
 
-			tocQueue = 		 new TOCQueue(false, awsAccessKey, awsSecretKey, sqsQueueName, null);
-			controlChannel = new ControlChannel(true, awsAccessKey, awsSecretKey, snsControlTopicName, userAccountPrincipalId, userARN, this);
+			Transport tocQueueTransport = TransportFactory.newTransport(props, TransportFactory.PURPOSE_TOC_QUEUE);
+			
+			// checkpointing/resume (optional)
+			initCheckpointer(props, tocQueueTransport);
+			
+			// optionally one queue per size band (band 0 doubles as 'the' tocQueue)
+			this.sizeBands = SizeBands.fromProperties(props);
+			if (this.sizeBands != null && tocQueueTransport instanceof DirectLeaseTransport) {
+				logger.warn("tocqueue.size.bands is ignored w/ the DirectLeaseTransport, workers lease from a single queue");
+				this.sizeBands = null;
+			}
+			
+			if (this.sizeBands != null) {
+				for (int i=0; i<this.sizeBands.getTotalBands(); i++) {
+					bandTocQueues.add(new TOCQueue(false, tocQueueTransport, SizeBands.bandQueueName(sqsQueueName, i), null, getResumeTocQueueSourceIdentifier(i)));
+				}
+				tocQueue = bandTocQueues.get(0);
+				
+			} else {
+				tocQueue = 		 new TOCQueue(false, tocQueueTransport, sqsQueueName, null, getResumeTocQueueSourceIdentifier(0));
+			}
+			
+			// how TOCPayloads are encoded, workers detect it per message
+			TOCPayloadCodec tocPayloadCodec = TOCPayloadCodecs.fromProperties(props);
+			tocQueue.setCodec(tocPayloadCodec);
+			for (TOCQueue bandTocQueue : bandTocQueues) {
+				bandTocQueue.setCodec(tocPayloadCodec);
+			}
+			logger.info("Master() TOCPayloads will be encoded w/ codec: " + tocPayloadCodec.getName());
+			
+			// workers lease directly from us rather than from a queue service?
+			if (tocQueue.getTransport() instanceof DirectLeaseTransport) {
+				int leaseTimeoutSeconds = Integer.valueOf(props.getProperty("master.lease.timeout.seconds", "1800"));
+				int leaseTargetSeconds = Integer.valueOf(props.getProperty("master.lease.target.seconds", "30"));
+				int leaseMaxBatch = Integer.valueOf(props.getProperty("master.lease.max.batch", "100"));
+				
+				leaseWorkServer = new LeaseWorkServer(((DirectLeaseTransport)tocQueue.getTransport()).getMasterPort(), 
+													  leaseTimeoutSeconds, leaseTargetSeconds, leaseMaxBatch);
+				leaseWorkServer.setCodec(tocPayloadCodec);
+				leaseWorkServer.start();
+			}
+			
+			controlChannel = new ControlChannel(true, TransportFactory.newTransport(props, TransportFactory.PURPOSE_CONTROL_CHANNEL), snsControlTopicName, this,
+												(resumeFrom != null ? resumeFrom.controlChannelSourceIdentifier : null));
 			
 			totalExpectedWorkers = Integer.valueOf(props.getProperty("master.workers.total"));
 			
 			workersEc2Managed = Boolean.valueOf(props.getProperty("master.workers.ec2.managed"));
+			
+			// metrics (optional http endpoint)
+			registerMetrics();
+			this.metricsHttpServer = MetricsHttpServer.startIfConfigured(props, "master.metrics.http.port");
+			
+			// progress tracking, served w/ the metrics at /status and /status.txt
+			this.progressTracker = new ProgressTracker(Long.valueOf(props.getProperty("master.status.rate.window.seconds", "300")) * 1000);
+			
+			// sampled validation (optional)
+			this.validateSampler = TocSampler.fromProperties(props);
+			
+			// incremental crawls (optional)
+			this.tocSnapshot = TocSnapshot.fromProperties(props);
+			
+			// continuous replication after VALIDATE (optional)
+			this.changeWatcher = DirectoryChangeWatcher.fromProperties(props);
+			
+			this.scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						buildStatus();
+					} catch(Exception e) {
+						logger.error("Error sampling progress: " + e.getMessage(),e);
+					}
+				}
+			}, 10, 10, TimeUnit.SECONDS);
+			
+			if (this.metricsHttpServer != null) {
+				registerStatusEndpoints();
+			}
+			
+			if (this.checkpointer != null) {
+				long checkpointEverySeconds = Long.valueOf(props.getProperty("master.checkpoint.every.seconds", "60"));
+				this.scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						writeCheckpoint(false);
+					}
+				}, checkpointEverySeconds, checkpointEverySeconds, TimeUnit.SECONDS);
+			}
 
 		} catch(Exception e) {
 			logger.error("Master() unexpected error: " + e.getMessage(),e);
@@ -180,6 +322,163 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 		}
 	}
 	
+	private void registerMetrics() {
+		MetricsRegistry registry = MetricsRegistry.getInstance();
+		
+		registry.register(new Gauge("master_workers_registered", "Workers registered with the master") {
+			public long getValue() { return workerRegistry.size(); }
+		});
+		registry.register(new Gauge("master_workers_expected", "Workers the master expects") {
+			public long getValue() { return totalExpectedWorkers; }
+		});
+		registry.register(new Gauge("master_toc_size", "Total TOC entries (0 while generation is in progress)") {
+			public long getValue() { return (toc != null ? toc.size() : 0); }
+		});
+		registry.register(new Gauge("master_total_written", "Paths written across the cluster (per latest worker summaries)") {
+			public long getValue() { return workerRegistry.getTotalWritten(); }
+		});
+		registry.register(new Gauge("master_total_write_failures", "Write failures across the cluster (per latest worker summaries)") {
+			public long getValue() { return workerRegistry.getTotalWriteFailures(); }
+		});
+		registry.register(new Gauge("master_total_validated", "Paths validated across the cluster (per latest worker summaries)") {
+			public long getValue() { return workerRegistry.getTotalValidated(); }
+		});
+		registry.register(new Gauge("master_total_validate_failures", "Validate failures across the cluster (per latest worker summaries)") {
+			public long getValue() { return workerRegistry.getTotalValidateFailures(); }
+		});
+		registry.register(new Gauge("master_inbox_depth", "Control channel payloads awaiting the state machine") {
+			public long getValue() { return inbox.size(); }
+		});
+		registry.register(new Gauge("master_mode", "Current CCMode ordinal of the master") {
+			public long getValue() { return (currentMode != null ? currentMode.ordinal() : -1); }
+		});
+		
+		if (leaseWorkServer != null) {
+			registry.register(new Gauge("master_lease_pending", "TOC entries awaiting lease by workers") {
+				public long getValue() { return leaseWorkServer.getPendingSize(); }
+			});
+			registry.register(new Gauge("master_lease_total_leased", "TOC entries leased to workers") {
+				public long getValue() { return leaseWorkServer.getTotalLeased(); }
+			});
+			registry.register(new Gauge("master_lease_total_acked", "Leased TOC entries acked by workers") {
+				public long getValue() { return leaseWorkServer.getTotalAcked(); }
+			});
+			registry.register(new Gauge("master_lease_total_expired", "Leases that expired and were re-queued") {
+				public long getValue() { return leaseWorkServer.getTotalExpired(); }
+			});
+		}
+	}
+	
+	private void registerStatusEndpoints() {
+		metricsHttpServer.addContext("/status", new HttpHandler() {
+			public void handle(HttpExchange exchange) {
+				MetricsHttpServer.respond(exchange, 200, "application/json; charset=utf-8", 
+						new GsonBuilder().setPrettyPrinting().create().toJson(buildStatus()));
+			}
+		});
+		metricsHttpServer.addContext("/status.txt", new HttpHandler() {
+			public void handle(HttpExchange exchange) {
+				MetricsHttpServer.respond(exchange, 200, "text/plain; charset=utf-8", buildStatus().toText());
+			}
+		});
+	}
+	
+	/**
+	 * Snapshot of where we are at in the current phase, also
+	 * feeds the ProgressTracker every time it is called
+	 */
+	public MasterStatus buildStatus() {
+		MasterStatus status = new MasterStatus();
+		
+		long now = System.currentTimeMillis();
+		CCMode mode = this.currentMode;
+		
+		status.asOf = new Date(now);
+		status.mode = String.valueOf(mode);
+		status.workersExpected = this.totalExpectedWorkers;
+		
+		// dispatch side
+		TOCGeneratorAndSender generatorAndSender = this.tocGeneratorAndSender;
+		if (generatorAndSender != null) {
+			TocDispatchQueue queue = generatorAndSender.getTocFileInfoQueue();
+			status.tocGenerationComplete = generatorAndSender.isTocGenerationComplete();
+			status.tocGenerated = queue.getTotalAdded();
+			status.tocGeneratedBytes = queue.getTotalBytesAdded();
+			status.tocDispatched = queue.getTotalPolled();
+			status.tocDispatchedBytes = queue.getTotalBytesPolled();
+			status.dispatchQueueDepth = status.tocGenerated - status.tocDispatched;
+		}
+		
+		if (leaseWorkServer != null) {
+			status.leasePending = (long)leaseWorkServer.getPendingSize();
+			status.leaseTotalLeased = leaseWorkServer.getTotalLeased();
+			status.leaseTotalAcked = leaseWorkServer.getTotalAcked();
+			status.leaseTotalExpired = leaseWorkServer.getTotalExpired();
+		}
+		
+		// completion side, per the latest worker summaries
+		if (mode == CCMode.VALIDATE) {
+			status.phaseStartedAt = this.validationsStartAt;
+			status.completed = workerRegistry.getTotalValidated();
+			status.completedFailed = workerRegistry.getTotalValidateFailures();
+			status.completedBytes = workerRegistry.getTotalBytesValidated();
+		} else {
+			status.phaseStartedAt = this.writesStartAt;
+			status.completed = workerRegistry.getTotalWritten();
+			status.completedFailed = workerRegistry.getTotalWriteFailures();
+			status.completedBytes = workerRegistry.getTotalBytesWritten();
+		}
+		
+		if (status.phaseStartedAt != null) {
+			status.phaseElapsedMS = now - status.phaseStartedAt.getTime();
+		}
+		
+		for (String hostId : workerRegistry.getWorkerHostnames()) {
+			WorkerInfo info = workerRegistry.getWorkerInfo(hostId);
+			if (info == null) {
+				continue;
+			}
+			
+			MasterStatus.WorkerStatus ws = new MasterStatus.WorkerStatus();
+			ws.hostId = info.getHostId();
+			ws.ip = info.getIP();
+			ws.mode = String.valueOf(info.getCurrentMode());
+			if (mode == CCMode.VALIDATE) {
+				ws.total = info.getTotalValidated();
+				ws.failed = info.getTotalValidateFailures();
+				ws.bytes = info.getTotalBytesValidated();
+			} else {
+				ws.total = info.getTotalWritten();
+				ws.failed = info.getTotalWriteFailures();
+				ws.bytes = info.getTotalBytesWritten();
+			}
+			ws.filesPerSec = info.getCurrentFilesPerSec();
+			ws.bytesPerSec = info.getCurrentBytesPerSec();
+			if (info.getLastSummaryAtMS() > 0) {
+				ws.lastSummaryAgeMS = now - info.getLastSummaryAtMS();
+			}
+			status.workers.add(ws);
+		}
+		
+		// rolling rates + ETA
+		if (mode == CCMode.WRITE || mode == CCMode.VALIDATE) {
+			progressTracker.sample(mode, status.completed, status.completedBytes, status.tocDispatched);
+			
+			status.rateWindowCoveredMS = progressTracker.getWindowCoveredMS();
+			status.filesPerSec = progressTracker.getFilesPerSec();
+			status.bytesPerSec = progressTracker.getBytesPerSec();
+			status.dispatchedPerSec = progressTracker.getDispatchedPerSec();
+			
+			status.etaSeconds = ProgressTracker.eta(status.tocGenerated - status.completed, status.filesPerSec);
+			status.etaSecondsByBytes = ProgressTracker.eta(status.tocGeneratedBytes - status.completedBytes, status.bytesPerSec);
+			if (status.etaSeconds >= 0) {
+				status.etaAt = new Date(now + (status.etaSeconds * 1000));
+			}
+		}
+		
+		return status;
+	}
+	
 	// called by TOCGeneratorAndSender when TOC generation is completed
 	public void tocGenerationComplete(Collection<TocInfo> generatedTOC) {
 		this.toc = generatedTOC;
@@ -284,12 +583,18 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 			throw new Exception("'tocGenerator.source.dir' does not exist! " + props.getProperty("tocGenerator.source.dir"));
 		}
 		
-		// initialize workers 
-		this.currentMode = CCMode.INITIALIZED;
-		this.controlChannel.send(true, CCPayloadType.MASTER_CURRENT_MODE, this.currentMode);
-		
-		// spawn ec2 cluster if specified
-		spawnEC2();
+		// pick up where a previous master left off?
+		if (this.resumeFrom != null) {
+			resume();
+			
+		} else {
+			// initialize workers 
+			this.currentMode = CCMode.INITIALIZED;
+			this.controlChannel.send(true, CCPayloadType.MASTER_CURRENT_MODE, this.currentMode);
+			
+			// spawn ec2 cluster if specified
+			spawnEC2();
+		}
 		
 		// start our own monitor
 		this.masterMonitor = new Thread(this);
@@ -329,17 +634,43 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 			tocGeneratorAndSender.destroy();
 		} catch(Exception ignore){}
 		
+		// in case its TOCGeneratorAndSender is yet to be started
+		if (this.changeWatcher != null) {
+			this.changeWatcher.stop();
+		}
+		
+		// the queues are about to go away, nothing left to resume
+		if (this.checkpointer != null) {
+			writeCheckpoint(true);
+			this.checkpointer.close();
+		}
+		
 		try {
 			tocQueueEmptier.destroy();
 		} catch(Exception ignore){}
 
 		Thread.currentThread().sleep(10000);
 
+		try {
+			if (leaseWorkServer != null) {
+				leaseWorkServer.destroy();
+			}
+		} catch(Exception ignore){}
+		
 		try { 
 			logger.debug("Calling TOCQueue.destroy()");
 			tocQueue.destroy();
 		} catch(Exception ignore){}
 		
+		// band 0 is 'tocQueue', already waited above
+		for (TOCQueue bandTocQueue : bandTocQueues) {
+			try { 
+				if (bandTocQueue != tocQueue) {
+					bandTocQueue.destroy(0);
+				}
+			} catch(Exception ignore){}
+		}
+		
 		try { 
 			logger.debug("Calling ControlChannel.destroy()");
 			controlChannel.destroy();
@@ -348,6 +679,14 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 		
 		this.masterMonitorRunning = false;
 		
+		if (metricsHttpServer != null) {
+			metricsHttpServer.destroy();
+		}
+		
+		this.stateMachineExecutor.shutdown();
+		this.actionExecutor.shutdown();
+		this.scheduledExecutor.shutdownNow();
+		
 		Thread.currentThread().sleep(10000);
 
 		if (ec2Instances != null) {
@@ -385,6 +724,276 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 	}
 
 	
+	private TocDispatchQueue newTocDispatchQueue(Properties props, MODE mode) throws Exception {
+		TocDispatchQueue queue = (TocDispatchQueue)Class.forName(props.getProperty("master.tocqueue.dispatch.queue.class", 
+																		TocInfoSizeAwareQueue.class.getName())).newInstance();
+		
+		if (queue instanceof TocInfoSizeAwareQueue) {
+			String largeFileMinBytes = props.getProperty("master.tocqueue.dispatch.large.file.min.bytes");
+			if (largeFileMinBytes != null) {
+				((TocInfoSizeAwareQueue)queue).setLargeFileMinSizeBytes(Long.valueOf(largeFileMinBytes.trim()));
+			}
+		}
+		
+		if (queue instanceof SizeClassSchedulingQueue) {
+			String sizeClasses = props.getProperty("master.tocqueue.dispatch.size.classes");
+			if (sizeClasses != null) {
+				String[] bounds = sizeClasses.split(",");
+				long[] upperBounds = new long[bounds.length];
+				for (int i=0; i<bounds.length; i++) {
+					upperBounds[i] = Long.valueOf(bounds[i].trim());
+				}
+				((SizeClassSchedulingQueue)queue).setClassUpperBounds(upperBounds);
+			}
+			
+			String interleaveRatio = props.getProperty("master.tocqueue.dispatch.interleave.ratio");
+			if (interleaveRatio != null) {
+				((SizeClassSchedulingQueue)queue).setInterleaveRatio(Integer.valueOf(interleaveRatio.trim()));
+			}
+		}
+		
+		if (this.checkpointer != null) {
+			queue.setListener(this.checkpointer.listenerFor(mode));
+		}
+		
+		logger.debug("newTocDispatchQueue() using " + queue.getClass().getName());
+		return queue;
+	}
+	
+	private void initCheckpointer(Properties props, Transport tocQueueTransport) throws Exception {
+		String checkpointDir = props.getProperty("master.checkpoint.dir");
+		if (checkpointDir == null || checkpointDir.trim().length() == 0) {
+			return;
+		}
+		
+		if (tocQueueTransport instanceof DirectLeaseTransport) {
+			logger.warn("master.checkpoint.dir is ignored w/ the DirectLeaseTransport, workers cannot re-attach to a restarted master");
+			return;
+		}
+		
+		this.checkpointer = new MasterCheckpointer(new File(checkpointDir.trim()));
+		
+		if (Boolean.valueOf(props.getProperty("master.checkpoint.resume", "false"))) {
+			this.resumeFrom = this.checkpointer.load();
+			
+			if (this.resumeFrom == null) {
+				logger.warn("master.checkpoint.resume=true but there is no checkpoint in " + checkpointDir + ", starting over");
+				
+			} else if (this.resumeFrom.shutdown) {
+				logger.warn("Checkpoint in " + checkpointDir + " is from a master that shutdown cleanly, starting over");
+				this.resumeFrom = null;
+				
+			} else if (!CCMode.WRITE.toString().equals(this.resumeFrom.mode) && !CCMode.VALIDATE.toString().equals(this.resumeFrom.mode)) {
+				logger.warn("Checkpoint in " + checkpointDir + " is from mode " + this.resumeFrom.mode + 
+						", can only resume from WRITE or VALIDATE, starting over");
+				this.resumeFrom = null;
+			}
+		}
+		
+		if (this.resumeFrom == null) {
+			this.checkpointer.reset();
+		}
+	}
+	
+	private String getResumeTocQueueSourceIdentifier(int index) throws Exception {
+		if (this.resumeFrom == null) {
+			return null;
+		}
+		if (index >= this.resumeFrom.tocQueueSourceIdentifiers.size()) {
+			throw new Exception("Cannot resume, the checkpoint has " + this.resumeFrom.tocQueueSourceIdentifiers.size() + 
+					" TOC queue(s), has tocqueue.size.bands changed?");
+		}
+		return this.resumeFrom.tocQueueSourceIdentifiers.get(index);
+	}
+	
+	/**
+	 * Builds and then persists the current checkpoint, note built before the 
+	 * checkpointer syncs its journals so it never claims more than they hold
+	 */
+	private void writeCheckpoint(boolean shutdown) {
+		try {
+			MasterCheckpoint checkpoint = new MasterCheckpoint();
+			checkpoint.checkpointAt = new Date();
+			checkpoint.mode = String.valueOf(this.currentMode);
+			checkpoint.shutdown = shutdown;
+			checkpoint.masterStartAt = this.masterStartAt;
+			checkpoint.writesStartAt = this.writesStartAt;
+			checkpoint.writesEndAt = this.writesEndAt;
+			checkpoint.validationsStartAt = this.validationsStartAt;
+			checkpoint.tocGenerationComplete = (this.toc != null);
+			
+			checkpoint.controlChannelSourceIdentifier = this.controlChannel.getMySourceIdentifier();
+			if (this.sizeBands != null) {
+				for (TOCQueue bandTocQueue : this.bandTocQueues) {
+					checkpoint.tocQueueSourceIdentifiers.add(bandTocQueue.getMySourceIdentifier());
+				}
+			} else {
+				checkpoint.tocQueueSourceIdentifiers.add(this.tocQueue.getMySourceIdentifier());
+			}
+			
+			List<Instance> instances = this.ec2Instances;
+			if (instances != null) {
+				for (Instance instance : instances) {
+					checkpoint.ec2InstanceIds.add(instance.getInstanceId());
+				}
+			}
+			
+			for (String hostId : this.workerRegistry.getWorkerHostnames()) {
+				WorkerInfo info = this.workerRegistry.getWorkerInfo(hostId);
+				MasterCheckpoint.WorkerCheckpoint worker = new MasterCheckpoint.WorkerCheckpoint();
+				worker.hostId = info.getHostId();
+				worker.ip = info.getIP();
+				worker.payloads = info.getMostRecentPayloads();
+				checkpoint.workers.add(worker);
+			}
+			
+			this.checkpointer.write(checkpoint);
+			
+		} catch(Exception e) {
+			logger.error("writeCheckpoint() error writing checkpoint: " + e.getMessage(),e);
+		}
+	}
+	
+	/**
+	 * Restores our state from 'resumeFrom' and continues dispatching in its mode, 
+	 * workers keep their identities, the TOC queue(s) and control topic are the same ones.
+	 */
+	private void resume() throws Exception {
+		
+		CCMode mode = CCMode.valueOf(this.resumeFrom.mode);
+		
+		logger.info("\n-------------------------------------------\n" +
+					"RESUMING from checkpoint @ " + this.resumeFrom.checkpointAt + " mode: " + mode + 
+					" writesDispatched: " + this.resumeFrom.writesDispatched + 
+					" validationsDispatched: " + this.resumeFrom.validationsDispatched + "\n" +
+					"-------------------------------------------\n");
+		
+		if (this.resumeFrom.masterStartAt != null) {
+			this.masterStartAt = this.resumeFrom.masterStartAt;
+		}
+		this.writesStartAt = this.resumeFrom.writesStartAt;
+		this.writesEndAt = this.resumeFrom.writesEndAt;
+		this.validationsStartAt = this.resumeFrom.validationsStartAt;
+		
+		// the finished summary for the mode we are resuming is dropped, every
+		// worker must report it again once there is nothing left to consume
+		CCPayloadType finishedType = (mode == CCMode.WRITE ? CCPayloadType.WORKER_WRITES_FINISHED_SUMMARY : 
+															 CCPayloadType.WORKER_VALIDATIONS_FINISHED_SUMMARY);
+		for (MasterCheckpoint.WorkerCheckpoint worker : this.resumeFrom.workers) {
+			this.workerRegistry.register(worker.hostId, worker.ip);
+			for (CCPayload payload : worker.payloads) {
+				if (payload.type != finishedType && payload.type != CCPayloadType.WORKER_ERROR_REPORT_DETAILS) {
+					this.workerRegistry.registerWorkerPayload(payload);
+				}
+			}
+		}
+		
+		// ec2 managed workers
+		if (this.workersEc2Managed && this.resumeFrom.ec2InstanceIds.size() > 0) {
+			List<Instance> instances = new ArrayList<Instance>();
+			DescribeInstancesResult result = this.ec2Client.describeInstances(
+					new DescribeInstancesRequest().withInstanceIds(this.resumeFrom.ec2InstanceIds));
+			for (Reservation reservation : result.getReservations()) {
+				instances.addAll(reservation.getInstances());
+			}
+			this.ec2Instances = instances;
+		}
+		
+		if (this.resumeFrom.tocGenerationComplete) {
+			this.toc = this.checkpointer.loadToc();
+		}
+		
+		// tell the workers, any that went IDLE will resume consuming
+		transitionTo(mode);
+		
+		if (mode == CCMode.WRITE) {
+			dispatchTOC(MODE.WRITE, this.toc);
+		} else {
+			dispatchValidate(this.toc);
+		}
+		
+		this.resumeFrom = null;
+	}
+	
+	/**
+	 * If the change watcher has no baseline yet (the crawl wrote a TOC snapshot) it is taken 
+	 * from the (promoted) snapshot, or the tree if none. Either can take minutes on a large 
+	 * tree, so this is done off the state machine thread, which is then told how it went
+	 */
+	private void baselineChangeWatcherAsync() {
+		runAsync("CONTINUOUS change watcher baseline", new Callable<Void>() {
+			public Void call() throws Exception {
+				final boolean baselined = (changeWatcher.isBaselined() || baselineChangeWatcher(tocSnapshot));
+				postEvent("change watcher baselined", new Runnable() {
+					public void run() {
+						onChangeWatcherBaselined(baselined);
+					}
+				});
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * VALIDATE completed w/o errors and the change watcher is baselined (or could not be),
+	 * either switch to CONTINUOUS mode or shutdown as if it were not configured
+	 */
+	private void onChangeWatcherBaselined(boolean baselined) {
+		if (this.currentMode != CCMode.VALIDATE) {
+			logger.warn("onChangeWatcherBaselined() no longer in VALIDATE mode, not switching to CONTINUOUS mode: " + this.currentMode);
+			return;
+		}
+		
+		try {
+			if (baselined) {
+				logger.info("Change watcher baselined, I am now switching to CONTINUOUS mode, changes to the source will be written as found");
+				transitionTo(CCMode.CONTINUOUS);
+				dispatchTOC(MODE.WRITE, null, this.changeWatcher);
+				
+			} else {
+				logger.info("Change watcher could not be baselined, no CONTINUOUS mode. I am now issueing CMD_WORKER_SHUTDOWN");
+				this.controlChannel.send(true, CCPayloadType.CMD_WORKER_SHUTDOWN, gson.toJson(this.shutdownInfo));
+			}
+		} catch(Exception e) {
+			logger.error("onChangeWatcherBaselined() error switching to CONTINUOUS mode: " + e.getMessage(),e);
+		}
+	}
+	
+	/**
+	 * Records what the change watcher diffs against: the given TOC snapshot if it 
+	 * exists, else the tree as it is now. False, and no CONTINUOUS mode, if it 
+	 * cannot (i.e. the tree is too big to watch)
+	 */
+	private boolean baselineChangeWatcher(TocSnapshot snapshot) {
+		try {
+			if (snapshot != null && snapshot.exists()) {
+				this.changeWatcher.baseline(snapshot);
+			} else {
+				this.changeWatcher.baseline();
+			}
+			return true;
+			
+		} catch(Exception e) {
+			logger.error("baselineChangeWatcher() error, CONTINUOUS mode is disabled for this run: " + e.getMessage(),e);
+			this.changeWatcher = null;
+			return false;
+		}
+	}
+	
+	private void promoteTocSnapshot() {
+		if (this.tocSnapshot == null) {
+			return;
+		}
+		try {
+			if (!this.tocSnapshot.promote()) {
+				logger.debug("promoteTocSnapshot() no (or already promoted) TOC snapshot this run, next run diffs against: " + 
+						this.tocSnapshot.getFile().getAbsolutePath());
+			}
+		} catch(Exception e) {
+			logger.error("promoteTocSnapshot() error, the next run will diff against the previous snapshot: " + e.getMessage(),e);
+		}
+	}
+	
 	private SourceTOCGenerator getSourceTOCGenerator(Properties props) throws Exception {
 		SourceTOCGenerator tocGenerator = (SourceTOCGenerator)Class.forName(props.getProperty("tocGenerator.class").toString()).newInstance();
 		configureTocGenerator(tocGenerator,props);
@@ -406,6 +1015,13 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 				logger.debug("SourceTOCGenerator DirectoryCrawler: will filter files where last modified at is > " + lastModFilterStr);
 			}
 			
+			if (this.tocSnapshot != null) {
+				((DirectoryCrawler)generator).setSnapshot(this.tocSnapshot);
+				logger.debug("SourceTOCGenerator DirectoryCrawler: incremental against TOC snapshot " + this.tocSnapshot.getFile().getAbsolutePath());
+			}
+			
+		} else if (this.tocSnapshot != null) {
+			logger.warn("tocGenerator.snapshot.file is only supported by the DirectoryCrawler, ignored for: " + generator.getClass().getName());
 		}
 		
 		// manifest reader
@@ -414,6 +1030,33 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 			((TOCManifestBasedGenerator)generator).setRootDir(new File(props.getProperty("tocGenerator.source.dir").toString()));
 			((TOCManifestBasedGenerator)generator).setManifestFile(new File(props.getProperty("tocGenerator.toc.manifest.file").toString()));
 			
+			if (props.getProperty("tocGenerator.toc.manifest.stat.threads") != null) {
+				((TOCManifestBasedGenerator)generator).setStatThreads(Integer.valueOf(props.getProperty("tocGenerator.toc.manifest.stat.threads")));
+			}
+			
+			if (props.getProperty("tocGenerator.toc.manifest.parse.threads") != null) {
+				((TOCManifestBasedGenerator)generator).setParseThreads(Integer.valueOf(props.getProperty("tocGenerator.toc.manifest.parse.threads")));
+			}
+			
+		}
+		
+		// distributed crawl (workers crawl the subtrees themselves)
+		if (generator instanceof SubtreeCrawlGenerator) {
+			((SubtreeCrawlGenerator)generator).setRootDir(new File(props.getProperty("tocGenerator.source.dir").toString()));
+			
+			if (props.getProperty("tocGenerator.crawl.subtree.depth") != null) {
+				((SubtreeCrawlGenerator)generator).setDepth(Integer.valueOf(props.getProperty("tocGenerator.crawl.subtree.depth")));
+			}
+		}
+		
+		// manifest shards (workers read the entries themselves)
+		if (generator instanceof ManifestShardGenerator) {
+			
+			((ManifestShardGenerator)generator).setManifestFile(new File(props.getProperty("tocGenerator.toc.manifest.file").toString()));
+			
+			if (props.getProperty("tocGenerator.toc.manifest.shard.bytes") != null) {
+				((ManifestShardGenerator)generator).setShardBytes(Long.valueOf(props.getProperty("tocGenerator.toc.manifest.shard.bytes")));
+			}
 		}
 		
 		// s3 bucket reader
@@ -441,11 +1084,37 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 		sb.append("Total validate failures: " + workerRegistry.getTotalValidateFailures() + "\n");
 		sb.append("Total write monitor errors: " + workerRegistry.getTotalWriteMonitorErrors() + "\n");
 		sb.append("Total post-write local validate errors: " + workerRegistry.getTotalPostWriteLocalValidateErrors() + "\n");
+		
+		if (workerRegistry.getTotalCommandTimeouts() > 0) {
+			sb.append("Total write command timeouts: " + workerRegistry.getTotalCommandTimeouts() + 
+					" processes killed: " + workerRegistry.getTotalProcessesKilled() + "\n");
+		}
+		
+		if (workerRegistry.getTotalCrawledEntries(MODE.WRITE) > 0) {
+			sb.append("Total crawled by workers WRITE: " + workerRegistry.getTotalCrawledEntries(MODE.WRITE) + 
+					" entries " + workerRegistry.getTotalCrawledBytes(MODE.WRITE) + " bytes, VALIDATE: " + 
+					workerRegistry.getTotalCrawledEntries(MODE.VALIDATE) + " entries " + 
+					workerRegistry.getTotalCrawledBytes(MODE.VALIDATE) + " bytes\n");
+		}
+		
+		if (this.currentMode == CCMode.WRITE || this.currentMode == CCMode.VALIDATE) {
+			MasterStatus status = buildStatus();
+			sb.append(this.currentMode + " dispatched: " + status.tocDispatched + "/" + status.tocGenerated + 
+					" completed: " + status.completed + " files/sec: " + String.format("%.2f", status.filesPerSec) + 
+					" bytes/sec: " + String.format("%.0f", status.bytesPerSec) + 
+					" ETA: " + (status.etaSeconds >= 0 ? status.etaSeconds + "s" : "unknown") + "\n");
+		}
 		sb.append("\n\n");
 		
 		logger.info(sb.toString());
 	}
 
+	/**
+	 * Called on the ControlChannel consumer thread; we do no real work here
+	 * other than dropping the payload into our inbox and dispatching a drain
+	 * of it onto the state machine executor, so the control channel can
+	 * immediately go back to consuming.
+	 */
 	public void handlePayload(CCPayload payload) {
 		
 		// ignore messages from ourself
@@ -460,38 +1129,259 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 				" type:" + payload.type +
 				" value:" + payload.value);
 		
+		this.inbox.offer(payload);
+		this.payloadsReceived.inc();
+		
+		scheduleDrain(String.valueOf(payload.type));
+	}
+	
+	/**
+	 * Something one of our own actions needs the state machine to react to, 
+	 * goes through the inbox so it is handled in order w/ worker payloads
+	 */
+	private static class MasterEvent extends CCPayload {
+		private String desc = null;
+		private Runnable handler = null;
+		
+		public MasterEvent(String desc, Runnable handler) {
+			this.fromMaster = true;
+			this.desc = desc;
+			this.handler = handler;
+		}
+	}
+	
+	/**
+	 * Queues the given handler to run on the state machine thread
+	 */
+	private void postEvent(String desc, Runnable handler) {
+		this.inbox.offer(new MasterEvent(desc, handler));
+		scheduleDrain(desc);
+	}
+	
+	private void scheduleDrain(String desc) {
+		try {
+			this.stateMachineExecutor.execute(new Runnable() {
+				public void run() {
+					drainInbox();
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			logger.warn("scheduleDrain() state machine executor is shutdown, dropping: " + desc);
+		}
+	}
+	
+	/**
+	 * Runs on the single state machine thread, processes every payload
+	 * currently sitting in the inbox, in the order received
+	 */
+	private void drainInbox() {
+		CCPayload payload = null;
+		while ((payload = this.inbox.poll()) != null) {
+			try {
+				if (payload instanceof MasterEvent) {
+					((MasterEvent)payload).handler.run();
+					continue;
+				}
+				long start = System.nanoTime();
+				processPayload(payload);
+				payloadProcessLatency.updateNanosSince(start);
+			} catch(Exception e) {
+				logger.error("drainInbox() unexpected error processing CCPayload: " + 
+						(payload instanceof MasterEvent ? ((MasterEvent)payload).desc : payload.type) + " " + e.getMessage(),e);
+			}
+		}
+	}
+	
+	private void processPayload(CCPayload payload) {
+		
 		logger.debug("received CCPayload: FROM:"+payload.sourceHostIP + " type:"+payload.type + " val:"+payload.value);
 		
-		// if from worker....
-		if (!payload.fromMaster) {
-			workerRegistry.registerWorkerPayload(payload);
+		// from worker....
+		workerRegistry.registerWorkerPayload(payload);
+		
+		// not yet start()ed, nothing to react to
+		if (this.currentMode == null) {
+			return;
+		}
+		
+		switch (this.currentMode) {
+			case INITIALIZED:
+				onPayloadWhileInitialized();
+				break;
+			case WRITE:
+				onPayloadWhileWriting();
+				break;
+			case VALIDATE:
+				onPayloadWhileValidating();
+				break;
+			case REPORT_ERRORS:
+				onPayloadWhileReportingErrors();
+				break;
+			case CONTINUOUS:
+				onPayloadWhileContinuous();
+				break;
+			default:
+				break;
+		}
+		
+		try {
+			long now = System.currentTimeMillis();
+			if ((now - lastStatsDumpAtMS) > this.dumpStatsEveryMS) {
+				dumpWorkerRegistryStats();
+				this.lastStatsDumpAtMS = System.currentTimeMillis();
+			}
+		} catch(Exception e) {
+			logger.error("Error calling dumpWorkerRegistryStats() " + e.getMessage(),e);
+		}
+	}
+	
+	/**
+	 * Switches the master (and the cluster) into the given mode
+	 */
+	private void transitionTo(CCMode newMode) throws Exception {
+		logger.info("Master state transition: " + this.currentMode + " --> " + newMode);
+		this.currentMode = newMode;
+		controlChannel.send(true, CCPayloadType.MASTER_CURRENT_MODE, this.currentMode);
+		
+		if (this.checkpointer != null) {
+			writeCheckpoint(false);
+		}
+	}
+	
+	/**
+	 * Fires up a TOCGeneratorAndSender (separate thread) to dispatch the given 
+	 * TOC out to the TOCQueue, or if null to generate it while dispatching.
+	 */
+	private void dispatchTOC(final MODE mode, final Collection<TocInfo> existingToc) {
+		dispatchTOC(mode, existingToc, null);
+	}
+	
+	/**
+	 * As above, a null TOC is generated by the given generator (if null per 'tocGenerator.class')
+	 */
+	private void dispatchTOC(final MODE mode, final Collection<TocInfo> existingToc, final SourceTOCGenerator generator) {
+		runAsync(mode + " TOCGeneratorAndSender", new Callable<Void>() {
+			public Void call() throws Exception {
+				if (existingToc != null) {
+					tocGeneratorAndSender = new TOCGeneratorAndSender(mode, 
+																	Master.this, 
+																	tocQueue, 
+																	tocDispatchThreadsTotal, 
+																	existingToc,
+																	newTocDispatchQueue(props, mode),
+																	leaseWorkServer);
+				} else {
+					SourceTOCGenerator tocGenerator = (generator != null ? generator : getSourceTOCGenerator(props));
+					
+					// continuous? what the watcher finds later is relative to the tree before the crawl,
+					// unless the crawl writes a TOC snapshot, the watcher then starts from that instead
+					if (mode == MODE.WRITE && changeWatcher != null && !changeWatcher.isBaselined() &&
+							!(tocSnapshot != null && tocGenerator instanceof DirectoryCrawler)) {
+						baselineChangeWatcher(null);
+					}
+					
+					tocGeneratorAndSender = new TOCGeneratorAndSender(mode, 
+																	Master.this, 
+																	tocQueue, 
+																	tocDispatchThreadsTotal, 
+																	tocGenerator,
+																	newTocDispatchQueue(props, mode),
+																	leaseWorkServer);
+				}
+				
+				if (sizeBands != null) {
+					tocGeneratorAndSender.routeBySizeBand(sizeBands, bandTocQueues);
+				}
+				tocGeneratorAndSender.generateAndSendTOC();
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Dispatches the TOC for VALIDATE, or only a sample of it if configured
+	 */
+	private void dispatchValidate(Collection<TocInfo> toc) {
+		if (this.validateSampler != null && toc != null) {
+			dispatchTOC(MODE.VALIDATE, this.validateSampler.sample(toc));
+		} else {
+			dispatchTOC(MODE.VALIDATE, toc);
+		}
+	}
+	
+	/**
+	 * Runs a long running action off of the state machine thread, if it fails
+	 * the state machine is told so (see onActionError())
+	 */
+	private void runAsync(final String desc, final Callable<Void> action) {
+		this.actionExecutor.submit(new Runnable() {
+			public void run() {
+				try {
+					logger.debug("runAsync() starting: " + desc);
+					action.call();
+					logger.debug("runAsync() complete: " + desc);
+				} catch(final Exception e) {
+					logger.error("runAsync() error in '" + desc + "': " + e.getMessage(),e);
+					postEvent("error in " + desc, new Runnable() {
+						public void run() {
+							onActionError(desc, e);
+						}
+					});
+				}
+			}
+		});
+	}
+	
+	/**
+	 * An action failed, i.e. nothing is dispatching the TOC the workers are waiting 
+	 * on, so there is no completing this mode: switch to REPORT_ERRORS so the
+	 * workers report what they have done and the cluster shuts down
+	 */
+	private void onActionError(String desc, Exception e) {
+		if (this.currentMode == null || this.currentMode == CCMode.REPORT_ERRORS) {
+			logger.error("onActionError() '" + desc + "' failed in mode: " + this.currentMode + ", nothing more to do");
+			return;
+		}
+		
+		try {
+			logger.error("onActionError() '" + desc + "' failed in mode: " + this.currentMode + 
+					", I am now triggering REPORT_ERRORS mode across all workers: " + e.getMessage());
+			
+			// nothing more to write
+			if (this.currentMode == CCMode.CONTINUOUS) {
+				this.changeWatcher.stop();
+			}
+			
+			// switch the system to REPORT_ERRORS mode
+			transitionTo(CCMode.REPORT_ERRORS);
+			
+			// purge the TOCQueue
+			this.purgeTOCQueueContents();
+			
+		} catch(Exception e2) {
+			logger.error("onActionError() error triggering REPORT_ERRORS mode: " + e2.getMessage(),e2);
 		}
+	}
+	
+	private void onPayloadWhileInitialized() {
 		
 		// check for all workers in INITIALIZED mode
-		if (currentMode == CCMode.INITIALIZED && 
-			workerRegistry.size() == this.totalExpectedWorkers &&
+		if (workerRegistry.size() == this.totalExpectedWorkers &&
 			workerRegistry.allWorkersCurrentModeIs(CCMode.INITIALIZED)) {
 			
 			try {
 				logger.info("All workers report INITIALIZED.. total: " + workerRegistry.size() + " Proceeding to build TOC....");
 
 				// execute WRITE mode
-				this.currentMode = CCMode.WRITE;
 				this.writesStartAt = new Date();
 				
 				// switch the system to WRITE mode so workers can immediately start polling
 				logger.info("Switching to WRITE mode....");
-				controlChannel.send(true, CCPayloadType.MASTER_CURRENT_MODE, this.currentMode);
-				
+				transitionTo(CCMode.WRITE);
 				
 				// fire up a TOCGeneratorAndSender (separate thread) to
 				// generate the TOC and dispatch it out to the TOCQueue
-				this.tocGeneratorAndSender = new TOCGeneratorAndSender(MODE.WRITE, 
-																		this, 
-																		this.tocQueue, 
-																		this.tocDispatchThreadsTotal, 
-																		getSourceTOCGenerator(this.props));
-				this.tocGeneratorAndSender.generateAndSendTOC();
+				dispatchTOC(MODE.WRITE, null);
 
 			} catch(Exception e) {
 				logger.error("handlePayload() error handling WRITE mode completion and" +
@@ -499,13 +1389,15 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 			}
 			
 		// initialized, but still waiting....
-		} else if (currentMode == CCMode.INITIALIZED && workerRegistry.size() != this.totalExpectedWorkers) {
+		} else if (workerRegistry.size() != this.totalExpectedWorkers) {
 			logger.info("Total workers registered = " + workerRegistry.size() + " expected:"+this.totalExpectedWorkers);
 		}
-		
+	}
+	
+	private void onPayloadWhileWriting() {
 		
 		// Check for WRITE complete
-		if (currentMode == CCMode.WRITE && workerRegistry.allWorkerWritesAreComplete()) {
+		if (workerRegistry.allWorkerWritesAreComplete()) {
 			try {
 			
 				// dump runtime
@@ -521,10 +1413,8 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 							workerRegistry.getTotalWritten() + " total TOC sent: " + getTocSizeInfo()+ 
 							"(expected size). I am now triggering REPORT_ERRORS mode across all workers");
 					
-					this.currentMode = CCMode.REPORT_ERRORS;
-					
 					// switch the system to REPORT_ERRORS mode
-					controlChannel.send(true, CCPayloadType.MASTER_CURRENT_MODE, this.currentMode);
+					transitionTo(CCMode.REPORT_ERRORS);
 					
 					
 				// no errors move onto next phase....(validate)
@@ -536,17 +1426,11 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 					// switch the system to VALIDATE mode so workers can immediately start polling
 					logger.info("Switching to VALIDATE mode....");
 					this.validationsStartAt = new Date();
-					this.currentMode = CCMode.VALIDATE;
-					controlChannel.send(true, CCPayloadType.MASTER_CURRENT_MODE, this.currentMode);
+					transitionTo(CCMode.VALIDATE);
 					
-					// fire up a TOCGenera)torAndSender (separate thread) to
-					// generate the TOC and dispatch it out to the TOCQueue
-					this.tocGeneratorAndSender = new TOCGeneratorAndSender(MODE.VALIDATE, 
-																			this, 
-																			this.tocQueue, 
-																			this.tocDispatchThreadsTotal, 
-																			this.toc);
-					this.tocGeneratorAndSender.generateAndSendTOC();
+					// fire up a TOCGeneratorAndSender (separate thread) to
+					// dispatch the previously generated TOC out to the TOCQueue
+					dispatchValidate(toc);
 				}
 				
 			} catch(Exception e) {
@@ -554,7 +1438,7 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 			}
 			
 		// WRITE partially complete? dump the workers we are waiting on....
-		} else if (currentMode == CCMode.WRITE && workerRegistry.anyWorkerWritesAreComplete()) {
+		} else if (workerRegistry.anyWorkerWritesAreComplete()) {
 			StringBuffer waitingSB = new StringBuffer("\nWe are awaiting WRITE reports from the following workers:\n");
 			for (String awaiting : workerRegistry.getWorkersAwaitingWriteReport()) {
 				waitingSB.append(awaiting+"\n");
@@ -563,7 +1447,7 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 			
 			
 		// WRITE partially complete, we have some current write summaries
-		} else if (currentMode == CCMode.WRITE && workerRegistry.anyWorkerCurrentWriteSummariesReceived()) {
+		} else if (workerRegistry.anyWorkerCurrentWriteSummariesReceived()) {
 			
 			try {
 				int totalWrittenSoFar = workerRegistry.getTotalWritten();
@@ -576,10 +1460,8 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 							"failfastOnWorkerCurrentSummaryError=true, so I am now triggering " +
 							"REPORT_ERRORS mode across all workers and stopping WRITE mode.");
 					
-					this.currentMode = CCMode.REPORT_ERRORS;
-					
 					// switch the system to REPORT_ERRORS mode
-					controlChannel.send(true, CCPayloadType.MASTER_CURRENT_MODE, this.currentMode);
+					transitionTo(CCMode.REPORT_ERRORS);
 					
 					// purge the TOCQueue
 					this.purgeTOCQueueContents();
@@ -591,21 +1473,55 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 						" summaries received with ERRORS over control channel " + e.getMessage(),e);
 			}
 				
-		}	
-			
+		}
+	}
+	
+	private void onPayloadWhileValidating() {
 			
+		// Check for VALIDATE complete
+		if (workerRegistry.allWorkerValidatesAreComplete()) {
 			
-		// Check for WRITE complete
-		if (currentMode == CCMode.VALIDATE && workerRegistry.allWorkerValidatesAreComplete()) {
+			// already complete, waiting on the change watcher baseline to switch to CONTINUOUS mode
+			if (this.changeWatcherBaselining) {
+				return;
+			}
 			
 			try {
 				
+				// sampled? any stratum w/ failures is now validated in full
+				if (this.validateSampler != null) {
+					List<TocInfo> escalated = this.validateSampler.escalate(workerRegistry.getValidateFailuresByStratum().keySet());
+					if (escalated.size() > 0) {
+						logger.info("Sampled VALIDATE found failures, escalating " + escalated.size() + 
+								" more TOC entries to VALIDATE across all workers");
+						
+						// workers must report VALIDATE complete again
+						workerRegistry.clearWorkerPayloads(CCPayloadType.WORKER_VALIDATIONS_FINISHED_SUMMARY);
+						transitionTo(CCMode.VALIDATE);
+						dispatchTOC(MODE.VALIDATE, escalated);
+						return;
+					}
+				}
+				
 				// dump runtime
 				this.validationsEndAt = new Date();
 				logger.info("WORKER VALIDATIONS COMPLETE:  START["+simpleDateFormat.format(validationsStartAt)+"] --> END["+simpleDateFormat.format(validationsEndAt)+"]");
 				
 				dumpWorkerRegistryStats();
 				
+				if (this.validateSampler != null) {
+					logger.info(this.validateSampler.getReport(workerRegistry.getValidateFailuresByStratum()));
+				}
+				
+				// when workers crawled subtrees the TOC does not hold every path, reconcile what they found
+				if (workerRegistry.getTotalCrawledEntries(MODE.WRITE) != workerRegistry.getTotalCrawledEntries(MODE.VALIDATE) ||
+					workerRegistry.getTotalCrawledBytes(MODE.WRITE) != workerRegistry.getTotalCrawledBytes(MODE.VALIDATE)) {
+					logger.warn("Workers crawled a different number of entries/bytes in VALIDATE than in WRITE, " +
+							"did the source change? WRITE: " + workerRegistry.getTotalCrawledEntries(MODE.WRITE) + "/" + 
+							workerRegistry.getTotalCrawledBytes(MODE.WRITE) + " VALIDATE: " + 
+							workerRegistry.getTotalCrawledEntries(MODE.VALIDATE) + "/" + workerRegistry.getTotalCrawledBytes(MODE.VALIDATE));
+				}
+				
 				// were there any errors?
 				if (workerRegistry.anyWorkerValidationsContainErrors()) {
 	
@@ -613,11 +1529,25 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 							workerRegistry.getTotalValidated() + " total TOC sent: " + getTocSizeInfo() + 
 							"(expected size). I am now triggering REPORT_ERRORS mode across all workers");
 					
-					this.currentMode = CCMode.REPORT_ERRORS;
-					
 					// switch the system to REPORT_ERRORS mode
-					controlChannel.send(true, CCPayloadType.MASTER_CURRENT_MODE, this.currentMode);
+					transitionTo(CCMode.REPORT_ERRORS);
+					
+					
+				// no errors, keep replicating changes to the source?
+				} else if (this.changeWatcher != null) {
+					logger.info("All workers report VALIDATE mode completed.. totalValidated: " + 
+							workerRegistry.getTotalValidated() + " total TOC sent: " + getTocSizeInfo() + 
+							" I am now baselining the change watcher to then switch to CONTINUOUS mode");
+					
+					// dump runtime
+					dumpRuntimeInfo();
+					
+					// the bulk load is good, changes from here on are the watcher's
+					promoteTocSnapshot();
 					
+					// @see onChangeWatcherBaselined()
+					this.changeWatcherBaselining = true;
+					baselineChangeWatcherAsync();
 					
 				// no errors, go to shutdown!
 				} else {
@@ -628,6 +1558,9 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 					// dump runtime
 					dumpRuntimeInfo();
 					
+					// only now can the next incremental run diff against what this one crawled
+					promoteTocSnapshot();
+					
 					this.controlChannel.send(true, CCPayloadType.CMD_WORKER_SHUTDOWN, gson.toJson(this.shutdownInfo));
 				}
 
@@ -638,7 +1571,7 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 			
 			
 		// VALIDATE partially complete? dump the workers we are waiting on....
-		} else if (currentMode == CCMode.VALIDATE && workerRegistry.anyWorkerValidatesAreComplete()) {
+		} else if (workerRegistry.anyWorkerValidatesAreComplete()) {
 			
 			StringBuffer waitingSB = new StringBuffer("\nWe are awaiting VALIDATE reports from the following workers:\n");
 			for (String awaiting : workerRegistry.getWorkersAwaitingValidationReport()) {
@@ -649,7 +1582,7 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 			
 			
 		// VALIDATE partially complete, we have some current write summaries
-		} else if (currentMode == CCMode.VALIDATE && workerRegistry.anyWorkerCurrentValidationSummariesReceived()) {
+		} else if (workerRegistry.anyWorkerCurrentValidationSummariesReceived()) {
 			
 			try {
 				int totalValidatedSoFar = workerRegistry.getTotalValidated();
@@ -662,10 +1595,8 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 							"failfastOnWorkerCurrentSummaryError=true, so I am now triggering " +
 							"REPORT_ERRORS mode across all workers and stopping VALIDATE mode.");
 
-					this.currentMode = CCMode.REPORT_ERRORS;
-					
 					// switch the system to REPORT_ERRORS mode
-					controlChannel.send(true, CCPayloadType.MASTER_CURRENT_MODE, this.currentMode);
+					transitionTo(CCMode.REPORT_ERRORS);
 					
 					// purge the TOCQueue
 					this.purgeTOCQueueContents();
@@ -676,25 +1607,57 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 						" summaries received with ERRORS over control channel " + e.getMessage(),e);
 			}
 				
-		}	
-		
+		}
+	}
+	
+	/**
+	 * Workers keep writing what the DirectoryChangeWatcher finds until we are shutdown
+	 */
+	private void onPayloadWhileContinuous() {
 		
-		// Check for REPORT_ERRORS complete
-		if (currentMode == CCMode.REPORT_ERRORS && workerRegistry.allWorkerErrorReportsAreIn() && !workerErrorReportsLogged) {
+		if (workerRegistry.anyWorkerCurrentWriteSummariesReceived()) {
 			
-			// we only want to do this once
-			synchronized(this) {
+			try {
+				logger.debug("CONTINUOUS total written so far: " + workerRegistry.getTotalWritten() + 
+						" failed: " + workerRegistry.getTotalWriteFailures() + 
+						" changes pending debounce: " + changeWatcher.getPendingChanges());
 				
-				if (workerErrorReportsLogged) {
-					return;
+				// if any current summaries contain errors....and we are in fail fast mode...
+				if (this.failfastOnWorkerCurrentSummaryError && workerRegistry.anyWorkerCurrentSummaryWritesContainErrors()) {
+					
+					logger.info("One or more workers report CONTINUOUS mode current summary with ERRORS. " +
+							"failfastOnWorkerCurrentSummaryError=true, so I am now stopping the change watcher and " +
+							"triggering REPORT_ERRORS mode across all workers");
+					
+					// its TOCGeneratorAndSender may not even be started yet, stop it at the source
+					this.changeWatcher.stop();
+					
+					// switch the system to REPORT_ERRORS mode
+					transitionTo(CCMode.REPORT_ERRORS);
+					
+					// purge the TOCQueue
+					this.purgeTOCQueueContents();
 				}
+			} catch(Exception e) {
+				logger.error("handlePayload() error in CONTINUOUS reaction to current" +
+						" summaries received over control channel " + e.getMessage(),e);
+			}
+		}
+	}
+	
+	private void onPayloadWhileReportingErrors() {
+		
+		// Check for REPORT_ERRORS complete (we only want to do this once)
+		if (workerRegistry.allWorkerErrorReportsAreIn() && !workerErrorReportsLogged) {
 			
-				// so we only do this once
-				this.workerErrorReportsLogged = true; 
-				
-				try {
-					
-					logger.info("All workers report REPORT_ERRORS mode completed.. dumping details and triggering system CMD_WORKER_SHUTDOWN");
+			// so we only do this once
+			this.workerErrorReportsLogged = true; 
+			
+			logger.info("All workers report REPORT_ERRORS mode completed.. dumping details and triggering system CMD_WORKER_SHUTDOWN");
+			
+			// writing out the reports can take a while, get it off the state machine thread
+			runAsync("REPORT_ERRORS completion", new Callable<Void>() {
+				public Void call() throws Exception {
 					
 					// log em
 					logWorkerErrorReports();
@@ -706,40 +1669,28 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 					dumpWorkerRegistryStats();
 					
 					// send out the shutdown..
-					this.controlChannel.send(true, CCPayloadType.CMD_WORKER_SHUTDOWN, gson.toJson(this.shutdownInfo));
+					controlChannel.send(true, CCPayloadType.CMD_WORKER_SHUTDOWN, gson.toJson(shutdownInfo));
 					
-					if (this.autoShutdownAfterMS > 0) {
+					if (autoShutdownAfterMS > 0) {
 						logger.debug("System will auto-shutdown in: " + autoShutdownAfterMS + "ms " + (autoShutdownAfterMS/60000) + " (minutes)");
-						Thread.currentThread().sleep(this.autoShutdownAfterMS);
-						System.exit(0);
+						scheduledExecutor.schedule(new Runnable() {
+							public void run() {
+								System.exit(0);
+							}
+						}, autoShutdownAfterMS, TimeUnit.MILLISECONDS);
 					}
-	
-				} catch(Exception e) {
-					logger.error("handlePayload() error sending CMD_WORKER_SHUTDOWN over control channel: " + e.getMessage(),e);
+					return null;
 				}
-			}
+			});
 			
 		// REPORT_ERRORS partially complete? dump the workers we are waiting on....
-		} else if (currentMode == CCMode.REPORT_ERRORS && workerRegistry.anyWorkerErrorReportsAreReceived()) {
+		} else if (workerRegistry.anyWorkerErrorReportsAreReceived()) {
 			StringBuffer waitingSB = new StringBuffer("\nWe are awaiting REPORT_ERRORS reports from the following workers:\n");
 			for (String awaiting : workerRegistry.getWorkersAwaitingErrorReport()) {
 				waitingSB.append(awaiting+"\n");
 			}
 			logger.info(waitingSB.toString()+"\n");
 		}
-		
-		
-		try {
-			long now = System.currentTimeMillis();
-			if ((now - lastStatsDumpAtMS) > this.dumpStatsEveryMS) {
-				dumpWorkerRegistryStats();
-				this.lastStatsDumpAtMS = System.currentTimeMillis();
-			}
-		} catch(Exception e) {
-			logger.error("Error calling dumpWorkerRegistryStats() " + e.getMessage(),e);
-		}
-		
-		
 	}
 
 	private void logWorkerErrorReports() throws Exception {
@@ -909,4 +1860,28 @@ public class Master implements CCPayloadHandler, Runnable, TOCGenerationEventHan
 		}
 	}
 	
+	public CCMode getCurrentMode() {
+		return currentMode;
+	}
+
+	public Date getWritesStartAt() {
+		return writesStartAt;
+	}
+
+	public Date getWritesEndAt() {
+		return writesEndAt;
+	}
+
+	public Date getValidationsStartAt() {
+		return validationsStartAt;
+	}
+
+	public Date getValidationsEndAt() {
+		return validationsEndAt;
+	}
+
+	public Collection<TocInfo> getToc() {
+		return toc;
+	}
+
 }
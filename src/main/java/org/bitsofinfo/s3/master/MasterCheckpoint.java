@@ -0,0 +1,47 @@
+package org.bitsofinfo.s3.master;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bitsofinfo.s3.control.CCPayload;
+
+/**
+ * What the MasterCheckpointer periodically persists to 'checkpoint.json', 
+ * the TOC and what has been dispatched are journaled separately.
+ */
+public class MasterCheckpoint {
+	
+	public Date checkpointAt = null;
+	public String mode = null;
+	
+	// written on a clean master shutdown, nothing left to resume
+	public boolean shutdown = false;
+	
+	public Date masterStartAt = null;
+	public Date writesStartAt = null;
+	public Date writesEndAt = null;
+	public Date validationsStartAt = null;
+	
+	// to re-attach to the same control topic and TOC queue(s)
+	public String controlChannelSourceIdentifier = null;
+	public List<String> tocQueueSourceIdentifiers = new ArrayList<String>();
+	
+	public boolean tocGenerationComplete = false;
+	public long tocEntries = 0;
+	public long writesDispatched = 0;
+	public long validationsDispatched = 0;
+	
+	public List<String> ec2InstanceIds = new ArrayList<String>();
+	
+	public List<WorkerCheckpoint> workers = new ArrayList<WorkerCheckpoint>();
+	
+	public static class WorkerCheckpoint {
+		public String hostId = null;
+		public String ip = null;
+		
+		// most recent payload of each type received
+		public List<CCPayload> payloads = new ArrayList<CCPayload>();
+	}
+
+}
@@ -0,0 +1,218 @@
+package org.bitsofinfo.s3.master;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.bitsofinfo.s3.toc.TOCPayload.MODE;
+import org.bitsofinfo.s3.toc.TocInfo;
+import org.bitsofinfo.s3.util.CheckpointJournal;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Persists what the Master needs to resume an in-flight load after a crash
+ * to 'master.checkpoint.dir' on local disk:
+ * 
+ *  - toc.dat: every TOC entry as it is generated (json, line per entry)
+ *  - dispatched-[MODE].dat: the path of every entry sent to the TOC queue in that mode
+ *  - checkpoint.json: the MasterCheckpoint, periodically rewritten (tmp + rename)
+ * 
+ * The journals are synced to disk right before each checkpoint.json is written. On 
+ * resume TOC entries whose path is in the dispatched journal of the current mode are 
+ * not dispatched again (see listenerFor()), anything dispatched but not yet processed 
+ * is still sitting in the TOC queue(s) which the master re-attaches to.
+ */
+public class MasterCheckpointer {
+	
+	private static final Logger logger = Logger.getLogger(MasterCheckpointer.class);
+	
+	private static final String CHECKPOINT_FILE = "checkpoint.json";
+	private static final String TOC_FILE = "toc.dat";
+	
+	private File checkpointDir = null;
+	private Gson gson = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").create();
+	
+	private CheckpointJournal tocJournal = null;
+	private Map<MODE,CheckpointJournal> dispatchedJournals = new HashMap<MODE,CheckpointJournal>();
+	
+	// from the checkpoint we are resuming from (if any)
+	private boolean tocJournalComplete = false;
+	private long previousTocEntries = 0;
+	private Set<String> previouslyGenerated = new HashSet<String>();
+	private Map<MODE,Set<String>> previouslyDispatched = new HashMap<MODE,Set<String>>();
+	
+	public MasterCheckpointer(File checkpointDir) {
+		this.checkpointDir = checkpointDir;
+		this.checkpointDir.mkdirs();
+		
+		this.tocJournal = new CheckpointJournal(new File(checkpointDir, TOC_FILE));
+		for (MODE mode : MODE.values()) {
+			this.dispatchedJournals.put(mode, new CheckpointJournal(new File(checkpointDir, "dispatched-" + mode + ".dat")));
+			this.previouslyDispatched.put(mode, new HashSet<String>());
+		}
+	}
+	
+	/**
+	 * Discards any previous checkpoint, for a fresh start
+	 */
+	public void reset() {
+		new File(checkpointDir, CHECKPOINT_FILE).delete();
+		tocJournal.delete();
+		for (CheckpointJournal journal : dispatchedJournals.values()) {
+			journal.delete();
+		}
+		logger.info("reset() cleared any previous checkpoint in: " + checkpointDir.getAbsolutePath());
+	}
+	
+	/**
+	 * Loads the last checkpoint and what was dispatched, returns null if there is none
+	 */
+	public MasterCheckpoint load() throws Exception {
+		File checkpointFile = new File(checkpointDir, CHECKPOINT_FILE);
+		if (!checkpointFile.exists()) {
+			return null;
+		}
+		
+		MasterCheckpoint checkpoint = null;
+		Reader reader = new InputStreamReader(new FileInputStream(checkpointFile), "UTF-8");
+		try {
+			checkpoint = gson.fromJson(reader, MasterCheckpoint.class);
+		} finally {
+			reader.close();
+		}
+		
+		for (MODE mode : MODE.values()) {
+			final Set<String> dispatched = previouslyDispatched.get(mode);
+			dispatchedJournals.get(mode).read(new CheckpointJournal.LineHandler() {
+				public void handle(String line) throws Exception {
+					dispatched.add(gson.fromJson(line, String.class));
+				}
+			});
+			logger.info("load() " + mode + " previously dispatched: " + dispatched.size());
+		}
+		
+		this.tocJournalComplete = checkpoint.tocGenerationComplete;
+		
+		// generation will be re-run, need to know what we already have
+		if (!this.tocJournalComplete) {
+			this.previousTocEntries = tocJournal.read(new CheckpointJournal.LineHandler() {
+				public void handle(String line) throws Exception {
+					previouslyGenerated.add(gson.fromJson(line, TocInfo.class).getPath());
+				}
+			});
+		}
+		
+		logger.info("load() checkpoint from: " + checkpoint.checkpointAt + " mode: " + checkpoint.mode + 
+				" tocGenerationComplete: " + checkpoint.tocGenerationComplete);
+		return checkpoint;
+	}
+	
+	/**
+	 * The complete TOC, only valid if the loaded checkpoint states TOC generation was complete
+	 */
+	public List<TocInfo> loadToc() throws Exception {
+		final List<TocInfo> toc = new ArrayList<TocInfo>();
+		this.previousTocEntries = tocJournal.read(new CheckpointJournal.LineHandler() {
+			public void handle(String line) throws Exception {
+				toc.add(gson.fromJson(line, TocInfo.class));
+			}
+		});
+		logger.info("loadToc() loaded " + toc.size() + " TOC entries");
+		return toc;
+	}
+	
+	public TocDispatchListener listenerFor(final MODE mode) {
+		
+		final CheckpointJournal dispatchedJournal = dispatchedJournals.get(mode);
+		final Set<String> dispatchedBefore = previouslyDispatched.get(mode);
+		
+		return new TocDispatchListener() {
+			
+			public boolean tocAdded(TocInfo tocInfo) {
+				
+				// only WRITE mode generates the TOC, VALIDATE re-sends it
+				if (mode == MODE.WRITE && !tocJournalComplete && !previouslyGenerated.contains(tocInfo.getPath())) {
+					try {
+						tocJournal.append(gson.toJson(tocInfo));
+					} catch(Exception e) {
+						logger.error("tocAdded() error journaling TOC entry: " + tocInfo.getPath() + " " + e.getMessage(),e);
+					}
+				}
+				
+				return !dispatchedBefore.contains(tocInfo.getPath());
+			}
+			
+			public void tocDispatched(TocInfo tocInfo) {
+				try {
+					dispatchedJournal.append(gson.toJson(tocInfo.getPath()));
+				} catch(Exception e) {
+					logger.error("tocDispatched() error journaling dispatched entry: " + tocInfo.getPath() + " " + e.getMessage(),e);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Syncs the journals and then (atomically) replaces checkpoint.json, note
+	 * the caller should build the checkpoint BEFORE calling this so it never
+	 * states more than the journals hold
+	 */
+	public synchronized void write(MasterCheckpoint checkpoint) throws Exception {
+		
+		tocJournal.sync();
+		for (CheckpointJournal journal : dispatchedJournals.values()) {
+			journal.sync();
+		}
+		
+		checkpoint.tocEntries = previousTocEntries + tocJournal.getLinesAppended();
+		checkpoint.writesDispatched = getTotalDispatched(MODE.WRITE);
+		checkpoint.validationsDispatched = getTotalDispatched(MODE.VALIDATE);
+		
+		File tmp = new File(checkpointDir, CHECKPOINT_FILE + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			Writer writer = new OutputStreamWriter(out, "UTF-8");
+			writer.write(gson.toJson(checkpoint));
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		
+		if (!tmp.renameTo(new File(checkpointDir, CHECKPOINT_FILE))) {
+			throw new Exception("write() could not rename " + tmp.getAbsolutePath() + " to " + CHECKPOINT_FILE);
+		}
+		
+		logger.debug("write() checkpoint written, mode: " + checkpoint.mode + " tocEntries: " + checkpoint.tocEntries + 
+				" writesDispatched: " + checkpoint.writesDispatched + " validationsDispatched: " + checkpoint.validationsDispatched);
+	}
+	
+	public long getTotalDispatched(MODE mode) {
+		return previouslyDispatched.get(mode).size() + dispatchedJournals.get(mode).getLinesAppended();
+	}
+	
+	public void close() {
+		tocJournal.close();
+		for (CheckpointJournal journal : dispatchedJournals.values()) {
+			journal.close();
+		}
+	}
+
+	public File getCheckpointDir() {
+		return checkpointDir;
+	}
+
+}
@@ -0,0 +1,101 @@
+package org.bitsofinfo.s3.master;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Point in time progress of the master and its cluster, served as 
+ * JSON at /status and as plain text at /status.txt
+ */
+public class MasterStatus {
+	
+	public static class WorkerStatus {
+		public String hostId;
+		public String ip;
+		public String mode;
+		public long total;
+		public long failed;
+		public long bytes;
+		public double filesPerSec; // between its last two summaries, -1 if unknown
+		public double bytesPerSec;
+		public long lastSummaryAgeMS = -1;
+	}
+	
+	public Date asOf;
+	public String mode;
+	public Date phaseStartedAt;
+	public long phaseElapsedMS;
+	
+	public boolean tocGenerationComplete = false;
+	public long tocGenerated;
+	public long tocGeneratedBytes;
+	public long tocDispatched;
+	public long tocDispatchedBytes;
+	public long dispatchQueueDepth;
+	
+	public long completed;
+	public long completedFailed;
+	public long completedBytes;
+	
+	// rolling over the last 'rateWindowCoveredMS'
+	public long rateWindowCoveredMS;
+	public double filesPerSec;
+	public double bytesPerSec;
+	public double dispatchedPerSec;
+	
+	// -1 = unknown, only a lower bound while the TOC is still being generated
+	public long etaSeconds = -1;
+	public long etaSecondsByBytes = -1;
+	public Date etaAt;
+	
+	// only w/ the DirectLeaseTransport
+	public Long leasePending;
+	public Long leaseTotalLeased;
+	public Long leaseTotalAcked;
+	public Long leaseTotalExpired;
+	
+	public int workersExpected;
+	public List<WorkerStatus> workers = new ArrayList<WorkerStatus>();
+	
+	public String toText() {
+		SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+		StringBuffer sb = new StringBuffer();
+		
+		sb.append("as of:            " + fmt.format(asOf) + "\n");
+		sb.append("mode:             " + mode + "\n");
+		if (phaseStartedAt != null) {
+			sb.append("phase started:    " + fmt.format(phaseStartedAt) + " (" + (phaseElapsedMS/1000) + "s ago)\n");
+		}
+		sb.append("\n");
+		sb.append("TOC generated:    " + tocGenerated + " (" + tocGeneratedBytes + " bytes)" + (tocGenerationComplete ? "" : " [generation in progress]") + "\n");
+		sb.append("TOC dispatched:   " + tocDispatched + " (" + tocDispatchedBytes + " bytes)\n");
+		sb.append("dispatch queue:   " + dispatchQueueDepth + "\n");
+		sb.append("completed:        " + completed + " (" + completedFailed + " failed, " + completedBytes + " bytes)\n");
+		sb.append("\n");
+		sb.append("rates over last " + (rateWindowCoveredMS/1000) + "s: " + 
+					String.format("%.2f", filesPerSec) + " files/sec, " + 
+					String.format("%.0f", bytesPerSec) + " bytes/sec, " +
+					String.format("%.2f", dispatchedPerSec) + " dispatched/sec\n");
+		sb.append("ETA:              " + (etaSeconds >= 0 ? etaSeconds + "s" + (etaAt != null ? " @ " + fmt.format(etaAt) : "") : "unknown") + 
+					(etaSecondsByBytes >= 0 ? " (by bytes: " + etaSecondsByBytes + "s)" : "") +
+					(tocGenerationComplete ? "" : " [lower bound, TOC still generating]") + "\n");
+		
+		if (leasePending != null) {
+			sb.append("\nleases: pending=" + leasePending + " leased=" + leaseTotalLeased + " acked=" + leaseTotalAcked + " expired=" + leaseTotalExpired + "\n");
+		}
+		
+		sb.append("\nworkers: " + workers.size() + "/" + workersExpected + "\n");
+		sb.append(String.format("%-30s %-16s %-14s %10s %8s %16s %10s %14s %8s%n", 
+				"host", "ip", "mode", "total", "failed", "bytes", "files/s", "bytes/s", "age(s)"));
+		for (WorkerStatus w : workers) {
+			sb.append(String.format("%-30s %-16s %-14s %10d %8d %16d %10.2f %14.0f %8d%n", 
+					w.hostId, w.ip, w.mode, w.total, w.failed, w.bytes, w.filesPerSec, w.bytesPerSec, 
+					(w.lastSummaryAgeMS >= 0 ? w.lastSummaryAgeMS/1000 : -1)));
+		}
+		
+		return sb.toString();
+	}
+
+}
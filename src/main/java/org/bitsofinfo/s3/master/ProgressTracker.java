@@ -0,0 +1,92 @@
+package org.bitsofinfo.s3.master;
+
+import java.util.LinkedList;
+
+import org.bitsofinfo.s3.control.CCMode;
+
+/**
+ * Keeps a rolling window of (completed, bytes, dispatched) samples for
+ * the current phase, from which rolling rates and an ETA are derived.
+ * 
+ * Samples are reset whenever the phase (CCMode) changes.
+ */
+public class ProgressTracker {
+
+	private long windowMS = 300000;
+	private CCMode mode = null;
+	private LinkedList<Sample> samples = new LinkedList<Sample>();
+	
+	private static class Sample {
+		long atMS;
+		long completed;
+		long completedBytes;
+		long dispatched;
+		
+		Sample(long atMS, long completed, long completedBytes, long dispatched) {
+			this.atMS = atMS;
+			this.completed = completed;
+			this.completedBytes = completedBytes;
+			this.dispatched = dispatched;
+		}
+	}
+	
+	public ProgressTracker(long windowMS) {
+		this.windowMS = windowMS;
+	}
+	
+	public synchronized void sample(CCMode mode, long completed, long completedBytes, long dispatched) {
+		long now = System.currentTimeMillis();
+		
+		if (this.mode != mode) {
+			this.mode = mode;
+			this.samples.clear();
+		}
+		
+		samples.add(new Sample(now, completed, completedBytes, dispatched));
+		
+		// keep one sample older than the window so the window is always fully covered
+		while (samples.size() > 2 && (now - samples.get(1).atMS) > windowMS) {
+			samples.removeFirst();
+		}
+	}
+	
+	private long spanMS() {
+		if (samples.size() < 2) {
+			return 0;
+		}
+		return samples.getLast().atMS - samples.getFirst().atMS;
+	}
+	
+	public synchronized double getFilesPerSec() {
+		long span = spanMS();
+		return (span > 0 ? ((samples.getLast().completed - samples.getFirst().completed) * 1000.0) / span : 0);
+	}
+	
+	public synchronized double getBytesPerSec() {
+		long span = spanMS();
+		return (span > 0 ? ((samples.getLast().completedBytes - samples.getFirst().completedBytes) * 1000.0) / span : 0);
+	}
+	
+	public synchronized double getDispatchedPerSec() {
+		long span = spanMS();
+		return (span > 0 ? ((samples.getLast().dispatched - samples.getFirst().dispatched) * 1000.0) / span : 0);
+	}
+	
+	public synchronized long getWindowCoveredMS() {
+		return spanMS();
+	}
+	
+	/**
+	 * @return seconds to complete 'remaining' at 'perSec', -1 if unknown
+	 */
+	public static long eta(long remaining, double perSec) {
+		if (remaining <= 0) {
+			return 0;
+		}
+		if (perSec <= 0) {
+			return -1;
+		}
+		return (long)Math.ceil(remaining / perSec);
+	}
+
+}
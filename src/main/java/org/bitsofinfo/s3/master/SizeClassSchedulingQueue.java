@@ -0,0 +1,203 @@
+package org.bitsofinfo.s3.master;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.bitsofinfo.s3.toc.TocInfo;
+
+/**
+ * Dispatches the TOC largest first (LPT style) so the longest running
+ * copies start as early as possible and don't end up being the tail
+ * of the run, while still guaranteeing small files a share of the dispatch.
+ * 
+ * Entries are bucketed into size classes by 'classUpperBounds' (ascending, 
+ * exclusive, bytes), a file >= the last bound lands in the top class. A poll takes
+ * from the largest non-empty class, unless fewer than 1 byte per 'interleaveRatio' 
+ * bytes polled large first has been polled small first, it then takes from the smallest
+ * non-empty class. i.e. a ratio of 4 dispatches 4 bytes largest first for every byte
+ * smallest first, however many small files that takes. 0 disables interleaving.
+ * 
+ * Within a class the largest file goes first, except for the smallest
+ * class (which all directories go into) which stays FIFO so directories
+ * keep their crawl order relative to each other.
+ * 
+ * Pending counts and bytes are tracked per class (see getClassSummary()).
+ */
+public class SizeClassSchedulingQueue extends TocDispatchQueue {
+	
+	public static final long[] DEFAULT_CLASS_UPPER_BOUNDS = new long[]{1048576L, 16777216L, 104857600L, 1073741824L, 10737418240L};
+	
+	private static final Comparator<TocInfo> LARGEST_FIRST = new Comparator<TocInfo>() {
+		public int compare(TocInfo o1, TocInfo o2) {
+			return (o1.getSize() > o2.getSize() ? -1 : (o1.getSize() == o2.getSize() ? 0 : 1));
+		}
+	};
+	
+	private long[] classUpperBounds = null;
+	private int interleaveRatio = 4;
+	
+	private List<Queue<TocInfo>> classQueues = null;
+	private AtomicLongArray pendingCount = null;
+	private AtomicLongArray pendingBytes = null;
+	
+	// bytes dispatched by large first and by small first polls, what the interleave balances
+	private AtomicLong largeFirstBytes = new AtomicLong();
+	private AtomicLong smallFirstBytes = new AtomicLong();
+	
+	public SizeClassSchedulingQueue() {
+		this(DEFAULT_CLASS_UPPER_BOUNDS, 4);
+	}
+	
+	public SizeClassSchedulingQueue(long[] classUpperBounds, int interleaveRatio) {
+		setClassUpperBounds(classUpperBounds);
+		setInterleaveRatio(interleaveRatio);
+	}
+	
+	/**
+	 * Must be called before anything is added
+	 */
+	public void setClassUpperBounds(long[] classUpperBounds) {
+		if (classUpperBounds.length == 0) {
+			throw new IllegalArgumentException("at least one size class upper bound is required");
+		}
+		for (int i=1; i<classUpperBounds.length; i++) {
+			if (classUpperBounds[i] <= classUpperBounds[i-1]) {
+				throw new IllegalArgumentException("size class upper bounds must be ascending");
+			}
+		}
+		
+		this.classUpperBounds = classUpperBounds;
+		
+		int totalClasses = classUpperBounds.length + 1;
+		this.classQueues = new ArrayList<Queue<TocInfo>>(totalClasses);
+		this.classQueues.add(new ConcurrentLinkedQueue<TocInfo>());
+		for (int i=1; i<totalClasses; i++) {
+			this.classQueues.add(new PriorityBlockingQueue<TocInfo>(1024, LARGEST_FIRST));
+		}
+		this.pendingCount = new AtomicLongArray(totalClasses);
+		this.pendingBytes = new AtomicLongArray(totalClasses);
+	}
+
+	public void setInterleaveRatio(int interleaveRatio) {
+		this.interleaveRatio = Math.max(0, interleaveRatio);
+	}
+	
+	public int getInterleaveRatio() {
+		return interleaveRatio;
+	}
+	
+	public int getTotalClasses() {
+		return classQueues.size();
+	}
+	
+	protected int sizeClassOf(TocInfo ti) {
+		if (ti.isDirectory()) {
+			return 0;
+		}
+		for (int i=0; i<classUpperBounds.length; i++) {
+			if (ti.getSize() < classUpperBounds[i]) {
+				return i;
+			}
+		}
+		return classUpperBounds.length;
+	}
+
+	@Override
+	protected boolean enqueue(TocInfo ti) {
+		int sizeClass = sizeClassOf(ti);
+		
+		// count first, so size() is never under reported while a poll races us
+		pendingCount.incrementAndGet(sizeClass);
+		if (!ti.isDirectory()) {
+			pendingBytes.addAndGet(sizeClass, ti.getSize());
+		}
+		return classQueues.get(sizeClass).add(ti);
+	}
+
+	@Override
+	protected TocInfo dequeue() {
+		
+		boolean smallFirst = (interleaveRatio > 0 && (smallFirstBytes.get() * interleaveRatio) < largeFirstBytes.get());
+		
+		int totalClasses = classQueues.size();
+		for (int i=0; i<totalClasses; i++) {
+			int sizeClass = (smallFirst ? i : (totalClasses - 1 - i));
+			
+			if (pendingCount.get(sizeClass) == 0) {
+				continue;
+			}
+			
+			TocInfo polled = classQueues.get(sizeClass).poll();
+			if (polled != null) {
+				pendingCount.decrementAndGet(sizeClass);
+				if (!polled.isDirectory()) {
+					pendingBytes.addAndGet(sizeClass, -polled.getSize());
+					(smallFirst ? smallFirstBytes : largeFirstBytes).addAndGet(polled.getSize());
+				}
+				return polled;
+			}
+		}
+		
+		return null;
+	}
+
+	@Override
+	public int size() {
+		long total = 0;
+		for (int i=0; i<pendingCount.length(); i++) {
+			total += pendingCount.get(i);
+		}
+		return (int)total;
+	}
+	
+	@Override
+	public void clear() {
+		while (dequeue() != null) {
+			// drain so the per class accounting stays consistent
+		}
+	}
+	
+	public long getPendingCount(int sizeClass) {
+		return pendingCount.get(sizeClass);
+	}
+	
+	public long getPendingBytes(int sizeClass) {
+		return pendingBytes.get(sizeClass);
+	}
+	
+	public long getPendingBytes() {
+		long total = 0;
+		for (int i=0; i<pendingBytes.length(); i++) {
+			total += pendingBytes.get(i);
+		}
+		return total;
+	}
+	
+	/**
+	 * Bytes dispatched by large first (or small first) polls so far
+	 */
+	public long getDispatchedBytes(boolean smallFirst) {
+		return (smallFirst ? smallFirstBytes : largeFirstBytes).get();
+	}
+	
+	/**
+	 * i.e. "<1048576:[10 files, 2048 bytes] <16777216:[3 files, 9437184 bytes] ... dispatched large/small first: [..]"
+	 */
+	public String getClassSummary() {
+		StringBuffer sb = new StringBuffer();
+		for (int i=0; i<classQueues.size(); i++) {
+			sb.append(i < classUpperBounds.length ? "<" + classUpperBounds[i] : ">=" + classUpperBounds[classUpperBounds.length-1])
+			  .append(":[").append(pendingCount.get(i)).append(" files, ")
+			  .append(pendingBytes.get(i)).append(" bytes] ");
+		}
+		sb.append("dispatched large/small first: [").append(largeFirstBytes.get()).append("/").append(smallFirstBytes.get()).append(" bytes]");
+		return sb.toString();
+	}
+
+}
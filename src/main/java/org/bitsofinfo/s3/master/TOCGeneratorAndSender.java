@@ -1,9 +1,10 @@
 package org.bitsofinfo.s3.master;
 
 import java.util.Collection;
-import java.util.Queue;
+import java.util.List;
 
 import org.apache.log4j.Logger;
+import org.bitsofinfo.s3.toc.SizeBands;
 import org.bitsofinfo.s3.toc.SourceTOCGenerator;
 import org.bitsofinfo.s3.toc.TOCPayload.MODE;
 import org.bitsofinfo.s3.toc.TOCQueue;
@@ -15,28 +16,37 @@ public class TOCGeneratorAndSender implements Runnable {
 
 	private Thread myThread = new Thread(this);
 	private TocInfoQueueSender tocFileInfoQueueSender = null;
-	private Queue<TocInfo> tocFileInfoQueue = null;
+	private TocDispatchQueue tocFileInfoQueue = null;
 	private SourceTOCGenerator tocGenerator = null;
 	private MODE mode = null;
 	private TOCGenerationEventHandler handler = null;
 	private Collection<TocInfo> toc = null;
+	private LeaseWorkServer leaseWorkServer = null;
+	private volatile boolean tocGenerationComplete = false;
 
 	public TOCGeneratorAndSender(MODE mode, 
 			TOCGenerationEventHandler handler, 
 			TOCQueue tocQueue, 
 			int tocDispatchThreadsTotal, 
-			Collection<TocInfo> toc) {
+			Collection<TocInfo> toc,
+			TocDispatchQueue tocFileInfoQueue,
+			LeaseWorkServer leaseWorkServer) {
 
 		this.handler = handler;
 		this.mode = mode;
+		this.leaseWorkServer = leaseWorkServer;
 		this.toc = toc;
 
 		// populate the queue that the "sender" will concurrently consume
 		// from while the TOC is being generated
-		this.tocFileInfoQueue = new TocInfoSizeAwareQueue(100000000);
+		this.tocFileInfoQueue = tocFileInfoQueue;
 		this.tocFileInfoQueue.addAll(this.toc);
+		this.tocGenerationComplete = true;
 		
-		this.tocFileInfoQueueSender = new TocInfoQueueSender(mode, tocQueue, tocDispatchThreadsTotal, this.tocFileInfoQueue);
+		// when workers lease directly from us there is nothing to send
+		if (leaseWorkServer == null) {
+			this.tocFileInfoQueueSender = new TocInfoQueueSender(mode, tocQueue, tocDispatchThreadsTotal, this.tocFileInfoQueue);
+		}
 
 	}
 
@@ -44,20 +54,35 @@ public class TOCGeneratorAndSender implements Runnable {
 			TOCGenerationEventHandler handler, 
 			TOCQueue tocQueue, 
 			int tocDispatchThreadsTotal, 
-			SourceTOCGenerator tocGenerator) {
+			SourceTOCGenerator tocGenerator,
+			TocDispatchQueue tocFileInfoQueue,
+			LeaseWorkServer leaseWorkServer) {
 
 		this.tocGenerator = tocGenerator;
 		this.handler = handler;
 		this.mode = mode;
+		this.leaseWorkServer = leaseWorkServer;
 
 		// generate a queue that the "sender" will concurrently consume
 		// from while the TOC is being generated
-		this.tocFileInfoQueue = new TocInfoSizeAwareQueue(100000000);
+		this.tocFileInfoQueue = tocFileInfoQueue;
 		
-		this.tocFileInfoQueueSender = new TocInfoQueueSender(mode, tocQueue, tocDispatchThreadsTotal, this.tocFileInfoQueue);
+		// when workers lease directly from us there is nothing to send
+		if (leaseWorkServer == null) {
+			this.tocFileInfoQueueSender = new TocInfoQueueSender(mode, tocQueue, tocDispatchThreadsTotal, this.tocFileInfoQueue);
+		}
 
 	}
 
+	/**
+	 * Must be called before generateAndSendTOC(), n/a when workers lease directly from us
+	 */
+	public void routeBySizeBand(SizeBands sizeBands, List<TOCQueue> bandTocQueues) {
+		if (this.tocFileInfoQueueSender != null) {
+			this.tocFileInfoQueueSender.routeBySizeBand(sizeBands, bandTocQueues);
+		}
+	}
+
 	public void generateAndSendTOC() {
 		logger.debug("Thread started...");
 		myThread.start();	
@@ -71,7 +96,9 @@ public class TOCGeneratorAndSender implements Runnable {
 		} catch(Exception ignore){}
 
 		try {
-			this.tocFileInfoQueueSender.destroy();
+			if (this.tocFileInfoQueueSender != null) {
+				this.tocFileInfoQueueSender.destroy();
+			}
 		} catch(Exception ignore){}
 
 
@@ -85,32 +112,64 @@ public class TOCGeneratorAndSender implements Runnable {
 		return toc;
 	}
 
+	/**
+	 * The queue the TOC is generated into and dispatched from
+	 */
+	public TocDispatchQueue getTocFileInfoQueue() {
+		return tocFileInfoQueue;
+	}
+	
+	public boolean isTocGenerationComplete() {
+		return tocGenerationComplete;
+	}
+	
+	public MODE getMode() {
+		return mode;
+	}
+
 	public void run() {
 		try {
 			// generate and get all TOC messages (write live to the queue we just created)
-			tocFileInfoQueueSender.start(); // start the consumer
+			if (leaseWorkServer != null) {
+				leaseWorkServer.serve(mode, tocFileInfoQueue); // workers lease directly from the queue
+			} else {
+				tocFileInfoQueueSender.start(); // start the consumer
+			}
 
 			logger.info("run("+mode+") generating TOC...");
 			Collection<TocInfo> toc = getTOC();
 
-			// set on handler
-			handler.tocGenerationComplete(toc);
+			// set on handler (if given a TOC, i.e. a VALIDATE sample of it, there is nothing new)
+			this.tocGenerationComplete = true;
+			if (this.tocGenerator != null) {
+				handler.tocGenerationComplete(toc);
+			}
 
 			// while the queue is not empty, sleep....
 			while (tocFileInfoQueue.size() > 0) {
 				logger.debug("TOC generation complete, waiting for TOCFileInfoQueueSender" +
 						" thread to complete sending to SQS.. size:" + tocFileInfoQueue.size());
+				if (tocFileInfoQueue instanceof SizeClassSchedulingQueue) {
+					logger.debug("Pending by size class: " + ((SizeClassSchedulingQueue)tocFileInfoQueue).getClassSummary());
+				}
 				Thread.currentThread().sleep(10000);
 			}
 
 			// queue is empty.. stop it (i.e. tocFileInfoQueueSender is done consuming all from it)
-			tocFileInfoQueueSender.destroy();
+			if (tocFileInfoQueueSender != null) {
+				tocFileInfoQueueSender.destroy();
+			}
 
 			logger.info("TOCGeneratorAndSender(MODE="+mode+") done sending " + toc.size() + " tocPaths over TOCQueue....");
 
 		} catch(InterruptedException e) {
 			logger.warn("Caught InterruptedException, stopping TOC generation!");
 
+			// nor send what was queued before we were stopped
+			if (tocFileInfoQueueSender != null) {
+				tocFileInfoQueueSender.destroy();
+			}
+
 		} catch(Exception e) {
 			logger.error("Error generating TOC: " + e.getMessage(),e);
 			handler.tocGenerationError("Error generating TOC: " + e.getMessage(), e);
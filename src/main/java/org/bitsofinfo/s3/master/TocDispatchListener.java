@@ -0,0 +1,21 @@
+package org.bitsofinfo.s3.master;
+
+import org.bitsofinfo.s3.toc.TocInfo;
+
+/**
+ * Optional listener on a TocDispatchQueue, i.e. the MasterCheckpointer
+ */
+public interface TocDispatchListener {
+
+	/**
+	 * Called as each entry is added to the queue, return false
+	 * if it should not be dispatched (i.e. it already was before a resume)
+	 */
+	public boolean tocAdded(TocInfo tocInfo);
+	
+	/**
+	 * Called once an entry has been successfully sent to the TOC queue
+	 */
+	public void tocDispatched(TocInfo tocInfo);
+	
+}
@@ -0,0 +1,180 @@
+package org.bitsofinfo.s3.master;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bitsofinfo.s3.toc.TocInfo;
+
+/**
+ * Base for the queues the TOC is generated into and dispatched 
+ * from (to the TOCQueue or via the LeaseWorkServer). Subclasses decide
+ * the dispatch order, this keeps the totals (count and file bytes) added 
+ * and polled for progress reporting.
+ * 
+ * Only add/addAll/offer, poll, size, isEmpty and clear are supported.
+ */
+public abstract class TocDispatchQueue implements Queue<TocInfo> {
+
+	private AtomicLong totalAdded = new AtomicLong();
+	private AtomicLong totalBytesAdded = new AtomicLong();
+	private AtomicLong totalPolled = new AtomicLong();
+	private AtomicLong totalBytesPolled = new AtomicLong();
+	private AtomicLong totalSkipped = new AtomicLong();
+	
+	private TocDispatchListener listener = null;
+	
+	protected abstract boolean enqueue(TocInfo ti);
+	
+	protected abstract TocInfo dequeue();
+	
+	public abstract int size();
+	
+	public abstract void clear();
+	
+	/**
+	 * Must be set before anything is added
+	 */
+	public void setListener(TocDispatchListener listener) {
+		this.listener = listener;
+	}
+	
+	@Override
+	public boolean add(TocInfo ti) {
+		totalAdded.incrementAndGet();
+		if (!ti.isDirectory()) {
+			totalBytesAdded.addAndGet(ti.getSize());
+		}
+		
+		// already dispatched (i.e. before a resume), account for it as if just polled
+		if (listener != null && !listener.tocAdded(ti)) {
+			totalSkipped.incrementAndGet();
+			totalPolled.incrementAndGet();
+			if (!ti.isDirectory()) {
+				totalBytesPolled.addAndGet(ti.getSize());
+			}
+			return true;
+		}
+		
+		return enqueue(ti);
+	}
+	
+	/**
+	 * Called by whatever consumes from this queue once a polled entry has been sent
+	 */
+	public void dispatched(TocInfo ti) {
+		if (listener != null) {
+			listener.tocDispatched(ti);
+		}
+	}
+	
+	@Override
+	public boolean addAll(Collection<? extends TocInfo> c) {
+		for (TocInfo ti : c) {
+			add(ti);
+		}
+		return true;
+	}
+	
+	@Override
+	public boolean offer(TocInfo ti) {
+		return add(ti);
+	}
+	
+	@Override
+	public TocInfo poll() {
+		TocInfo polled = dequeue();
+		if (polled != null) {
+			totalPolled.incrementAndGet();
+			if (!polled.isDirectory()) {
+				totalBytesPolled.addAndGet(polled.getSize());
+			}
+		}
+		return polled;
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+	
+	public long getTotalAdded() {
+		return totalAdded.get();
+	}
+
+	public long getTotalBytesAdded() {
+		return totalBytesAdded.get();
+	}
+
+	public long getTotalPolled() {
+		return totalPolled.get();
+	}
+
+	public long getTotalBytesPolled() {
+		return totalBytesPolled.get();
+	}
+	
+	/**
+	 * Added but never enqueued as the listener stated they were already dispatched
+	 */
+	public long getTotalSkipped() {
+		return totalSkipped.get();
+	}
+	
+	@Override
+	public boolean contains(Object o) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Iterator<TocInfo> iterator() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+	
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Object[] toArray() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public <T> T[] toArray(T[] a) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public TocInfo element() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public TocInfo peek() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public TocInfo remove() {
+		throw new UnsupportedOperationException();
+	}
+	
+}
@@ -2,10 +2,10 @@ package org.bitsofinfo.s3.master;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
 import java.util.Random;
 
 import org.apache.log4j.Logger;
+import org.bitsofinfo.s3.toc.SizeBands;
 import org.bitsofinfo.s3.toc.TOCPayload.MODE;
 import org.bitsofinfo.s3.toc.TOCQueue;
 import org.bitsofinfo.s3.toc.TocInfo;
@@ -16,12 +16,16 @@ public class TocInfoQueueSender implements Runnable {
 	private static final Logger logger = Logger.getLogger(TocInfoQueueSender.class);
 
 	private TOCQueue tocQueue = null;
-	private Queue<TocInfo> toConsumeFrom = null;
+	private TocDispatchQueue toConsumeFrom = null;
 	private boolean running = true;
 	private List<Thread> threads = new ArrayList<Thread>();
 	private MODE mode = null;
+	
+	// optional, when set each TocInfo goes to its band's queue rather than 'tocQueue'
+	private SizeBands sizeBands = null;
+	private List<TOCQueue> bandTocQueues = null;
 
-	public TocInfoQueueSender(MODE mode, TOCQueue tocQueue, int totalThreads, Queue<TocInfo> toConsumeFrom) {
+	public TocInfoQueueSender(MODE mode, TOCQueue tocQueue, int totalThreads, TocDispatchQueue toConsumeFrom) {
 		this.toConsumeFrom = toConsumeFrom;
 		this.tocQueue= tocQueue;
 		this.mode = mode;
@@ -31,6 +35,11 @@ public class TocInfoQueueSender implements Runnable {
 		}
 	}
 	
+	public void routeBySizeBand(SizeBands sizeBands, List<TOCQueue> bandTocQueues) {
+		this.sizeBands = sizeBands;
+		this.bandTocQueues = bandTocQueues;
+	}
+	
 	public void start() {
 		logger.debug("Threads started...");
 		this.running = true;
@@ -50,7 +59,12 @@ public class TocInfoQueueSender implements Runnable {
 			try {
 				TocInfo finfo = toConsumeFrom.poll();
 				if (finfo != null) {
-					tocQueue.send(finfo, this.mode);
+					if (sizeBands != null) {
+						bandTocQueues.get(sizeBands.bandOf(finfo)).send(finfo, this.mode);
+					} else {
+						tocQueue.send(finfo, this.mode);
+					}
+					toConsumeFrom.dispatched(finfo);
 				} else {
 					Thread.currentThread().sleep(rand.nextInt(500));
 				}
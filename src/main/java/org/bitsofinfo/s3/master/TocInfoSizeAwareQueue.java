@@ -1,7 +1,5 @@
 package org.bitsofinfo.s3.master;
 
-import java.util.Collection;
-import java.util.Iterator;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -15,22 +13,35 @@ import org.bitsofinfo.s3.toc.TocInfo;
  * preference that large files go out earlier than
  * all other smaller things.
  *
+ * @see SizeClassSchedulingQueue for largest-first ordering across many size classes
  */
-public class TocInfoSizeAwareQueue implements Queue<TocInfo> {
+public class TocInfoSizeAwareQueue extends TocDispatchQueue {
 	
-	private long largeFileMinSizeBytes = 0;
+	public static final long DEFAULT_LARGE_FILE_MIN_SIZE_BYTES = 100000000;
+	
+	private long largeFileMinSizeBytes = DEFAULT_LARGE_FILE_MIN_SIZE_BYTES;
 	private Queue<TocInfo> tocQueue = new ConcurrentLinkedQueue<TocInfo>();
 	private Queue<TocInfo> largeFileTocQueue = new ConcurrentLinkedQueue<TocInfo>();
 	private long largeFileLastPolled = System.currentTimeMillis();
 	private long ensureLargeFilePolledMinMS = 1000;
 	
+	public TocInfoSizeAwareQueue() {}
+	
 	public TocInfoSizeAwareQueue(long largeFileMinSizeBytes) {
 		this.largeFileMinSizeBytes = largeFileMinSizeBytes;
 	}
+	
+	public void setLargeFileMinSizeBytes(long largeFileMinSizeBytes) {
+		this.largeFileMinSizeBytes = largeFileMinSizeBytes;
+	}
+	
+	public long getLargeFileMinSizeBytes() {
+		return largeFileMinSizeBytes;
+	}
 
 
 	@Override
-	public TocInfo poll() {
+	protected TocInfo dequeue() {
 	
 		long now = System.currentTimeMillis();
 		
@@ -50,28 +61,13 @@ public class TocInfoSizeAwareQueue implements Queue<TocInfo> {
 		return tocQueue.poll();
 	}
 
-	
-	@Override
-	public boolean addAll(Collection<? extends TocInfo> c) {
-		for (TocInfo ti : c) {
-			if (!ti.isDirectory() && ti.getSize() > this.largeFileMinSizeBytes) {
-				largeFileTocQueue.add(ti);
-			} else {
-				tocQueue.add(ti);
-			}
-		}
-		return true;
-	}
-	
-
 	@Override
 	public int size() {
 		return (tocQueue.size() + largeFileTocQueue.size());
 	}
 
-
 	@Override
-	public boolean add(TocInfo ti) {
+	protected boolean enqueue(TocInfo ti) {
 		if (!ti.isDirectory() && ti.getSize() > this.largeFileMinSizeBytes) {
 			return largeFileTocQueue.add(ti);
 		} else {
@@ -95,62 +91,4 @@ public class TocInfoSizeAwareQueue implements Queue<TocInfo> {
 		return tocQueue.contains(o) || largeFileTocQueue.contains(o);
 	}
 
-	@Override
-	public boolean containsAll(Collection<?> c) {
-		throw new UnsupportedOperationException();
-	}
-
-
-	@Override
-	public Iterator<TocInfo> iterator() {
-		throw new UnsupportedOperationException();
-	}
-
-	@Override
-	public boolean remove(Object o) {
-		throw new UnsupportedOperationException();
-	}
-
-	@Override
-	public boolean removeAll(Collection<?> c) {
-		throw new UnsupportedOperationException();
-	}
-	
-	@Override
-	public boolean retainAll(Collection<?> c) {
-		throw new UnsupportedOperationException();
-	}
-
-	@Override
-	public Object[] toArray() {
-		throw new UnsupportedOperationException();
-	}
-
-	@Override
-	public <T> T[] toArray(T[] a) {
-		throw new UnsupportedOperationException();
-	}
-
-
-	@Override
-	public TocInfo element() {
-		throw new UnsupportedOperationException();
-	}
-
-	@Override
-	public boolean offer(TocInfo e) {
-		throw new UnsupportedOperationException();
-	}
-
-	@Override
-	public TocInfo peek() {
-		throw new UnsupportedOperationException();
-	}
-
-	@Override
-	public TocInfo remove() {
-		throw new UnsupportedOperationException();
-	}
-
-
 }
@@ -0,0 +1,275 @@
+package org.bitsofinfo.s3.master;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.bitsofinfo.s3.toc.SizeBands;
+import org.bitsofinfo.s3.toc.TocInfo;
+
+/**
+ * Picks a stratified random sample of the TOC to VALIDATE rather than all of it.
+ *
+ * Entries are stratified by their top level prefix (the first 'prefixDepth' dirs of
+ * their parent path) and size class, i.e. "/projects [<1048576]", and from each stratum
+ * 'rate' of its entries (at least 'minPerStratum') are picked at random. Each picked
+ * entry carries its stratum so workers can report their validate failures per stratum.
+ *
+ * Any stratum w/ failures can be escalated, which returns the entries of that stratum
+ * not yet validated so all of it gets validated. The observed failure rate is reported
+ * per stratum and overall (weighted by stratum size) w/ Wilson score confidence bounds.
+ *
+ * Manifest shards and crawl subtrees are not stratified, they are always validated in full.
+ */
+public class TocSampler {
+
+	private static final Logger logger = Logger.getLogger(TocSampler.class);
+
+	private double rate = 0.01;
+	private int minPerStratum = 30;
+	private int prefixDepth = 1;
+	private SizeBands sizeClasses = null;
+	private double confidence = 0.95;
+	private Random random = null;
+
+	private Map<String,Stratum> strata = new TreeMap<String,Stratum>();
+	private int unstratified = 0;
+
+	private static class Stratum {
+		private List<TocInfo> entries = new ArrayList<TocInfo>(); // the sampled ones first
+		private int sampled = 0;
+		private boolean escalated = false;
+
+		private int getValidated() {
+			return (escalated ? entries.size() : sampled);
+		}
+	}
+
+	public TocSampler(double rate, int minPerStratum, int prefixDepth, SizeBands sizeClasses, double confidence, Random random) {
+		if (rate <= 0 || rate > 1) {
+			throw new IllegalArgumentException("TocSampler invalid rate: " + rate);
+		}
+		if (confidence <= 0 || confidence >= 1) {
+			throw new IllegalArgumentException("TocSampler invalid confidence: " + confidence);
+		}
+		this.rate = rate;
+		this.minPerStratum = minPerStratum;
+		this.prefixDepth = prefixDepth;
+		this.sizeClasses = sizeClasses;
+		this.confidence = confidence;
+		this.random = random;
+	}
+
+	/**
+	 * Returns null if 'master.validate.sample.rate' is not configured
+	 */
+	public static TocSampler fromProperties(Properties props) {
+		String rate = props.getProperty("master.validate.sample.rate");
+		if (rate == null || rate.trim().length() == 0) {
+			return null;
+		}
+
+		String[] parts = props.getProperty("master.validate.sample.size.classes", "1048576,1073741824").split(",");
+		long[] upperBounds = new long[parts.length];
+		for (int i=0; i<parts.length; i++) {
+			upperBounds[i] = Long.valueOf(parts[i].trim());
+		}
+
+		String seed = props.getProperty("master.validate.sample.seed");
+
+		return new TocSampler(Double.valueOf(rate.trim()),
+							  Integer.valueOf(props.getProperty("master.validate.sample.min.per.stratum", "30")),
+							  Integer.valueOf(props.getProperty("master.validate.sample.prefix.depth", "1")),
+							  new SizeBands(upperBounds),
+							  Double.valueOf(props.getProperty("master.validate.sample.confidence", "0.95")),
+							  (seed != null ? new Random(Long.valueOf(seed)) : new Random()));
+	}
+
+	/**
+	 * Stratifies the TOC and returns the sample of it to validate
+	 */
+	public synchronized List<TocInfo> sample(Collection<TocInfo> toc) {
+		this.strata.clear();
+		this.unstratified = 0;
+
+		List<TocInfo> sample = new ArrayList<TocInfo>();
+
+		for (TocInfo tocInfo : toc) {
+			if (tocInfo.isManifestShard() || tocInfo.isCrawlSubtree()) {
+				sample.add(tocInfo);
+				unstratified++;
+				continue;
+			}
+
+			String name = stratumOf(tocInfo);
+			Stratum stratum = strata.get(name);
+			if (stratum == null) {
+				stratum = new Stratum();
+				strata.put(name, stratum);
+			}
+			stratum.entries.add(tocInfo);
+		}
+
+		for (Map.Entry<String,Stratum> entry : strata.entrySet()) {
+			Stratum stratum = entry.getValue();
+			int total = stratum.entries.size();
+			stratum.sampled = Math.min(total, Math.max(minPerStratum, (int)Math.ceil(rate * total)));
+
+			// partial fisher-yates, the first 'sampled' end up a uniform random pick
+			for (int i=0; i<stratum.sampled; i++) {
+				Collections.swap(stratum.entries, i, i + random.nextInt(total - i));
+				TocInfo picked = stratum.entries.get(i);
+				picked.stratum = entry.getKey();
+				sample.add(picked);
+			}
+		}
+
+		logger.info("sample() picked " + sample.size() + " of " + toc.size() + " TOC entries to validate from " +
+				strata.size() + " strata (rate: " + rate + " min per stratum: " + minPerStratum +
+				", " + unstratified + " manifest shards/subtrees always validated)");
+
+		return sample;
+	}
+
+	/**
+	 * Escalates the given strata to full validation, returning their entries
+	 * that have yet to be validated (empty if all already have been)
+	 */
+	public synchronized List<TocInfo> escalate(Set<String> failedStrata) {
+		List<TocInfo> toValidate = new ArrayList<TocInfo>();
+
+		for (String name : failedStrata) {
+			Stratum stratum = strata.get(name);
+			if (stratum == null || stratum.escalated) {
+				continue;
+			}
+
+			stratum.escalated = true;
+			for (int i=stratum.sampled; i<stratum.entries.size(); i++) {
+				TocInfo tocInfo = stratum.entries.get(i);
+				tocInfo.stratum = name;
+				toValidate.add(tocInfo);
+			}
+
+			logger.info("escalate() stratum " + name + " had validate failures, validating its remaining " +
+					(stratum.entries.size() - stratum.sampled) + " entries");
+		}
+
+		return toValidate;
+	}
+
+	/**
+	 * i.e. "/projects [<1048576]", "/ [dir]" for directories at the root
+	 */
+	protected String stratumOf(TocInfo tocInfo) {
+		String path = tocInfo.getPath();
+
+		int end = 0;
+		for (int depth=0; depth<prefixDepth; depth++) {
+			int next = path.indexOf('/', end + 1);
+			if (next < 0) {
+				break; // the rest is the file name
+			}
+			end = next;
+		}
+		String prefix = (end > 0 ? path.substring(0, end) : "/");
+
+		String sizeClass = (tocInfo.isDirectory() ? "dir" : sizeClasses.describeBand(sizeClasses.bandOf(tocInfo)));
+
+		return prefix + " [" + sizeClass + "]";
+	}
+
+	/**
+	 * The observed failure rate per stratum and overall w/ confidence bounds, given
+	 * the validate failures workers reported per stratum
+	 */
+	public synchronized String getReport(Map<String,Integer> failuresByStratum) {
+		DecimalFormat pct = new DecimalFormat("0.0000%");
+		double z = zScore(confidence);
+
+		StringBuffer sb = new StringBuffer("\nSampled VALIDATE report (" + new DecimalFormat("0.##%").format(confidence) +
+				" confidence, Wilson score bounds):\n");
+
+		long totalEntries = 0;
+		long totalValidated = 0;
+		long totalFailures = 0;
+		double weightedRate = 0;
+		double weightedLower = 0;
+		double weightedUpper = 0;
+
+		for (Map.Entry<String,Stratum> entry : strata.entrySet()) {
+			Stratum stratum = entry.getValue();
+			int total = stratum.entries.size();
+			int validated = stratum.getValidated();
+			Integer failures = failuresByStratum.get(entry.getKey());
+			int failed = (failures != null ? failures : 0);
+
+			double observed = (validated > 0 ? (double)failed / validated : 0);
+			double[] bounds = (validated == total ? new double[]{observed, observed} : wilsonBounds(failed, validated, z));
+
+			totalEntries += total;
+			totalValidated += validated;
+			totalFailures += failed;
+			weightedRate += observed * total;
+			weightedLower += bounds[0] * total;
+			weightedUpper += bounds[1] * total;
+
+			sb.append(entry.getKey() + ": entries: " + total + " validated: " + validated +
+					(stratum.escalated ? " (escalated)" : "") + " failed: " + failed +
+					" rate: " + pct.format(observed) + " [" + pct.format(bounds[0]) + " - " + pct.format(bounds[1]) + "]\n");
+		}
+
+		if (totalEntries > 0) {
+			sb.append("OVERALL: entries: " + totalEntries + " validated: " + totalValidated + " failed: " + totalFailures +
+					" estimated rate: " + pct.format(weightedRate / totalEntries) +
+					" [" + pct.format(weightedLower / totalEntries) + " - " + pct.format(weightedUpper / totalEntries) + "]" +
+					" estimated failed entries: " + Math.round(weightedRate) +
+					" [" + Math.round(weightedLower) + " - " + Math.round(weightedUpper) + "]\n");
+		}
+
+		if (unstratified > 0) {
+			sb.append("Manifest shards/subtrees (validated in full): " + unstratified + "\n");
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Wilson score interval for 'failures' in 'n' trials, unlike the normal approximation
+	 * it stays sensible for 0 failures (the common case) and small n
+	 */
+	public static double[] wilsonBounds(int failures, int n, double z) {
+		if (n == 0) {
+			return new double[]{0, 1};
+		}
+
+		double p = (double)failures / n;
+		double z2 = z * z;
+		double center = p + z2 / (2 * n);
+		double spread = z * Math.sqrt((p * (1 - p) + z2 / (4 * n)) / n);
+		double denominator = 1 + z2 / n;
+
+		return new double[]{ Math.max(0, (center - spread) / denominator),
+							 Math.min(1, (center + spread) / denominator) };
+	}
+
+	/**
+	 * Two sided z score for the confidence (i.e. 0.95 = 1.96), rational
+	 * approximation of the normal quantile (Abramowitz & Stegun 26.2.23)
+	 */
+	public static double zScore(double confidence) {
+		double p = (1 - confidence) / 2;
+		double t = Math.sqrt(-2 * Math.log(p));
+		return t - (2.515517 + 0.802853 * t + 0.010328 * t * t) /
+				   (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+	}
+
+}
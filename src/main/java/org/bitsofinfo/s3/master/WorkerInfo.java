@@ -10,6 +10,7 @@ import java.util.Stack;
 import org.bitsofinfo.s3.control.CCMode;
 import org.bitsofinfo.s3.control.CCPayload;
 import org.bitsofinfo.s3.control.CCPayloadType;
+import org.bitsofinfo.s3.toc.TOCPayload.MODE;
 import org.bitsofinfo.s3.worker.ResultSummary;
 
 import com.google.gson.Gson;
@@ -25,6 +26,25 @@ public class WorkerInfo {
 	private int totalValidateFailures = 0;
 	private int totalWriteMonitorErrors = 0;
 	private int totalPostWriteLocalValidateErrors = 0;
+	private long totalBytesWritten = 0;
+	private long totalBytesValidated = 0;
+	private long totalWriteCrawledEntries = 0;
+	private long totalWriteCrawledBytes = 0;
+	private long totalValidateCrawledEntries = 0;
+	private long totalValidateCrawledBytes = 0;
+	private long totalCommandTimeouts = 0;
+	private long totalProcessesKilled = 0;
+	private Map<String,Integer> validateFailuresByStratum = null;
+	
+	// the two most recent summaries of the current summary
+	// mode, from which we derive this worker's current rates
+	private MODE summaryMode = null;
+	private long prevSummaryAtMS = -1;
+	private long prevSummaryTotal = 0;
+	private long prevSummaryBytes = 0;
+	private long lastSummaryAtMS = -1;
+	private long lastSummaryTotal = 0;
+	private long lastSummaryBytes = 0;
 	
 	private Map<Date,CCPayload> payloadsReceived = new HashMap<Date,CCPayload>();
 	private List<CCPayload> orderedPayloadsReceived = new ArrayList<CCPayload>();
@@ -91,36 +111,127 @@ public class WorkerInfo {
 		
 		if (payload.type == CCPayloadType.WORKER_WRITES_FINISHED_SUMMARY) {
 			ResultSummary writeSummary = gson.fromJson(payload.value.toString(), ResultSummary.class);
+			recordSummarySample(MODE.WRITE, writeSummary);
+			this.totalBytesWritten = writeSummary.bytes;
 			this.totalWritten = writeSummary.total;
 			this.totalWriteFailures = writeSummary.failed;
 			this.totalWriteMonitorErrors = writeSummary.writeMonitorErrors;
 			this.totalPostWriteLocalValidateErrors = writeSummary.postWriteLocalValidateErrors;
+			this.totalWriteCrawledEntries = writeSummary.crawledEntries;
+			this.totalWriteCrawledBytes = writeSummary.crawledBytes;
+			this.totalCommandTimeouts = writeSummary.commandTimeouts;
+			this.totalProcessesKilled = writeSummary.processesKilled;
 		}
 		
 		if (payload.type == CCPayloadType.WORKER_VALIDATIONS_FINISHED_SUMMARY) {
 			ResultSummary validateSummary = gson.fromJson(payload.value.toString(), ResultSummary.class);
+			recordSummarySample(MODE.VALIDATE, validateSummary);
+			this.totalBytesValidated = validateSummary.bytes;
 			this.totalValidated = validateSummary.total;
 			this.totalValidateFailures = validateSummary.failed;
 			this.totalWriteMonitorErrors = validateSummary.writeMonitorErrors;
 			this.totalPostWriteLocalValidateErrors = validateSummary.postWriteLocalValidateErrors;
+			this.totalValidateCrawledEntries = validateSummary.crawledEntries;
+			this.totalValidateCrawledBytes = validateSummary.crawledBytes;
+			this.validateFailuresByStratum = validateSummary.validateFailuresByStratum;
 		}
 		
 		
 		if (payload.type == CCPayloadType.WORKER_VALIDATIONS_CURRENT_SUMMARY) {
 			ResultSummary validateSummary = gson.fromJson(payload.value.toString(), ResultSummary.class);
+			recordSummarySample(MODE.VALIDATE, validateSummary);
+			this.totalBytesValidated = validateSummary.bytes;
 			this.totalValidated = validateSummary.total;
 			this.totalValidateFailures = validateSummary.failed;
 			this.totalWriteMonitorErrors = validateSummary.writeMonitorErrors;
 			this.totalPostWriteLocalValidateErrors = validateSummary.postWriteLocalValidateErrors;
+			this.totalValidateCrawledEntries = validateSummary.crawledEntries;
+			this.totalValidateCrawledBytes = validateSummary.crawledBytes;
+			this.validateFailuresByStratum = validateSummary.validateFailuresByStratum;
 		}
 		
 		if (payload.type == CCPayloadType.WORKER_WRITES_CURRENT_SUMMARY) {
 			ResultSummary writeSummary = gson.fromJson(payload.value.toString(), ResultSummary.class);
+			recordSummarySample(MODE.WRITE, writeSummary);
+			this.totalBytesWritten = writeSummary.bytes;
 			this.totalWritten = writeSummary.total;
 			this.totalWriteFailures = writeSummary.failed;
 			this.totalWriteMonitorErrors = writeSummary.writeMonitorErrors;
 			this.totalPostWriteLocalValidateErrors = writeSummary.postWriteLocalValidateErrors;
+			this.totalWriteCrawledEntries = writeSummary.crawledEntries;
+			this.totalWriteCrawledBytes = writeSummary.crawledBytes;
+			this.totalCommandTimeouts = writeSummary.commandTimeouts;
+			this.totalProcessesKilled = writeSummary.processesKilled;
+		}
+	}
+	
+	private void recordSummarySample(MODE mode, ResultSummary summary) {
+		
+		// new mode, start over
+		if (this.summaryMode != mode) {
+			this.summaryMode = mode;
+			this.lastSummaryAtMS = -1;
+		}
+		
+		this.prevSummaryAtMS = this.lastSummaryAtMS;
+		this.prevSummaryTotal = this.lastSummaryTotal;
+		this.prevSummaryBytes = this.lastSummaryBytes;
+		
+		this.lastSummaryAtMS = System.currentTimeMillis();
+		this.lastSummaryTotal = summary.total;
+		this.lastSummaryBytes = summary.bytes;
+	}
+	
+	/**
+	 * Files/sec between the two most recent summaries, -1 if not yet known
+	 */
+	public synchronized double getCurrentFilesPerSec() {
+		if (prevSummaryAtMS < 0 || lastSummaryAtMS <= prevSummaryAtMS) {
+			return -1;
 		}
+		return ((lastSummaryTotal - prevSummaryTotal) * 1000.0) / (lastSummaryAtMS - prevSummaryAtMS);
+	}
+	
+	/**
+	 * Bytes/sec between the two most recent summaries, -1 if not yet known
+	 */
+	public synchronized double getCurrentBytesPerSec() {
+		if (prevSummaryAtMS < 0 || lastSummaryAtMS <= prevSummaryAtMS) {
+			return -1;
+		}
+		return ((lastSummaryBytes - prevSummaryBytes) * 1000.0) / (lastSummaryAtMS - prevSummaryAtMS);
+	}
+	
+	public synchronized long getLastSummaryAtMS() {
+		return lastSummaryAtMS;
+	}
+	
+	public synchronized MODE getSummaryMode() {
+		return summaryMode;
+	}
+	
+	public long getTotalBytesWritten() {
+		return totalBytesWritten;
+	}
+	
+	public long getTotalBytesValidated() {
+		return totalBytesValidated;
+	}
+	
+	public long getTotalCommandTimeouts() {
+		return totalCommandTimeouts;
+	}
+	
+	public long getTotalProcessesKilled() {
+		return totalProcessesKilled;
+	}
+	
+	public long getTotalCrawledEntries(MODE mode) {
+		return (mode == MODE.WRITE ? totalWriteCrawledEntries : totalValidateCrawledEntries);
+	}
+	
+	public long getTotalCrawledBytes(MODE mode) {
+		return (mode == MODE.WRITE ? totalWriteCrawledBytes : totalValidateCrawledBytes);
 	}
 	
 	public Map<Date, CCPayload> getPayloadsReceived() {
@@ -255,6 +366,21 @@ public class WorkerInfo {
 	}
 	
 	
+	/**
+	 * Forget the payloads of the given type received so far, i.e. the 
+	 * worker must report them again
+	 */
+	public synchronized void clearPayloads(CCPayloadType type) {
+		this.payloadType2LifoStack.remove(type);
+	}
+	
+	/**
+	 * VALIDATE failures per sampling stratum, null if not sampling
+	 */
+	public Map<String,Integer> getValidateFailuresByStratum() {
+		return validateFailuresByStratum;
+	}
+	
 	public boolean validationIsComplete() {
 		if (payloadReceived(CCPayloadType.WORKER_VALIDATIONS_FINISHED_SUMMARY)) {
 			return true;
@@ -275,6 +401,20 @@ public class WorkerInfo {
 		return getMostRecentPayload(type) != null;
 	}
 	
+	/**
+	 * The most recent payload received of each type, in CCPayloadType order
+	 */
+	public synchronized List<CCPayload> getMostRecentPayloads() {
+		List<CCPayload> mostRecent = new ArrayList<CCPayload>();
+		for (CCPayloadType type : CCPayloadType.values()) {
+			CCPayload payload = getMostRecentPayload(type);
+			if (payload != null) {
+				mostRecent.add(payload);
+			}
+		}
+		return mostRecent;
+	}
+	
 	public CCPayload getMostRecentPayload(CCPayloadType type) {
 		
 		Stack<CCPayload> typeStack = this.payloadType2LifoStack.get(type);
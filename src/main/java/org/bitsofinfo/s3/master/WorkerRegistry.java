@@ -1,20 +1,24 @@
 package org.bitsofinfo.s3.master;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.apache.log4j.Logger;
 import org.bitsofinfo.s3.control.CCMode;
 import org.bitsofinfo.s3.control.CCPayload;
+import org.bitsofinfo.s3.control.CCPayloadType;
+import org.bitsofinfo.s3.toc.TOCPayload.MODE;
 
 public class WorkerRegistry {
 
 	private static final Logger logger = Logger.getLogger(WorkerRegistry.class);
 	
 	
-	private Map<String,WorkerInfo> registry = new TreeMap<String,WorkerInfo>(String.CASE_INSENSITIVE_ORDER);
+	// concurrent as it is also read by the metrics/status endpoints
+	private Map<String,WorkerInfo> registry = new ConcurrentSkipListMap<String,WorkerInfo>(String.CASE_INSENSITIVE_ORDER);
 
 
 	public WorkerInfo getWorkerByIP(String ip) {
@@ -62,6 +66,22 @@ public class WorkerRegistry {
 		return total;
 	}
 	
+	public long getTotalBytesWritten() {
+		long total = 0;
+		for (WorkerInfo info : registry.values()) {
+			total += info.getTotalBytesWritten();
+		}
+		return total;
+	}
+	
+	public long getTotalBytesValidated() {
+		long total = 0;
+		for (WorkerInfo info : registry.values()) {
+			total += info.getTotalBytesValidated();
+		}
+		return total;
+	}
+	
 	public int getTotalWriteFailures() {
 		int total = 0;
 		for (WorkerInfo info : registry.values()) {
@@ -88,6 +108,44 @@ public class WorkerRegistry {
 		return total;
 	}
 	
+	/**
+	 * Entries the workers found crawling subtrees in the given mode
+	 */
+	public long getTotalCrawledEntries(MODE mode) {
+		long total = 0;
+		for (WorkerInfo info : registry.values()) {
+			total += info.getTotalCrawledEntries(mode);
+		}
+		return total;
+	}
+	
+	public long getTotalCrawledBytes(MODE mode) {
+		long total = 0;
+		for (WorkerInfo info : registry.values()) {
+			total += info.getTotalCrawledBytes(mode);
+		}
+		return total;
+	}
+	
+	/**
+	 * Write commands the workers killed for exceeding their timeout
+	 */
+	public long getTotalCommandTimeouts() {
+		long total = 0;
+		for (WorkerInfo info : registry.values()) {
+			total += info.getTotalCommandTimeouts();
+		}
+		return total;
+	}
+	
+	public long getTotalProcessesKilled() {
+		long total = 0;
+		for (WorkerInfo info : registry.values()) {
+			total += info.getTotalProcessesKilled();
+		}
+		return total;
+	}
+	
 	public int getTotalPostWriteLocalValidateErrors() {
 		int total = 0;
 		for (WorkerInfo info : registry.values()) {
@@ -276,6 +334,31 @@ public class WorkerRegistry {
 		return false;
 	}
 	
+	/**
+	 * VALIDATE failures per sampling stratum across all workers
+	 */
+	public Map<String,Integer> getValidateFailuresByStratum() {
+		Map<String,Integer> total = new HashMap<String,Integer>();
+		for (WorkerInfo wi : registry.values()) {
+			if (wi.getValidateFailuresByStratum() != null) {
+				for (Map.Entry<String,Integer> entry : wi.getValidateFailuresByStratum().entrySet()) {
+					Integer failures = total.get(entry.getKey());
+					total.put(entry.getKey(), (failures != null ? failures : 0) + entry.getValue());
+				}
+			}
+		}
+		return total;
+	}
+	
+	/**
+	 * All workers must report payloads of this type again
+	 */
+	public void clearWorkerPayloads(CCPayloadType type) {
+		for (WorkerInfo wi : registry.values()) {
+			wi.clearPayloads(type);
+		}
+	}
+	
 	public boolean allWorkerValidatesAreComplete() {
 		for (WorkerInfo wi : registry.values()) {
 			if (!wi.validationIsComplete()) {
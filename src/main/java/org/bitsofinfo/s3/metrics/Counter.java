@@ -0,0 +1,39 @@
+package org.bitsofinfo.s3.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonically increasing count
+ */
+public class Counter implements Metric, CounterMBean {
+
+	private String name = null;
+	private String description = null;
+	private AtomicLong count = new AtomicLong();
+	
+	public Counter(String name, String description) {
+		this.name = name;
+		this.description = description;
+	}
+	
+	public void inc() {
+		count.incrementAndGet();
+	}
+	
+	public void inc(long n) {
+		count.addAndGet(n);
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+	
+}
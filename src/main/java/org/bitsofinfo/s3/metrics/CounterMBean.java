@@ -0,0 +1,7 @@
+package org.bitsofinfo.s3.metrics;
+
+public interface CounterMBean {
+
+	public long getCount();
+	
+}
@@ -0,0 +1,27 @@
+package org.bitsofinfo.s3.metrics;
+
+/**
+ * Point in time value read on demand from whatever owns it,
+ * i.e. a queue depth or a WorkerState total
+ */
+public abstract class Gauge implements Metric, GaugeMBean {
+
+	private String name = null;
+	private String description = null;
+	
+	public Gauge(String name, String description) {
+		this.name = name;
+		this.description = description;
+	}
+	
+	public abstract long getValue();
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+	
+}
@@ -0,0 +1,164 @@
+package org.bitsofinfo.s3.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of non-negative long values (latencies, byte counts)
+ * using log-linear buckets: every power of 2 range is split into 4 sub-buckets
+ * so any reported percentile is within ~25% of the true value, over the
+ * entire long range, in a fixed 248 slot array.
+ * 
+ * Latencies are recorded in microseconds, see updateNanosSince()
+ */
+public class Histogram implements Metric, HistogramMBean {
+
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	public static final int TOTAL_BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS; 
+	
+	private String name = null;
+	private String description = null;
+	
+	private AtomicLongArray buckets = new AtomicLongArray(TOTAL_BUCKETS);
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong sum = new AtomicLong();
+	private AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private AtomicLong max = new AtomicLong(0);
+	
+	public Histogram(String name, String description) {
+		this.name = name;
+		this.description = description;
+	}
+	
+	public static int bucketIndexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int)Math.max(0, value);
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)((value >> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS-1));
+		return ((exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS) + sub;
+	}
+	
+	/**
+	 * Largest value that lands in the given bucket
+	 */
+	public static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exp = (index / SUB_BUCKETS) + SUB_BUCKET_BITS - 1;
+		long sub = index % SUB_BUCKETS;
+		long next = (SUB_BUCKETS + sub + 1) << (exp - SUB_BUCKET_BITS);
+		return (next <= 0 ? Long.MAX_VALUE : next - 1);
+	}
+	
+	public void update(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		
+		buckets.incrementAndGet(bucketIndexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		
+		long currentMin = min.get();
+		while (value < currentMin && !min.compareAndSet(currentMin, value)) {
+			currentMin = min.get();
+		}
+		
+		long currentMax = max.get();
+		while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+	
+	/**
+	 * Records the time since the given System.nanoTime() in microseconds
+	 */
+	public void updateNanosSince(long startNanos) {
+		update((System.nanoTime() - startNanos) / 1000);
+	}
+	
+	/**
+	 * Copy of the per bucket (non-cumulative) counts
+	 */
+	public long[] getBucketCounts() {
+		long[] counts = new long[TOTAL_BUCKETS];
+		for (int i=0; i<TOTAL_BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return counts;
+	}
+	
+	/**
+	 * @param quantile 0.0 - 1.0
+	 */
+	public long getPercentile(double quantile) {
+		long[] counts = getBucketCounts();
+		
+		long total = 0;
+		for (long c : counts) {
+			total += c;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		
+		long rank = (long)Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i=0; i<counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				return Math.min(bucketUpperBound(i), getMax());
+			}
+		}
+		return getMax();
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getSum() {
+		return sum.get();
+	}
+	
+	public long getMin() {
+		return (count.get() > 0 ? min.get() : 0);
+	}
+	
+	public long getMax() {
+		return max.get();
+	}
+	
+	public double getMean() {
+		long c = count.get();
+		return (c > 0 ? ((double)sum.get()) / c : 0);
+	}
+	
+	public long get50thPercentile() {
+		return getPercentile(0.5);
+	}
+	
+	public long get95thPercentile() {
+		return getPercentile(0.95);
+	}
+	
+	public long get99thPercentile() {
+		return getPercentile(0.99);
+	}
+	
+	public long get999thPercentile() {
+		return getPercentile(0.999);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+	
+}
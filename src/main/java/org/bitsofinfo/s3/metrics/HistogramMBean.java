@@ -0,0 +1,23 @@
+package org.bitsofinfo.s3.metrics;
+
+public interface HistogramMBean {
+
+	public long getCount();
+	
+	public long getSum();
+	
+	public long getMin();
+	
+	public long getMax();
+	
+	public double getMean();
+	
+	public long get50thPercentile();
+	
+	public long get95thPercentile();
+	
+	public long get99thPercentile();
+	
+	public long get999thPercentile();
+	
+}
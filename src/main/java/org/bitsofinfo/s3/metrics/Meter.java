@@ -0,0 +1,122 @@
+package org.bitsofinfo.s3.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events and tracks their rate/sec: the mean since creation plus
+ * 1, 5 and 15 minute exponentially weighted moving averages 
+ * (unix load average style, ticked every 5 seconds)
+ */
+public class Meter implements Metric, MeterMBean {
+
+	private static final long TICK_INTERVAL_MS = 5000;
+	
+	private String name = null;
+	private String description = null;
+	
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong uncounted = new AtomicLong();
+	private AtomicLong lastTickAtMS = null;
+	private long createdAtMS = 0;
+	
+	private EWMA m1Rate = new EWMA(1);
+	private EWMA m5Rate = new EWMA(5);
+	private EWMA m15Rate = new EWMA(15);
+	
+	public Meter(String name, String description) {
+		this.name = name;
+		this.description = description;
+		this.createdAtMS = System.currentTimeMillis();
+		this.lastTickAtMS = new AtomicLong(createdAtMS);
+	}
+	
+	public void mark() {
+		mark(1);
+	}
+	
+	public void mark(long n) {
+		tickIfNecessary();
+		count.addAndGet(n);
+		uncounted.addAndGet(n);
+	}
+	
+	private void tickIfNecessary() {
+		long lastTick = lastTickAtMS.get();
+		long now = System.currentTimeMillis();
+		long elapsed = now - lastTick;
+		
+		if (elapsed >= TICK_INTERVAL_MS) {
+			long newLastTick = now - (elapsed % TICK_INTERVAL_MS);
+			
+			// only one thread gets to tick
+			if (lastTickAtMS.compareAndSet(lastTick, newLastTick)) {
+				long ticks = elapsed / TICK_INTERVAL_MS;
+				for (long i=0; i<ticks; i++) {
+					long n = uncounted.getAndSet(0);
+					m1Rate.tick(n);
+					m5Rate.tick(n);
+					m15Rate.tick(n);
+				}
+			}
+		}
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public double getMeanRate() {
+		long elapsed = System.currentTimeMillis() - createdAtMS;
+		return (elapsed > 0 ? (count.get() * 1000.0) / elapsed : 0);
+	}
+	
+	public double getOneMinuteRate() {
+		tickIfNecessary();
+		return m1Rate.getRatePerSecond();
+	}
+	
+	public double getFiveMinuteRate() {
+		tickIfNecessary();
+		return m5Rate.getRatePerSecond();
+	}
+	
+	public double getFifteenMinuteRate() {
+		tickIfNecessary();
+		return m15Rate.getRatePerSecond();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+	
+	private static class EWMA {
+		
+		private double alpha = 0;
+		private volatile double ratePerMS = 0;
+		private volatile boolean initialized = false;
+		
+		public EWMA(int minutes) {
+			this.alpha = 1 - Math.exp(-(TICK_INTERVAL_MS / 1000.0) / 60.0 / minutes);
+		}
+		
+		// only ever called by the single ticking thread
+		public void tick(long count) {
+			double instantRate = ((double)count) / TICK_INTERVAL_MS;
+			if (initialized) {
+				ratePerMS += (alpha * (instantRate - ratePerMS));
+			} else {
+				ratePerMS = instantRate;
+				initialized = true;
+			}
+		}
+		
+		public double getRatePerSecond() {
+			return ratePerMS * 1000;
+		}
+	}
+	
+}
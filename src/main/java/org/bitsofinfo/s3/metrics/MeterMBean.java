@@ -0,0 +1,15 @@
+package org.bitsofinfo.s3.metrics;
+
+public interface MeterMBean {
+
+	public long getCount();
+	
+	public double getMeanRate();
+	
+	public double getOneMinuteRate();
+	
+	public double getFiveMinuteRate();
+	
+	public double getFifteenMinuteRate();
+	
+}
@@ -0,0 +1,12 @@
+package org.bitsofinfo.s3.metrics;
+
+/**
+ * Base for everything held in the MetricsRegistry
+ */
+public interface Metric {
+
+	public String getName();
+	
+	public String getDescription();
+	
+}
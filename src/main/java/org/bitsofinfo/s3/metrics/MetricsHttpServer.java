@@ -0,0 +1,177 @@
+package org.bitsofinfo.s3.metrics;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Small HTTP endpoint exposing the MetricsRegistry in the Prometheus
+ * text exposition format at /metrics. Other contexts can be added via addContext()
+ * 
+ * Histograms are exported as cumulative buckets (only up to the highest non-empty
+ * bucket) plus _sum and _count, Meters as a _total counter plus _rate_1m/5m/15m gauges.
+ */
+public class MetricsHttpServer {
+	
+	private static final Logger logger = Logger.getLogger(MetricsHttpServer.class);
+	
+	public static final String METRIC_NAME_PREFIX = "s3bucketloader_";
+	
+	private int port = 0;
+	private HttpServer server = null;
+	private ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "MetricsHttpServer handler thread");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private MetricsRegistry registry = null;
+	
+	public MetricsHttpServer(int port, MetricsRegistry registry) throws Exception {
+		this.port = port;
+		this.registry = registry;
+		
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		this.server.setExecutor(executor);
+		
+		addContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) {
+				respond(exchange, 200, "text/plain; version=0.0.4; charset=utf-8", toPrometheusText());
+			}
+		});
+	}
+	
+	/**
+	 * Starts a server on the port named by 'portProperty' if it is set, returns null
+	 * if not configured or if it cannot start (i.e. port in use by another process on the same host)
+	 */
+	public static MetricsHttpServer startIfConfigured(Properties props, String portProperty) {
+		String port = props.getProperty(portProperty);
+		if (port == null || port.trim().length() == 0) {
+			return null;
+		}
+		
+		try {
+			MetricsHttpServer server = new MetricsHttpServer(Integer.valueOf(port.trim()), MetricsRegistry.getInstance());
+			server.start();
+			return server;
+		} catch(Exception e) {
+			logger.error("startIfConfigured() could not start MetricsHttpServer on " + portProperty + "=" + port + " : " + e.getMessage());
+			return null;
+		}
+	}
+	
+	public void addContext(String path, HttpHandler handler) {
+		this.server.createContext(path, handler);
+	}
+	
+	public void start() {
+		this.server.start();
+		logger.info("MetricsHttpServer started on port: " + port + " (/metrics)");
+	}
+	
+	public void destroy() {
+		try {
+			this.server.stop(0);
+			this.executor.shutdownNow();
+		} catch(Exception ignore) {}
+	}
+	
+	public int getPort() {
+		return port;
+	}
+	
+	public static void respond(HttpExchange exchange, int status, String contentType, String body) {
+		try {
+			byte[] bytes = body.getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", contentType);
+			exchange.sendResponseHeaders(status, bytes.length);
+			OutputStream os = exchange.getResponseBody();
+			try {
+				os.write(bytes);
+			} finally {
+				os.close();
+			}
+		} catch(Exception e) {
+			logger.error("respond() error writing response: " + e.getMessage(),e);
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	public String toPrometheusText() {
+		StringBuffer sb = new StringBuffer();
+		
+		for (Metric metric : registry.getMetrics()) {
+			String name = METRIC_NAME_PREFIX + sanitize(metric.getName());
+			
+			if (metric instanceof Counter) {
+				header(sb, name, metric, "counter");
+				sb.append(name).append(" ").append(((Counter)metric).getCount()).append("\n");
+				
+			} else if (metric instanceof Gauge) {
+				header(sb, name, metric, "gauge");
+				sb.append(name).append(" ").append(((Gauge)metric).getValue()).append("\n");
+				
+			} else if (metric instanceof Meter) {
+				Meter meter = (Meter)metric;
+				header(sb, name + "_total", metric, "counter");
+				sb.append(name).append("_total ").append(meter.getCount()).append("\n");
+				
+				header(sb, name + "_rate_1m", metric, "gauge");
+				sb.append(name).append("_rate_1m ").append(meter.getOneMinuteRate()).append("\n");
+				
+				header(sb, name + "_rate_5m", metric, "gauge");
+				sb.append(name).append("_rate_5m ").append(meter.getFiveMinuteRate()).append("\n");
+				
+				header(sb, name + "_rate_15m", metric, "gauge");
+				sb.append(name).append("_rate_15m ").append(meter.getFifteenMinuteRate()).append("\n");
+				
+			} else if (metric instanceof Histogram) {
+				Histogram histogram = (Histogram)metric;
+				header(sb, name, metric, "histogram");
+				
+				long[] counts = histogram.getBucketCounts();
+				int highest = -1;
+				for (int i=0; i<counts.length; i++) {
+					if (counts[i] > 0) {
+						highest = i;
+					}
+				}
+				
+				long cumulative = 0;
+				for (int i=0; i<=highest; i++) {
+					cumulative += counts[i];
+					sb.append(name).append("_bucket{le=\"").append(Histogram.bucketUpperBound(i)).append("\"} ").append(cumulative).append("\n");
+				}
+				sb.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append("\n");
+				sb.append(name).append("_sum ").append(histogram.getSum()).append("\n");
+				sb.append(name).append("_count ").append(cumulative).append("\n");
+			}
+		}
+		
+		return sb.toString();
+	}
+	
+	private void header(StringBuffer sb, String name, Metric metric, String type) {
+		if (metric.getDescription() != null) {
+			sb.append("# HELP ").append(name).append(" ").append(metric.getDescription().replace("\n", " ")).append("\n");
+		}
+		sb.append("# TYPE ").append(name).append(" ").append(type).append("\n");
+	}
+	
+	private static String sanitize(String name) {
+		return name.replaceAll("[^a-zA-Z0-9_:]", "_");
+	}
+
+}
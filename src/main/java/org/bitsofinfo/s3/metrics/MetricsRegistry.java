@@ -0,0 +1,182 @@
+package org.bitsofinfo.s3.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Process wide registry of named Counters, Meters, Histograms and Gauges.
+ * 
+ * Everything in the process (Master, Worker, TOCQueue, the handlers...) 
+ * gets/creates its metrics by name here, so multiple Workers running in 
+ * one JVM (i.e. the LocalLoadBenchmark) share and sum into the same metrics.
+ * 
+ * When JMX is enabled every metric is also registered as an MBean under
+ * org.bitsofinfo.s3:type=[Counter|Meter|Histogram|Gauge],name=[name]
+ *
+ */
+public class MetricsRegistry {
+	
+	private static final Logger logger = Logger.getLogger(MetricsRegistry.class);
+	
+	public static final String JMX_DOMAIN = "org.bitsofinfo.s3";
+	
+	private static MetricsRegistry instance = new MetricsRegistry();
+	
+	private ConcurrentSkipListMap<String,Metric> metrics = new ConcurrentSkipListMap<String,Metric>();
+	
+	private boolean jmxEnabled = true;
+	
+	public static MetricsRegistry getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Applies 'metrics.jmx.enabled' (default true)
+	 */
+	public void configure(Properties props) {
+		setJmxEnabled(Boolean.valueOf(props.getProperty("metrics.jmx.enabled", "true")));
+	}
+	
+	public Counter counter(String name, String description) {
+		Metric existing = metrics.get(name);
+		if (existing == null) {
+			existing = registerIfAbsent(new Counter(name, description));
+		}
+		return (Counter)existing;
+	}
+	
+	public Meter meter(String name, String description) {
+		Metric existing = metrics.get(name);
+		if (existing == null) {
+			existing = registerIfAbsent(new Meter(name, description));
+		}
+		return (Meter)existing;
+	}
+	
+	public Histogram histogram(String name, String description) {
+		Metric existing = metrics.get(name);
+		if (existing == null) {
+			existing = registerIfAbsent(new Histogram(name, description));
+		}
+		return (Histogram)existing;
+	}
+	
+	/**
+	 * Gauges read from their owner so the most recently registered one wins
+	 */
+	public void register(Gauge gauge) {
+		Metric previous = metrics.put(gauge.getName(), gauge);
+		if (previous != null) {
+			unregisterMBean(previous);
+		}
+		registerMBean(gauge);
+	}
+	
+	public void remove(String name) {
+		Metric previous = metrics.remove(name);
+		if (previous != null) {
+			unregisterMBean(previous);
+		}
+	}
+	
+	private Metric registerIfAbsent(Metric metric) {
+		Metric existing = metrics.putIfAbsent(metric.getName(), metric);
+		if (existing != null) {
+			return existing;
+		}
+		registerMBean(metric);
+		return metric;
+	}
+	
+	/**
+	 * Snapshot of all metrics, sorted by name
+	 */
+	public List<Metric> getMetrics() {
+		return new ArrayList<Metric>(metrics.values());
+	}
+	
+	public Metric getMetric(String name) {
+		return metrics.get(name);
+	}
+	
+	public boolean isJmxEnabled() {
+		return jmxEnabled;
+	}
+
+	public synchronized void setJmxEnabled(boolean jmxEnabled) {
+		if (this.jmxEnabled == jmxEnabled) {
+			return;
+		}
+		
+		this.jmxEnabled = jmxEnabled;
+		for (Metric metric : metrics.values()) {
+			if (jmxEnabled) {
+				registerMBean(metric);
+			} else {
+				unregisterMBean(metric, true);
+			}
+		}
+	}
+	
+	private ObjectName toObjectName(Metric metric) throws Exception {
+		// gauges are mostly anonymous classes, register them as the base type
+		String type = (metric instanceof Gauge ? Gauge.class.getSimpleName() : metric.getClass().getSimpleName());
+		return new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(metric.getName()));
+	}
+	
+	private void registerMBean(Metric metric) {
+		if (!jmxEnabled) {
+			return;
+		}
+		
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = toObjectName(metric);
+			
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			
+			Object mbean = metric;
+			if (metric instanceof Gauge) {
+				mbean = new StandardMBean((Gauge)metric, GaugeMBean.class);
+			}
+			
+			server.registerMBean(mbean, objectName);
+			
+		} catch(Exception e) {
+			logger.warn("registerMBean() could not register " + metric.getName() + " with JMX: " + e.getMessage());
+		}
+	}
+	
+	private void unregisterMBean(Metric metric) {
+		unregisterMBean(metric, jmxEnabled);
+	}
+	
+	private void unregisterMBean(Metric metric, boolean wasRegistered) {
+		if (!wasRegistered) {
+			return;
+		}
+		
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = toObjectName(metric);
+			
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch(Exception e) {
+			logger.warn("unregisterMBean() could not unregister " + metric.getName() + " from JMX: " + e.getMessage());
+		}
+	}
+	
+}
@@ -0,0 +1,224 @@
+package org.bitsofinfo.s3.toc;
+
+import java.nio.charset.Charset;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Compact encoding of a TOCPayload, base64 (so safe for SQS) of:
+ * 
+ *   version (1 byte) | mode (1 byte) | flags (1 byte) | size (varint) | path
+ *   [ | stratum ] [ | manifestFile | index (varint) | start (varint) | end (varint) ]
+ *   [ | lastModified (varint) ]
+ * 
+ * strings are a varint byte length followed by UTF-8, the optional parts are 
+ * present per the flags. Written and read field by field, no reflection.
+ * 
+ * A body never starts w/ '{' (unlike JSON) which is how TOCPayloadCodecs tells 
+ * them apart. Decoding rejects any version other than VERSION (or an older one
+ * it still reads), so a format change must bump it.
+ * 
+ * Version 2 added lastModified, version 1 bodies are decoded w/o it.
+ */
+public class BinaryTOCPayloadCodec implements TOCPayloadCodec {
+
+	public static final String NAME = "binary";
+	
+	public static final byte VERSION = 2;
+	
+	// oldest version decode() still accepts
+	private static final byte MIN_VERSION = 1;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final int FLAG_DIRECTORY = 1;
+	private static final int FLAG_CRAWL_SUBTREE = 2;
+	private static final int FLAG_PATH = 4;
+	private static final int FLAG_STRATUM = 8;
+	private static final int FLAG_MANIFEST_SHARD = 16;
+	private static final int FLAG_LAST_MODIFIED = 32;
+	
+	private static final int MODE_NONE = 255;
+	
+	private static final TOCPayload.MODE[] MODES = TOCPayload.MODE.values();
+	
+	public String getName() {
+		return NAME;
+	}
+
+	public String encode(TOCPayload payload) throws Exception {
+		TocInfo tocInfo = payload.tocInfo;
+		
+		int flags = 0;
+		if (tocInfo.isDirectory) {
+			flags |= FLAG_DIRECTORY;
+		}
+		if (tocInfo.isCrawlSubtree) {
+			flags |= FLAG_CRAWL_SUBTREE;
+		}
+		if (tocInfo.path != null) {
+			flags |= FLAG_PATH;
+		}
+		if (tocInfo.stratum != null) {
+			flags |= FLAG_STRATUM;
+		}
+		if (tocInfo.manifestShard != null) {
+			flags |= FLAG_MANIFEST_SHARD;
+		}
+		if (tocInfo.lastModified != null) {
+			flags |= FLAG_LAST_MODIFIED;
+		}
+		
+		Writer writer = new Writer(32 + (tocInfo.path != null ? tocInfo.path.length() * 2 : 0));
+		writer.writeByte(VERSION);
+		writer.writeByte(payload.mode != null ? payload.mode.ordinal() : MODE_NONE);
+		writer.writeByte(flags);
+		writer.writeVarLong(tocInfo.size);
+		
+		if (tocInfo.path != null) {
+			writer.writeString(tocInfo.path);
+		}
+		if (tocInfo.stratum != null) {
+			writer.writeString(tocInfo.stratum);
+		}
+		if (tocInfo.manifestShard != null) {
+			writer.writeString(tocInfo.manifestShard.manifestFile);
+			writer.writeVarLong(tocInfo.manifestShard.index);
+			writer.writeVarLong(tocInfo.manifestShard.start);
+			writer.writeVarLong(tocInfo.manifestShard.end);
+		}
+		if (tocInfo.lastModified != null) {
+			writer.writeVarLong(tocInfo.lastModified);
+		}
+		
+		return Base64.encodeBase64String(writer.toByteArray());
+	}
+
+	public TOCPayload decode(String body) throws Exception {
+		Reader reader = new Reader(Base64.decodeBase64(body));
+		
+		int version = reader.readByte();
+		if (version < MIN_VERSION || version > VERSION) {
+			throw new Exception("BinaryTOCPayloadCodec unsupported version: " + version + 
+					" expected: " + MIN_VERSION + " to " + VERSION);
+		}
+		
+		TOCPayload payload = new TOCPayload();
+		
+		int mode = reader.readByte();
+		payload.mode = (mode != MODE_NONE ? MODES[mode] : null);
+		
+		int flags = reader.readByte();
+		long size = reader.readVarLong();
+		
+		TocInfo tocInfo = new TocInfo(((flags & FLAG_PATH) != 0 ? reader.readString() : null), size);
+		tocInfo.isDirectory = ((flags & FLAG_DIRECTORY) != 0);
+		tocInfo.isCrawlSubtree = ((flags & FLAG_CRAWL_SUBTREE) != 0);
+		
+		if ((flags & FLAG_STRATUM) != 0) {
+			tocInfo.stratum = reader.readString();
+		}
+		if ((flags & FLAG_MANIFEST_SHARD) != 0) {
+			tocInfo.manifestShard = new ManifestShard(reader.readString(), (int)reader.readVarLong(), 
+														reader.readVarLong(), reader.readVarLong());
+		}
+		if (version >= 2 && (flags & FLAG_LAST_MODIFIED) != 0) {
+			tocInfo.lastModified = reader.readVarLong();
+		}
+		
+		payload.tocInfo = tocInfo;
+		return payload;
+	}
+	
+	private static class Writer {
+		
+		private byte[] buffer = null;
+		private int length = 0;
+		
+		private Writer(int initialCapacity) {
+			this.buffer = new byte[initialCapacity];
+		}
+		
+		private void ensure(int more) {
+			if (length + more > buffer.length) {
+				byte[] bigger = new byte[Math.max(buffer.length * 2, length + more)];
+				System.arraycopy(buffer, 0, bigger, 0, length);
+				buffer = bigger;
+			}
+		}
+		
+		private void writeByte(int b) {
+			ensure(1);
+			buffer[length++] = (byte)b;
+		}
+		
+		/**
+		 * 7 bits per byte, low bits first, high bit set on all but the last
+		 */
+		private void writeVarLong(long value) {
+			if (value < 0) {
+				throw new IllegalArgumentException("BinaryTOCPayloadCodec cannot encode negative value: " + value);
+			}
+			ensure(10);
+			while ((value & ~0x7FL) != 0) {
+				buffer[length++] = (byte)((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[length++] = (byte)value;
+		}
+		
+		private void writeString(String value) {
+			byte[] bytes = value.getBytes(UTF8);
+			writeVarLong(bytes.length);
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buffer, length, bytes.length);
+			length += bytes.length;
+		}
+		
+		private byte[] toByteArray() {
+			byte[] bytes = new byte[length];
+			System.arraycopy(buffer, 0, bytes, 0, length);
+			return bytes;
+		}
+	}
+	
+	private static class Reader {
+		
+		private byte[] buffer = null;
+		private int position = 0;
+		
+		private Reader(byte[] buffer) {
+			this.buffer = buffer;
+		}
+		
+		private int readByte() throws Exception {
+			if (position >= buffer.length) {
+				throw new Exception("BinaryTOCPayloadCodec truncated payload");
+			}
+			return buffer[position++] & 0xFF;
+		}
+		
+		private long readVarLong() throws Exception {
+			long value = 0;
+			for (int shift=0; shift<64; shift+=7) {
+				int b = readByte();
+				value |= (long)(b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new Exception("BinaryTOCPayloadCodec malformed varint");
+		}
+		
+		private String readString() throws Exception {
+			int length = (int)readVarLong();
+			if (length > buffer.length - position) {
+				throw new Exception("BinaryTOCPayloadCodec truncated payload");
+			}
+			String value = new String(buffer, position, length, UTF8);
+			position += length;
+			return value;
+		}
+	}
+
+}
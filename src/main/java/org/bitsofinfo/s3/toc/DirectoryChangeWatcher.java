@@ -0,0 +1,610 @@
+package org.bitsofinfo.s3.toc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.bitsofinfo.s3.metrics.Counter;
+import org.bitsofinfo.s3.metrics.Gauge;
+import org.bitsofinfo.s3.metrics.MetricsRegistry;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Watches a source directory tree for changes by periodically re-checking
+ * the last modified time of every directory (works over NFS, unlike
+ * inotify). A directory whose mtime moved (a child was added, removed or
+ * renamed) is listed again and its files compared (size, last modified)
+ * to what was last seen. Files modified in place do not move their dir's
+ * mtime, those are found by every 'fullRescanEvery'-th rescan which
+ * compares every file.
+ *
+ * A new or changed file is only queued once it has been seen unchanged
+ * for 'debounceMS' (i.e. it is no longer being written), new directories
+ * are queued right away. Deleted paths are only dropped from what is
+ * watched, they are not sent.
+ *
+ * Only directories are kept by path, each dir's files are kept as a 64 bit
+ * hash of their name and one of their size + last modified (~16 bytes a
+ * file), a tree of more than 'maxFiles' files is refused.
+ *
+ * baseline() records the tree as it is (or as a TocSnapshot recorded it, w/o
+ * any stat calls), as a SourceTOCGenerator generateTOC() then watches it
+ * until interrupted or stop()ped, queueing the changes as it finds them.
+ */
+public class DirectoryChangeWatcher implements SourceTOCGenerator {
+
+	private static final Logger logger = Logger.getLogger(DirectoryChangeWatcher.class);
+
+	private File rootDir = null;
+	private long rescanIntervalMS = 5000;
+	private long debounceMS = 2000;
+	private int fullRescanEvery = 60;
+	private long mtimeSettleMS = 5000;
+	private long maxFiles = 0;
+
+	// relative dir path ("" for the root) -> what we last saw of it
+	private Map<String,DirState> dirs = new HashMap<String,DirState>();
+	private volatile boolean baselined = false;
+	private long rescans = 0;
+	private volatile int watchedDirs = 0;
+	private long watchedFiles = 0;
+	private volatile int pendingChanges = 0;
+	private volatile boolean stopped = false;
+	private volatile Thread watchingThread = null;
+
+	// new/changed files waiting to be seen unchanged for debounceMS, in the order found
+	private Map<String,PendingFile> pending = new LinkedHashMap<String,PendingFile>();
+
+	private MetricsRegistry metrics = MetricsRegistry.getInstance();
+	private Counter changesQueued = metrics.counter("continuous_changes_queued", "Added/changed paths found and queued by the DirectoryChangeWatcher");
+	private Counter pathsDeleted = metrics.counter("continuous_paths_deleted", "Paths found deleted by the DirectoryChangeWatcher (not replicated)");
+
+	private static final HashFunction hashFunction = Hashing.murmur3_128();
+
+	private static class DirState {
+		private long lastModified = 0;
+		private boolean settling = false; // mtime too recent to trust, list again next rescan
+		private FileStates files = new FileStates();
+	}
+
+	/**
+	 * A dir's files: name hashes, sorted, w/ the size + last modified hash of each
+	 * at the same index. Collisions would at worst miss a change, for 64 bits
+	 * that is negligible.
+	 */
+	private static class FileStates {
+		private long[] names = new long[0];
+		private long[] states = new long[0];
+		private int size = 0;
+
+		private int indexOf(long name) {
+			return Arrays.binarySearch(names, 0, size, name);
+		}
+
+		private boolean isUnchanged(long name, long state) {
+			int i = indexOf(name);
+			return i >= 0 && states[i] == state;
+		}
+
+		/**
+		 * Appends, sort() must be called before anything else
+		 */
+		private void add(long name, long state) {
+			ensureCapacity();
+			names[size] = name;
+			states[size] = state;
+			size++;
+		}
+
+		/**
+		 * Sorts what was add()ed by name (in place heapsort, the states follow
+		 * their names) and drops duplicate names (the last added wins)
+		 */
+		private void sort() {
+			for (int i = size/2 - 1; i >= 0; i--) {
+				siftDown(i, size);
+			}
+			for (int end = size - 1; end > 0; end--) {
+				swap(0, end);
+				siftDown(0, end);
+			}
+
+			int unique = 0;
+			for (int i=0; i<size; i++) {
+				if (unique > 0 && names[unique-1] == names[i]) {
+					states[unique-1] = states[i];
+				} else {
+					names[unique] = names[i];
+					states[unique] = states[i];
+					unique++;
+				}
+			}
+			size = unique;
+			trim();
+		}
+
+		private void siftDown(int i, int end) {
+			while (true) {
+				int child = 2*i + 1;
+				if (child >= end) {
+					return;
+				}
+				if (child + 1 < end && names[child + 1] > names[child]) {
+					child++;
+				}
+				if (names[i] >= names[child]) {
+					return;
+				}
+				swap(i, child);
+				i = child;
+			}
+		}
+
+		private void swap(int a, int b) {
+			long name = names[a];
+			names[a] = names[b];
+			names[b] = name;
+			long state = states[a];
+			states[a] = states[b];
+			states[b] = state;
+		}
+
+		private void ensureCapacity() {
+			if (size == names.length) {
+				int capacity = Math.max(4, size + (size >> 1));
+				names = Arrays.copyOf(names, capacity);
+				states = Arrays.copyOf(states, capacity);
+			}
+		}
+
+		/**
+		 * Adds or updates, keeping the names sorted
+		 */
+		private void put(long name, long state) {
+			int i = indexOf(name);
+			if (i >= 0) {
+				states[i] = state;
+				return;
+			}
+			i = -(i + 1);
+			ensureCapacity();
+			System.arraycopy(names, i, names, i + 1, size - i);
+			System.arraycopy(states, i, states, i + 1, size - i);
+			names[i] = name;
+			states[i] = state;
+			size++;
+		}
+
+		private void trim() {
+			if (size < names.length) {
+				names = Arrays.copyOf(names, size);
+				states = Arrays.copyOf(states, size);
+			}
+		}
+	}
+
+	private static class PendingFile {
+		private File file = null;
+		private long size = 0;
+		private long lastModified = 0;
+		private long unchangedSince = 0;
+	}
+
+	public DirectoryChangeWatcher(File rootDir, long rescanIntervalMS, long debounceMS, int fullRescanEvery, long mtimeSettleMS, long maxFiles) {
+		if (!rootDir.isDirectory()) {
+			throw new RuntimeException("DirectoryChangeWatcher invalid rootDir: " + rootDir.getAbsolutePath());
+		}
+		this.rootDir = rootDir;
+		this.rescanIntervalMS = rescanIntervalMS;
+		this.debounceMS = debounceMS;
+		this.fullRescanEvery = fullRescanEvery;
+		this.mtimeSettleMS = mtimeSettleMS;
+		this.maxFiles = maxFiles;
+
+		metrics.register(new Gauge("continuous_watched_dirs", "Directories watched by the DirectoryChangeWatcher") {
+			public long getValue() { return getWatchedDirs(); }
+		});
+		metrics.register(new Gauge("continuous_changes_pending", "Added/changed files waiting out the DirectoryChangeWatcher debounce") {
+			public long getValue() { return getPendingChanges(); }
+		});
+	}
+
+	/**
+	 * Returns null unless 'master.continuous.enabled' is true
+	 */
+	public static DirectoryChangeWatcher fromProperties(Properties props) {
+		if (!Boolean.valueOf(props.getProperty("master.continuous.enabled", "false").trim())) {
+			return null;
+		}
+		return new DirectoryChangeWatcher(new File(props.getProperty("tocGenerator.source.dir").trim()),
+										  Long.valueOf(props.getProperty("master.continuous.rescan.interval.ms", "5000")),
+										  Long.valueOf(props.getProperty("master.continuous.debounce.ms", "2000")),
+										  Integer.valueOf(props.getProperty("master.continuous.full.rescan.every", "60")),
+										  Long.valueOf(props.getProperty("master.continuous.mtime.settle.ms", "5000")),
+										  Long.valueOf(props.getProperty("master.continuous.max.files", "20000000")));
+	}
+
+	public boolean isBaselined() {
+		return baselined;
+	}
+
+	/**
+	 * Records the tree as it is now, changes after this (to each path) are
+	 * what generateTOC() finds. Should be taken before the TOC is crawled.
+	 */
+	public synchronized void baseline() throws Exception {
+		long start = System.currentTimeMillis();
+		reset();
+		watchTree("", rootDir, null);
+		baselined(start, "the tree");
+	}
+
+	/**
+	 * Records the tree as the crawl that wrote the snapshot found it, w/o walking
+	 * it again. Changes since each path was crawled are what generateTOC() finds.
+	 */
+	public synchronized void baseline(TocSnapshot snapshot) throws Exception {
+		long start = System.currentTimeMillis();
+		reset();
+
+		// the root is not in the snapshot, an mtime of 0 lists it on the first rescan
+		dirs.put("", new DirState());
+
+		TocSnapshot.EntryReader reader = snapshot.openReader();
+		try {
+			TocSnapshot.Entry entry = null;
+			while ((entry = reader.next()) != null) {
+				if (entry.isDirectory) {
+					DirState state = new DirState();
+					state.lastModified = entry.lastModified;
+					state.settling = isSettling(entry.lastModified);
+					dirs.put(entry.path, state);
+					continue;
+				}
+
+				int slash = entry.path.lastIndexOf('/');
+				DirState state = dirs.get(entry.path.substring(0, slash));
+				if (state != null) {
+					state.files.add(nameHash(entry.path.substring(slash + 1)), stateHash(entry.size, entry.lastModified));
+					watched(1);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		for (DirState state : dirs.values()) {
+			state.files.sort();
+		}
+		baselined(start, "TOC snapshot " + snapshot.getFile().getAbsolutePath());
+	}
+
+	private void reset() {
+		this.dirs.clear();
+		this.pending.clear();
+		this.watchedFiles = 0;
+	}
+
+	private void baselined(long start, String from) {
+		this.baselined = true;
+		this.watchedDirs = dirs.size();
+		this.pendingChanges = 0;
+
+		logger.info("baseline() watching " + dirs.size() + " directories, " + watchedFiles + " files under " + 
+				rootDir.getAbsolutePath() + " recorded from " + from + " took " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Counts files now watched, refusing to watch more than maxFiles
+	 */
+	private void watched(long files) throws Exception {
+		watchedFiles += files;
+		if (maxFiles > 0 && watchedFiles > maxFiles) {
+			reset();
+			throw new Exception("DirectoryChangeWatcher will not watch more than " + maxFiles + 
+					" files (master.continuous.max.files): " + rootDir.getAbsolutePath());
+		}
+	}
+
+	private static long nameHash(String name) {
+		return hashFunction.hashString(name, Charsets.UTF_8).asLong();
+	}
+
+	private static long stateHash(long size, long lastModified) {
+		return hashFunction.newHasher().putLong(size).putLong(lastModified).hash().asLong();
+	}
+
+	/**
+	 * Stops generateTOC() (or stops it before it starts), nothing more is queued after
+	 * the rescan in progress (if any) sees this
+	 */
+	public void stop() {
+		this.stopped = true;
+		Thread thread = this.watchingThread;
+		if (thread != null) {
+			thread.interrupt();
+		}
+		logger.info("stop() DirectoryChangeWatcher stopped");
+	}
+
+	/**
+	 * Watches until interrupted or stop()ped, queueing changes as found. Never returns normally.
+	 */
+	public Set<TocInfo> generateTOC(Queue<TocInfo> tocQueue) throws Exception {
+		this.watchingThread = Thread.currentThread();
+		if (stopped) {
+			throw new InterruptedException("DirectoryChangeWatcher stopped before it started watching");
+		}
+
+		if (!baselined) {
+			logger.warn("generateTOC() no baseline taken before the TOC was crawled, " +
+					"changes made before now that the TOC missed will not be found");
+			baseline();
+		}
+
+		logger.info("generateTOC() watching " + rootDir.getAbsolutePath() + " rescan every " + rescanIntervalMS +
+				"ms, debounce " + debounceMS + "ms, full rescan every " + fullRescanEvery + " rescans");
+
+		while (!stopped) {
+			Thread.sleep(rescanIntervalMS);
+			try {
+				rescan(tocQueue);
+			} catch(Exception e) {
+				logger.error("generateTOC() rescan error, will try again: " + e.getMessage(),e);
+			}
+		}
+		throw new InterruptedException("DirectoryChangeWatcher stopped");
+	}
+
+	protected synchronized void rescan(Queue<TocInfo> tocQueue) throws Exception {
+		rescans++;
+		boolean full = (fullRescanEvery > 0 && rescans % fullRescanEvery == 0);
+		long start = System.currentTimeMillis();
+		int listed = 0;
+
+		for (String path : new ArrayList<String>(dirs.keySet())) {
+			if (stopped) {
+				return;
+			}
+			DirState state = dirs.get(path);
+			if (state == null) {
+				continue; // removed along w/ a parent this rescan
+			}
+
+			File dir = new File(rootDir, path);
+			long lastModified = dir.lastModified();
+			if (lastModified == 0) {
+				forgetTree(path); // gone
+				continue;
+			}
+
+			if (full || state.settling || lastModified != state.lastModified) {
+				relist(path, dir, state, lastModified, tocQueue);
+				listed++;
+			}
+		}
+
+		if (stopped) {
+			return;
+		}
+		int queued = queueDebounced(tocQueue);
+		this.watchedDirs = dirs.size();
+		this.pendingChanges = pending.size();
+
+		logger.debug("rescan() #" + rescans + (full ? " (full)" : "") + " listed " + listed + " of " + dirs.size() +
+				" dirs, queued " + queued + " changes, " + pending.size() + " pending, took " +
+				(System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Lists the dir again, anything new/changed becomes pending (or
+	 * for new dirs, queued and watched), anything gone is forgotten
+	 */
+	private void relist(String path, File dir, DirState state, long lastModified, Queue<TocInfo> tocQueue) throws Exception {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			if (!dir.isDirectory()) {
+				forgetTree(path); // replaced by a file, its parent finds that
+			}
+			return; // else unreadable, try again next rescan
+		}
+		state.lastModified = lastModified;
+		state.settling = isSettling(lastModified);
+
+		FileStates seen = new FileStates();
+		for (File child : children) {
+			if (child.getName().startsWith(".")) {
+				continue;
+			}
+			String childPath = path + "/" + child.getName();
+
+			if (child.isDirectory()) {
+				if (!dirs.containsKey(childPath)) {
+					watchTree(childPath, child, tocQueue);
+				}
+				continue;
+			}
+
+			long name = nameHash(child.getName());
+			long size = child.length();
+			long modified = child.lastModified();
+			long fileState = stateHash(size, modified);
+			seen.add(name, fileState);
+			if (!state.files.isUnchanged(name, fileState)) {
+				addPending(childPath, child, size, modified);
+			}
+		}
+		seen.sort();
+
+		// files gone (dirs gone are found when their own mtime is checked, pending ones when queued)
+		int deleted = 0;
+		for (int i=0; i<state.files.size; i++) {
+			if (seen.indexOf(state.files.names[i]) < 0) {
+				deleted++;
+			}
+		}
+		pathsDeleted.inc(deleted);
+		watchedFiles += (seen.size - state.files.size);
+		state.files = seen;
+	}
+
+	/**
+	 * Starts watching the dir and everything under it, when given a queue (i.e.
+	 * a dir new since the baseline) the dir is queued and its files made pending
+	 */
+	private void watchTree(String path, File dir, Queue<TocInfo> tocQueue) throws Exception {
+		long lastModified = dir.lastModified(); // before listing, so anything added after shows up
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+
+		DirState state = new DirState();
+		state.lastModified = lastModified;
+		state.settling = isSettling(lastModified);
+		dirs.put(path, state);
+		int files = 0;
+
+		if (tocQueue != null) {
+			TocInfo tocInfo = new TocInfo(path, 0);
+			tocInfo.setIsDirectory(true);
+			tocQueue.add(tocInfo);
+			changesQueued.inc();
+		}
+
+		for (File child : children) {
+			if (child.getName().startsWith(".")) {
+				continue;
+			}
+			String childPath = path + "/" + child.getName();
+
+			if (child.isDirectory()) {
+				watchTree(childPath, child, tocQueue);
+			} else {
+				long size = child.length();
+				long modified = child.lastModified();
+				state.files.add(nameHash(child.getName()), stateHash(size, modified));
+				files++;
+				if (tocQueue != null) {
+					addPending(childPath, child, size, modified);
+				}
+			}
+		}
+		state.files.sort();
+
+		// only enforced while baselining, new dirs later are watched regardless
+		if (tocQueue == null) {
+			watched(files);
+		} else {
+			watchedFiles += files;
+		}
+	}
+
+	private void forgetTree(String path) {
+		String prefix = path + "/";
+		for (Iterator<Map.Entry<String,DirState>> itr = dirs.entrySet().iterator(); itr.hasNext(); ) {
+			Map.Entry<String,DirState> entry = itr.next();
+			if (entry.getKey().equals(path) || entry.getKey().startsWith(prefix)) {
+				pathsDeleted.inc(entry.getValue().files.size + 1);
+				watchedFiles -= entry.getValue().files.size;
+				itr.remove();
+			}
+		}
+		for (Iterator<String> itr = pending.keySet().iterator(); itr.hasNext(); ) {
+			if (itr.next().startsWith(prefix)) {
+				itr.remove();
+			}
+		}
+	}
+
+	private void addPending(String path, File file, long size, long lastModified) {
+		PendingFile pendingFile = new PendingFile();
+		pendingFile.file = file;
+		pendingFile.size = size;
+		pendingFile.lastModified = lastModified;
+		pendingFile.unchangedSince = System.currentTimeMillis();
+		pending.put(path, pendingFile);
+	}
+
+	/**
+	 * Queues the pending files unchanged for debounceMS, returns how many
+	 */
+	private int queueDebounced(Queue<TocInfo> tocQueue) {
+		long now = System.currentTimeMillis();
+		int queued = 0;
+
+		for (Iterator<Map.Entry<String,PendingFile>> itr = pending.entrySet().iterator(); itr.hasNext(); ) {
+			Map.Entry<String,PendingFile> entry = itr.next();
+			PendingFile pendingFile = entry.getValue();
+
+			long size = pendingFile.file.length();
+			long lastModified = pendingFile.file.lastModified();
+			if (lastModified == 0 && !pendingFile.file.exists()) {
+				itr.remove(); // gone before it settled
+				continue;
+			}
+
+			// still being written?
+			if (size != pendingFile.size || lastModified != pendingFile.lastModified) {
+				pendingFile.size = size;
+				pendingFile.lastModified = lastModified;
+				pendingFile.unchangedSince = now;
+				continue;
+			}
+
+			if (now - pendingFile.unchangedSince >= debounceMS) {
+				// the mtime tells this change apart from any earlier one of the same size (see CompletionJournal)
+				TocInfo tocInfo = new TocInfo(entry.getKey(), size);
+				tocInfo.setLastModified(lastModified);
+				tocQueue.add(tocInfo);
+				changesQueued.inc();
+				queued++;
+				itr.remove();
+
+				// what we send is what we have seen
+				DirState state = dirs.get(entry.getKey().substring(0, entry.getKey().lastIndexOf('/')));
+				if (state != null) {
+					state.files.put(nameHash(pendingFile.file.getName()), stateHash(size, lastModified));
+				}
+			}
+		}
+
+		return queued;
+	}
+
+	/**
+	 * Some filesystems (and JDKs) only have second resolution mtimes and NFS
+	 * clients/servers clocks drift, a dir modified this recently could be
+	 * modified again w/o its mtime changing, so it is listed until it settles
+	 */
+	private boolean isSettling(long lastModified) {
+		return (System.currentTimeMillis() - lastModified) < mtimeSettleMS;
+	}
+
+	/**
+	 * As of the last baseline/rescan
+	 */
+	public int getWatchedDirs() {
+		return watchedDirs;
+	}
+
+	public int getPendingChanges() {
+		return pendingChanges;
+	}
+
+	public synchronized long getWatchedFiles() {
+		return watchedFiles;
+	}
+
+}
@@ -1,6 +1,9 @@
 	package org.bitsofinfo.s3.toc;
 
 import java.io.File;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Queue;
 import java.util.Set;
@@ -12,6 +15,13 @@ import org.apache.log4j.Logger;
  * Returns all unique directory and file paths, also logs every 30s
  * the current number of items collected
  * 
+ * With a TocSnapshot set the crawl is incremental: every path crawled is 
+ * recorded in the snapshot, but only those added or changed since the previous 
+ * snapshot are returned/queued, paths in the previous snapshot that are no
+ * longer found are written to the snapshot's deleted file. Children are 
+ * crawled in name order so the crawl can be merged against the previous 
+ * snapshot as it goes.
+ * 
  * @author inter0p
  *
  */
@@ -24,6 +34,22 @@ public class DirectoryCrawler implements SourceTOCGenerator, Runnable {
 	private int tocInfosGenerated = 0;
 	private long lastModifiedAtGreaterThanFilter = -1;
 	
+	// incremental crawl (optional)
+	private TocSnapshot snapshot = null;
+	private TocSnapshot.EntryReader previous = null;
+	private TocSnapshot.EntryWriter current = null;
+	private PrintWriter deleted = null;
+	private long crawled = 0;
+	private long added = 0;
+	private long changed = 0;
+	private long totalDeleted = 0;
+	
+	private static final Comparator<File> NAME_ORDER = new Comparator<File>() {
+		public int compare(File f1, File f2) {
+			return TocSnapshot.comparePaths(f1.getName(), f2.getName());
+		}
+	};
+	
 	public DirectoryCrawler() {}
 	
 	public DirectoryCrawler(File rootDir) {
@@ -43,16 +69,110 @@ public class DirectoryCrawler implements SourceTOCGenerator, Runnable {
 		Set<TocInfo> toc = new HashSet<TocInfo>();
 		loggingThread.start();
 		
-		scanNode(this.rootDir,toc,tocQueue);
+		try {
+			if (this.snapshot != null) {
+				openSnapshot();
+			}
+			
+			scanNode(this.rootDir,toc,tocQueue);
+			
+			if (this.snapshot != null) {
+				closeSnapshot(true);
+			}
+			
+		} catch(Exception e) {
+			if (this.snapshot != null) {
+				closeSnapshot(false);
+			}
+			throw e;
+			
+		} finally {
+			this.running = false; // stop logging
+		}
 		
-		this.running = false; // stop logging
 		return toc;
 	}
 	
+	private void openSnapshot() throws Exception {
+		if (this.snapshot.exists()) {
+			logger.info("generateTOC() incremental crawl against previous TOC snapshot: " + snapshot.getFile().getAbsolutePath());
+			this.previous = this.snapshot.openReader();
+		} else {
+			logger.info("generateTOC() no previous TOC snapshot: " + snapshot.getFile().getAbsolutePath() + 
+					" everything crawled will be sent");
+		}
+		this.current = this.snapshot.openPendingWriter();
+		this.deleted = new PrintWriter(snapshot.getDeletedFile(), "UTF-8");
+	}
+	
+	private void closeSnapshot(boolean complete) throws Exception {
+		try {
+			if (complete) {
+				// whatever remains of the previous snapshot is gone
+				while (previous != null && previous.peek() != null) {
+					recordDeleted(previous.next());
+				}
+			}
+		} finally {
+			if (previous != null) {
+				previous.close();
+			}
+			current.close();
+			deleted.close();
+		}
+		
+		if (!complete) {
+			snapshot.getPendingFile().delete();
+			return;
+		}
+		
+		logger.info("generateTOC() incremental crawl complete, crawled: " + crawled + " added: " + added + 
+				" changed: " + changed + " unchanged: " + (crawled - added - changed) + " deleted: " + totalDeleted + 
+				" (deleted paths: " + snapshot.getDeletedFile().getAbsolutePath() + ") this run's snapshot: " + 
+				snapshot.getPendingFile().getAbsolutePath());
+	}
+	
+	/**
+	 * Records the crawled entry in this run's snapshot, true if it was added 
+	 * or changed since the previous snapshot (or there is none)
+	 */
+	private boolean isAddedOrChanged(TocInfo tocInfo, long lastModified) throws Exception {
+		TocSnapshot.Entry entry = new TocSnapshot.Entry(tocInfo.getPath(), tocInfo.isDirectory(), tocInfo.getSize(), lastModified);
+		current.write(entry);
+		crawled++;
+		
+		if (previous == null) {
+			added++;
+			return true;
+		}
+		
+		// anything before us in the previous snapshot we did not come across
+		while (previous.peek() != null && TocSnapshot.comparePaths(previous.peek().path, entry.path) < 0) {
+			recordDeleted(previous.next());
+		}
+		
+		if (previous.peek() != null && previous.peek().path.equals(entry.path)) {
+			if (entry.isChangedFrom(previous.next())) {
+				changed++;
+				return true;
+			}
+			return false;
+		}
+		
+		added++;
+		return true;
+	}
+	
+	private void recordDeleted(TocSnapshot.Entry entry) {
+		deleted.println(entry.path);
+		totalDeleted++;
+	}
+	
 	public void run() {
 		while (running) {
 			try {
-				logger.info("Generated TOC current size: " + tocInfosGenerated);
+				logger.info("Generated TOC current size: " + tocInfosGenerated + 
+						(snapshot != null ? " (crawled: " + crawled + ")" : ""));
 				Thread.currentThread().sleep(30000);
 				
 			} catch(Exception ignore){}
@@ -70,6 +190,12 @@ public class DirectoryCrawler implements SourceTOCGenerator, Runnable {
 				// skip root dir
 				if (adjustedPath.trim().length() > 0) {
 					
+					TocInfo finfo = new TocInfo(adjustedPath, (node.isFile() ? node.length() : 0));
+					finfo.setIsDirectory(node.isDirectory());
+					
+					// incremental? everything goes in the snapshot, only the changes are sent
+					boolean send = (this.snapshot == null || isAddedOrChanged(finfo, node.lastModified()));
+					
 					if (node.isFile()) {
 						if (this.lastModifiedAtGreaterThanFilter > 0) {
 							if (node.lastModified() < this.lastModifiedAtGreaterThanFilter) {
@@ -78,16 +204,21 @@ public class DirectoryCrawler implements SourceTOCGenerator, Runnable {
 						}
 					}
 	
-					TocInfo finfo = new TocInfo(adjustedPath, (node.isFile() ? node.length() : 0));
-					finfo.setIsDirectory(node.isDirectory());
-					toc.add(finfo);
-					tocQueue.add(finfo);
-					tocInfosGenerated++; // increment for logging
+					// an unchanged dir's children are still crawled
+					if (send) {
+						toc.add(finfo);
+						tocQueue.add(finfo);
+						tocInfosGenerated++; // increment for logging
+					}
 				}
 			}
 			
 			if (node.exists() && !node.getName().startsWith(".") && node.isDirectory()) {
-				for (File n : node.listFiles()) {
+				File[] children = node.listFiles();
+				if (this.snapshot != null) {
+					Arrays.sort(children, NAME_ORDER); // path order, see TocSnapshot.comparePaths()
+				}
+				for (File n : children) {
 					scanNode(n,toc,tocQueue);
 				}
 			}
@@ -101,6 +232,10 @@ public class DirectoryCrawler implements SourceTOCGenerator, Runnable {
 		}
 	}
 
+	public void setSnapshot(TocSnapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
 	public long getLastModifiedAtGreaterThanFilter() {
 		return lastModifiedAtGreaterThanFilter;
 	}
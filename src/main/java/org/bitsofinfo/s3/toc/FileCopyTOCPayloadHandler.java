@@ -6,6 +6,10 @@ import java.io.FileWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -14,6 +18,9 @@ import org.apache.log4j.Logger;
 import org.bitsofinfo.s3.cmd.CmdResult;
 import org.bitsofinfo.s3.cmd.CommandExecutor;
 import org.bitsofinfo.s3.cmd.TocPathOpResult;
+import org.bitsofinfo.s3.metrics.Gauge;
+import org.bitsofinfo.s3.metrics.Meter;
+import org.bitsofinfo.s3.metrics.MetricsRegistry;
 import org.bitsofinfo.s3.worker.WorkerState;
 
 import com.google.gson.Gson;
@@ -52,6 +59,20 @@ public class FileCopyTOCPayloadHandler implements TOCPayloadHandler {
 	private long lastValidateLogFileFlushAt = System.currentTimeMillis();
 	private long validateLogFileFlushEveryMS = 30000;
 	
+	// post write validates are deferred to their own pool (0 threads = inline on the writing thread)
+	// so a consumer thread is not held up waiting for the file to show up in the yas3fs cache
+	private int postWriteLocalValidateThreads = 0;
+	private long postWriteLocalValidateDelayMS = 2000;
+	private long postWriteLocalValidateRecheckMS = 2000;
+	private int postWriteLocalValidateMaxChecks = 5;
+	private ScheduledThreadPoolExecutor postWriteLocalValidateExecutor = null;
+	private AtomicInteger postWriteLocalValidatesPending = new AtomicInteger(0);
+	
+	private MetricsRegistry metrics = MetricsRegistry.getInstance();
+	private Meter bytesWritten = metrics.meter("write_bytes", "Bytes of file content written by the FileCopyTOCPayloadHandler");
+	private Meter pathsWritten = metrics.meter("write_paths_ok", "Paths (files + dirs) successfully written");
+	private Meter pathsFailed = metrics.meter("write_paths_failed", "Paths that failed to write");
+	
 	public FileCopyTOCPayloadHandler() {
 		this.executor = new CommandExecutor();
 	}
@@ -59,8 +80,8 @@ public class FileCopyTOCPayloadHandler implements TOCPayloadHandler {
 	public void handlePayload(TOCPayload payload, WorkerState workerState) throws Exception {
 		
 
-		String sourceFilePath = (sourceDirectoryRootPath + payload.tocInfo.getPath()).replaceAll("//", "/");
-		String targetFilePath = (targetDirectoryRootPath + payload.tocInfo.getPath()).replaceAll("//", "/");
+		String sourceFilePath = normalizePath(sourceDirectoryRootPath, payload.tocInfo.getPath());
+		String targetFilePath = normalizePath(targetDirectoryRootPath, payload.tocInfo.getPath());
 		
 		// we need this for mkdirs..
 		String targetDirPath = null;
@@ -81,9 +102,10 @@ public class FileCopyTOCPayloadHandler implements TOCPayloadHandler {
 		mkdirCmdLine.addArgument("-p");
 		mkdirCmdLine.addArgument(targetDirPath,false);
 
-		CmdResult mkdirResult = exec(getRetries(),"mkdir",mkdirCmdLine,targetDirPath);
+		CmdResult mkdirResult = exec(workerState,getRetries(),"mkdir",mkdirCmdLine,targetDirPath);
 		commandsRun.add(mkdirResult);
 		if (mkdirResult.getExitCode() > 0) {
+			pathsFailed.mark();
 			workerState.addTocPathWriteFailure(
 					new TocPathOpResult(payload.mode, false, targetFilePath, mkdirCmdLine.toString(), gson.toJson(mkdirResult)));
 			
@@ -104,7 +126,7 @@ public class FileCopyTOCPayloadHandler implements TOCPayloadHandler {
 				rsyncCmdLine.addArgument(sourceFilePath,false);
 				rsyncCmdLine.addArgument(targetFilePath,false);
 				
-				CmdResult rsyncResult = exec(getRetries(),"rsync",rsyncCmdLine,targetFilePath);
+				CmdResult rsyncResult = exec(workerState,getRetries(),"rsync",rsyncCmdLine,targetFilePath);
 				commandsRun.add(rsyncResult);
 				
 				if (rsyncResult.getExitCode() > 0) {
@@ -112,6 +134,7 @@ public class FileCopyTOCPayloadHandler implements TOCPayloadHandler {
 					// tolerable?
 					if (!this.rsyncErrorIsTolerable(rsyncResult)) {
 						
+						pathsFailed.mark();
 						workerState.addTocPathWriteFailure(
 								new TocPathOpResult(payload.mode, false, targetFilePath, rsyncCmdLine.toString(), gson.toJson(rsyncResult)));
 						
@@ -134,10 +157,11 @@ public class FileCopyTOCPayloadHandler implements TOCPayloadHandler {
 				cpCmdLine.addArgument(sourceFilePath,false);
 				cpCmdLine.addArgument(targetFilePath,false);
 				
-				CmdResult cpResult = exec(getRetries(),"cp",cpCmdLine,targetFilePath);
+				CmdResult cpResult = exec(workerState,getRetries(),"cp",cpCmdLine,targetFilePath);
 				commandsRun.add(cpResult);
 				if (cpResult.getExitCode() > 0) {
 					
+					pathsFailed.mark();
 					workerState.addTocPathWriteFailure(
 							new TocPathOpResult(payload.mode, false, targetFilePath, cpCmdLine.toString(), gson.toJson(cpResult)));
 					
@@ -173,9 +197,10 @@ public class FileCopyTOCPayloadHandler implements TOCPayloadHandler {
 			chownCmdLine.addArgument(this.chown);
 			chownCmdLine.addArgument(targetFilePath,false);
 			
-			chownResult = exec(1,"chown",chownCmdLine,targetFilePath);
+			chownResult = exec(workerState,1,"chown",chownCmdLine,targetFilePath);
 			commandsRun.add(chownResult);
 			if (chownResult.getExitCode() > 0) {
+				pathsFailed.mark();
 				workerState.addTocPathWriteFailure(
 						new TocPathOpResult(payload.mode, false, targetFilePath, chownCmdLine.toString(), gson.toJson(chownResult)));
 				return; // exit
@@ -199,9 +224,10 @@ public class FileCopyTOCPayloadHandler implements TOCPayloadHandler {
 			chmodCmdLine.addArgument(this.chmod);
 			chmodCmdLine.addArgument(targetFilePath,false);
 			
-			chmodResult = exec(1,"chmod",chmodCmdLine,targetFilePath);
+			chmodResult = exec(workerState,1,"chmod",chmodCmdLine,targetFilePath);
 			commandsRun.add(chmodResult);
 			if (chmodResult.getExitCode() > 0) {
+				pathsFailed.mark();
 				workerState.addTocPathWriteFailure(
 						new TocPathOpResult(payload.mode, false, targetFilePath, chmodCmdLine.toString(), gson.toJson(chmodResult)));
 				return; // exit
@@ -219,6 +245,11 @@ public class FileCopyTOCPayloadHandler implements TOCPayloadHandler {
 		workerState.addTocPathWritten(
 				new TocPathOpResult(payload.mode, true, targetFilePath, "mkdir + rsync + ?chown + ?chmod", asJson));
 		
+		pathsWritten.mark();
+		if (!payload.tocInfo.isDirectory()) {
+			bytesWritten.mark(payload.tocInfo.getSize());
+		}
+		
 		
 		/**
 		 * Do a post write validate if configured
@@ -227,6 +258,13 @@ public class FileCopyTOCPayloadHandler implements TOCPayloadHandler {
 		
 	}
 	
+	/**
+	 * Joins the root dir and TOC path, collapsing any resulting double slashes
+	 */
+	public static String normalizePath(String rootPath, String tocPath) {
+		return (rootPath + tocPath).replaceAll("//", "/");
+	}
+	
 	private void doPostWriteLocalValidate(TOCPayload payload, WorkerState workerState) {
 		
 		// are we setup to do post write local validate??
@@ -240,52 +278,117 @@ public class FileCopyTOCPayloadHandler implements TOCPayloadHandler {
 				return;
 			}
 			
+			// defer it?
+			if (this.postWriteLocalValidateExecutor != null) {
+				postWriteLocalValidatesPending.incrementAndGet();
+				postWriteLocalValidateExecutor.schedule(new DeferredLocalValidate(payload, workerState), 
+														postWriteLocalValidateDelayMS, TimeUnit.MILLISECONDS);
+				return;
+			}
+			
 			// validate it
 			TocPathOpResult result = this.tocPayloadValidator.validateLocally(payload, this.postWriteLocalValidateRootDir);
+			handlePostWriteLocalValidateResult(result, workerState);
+		}
+	}
+	
+	private void handlePostWriteLocalValidateResult(TocPathOpResult result, WorkerState workerState) {
 			
-			// only log if not successful
-			if (!result.success) {
-				
-				// log it in state
-				workerState.addTocPathPostWriteLocalValidateFailure(result);
+		// only log if not successful
+		if (!result.success) {
 			
-				synchronized(this.file_postWriteLocalValidateLogFile) {
-
-					try {
-						// init writer
-						if (this.postWriteLocalValidateLogFileWriter == null) {
-							this.postWriteLocalValidateLogFileWriter = 
-									new BufferedWriter(new FileWriter(this.file_postWriteLocalValidateLogFile));
-						}
-						
-						postWriteLocalValidateLogFileWriter.write(gson.toJson(result) + "\n");
-						
-						// need to flush?
-						long now = System.currentTimeMillis();
-						if ((now - this.lastValidateLogFileFlushAt) > validateLogFileFlushEveryMS) {
-							postWriteLocalValidateLogFileWriter.flush();
-							this.lastValidateLogFileFlushAt = now;
-						}
-
-					} catch(Exception e) {
-						logger.error("doPostWriteLocalValidate() unexpected error: " + e.getMessage(),e);
+			// log it in state
+			workerState.addTocPathPostWriteLocalValidateFailure(result);
+		
+			synchronized(this.file_postWriteLocalValidateLogFile) {
+
+				try {
+					// init writer
+					if (this.postWriteLocalValidateLogFileWriter == null) {
+						this.postWriteLocalValidateLogFileWriter = 
+								new BufferedWriter(new FileWriter(this.file_postWriteLocalValidateLogFile));
+					}
+					
+					postWriteLocalValidateLogFileWriter.write(gson.toJson(result) + "\n");
+					
+					// need to flush?
+					long now = System.currentTimeMillis();
+					if ((now - this.lastValidateLogFileFlushAt) > validateLogFileFlushEveryMS) {
+						postWriteLocalValidateLogFileWriter.flush();
+						this.lastValidateLogFileFlushAt = now;
 					}
+
+				} catch(Exception e) {
+					logger.error("doPostWriteLocalValidate() unexpected error: " + e.getMessage(),e);
+				}
+			}
+			
+		}
+	}
+	
+	/**
+	 * A post write local validate on the postWriteLocalValidateExecutor, if the 
+	 * path is not yet in the cache it reschedules itself every postWriteLocalValidateRecheckMS 
+	 * (rather than sleeping on a pool thread) until postWriteLocalValidateMaxChecks
+	 */
+	private class DeferredLocalValidate implements Runnable {
+		
+		private TOCPayload payload = null;
+		private WorkerState workerState = null;
+		private int checks = 0;
+		
+		public DeferredLocalValidate(TOCPayload payload, WorkerState workerState) {
+			this.payload = payload;
+			this.workerState = workerState;
+		}
+		
+		public void run() {
+			try {
+				checks++;
+				
+				// not there yet? check again later
+				if (checks < postWriteLocalValidateMaxChecks && 
+					!new File(normalizePath(postWriteLocalValidateRootDir, payload.tocInfo.getPath())).exists()) {
+					postWriteLocalValidateExecutor.schedule(this, postWriteLocalValidateRecheckMS, TimeUnit.MILLISECONDS);
+					return;
 				}
 				
+				TocPathOpResult result = tocPayloadValidator.validateLocally(payload, postWriteLocalValidateRootDir, 1);
+				handlePostWriteLocalValidateResult(result, workerState);
+				postWriteLocalValidatesPending.decrementAndGet();
+				
+			} catch(Exception e) {
+				// i.e. rejected, the executor is shutting down
+				logger.error("DeferredLocalValidate.run() unexpected error: " + payload.tocInfo.getPath() + " " + e.getMessage(),e);
+				postWriteLocalValidatesPending.decrementAndGet();
 			}
 		}
 	}
 	
+	/**
+	 * Number of deferred post write local validates scheduled but not yet completed
+	 */
+	public int getPostWriteLocalValidatesPending() {
+		return postWriteLocalValidatesPending.get();
+	}
+	
 	public void destroy() {
+		if (this.postWriteLocalValidateExecutor != null) {
+			this.postWriteLocalValidateExecutor.shutdownNow();
+		}
+		
 		if (this.postWriteLocalValidateLogFileWriter != null) {
 			try {
 				this.postWriteLocalValidateLogFileWriter.close();
 			} catch(Exception ignore) {}
 		}
+		
+		this.executor.destroy();
 	}
 	
 	
-	private CmdResult exec(int maxAttempts, 
+	private CmdResult exec(WorkerState workerState,
+						   int maxAttempts, 
 						   String desc, 
 						   CommandLine cmd, 
 						   String retryExistancePathToCheck) {
@@ -304,7 +407,13 @@ public class FileCopyTOCPayloadHandler implements TOCPayloadHandler {
 				attempts++;
 				logger.debug("exec() attempt#: "+attempts+ " executing "+desc+": " + cmdStr);
 				
+				long execStart = System.nanoTime();
 				result = executor.execute(cmd,maxAttempts);
+				metrics.histogram("write_exec_" + desc + "_micros", "Time to execute '" + desc + "' commands (micros)").updateNanosSince(execStart);
+				
+				if (result.getTimeouts() > 0) {
+					workerState.addCommandTimeouts(result.getTimeouts(), result.getProcessesKilled());
+				}
 				
 				// if fail, let it breathe
 				if (result.getExitCode() > 0) {
@@ -342,6 +451,14 @@ public class FileCopyTOCPayloadHandler implements TOCPayloadHandler {
 		return false;
 	}
 	
+	public void setExecutor(CommandExecutor executor) {
+		this.executor = executor;
+	}
+	
+	public CommandExecutor getExecutor() {
+		return executor;
+	}
+	
 	public void setSourceDirectoryRootPath(String sourceDirectoryRootPath) {
 		this.sourceDirectoryRootPath = sourceDirectoryRootPath;
 	}
@@ -445,6 +562,44 @@ public class FileCopyTOCPayloadHandler implements TOCPayloadHandler {
 	public void setPostWriteLocalValidateSkipDirectories(boolean postWriteLocalValidateSkipDirectories) {
 		this.postWriteLocalValidateSkipDirectories = postWriteLocalValidateSkipDirectories;
 	}
+
+	/**
+	 * Size of the pool the post write local validates are deferred to, 0 = validate inline
+	 */
+	public void setPostWriteLocalValidateThreads(int postWriteLocalValidateThreads) {
+		this.postWriteLocalValidateThreads = postWriteLocalValidateThreads;
+		
+		if (postWriteLocalValidateThreads > 0 && this.postWriteLocalValidateExecutor == null) {
+			this.postWriteLocalValidateExecutor = new ScheduledThreadPoolExecutor(postWriteLocalValidateThreads, new ThreadFactory() {
+				private AtomicInteger count = new AtomicInteger(0);
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "post-write-validate-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			
+			metrics.register(new Gauge("write_post_validates_pending", "Deferred post write local validates not yet completed") {
+				public long getValue() { return postWriteLocalValidatesPending.get(); }
+			});
+		}
+	}
+
+	public int getPostWriteLocalValidateThreads() {
+		return postWriteLocalValidateThreads;
+	}
+
+	public void setPostWriteLocalValidateDelayMS(long postWriteLocalValidateDelayMS) {
+		this.postWriteLocalValidateDelayMS = postWriteLocalValidateDelayMS;
+	}
+
+	public void setPostWriteLocalValidateRecheckMS(long postWriteLocalValidateRecheckMS) {
+		this.postWriteLocalValidateRecheckMS = postWriteLocalValidateRecheckMS;
+	}
+
+	public void setPostWriteLocalValidateMaxChecks(int postWriteLocalValidateMaxChecks) {
+		this.postWriteLocalValidateMaxChecks = postWriteLocalValidateMaxChecks;
+	}
 	
 	
 }
@@ -0,0 +1,27 @@
+package org.bitsofinfo.s3.toc;
+
+import com.google.gson.Gson;
+
+/**
+ * The original (and default) encoding, i.e. {"mode":"WRITE","tocInfo":{"path":"/a/b","isDirectory":false,"size":10}}
+ * readable when debugging but ~2x (long paths) to 7x the size of the BinaryTOCPayloadCodec's
+ */
+public class JsonTOCPayloadCodec implements TOCPayloadCodec {
+
+	public static final String NAME = "json";
+	
+	private Gson gson = new Gson();
+	
+	public String getName() {
+		return NAME;
+	}
+
+	public String encode(TOCPayload payload) {
+		return gson.toJson(payload);
+	}
+
+	public TOCPayload decode(String body) {
+		return gson.fromJson(body, TOCPayload.class);
+	}
+
+}
@@ -0,0 +1,275 @@
+package org.bitsofinfo.s3.toc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads the lines of a (potentially multi-GB) manifest file, always as UTF-8.
+ *
+ * Uncompressed manifests are memory mapped and split into chunks at newline
+ * boundaries which are parsed in parallel by 'parseThreads' threads, so
+ * the LineHandler must be thread safe and line order is not preserved.
+ *
+ * Manifests ending in .gz are streamed through a GZIPInputStream, ones
+ * ending in .zst/.zstd through zstd-jni's ZstdInputStream (which must be
+ * on the classpath), compressed manifests are read on the calling thread.
+ *
+ * split() + readRange() let a manifest be divided into line aligned byte
+ * ranges that are read separately (i.e. ManifestShardGenerator)
+ */
+public class ManifestReader {
+
+	private static final Logger logger = Logger.getLogger(ManifestReader.class);
+
+	public static final int DEFAULT_PARSE_THREADS = 4;
+
+	// upper bound on a single mapped chunk (must be < 2GB)
+	private static final long MAX_CHUNK_BYTES = 256 * 1024 * 1024;
+
+	private static final String ZSTD_INPUT_STREAM_CLASS = "com.github.luben.zstd.ZstdInputStream";
+
+	public interface LineHandler {
+		public void handle(String line) throws Exception;
+	}
+
+	private File file = null;
+	private int parseThreads = DEFAULT_PARSE_THREADS;
+
+	public ManifestReader(File file) {
+		this.file = file;
+	}
+
+	public void setParseThreads(int parseThreads) {
+		if (parseThreads < 1) {
+			throw new RuntimeException("ManifestReader invalid parseThreads: " + parseThreads);
+		}
+		this.parseThreads = parseThreads;
+	}
+
+	public boolean isCompressed() {
+		String name = file.getName().toLowerCase();
+		return name.endsWith(".gz") || name.endsWith(".zst") || name.endsWith(".zstd");
+	}
+
+	/**
+	 * Hands every line (without its line terminator) to the handler,
+	 * returns the total number of lines read
+	 */
+	public long read(LineHandler handler) throws Exception {
+		if (isCompressed()) {
+			return readStream(handler);
+		}
+		return readMapped(handler);
+	}
+
+	private long readStream(LineHandler handler) throws Exception {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 256*1024);
+		try {
+			String name = file.getName().toLowerCase();
+			if (name.endsWith(".gz")) {
+				in = new GZIPInputStream(in, 256*1024);
+			} else {
+				in = newZstdInputStream(in);
+			}
+
+			logger.info("read() streaming compressed manifest: " + file.getAbsolutePath());
+
+			long lines = 0;
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"), 256*1024);
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				handler.handle(line);
+				lines++;
+			}
+			return lines;
+
+		} finally {
+			in.close();
+		}
+	}
+
+	private InputStream newZstdInputStream(InputStream in) throws Exception {
+		try {
+			return (InputStream)Class.forName(ZSTD_INPUT_STREAM_CLASS)
+									.getConstructor(InputStream.class)
+									.newInstance(in);
+		} catch(ClassNotFoundException e) {
+			throw new Exception("Cannot read zstd manifest: " + file.getAbsolutePath() +
+					", " + ZSTD_INPUT_STREAM_CLASS + " (zstd-jni) is not on the classpath", e);
+		}
+	}
+
+	private long readMapped(final LineHandler handler) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ExecutorService executor = Executors.newFixedThreadPool(parseThreads);
+		try {
+			final FileChannel channel = raf.getChannel();
+			long chunkCount = Math.max(parseThreads * 4, (raf.length() / MAX_CHUNK_BYTES) + 1);
+			List<long[]> chunks = split(raf, Math.max(1, raf.length() / chunkCount));
+
+			logger.info("read() parsing mapped manifest: " + file.getAbsolutePath() + " size: " + raf.length() +
+					" in " + chunks.size() + " chunks w/ " + parseThreads + " threads");
+
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			for (final long[] chunk : chunks) {
+				results.add(executor.submit(new Callable<Long>() {
+					public Long call() throws Exception {
+						return parseChunk(channel, chunk[0], chunk[1], handler);
+					}
+				}));
+			}
+
+			long lines = 0;
+			for (Future<Long> result : results) {
+				try {
+					lines += result.get();
+				} catch(ExecutionException e) {
+					executor.shutdownNow();
+					throw (e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+				}
+			}
+			return lines;
+
+		} finally {
+			executor.shutdownNow();
+			raf.close();
+		}
+	}
+
+	/**
+	 * Splits an uncompressed manifest into [start,end) byte ranges of
+	 * ~targetChunkBytes (at most 256MB) that each begin at the start of a line
+	 */
+	public List<long[]> split(long targetChunkBytes) throws Exception {
+		if (isCompressed()) {
+			throw new Exception("ManifestReader cannot split a compressed manifest: " + file.getAbsolutePath());
+		}
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return split(raf, Math.max(1, Math.min(targetChunkBytes, MAX_CHUNK_BYTES)));
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Reads the lines of the [start,end) byte range of an uncompressed
+	 * manifest (as returned by split()) on the calling thread
+	 */
+	public long readRange(long start, long end, LineHandler handler) throws Exception {
+		if (isCompressed()) {
+			throw new Exception("ManifestReader cannot read a range of a compressed manifest: " + file.getAbsolutePath());
+		}
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (end > raf.length()) {
+				throw new Exception("ManifestReader range " + start + "-" + end + " is beyond the end of: " + 
+						file.getAbsolutePath() + " (" + raf.length() + ")");
+			}
+			return parseChunk(raf.getChannel(), start, end, handler);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Splits the file into [start,end) chunks that each begin at the
+	 * start of a line, the last line of each chunk ends at its end
+	 */
+	private List<long[]> split(RandomAccessFile raf, long targetChunkBytes) throws Exception {
+		long size = raf.length();
+
+		List<long[]> chunks = new ArrayList<long[]>();
+		long start = 0;
+		byte[] buf = new byte[8192];
+		while (start < size) {
+			long end = Math.min(size, start + targetChunkBytes);
+
+			// move end to just past the next newline
+			boolean found = (end == size);
+			while (!found) {
+				raf.seek(end);
+				int read = raf.read(buf);
+				if (read <= 0) {
+					end = size;
+					break;
+				}
+				for (int i=0; i<read; i++) {
+					if (buf[i] == '\n') {
+						end = end + i + 1;
+						found = true;
+						break;
+					}
+				}
+				if (!found) {
+					end += read;
+				}
+			}
+
+			if (end - start > Integer.MAX_VALUE) {
+				throw new Exception("ManifestReader manifest line too long near offset " + start + " in: " + file.getAbsolutePath());
+			}
+
+			chunks.add(new long[]{start, end});
+			start = end;
+		}
+		return chunks;
+	}
+
+	private long parseChunk(FileChannel channel, long start, long end, LineHandler handler) throws Exception {
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+
+		long lines = 0;
+		byte[] line = new byte[1024];
+		int len = 0;
+		while (mapped.hasRemaining()) {
+			byte b = mapped.get();
+			if (b == '\n') {
+				handler.handle(decode(line, len));
+				lines++;
+				len = 0;
+				continue;
+			}
+			if (len == line.length) {
+				byte[] grown = new byte[line.length * 2];
+				System.arraycopy(line, 0, grown, 0, len);
+				line = grown;
+			}
+			line[len++] = b;
+		}
+
+		// last line of the file w/ no trailing newline
+		if (len > 0) {
+			handler.handle(decode(line, len));
+			lines++;
+		}
+		return lines;
+	}
+
+	private static String decode(byte[] line, int len) throws Exception {
+		if (len > 0 && line[len-1] == '\r') {
+			len--;
+		}
+		return new String(line, 0, len, "UTF-8");
+	}
+
+}
@@ -0,0 +1,26 @@
+package org.bitsofinfo.s3.toc;
+
+/**
+ * A line aligned [start,end) byte range of a manifest file that
+ * workers read and process locally (see ManifestShardGenerator)
+ */
+public class ManifestShard {
+
+	public String manifestFile = null;
+	public int index = 0;
+	public long start = 0;
+	public long end = 0;
+	
+	public ManifestShard(String manifestFile, int index, long start, long end) {
+		super();
+		this.manifestFile = manifestFile;
+		this.index = index;
+		this.start = start;
+		this.end = end;
+	}
+	
+	public String toString() {
+		return manifestFile + "#" + index + "[" + start + "-" + end + "]";
+	}
+
+}
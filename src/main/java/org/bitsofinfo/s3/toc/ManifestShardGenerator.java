@@ -0,0 +1,61 @@
+package org.bitsofinfo.s3.toc;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * For when the manifest lives on storage every worker also mounts: rather
+ * than reading the manifest and sending every path over the TOCQueue this
+ * only splits the manifest into line aligned byte range shards of ~shardBytes
+ * and generates one TocInfo per shard (see TocInfo.manifestShard). Each
+ * Worker reads the lines of the shards it receives directly and processes
+ * the entries locally (same line format as the TOCManifestBasedGenerator)
+ *
+ * Note the TOC (and its counts) is then the shards, not the paths within them.
+ */
+public class ManifestShardGenerator implements SourceTOCGenerator {
+
+	private static final Logger logger = Logger.getLogger(ManifestShardGenerator.class);
+
+	public static final long DEFAULT_SHARD_BYTES = 256 * 1024;
+
+	private File manifestFile = null;
+	private long shardBytes = DEFAULT_SHARD_BYTES;
+
+	public void setManifestFile(File manifestFile) {
+		this.manifestFile = manifestFile;
+		if (!manifestFile.exists()) {
+			throw new RuntimeException("ManifestShardGenerator invalid manifestFile: " + manifestFile.getAbsolutePath());
+		}
+	}
+
+	public void setShardBytes(long shardBytes) {
+		this.shardBytes = shardBytes;
+	}
+
+	public Set<TocInfo> generateTOC(Queue<TocInfo> tocQueue) throws Exception {
+
+		List<long[]> ranges = new ManifestReader(manifestFile).split(shardBytes);
+
+		Set<TocInfo> toc = new HashSet<TocInfo>();
+		for (int i=0; i<ranges.size(); i++) {
+			ManifestShard shard = new ManifestShard(manifestFile.getAbsolutePath(), i, ranges.get(i)[0], ranges.get(i)[1]);
+
+			TocInfo finfo = new TocInfo(shard.toString(), 0);
+			finfo.setManifestShard(shard);
+			toc.add(finfo);
+			tocQueue.add(finfo);
+		}
+
+		logger.info("generateTOC() split manifest: " + manifestFile.getAbsolutePath() + " (" + manifestFile.length() +
+				" bytes) into " + toc.size() + " shards of ~" + shardBytes + " bytes");
+
+		return toc;
+	}
+
+}
@@ -2,6 +2,9 @@ package org.bitsofinfo.s3.toc;
 
 import org.apache.log4j.Logger;
 import org.bitsofinfo.s3.cmd.TocPathOpResult;
+import org.bitsofinfo.s3.metrics.Histogram;
+import org.bitsofinfo.s3.metrics.Meter;
+import org.bitsofinfo.s3.metrics.MetricsRegistry;
 import org.bitsofinfo.s3.worker.WorkerState;
 
 import com.amazonaws.event.ProgressEvent;
@@ -20,6 +23,11 @@ public class S3KeyCopyingTOCPayloadHandler implements ProgressListener, TOCPaylo
 	private StorageClass storageClass = null;
 	private boolean enableServerSideEncryption = false;
 	private AmazonS3Client s3Client = null;
+	
+	private Histogram copyObjectLatency = MetricsRegistry.getInstance().histogram("s3_copy_object_micros", "S3 copyObject() latency (micros)");
+	private Meter bytesCopied = MetricsRegistry.getInstance().meter("s3_copy_object_bytes", "Bytes copied via S3 copyObject()");
+	private Meter keysCopied = MetricsRegistry.getInstance().meter("s3_copy_object_ok", "Keys successfully copied via S3 copyObject()");
+	private Meter keysFailed = MetricsRegistry.getInstance().meter("s3_copy_object_failed", "Keys that failed to copy via S3 copyObject()");
 
 	@Override
 	public void destroy() {
@@ -61,13 +69,18 @@ public class S3KeyCopyingTOCPayloadHandler implements ProgressListener, TOCPaylo
 				copyRequest.putCustomRequestHeader("x-amz-server-side-encryption", "AES256");
 			}
 			
+			long copyStart = System.nanoTime();
 			CopyObjectResult copyResult = s3Client.copyObject(copyRequest);
+			copyObjectLatency.updateNanosSince(copyStart);
+			keysCopied.mark();
+			bytesCopied.mark(tocInfo.getSize());
 			
 			logger.debug(logPrefix + " copied OK");
 			workerState.addTocPathWritten(new TocPathOpResult(payload.mode, true, tocInfo.path, "s3.copyKey", "OK"));
 			
 		} catch(Exception e) {
 			logger.error(logPrefix + " unexpected ERROR: " + e.getMessage(),e);
+			keysFailed.mark();
 			workerState.addTocPathWriteFailure(
 					new TocPathOpResult(payload.mode, false, tocInfo.path, "s3.copyKey", logPrefix + " " + e.getMessage()));
 		}
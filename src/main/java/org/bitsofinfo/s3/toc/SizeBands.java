@@ -0,0 +1,79 @@
+package org.bitsofinfo.s3.toc;
+
+import java.util.Properties;
+
+/**
+ * Size bands the TOC is split across, each band gets its own
+ * TOCQueue so workers can size a separate consumer pool per band
+ * (i.e. a few threads for huge files, many for small ones)
+ * 
+ * Configured via 'tocqueue.size.bands', ascending exclusive upper bounds 
+ * in bytes, i.e. "1048576,1073741824" yields 3 bands: < 1MB, < 1GB and everything else.
+ * Directories always go into band 0. The master and all workers must use
+ * the same value.
+ */
+public class SizeBands {
+	
+	private long[] upperBounds = null;
+	
+	public SizeBands(long[] upperBounds) {
+		if (upperBounds.length == 0) {
+			throw new IllegalArgumentException("at least one size band upper bound is required");
+		}
+		for (int i=1; i<upperBounds.length; i++) {
+			if (upperBounds[i] <= upperBounds[i-1]) {
+				throw new IllegalArgumentException("size band upper bounds must be ascending");
+			}
+		}
+		this.upperBounds = upperBounds;
+	}
+	
+	/**
+	 * Returns null if 'tocqueue.size.bands' is not configured
+	 */
+	public static SizeBands fromProperties(Properties props) {
+		String bands = props.getProperty("tocqueue.size.bands");
+		if (bands == null || bands.trim().length() == 0) {
+			return null;
+		}
+		
+		String[] parts = bands.split(",");
+		long[] upperBounds = new long[parts.length];
+		for (int i=0; i<parts.length; i++) {
+			upperBounds[i] = Long.valueOf(parts[i].trim());
+		}
+		return new SizeBands(upperBounds);
+	}
+	
+	/**
+	 * Queue name for the given band, the trailing '_' keeps transports that 
+	 * match queues by name from confusing i.e. band1 with band10
+	 */
+	public static String bandQueueName(String baseQueueName, int band) {
+		return baseQueueName + "_band" + band + "_";
+	}
+	
+	public int getTotalBands() {
+		return upperBounds.length + 1;
+	}
+	
+	public int bandOf(TocInfo tocInfo) {
+		if (tocInfo.isDirectory()) {
+			return 0;
+		}
+		for (int i=0; i<upperBounds.length; i++) {
+			if (tocInfo.getSize() < upperBounds[i]) {
+				return i;
+			}
+		}
+		return upperBounds.length;
+	}
+	
+	/**
+	 * i.e. "<1048576" or ">=1073741824"
+	 */
+	public String describeBand(int band) {
+		return (band < upperBounds.length ? "<" + upperBounds[band] : ">=" + upperBounds[upperBounds.length-1]);
+	}
+
+}
@@ -0,0 +1,94 @@
+package org.bitsofinfo.s3.toc;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Distributed crawl: like the DirectoryCrawler but only crawls the top
+ * 'depth' levels of the rootDir. Files and directories above that depth are
+ * generated as usual, each directory AT that depth is generated as a single
+ * crawl subtree unit (see TocInfo.isCrawlSubtree) which the Worker that
+ * receives it crawls and handles locally (splitting very large ones
+ * back onto the TOCQueue).
+ * 
+ * Note the TOC (and its counts) is then entries + subtrees, the workers
+ * report the totals they found crawling (ResultSummary.crawledEntries/Bytes)
+ */
+public class SubtreeCrawlGenerator implements SourceTOCGenerator {
+	
+	private static final Logger logger = Logger.getLogger(SubtreeCrawlGenerator.class);
+	
+	public static final int DEFAULT_DEPTH = 2;
+
+	private File rootDir = null;
+	private int depth = DEFAULT_DEPTH;
+	private int subtreesGenerated = 0;
+	
+	public void setRootDir(File rootDir) {
+		this.rootDir = rootDir;
+		if (!rootDir.exists()) {
+			throw new RuntimeException("SubtreeCrawlGenerator invalid rootDir: " + rootDir.getAbsolutePath());
+		}
+	}
+	
+	public void setDepth(int depth) {
+		if (depth < 1) {
+			throw new RuntimeException("SubtreeCrawlGenerator invalid depth: " + depth);
+		}
+		this.depth = depth;
+	}
+	
+	public Set<TocInfo> generateTOC(Queue<TocInfo> tocQueue) throws Exception {
+		Set<TocInfo> toc = new HashSet<TocInfo>();
+		
+		scanNode(this.rootDir, 0, toc, tocQueue);
+		
+		logger.info("generateTOC() crawled " + depth + " levels of: " + rootDir.getAbsolutePath() + 
+				" TOC size: " + toc.size() + " of which crawl subtrees: " + subtreesGenerated);
+		return toc;
+	}
+	
+	private void scanNode(File node, int level, Set<TocInfo> toc, Queue<TocInfo> tocQueue) throws Exception {
+		
+		if (!node.exists() || node.getName().startsWith(".")) {
+			return;
+		}
+		
+		String adjustedPath = node.getAbsolutePath().replace(this.rootDir.getAbsolutePath(), "");
+		
+		// skip root dir
+		if (level > 0) {
+			TocInfo finfo = new TocInfo(adjustedPath, (node.isFile() ? node.length() : 0));
+			finfo.setIsDirectory(node.isDirectory());
+			
+			// deep enough, the worker crawls the rest
+			if (node.isDirectory() && level == depth) {
+				finfo.setIsCrawlSubtree(true);
+				subtreesGenerated++;
+			}
+			
+			toc.add(finfo);
+			tocQueue.add(finfo);
+			
+			if (finfo.isCrawlSubtree()) {
+				return;
+			}
+		}
+		
+		if (node.isDirectory()) {
+			File[] children = node.listFiles();
+			if (children == null) {
+				throw new Exception("scanNode() cannot list (permission issue?): " + node.getAbsolutePath());
+			}
+			for (File n : children) {
+				scanNode(n, level+1, toc, tocQueue);
+			}
+		}
+	}
+
+}
@@ -1,27 +1,58 @@
 package org.bitsofinfo.s3.toc;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.log4j.Logger;
+import org.bitsofinfo.s3.metrics.Counter;
+import org.bitsofinfo.s3.metrics.Meter;
+import org.bitsofinfo.s3.metrics.MetricsRegistry;
 
 /**
  * Reads a TOC file that lists paths relative from root
  * dir and uses that to create TOCInfo objects (after determining the filesize on disk)
  *
+ * The stat calls (exists/isFile/length..) for each entry, which are the expensive part 
+ * over NFS, are fanned out to a pool of 'statThreads'. The pool's work queue is bounded,
+ * when full the parsing thread runs the stat itself, so the reader never gets further 
+ * ahead of the stats than that.
+ *
+ * The manifest is read by a ManifestReader (UTF-8, uncompressed ones are memory mapped and
+ * parsed by 'parseThreads' in parallel, .gz/.zst ones are streamed). Each line is either
+ * 
+ *   /relative/path
+ *   /relative/path[TAB]sizeInBytes
+ *
+ * when the size column is present no stat is done at all and the entry is trusted as is,
+ * a path ending in '/' is a directory.
  */
 public class TOCManifestBasedGenerator implements SourceTOCGenerator, Runnable {
 
 	private static final Logger logger = Logger.getLogger(DirectoryCrawler.class);
 
+	public static final int DEFAULT_STAT_THREADS = 16;
+
+	// pending stats per stat thread before the parser runs them itself
+	private static final int PENDING_STATS_PER_THREAD = 64;
+
 	private File rootDir = null;
 	private File manifestFile = null;
 	private boolean running = true;
-	private int tocInfosGenerated = 0;
+	private int statThreads = DEFAULT_STAT_THREADS;
+	private int parseThreads = ManifestReader.DEFAULT_PARSE_THREADS;
+	private AtomicReference<Exception> statError = new AtomicReference<Exception>();
+
+	private MetricsRegistry metrics = MetricsRegistry.getInstance();
+	private Meter stats = metrics.meter("toc_manifest_stats", "Manifest entries stat'ed on the source by the TOCManifestBasedGenerator");
+	private Counter missing = metrics.counter("toc_manifest_missing", "Manifest entries that do not exist on the source");
+	private Counter sized = metrics.counter("toc_manifest_sized", "Manifest entries that carried their size (no stat needed)");
 	
 	public TOCManifestBasedGenerator() {}
 	
@@ -43,46 +74,145 @@ public class TOCManifestBasedGenerator implements SourceTOCGenerator, Runnable {
 		}
 	}
 	
-	public Set<TocInfo> generateTOC(Queue<TocInfo> tocQueue) throws Exception {
+	public void setStatThreads(int statThreads) {
+		if (statThreads < 1) {
+			throw new RuntimeException("TOCManifestBasedGenerator invalid statThreads: " + statThreads);
+		}
+		this.statThreads = statThreads;
+	}
+	
+	public void setParseThreads(int parseThreads) {
+		this.parseThreads = parseThreads;
+	}
+
+	public Set<TocInfo> generateTOC(final Queue<TocInfo> tocQueue) throws Exception {
 		Thread loggingThread = new Thread(this);
 		
-		Set<TocInfo> toc = new HashSet<TocInfo>();
+		final Set<TocInfo> toc = Collections.synchronizedSet(new HashSet<TocInfo>());
 		loggingThread.start();
 		
-		BufferedReader reader = new BufferedReader(new FileReader(manifestFile));
-		String line = null;
-		while ((line = reader.readLine()) != null) {
+		final ThreadPoolExecutor statExecutor = new ThreadPoolExecutor(statThreads, statThreads,
+															0L, TimeUnit.MILLISECONDS,
+															new ArrayBlockingQueue<Runnable>(statThreads * PENDING_STATS_PER_THREAD),
+															new ThreadPoolExecutor.CallerRunsPolicy());
 			
-			if (line.trim().isEmpty()) {
-				continue;
+		ManifestReader reader = new ManifestReader(manifestFile);
+		reader.setParseThreads(parseThreads);
+		try {
+			long lines = reader.read(new ManifestReader.LineHandler() {
+				public void handle(final String line) throws Exception {
+					
+					if (line.trim().isEmpty()) {
+						return;
+					}
+					
+					// a stat thread failed, stop reading
+					if (statError.get() != null) {
+						throw statError.get();
+					}
+					
+					// size column present? no stat required
+					if (hasSizeColumn(line)) {
+						add(toTocInfo(line), toc, tocQueue);
+						return;
+					}
+					
+					statExecutor.execute(new Runnable() {
+						public void run() {
+							try {
+								add(toTocInfo(line), toc, tocQueue);
+							} catch(Exception e) {
+								logger.error("generateTOC() error stat'ing manifest entry: " + line + " " + e.getMessage(),e);
+								statError.compareAndSet(null, e);
+							}
+						}
+					});
+				}
+			});
+			
+			logger.debug("generateTOC() read " + lines + " lines from manifest: " + manifestFile.getAbsolutePath());
+
+		} finally {
+			// let the in-flight stats finish
+			statExecutor.shutdown();
+			while (!statExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+				logger.debug("generateTOC() waiting for " + statExecutor.getQueue().size() + " pending stats...");
 			}
 			
-			File tocEntry = new File(rootDir.getAbsolutePath() + line.trim());
+			this.running = false; // stop logging
+		}
+			
+		if (statError.get() != null) {
+			throw statError.get();
+		}
+		
+		logger.info("generateTOC() complete, TOC size: " + toc.size() + " sized: " + sized.getCount() + " stats: " + stats.getCount() +
+				" missing: " + missing.getCount() + " stats/sec: " + String.format("%.1f", stats.getMeanRate()));
+
+		return toc;
+	}
+
+	private void add(TocInfo finfo, Set<TocInfo> toc, Queue<TocInfo> tocQueue) {
+		if (finfo != null) {
+			toc.add(finfo);
+			tocQueue.add(finfo);
+		}
+	}
+	
+	public static boolean hasSizeColumn(String line) {
+		return line.trim().lastIndexOf('\t') > 0;
+	}
+
+	/**
+	 * Converts a manifest line to a TocInfo relative to the rootDir, stat'ing 
+	 * the source unless the line carries its size. Returns null for blank
+	 * lines and entries that do not exist
+	 */
+	public TocInfo toTocInfo(String line) {
+		line = line.trim();
+		if (line.isEmpty()) {
+			return null;
+		}
+		
+		// /relative/path[TAB]size, trusted as is
+		int tab = line.lastIndexOf('\t');
+		if (tab > 0) {
+			String path = line.substring(0,tab).trim();
+			boolean isDirectory = path.endsWith("/");
 			
+			// same normalization as a stat'ed entry gets
+			String adjustedPath = new File(rootDir.getAbsolutePath() + path).getAbsolutePath().replace(this.rootDir.getAbsolutePath(), "");
+			TocInfo finfo = new TocInfo(adjustedPath, (isDirectory ? 0 : Long.valueOf(line.substring(tab+1).trim())));
+			finfo.setIsDirectory(isDirectory);
+			sized.inc();
+			return finfo;
+		}
+		
+		File tocEntry = new File(rootDir.getAbsolutePath() + line);
+		try {
 			if (tocEntry.exists()) {
 				
 				String adjustedPath = tocEntry.getAbsolutePath().replace(this.rootDir.getAbsolutePath(), "");
 				TocInfo finfo = new TocInfo(adjustedPath, (tocEntry.isFile() ? tocEntry.length() : 0));
 				finfo.setIsDirectory(tocEntry.isDirectory());
-				toc.add(finfo);
-				tocQueue.add(finfo);
-				tocInfosGenerated++; // increment for logging
+				return finfo;
 				
 			} else {
+				missing.inc();
 				logger.warn("generateTOC() file referenced in manifest file: " + tocEntry.getAbsolutePath() + " does not exist!");
+				return null;
 			}
+		} finally {
+			stats.mark();
 		}
-
-		reader.close();
-		
-		this.running = false; // stop logging
-		return toc;
 	}
 	
 	public void run() {
 		while (running) {
 			try {
-				logger.info("Generated TOC current size: " + tocInfosGenerated);
+				logger.info("Generated TOC current sized: " + sized.getCount() + " stats: " + stats.getCount() +
+						" missing: " + missing.getCount() +
+						" stats/sec (1m): " + String.format("%.1f", stats.getOneMinuteRate()));
 				Thread.currentThread().sleep(30000);
 				
 			} catch(Exception ignore){}
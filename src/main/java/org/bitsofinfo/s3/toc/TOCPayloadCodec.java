@@ -0,0 +1,18 @@
+package org.bitsofinfo.s3.toc;
+
+/**
+ * Converts TOCPayloads to/from the message bodies sent over the TOCQueue
+ * (or leased by the LeaseWorkServer). Bodies must be plain text safe for SQS.
+ * 
+ * Consumers decode w/ TOCPayloadCodecs.decode() which detects the codec 
+ * from the body, so only the sender needs to be configured.
+ */
+public interface TOCPayloadCodec {
+
+	public String getName();
+	
+	public String encode(TOCPayload payload) throws Exception;
+	
+	public TOCPayload decode(String body) throws Exception;
+	
+}
@@ -0,0 +1,48 @@
+package org.bitsofinfo.s3.toc;
+
+import java.util.Properties;
+
+/**
+ * Codec lookup, and decoding of TOCQueue message bodies regardless of the 
+ * codec the master encoded them with
+ */
+public class TOCPayloadCodecs {
+
+	private static final TOCPayloadCodec JSON = new JsonTOCPayloadCodec();
+	private static final TOCPayloadCodec BINARY = new BinaryTOCPayloadCodec();
+	
+	/**
+	 * 'json' or 'binary', the ones decode() can tell apart
+	 */
+	public static TOCPayloadCodec forName(String name) throws Exception {
+		if (name == null || name.trim().length() == 0 || JsonTOCPayloadCodec.NAME.equalsIgnoreCase(name.trim())) {
+			return JSON;
+		}
+		if (BinaryTOCPayloadCodec.NAME.equalsIgnoreCase(name.trim())) {
+			return BINARY;
+		}
+		throw new Exception("TOCPayloadCodecs unknown codec: " + name + " expected: " + 
+				JsonTOCPayloadCodec.NAME + " or " + BinaryTOCPayloadCodec.NAME);
+	}
+	
+	/**
+	 * The codec the master encodes w/, per 'tocqueue.payload.codec' (default json)
+	 */
+	public static TOCPayloadCodec fromProperties(Properties props) throws Exception {
+		return forName(props.getProperty("tocqueue.payload.codec"));
+	}
+	
+	/**
+	 * JSON bodies start w/ '{', anything else is taken as binary
+	 */
+	public static TOCPayload decode(String body) throws Exception {
+		for (int i=0; i<body.length(); i++) {
+			char c = body.charAt(i);
+			if (!Character.isWhitespace(c)) {
+				return (c == '{' ? JSON.decode(body) : BINARY.decode(body));
+			}
+		}
+		throw new Exception("TOCPayloadCodecs cannot decode empty body");
+	}
+	
+}
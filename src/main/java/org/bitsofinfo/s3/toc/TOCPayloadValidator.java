@@ -4,6 +4,9 @@ import java.io.File;
 
 import org.apache.log4j.Logger;
 import org.bitsofinfo.s3.cmd.TocPathOpResult;
+import org.bitsofinfo.s3.metrics.Counter;
+import org.bitsofinfo.s3.metrics.Histogram;
+import org.bitsofinfo.s3.metrics.MetricsRegistry;
 
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
@@ -16,6 +19,12 @@ public class TOCPayloadValidator {
 	private AmazonS3Client s3Client = null;
 	private String s3BucketName = null;
 	
+	private Histogram localCheckLatency = MetricsRegistry.getInstance().histogram("validate_local_check_micros", "Local filesystem validation check latency (micros)");
+	private Histogram s3CheckLatency = MetricsRegistry.getInstance().histogram("s3_get_object_metadata_micros", "S3 getObjectMetadata() latency for validation checks (micros)");
+	private Counter localCheckFailures = MetricsRegistry.getInstance().counter("validate_local_check_failures", "Local filesystem validation checks that failed");
+	private Counter s3CheckFailures = MetricsRegistry.getInstance().counter("validate_s3_check_failures", "S3 validation checks that failed (incl 404s)");
+	private Counter s3Check404s = MetricsRegistry.getInstance().counter("validate_s3_check_404s", "S3 validation checks that returned 404");
+	
 	private static String toc2Key(String tocPath, boolean isDir) {
 		
 		String key = tocPath;
@@ -41,6 +50,24 @@ public class TOCPayloadValidator {
 	 * @return
 	 */
 	public TocPathOpResult validateLocally(TOCPayload payload, String rootDirPath) {
+		return validateLocally(payload, rootDirPath, 5);
+	}
+	
+	/**
+	 * Validates the file locally on disk, checking for it to exist up to 
+	 * maxAttempts times 2s apart (1 = check once w/o waiting)
+	 */
+	public TocPathOpResult validateLocally(TOCPayload payload, String rootDirPath, int maxAttempts) {
+		long start = System.nanoTime();
+		TocPathOpResult result = doValidateLocally(payload, rootDirPath, maxAttempts);
+		localCheckLatency.updateNanosSince(start);
+		if (!result.success) {
+			localCheckFailures.inc();
+		}
+		return result;
+	}
+	
+	private TocPathOpResult doValidateLocally(TOCPayload payload, String rootDirPath, int maxAttempts) {
 		
 		String targetPath = null;
 		
@@ -55,7 +82,6 @@ public class TOCPayloadValidator {
 			
 			// does it exist?
 			int attempts = 0; 
-			int maxAttempts = 5;
 			while(attempts < maxAttempts) {
 				attempts++;
 				
@@ -64,7 +90,9 @@ public class TOCPayloadValidator {
 					break;
 				} 
 				
-				Thread.currentThread().sleep(2000);
+				if (attempts < maxAttempts) {
+					Thread.currentThread().sleep(2000);
+				}
 			}
 		
 			if (!exists) {
@@ -104,6 +132,16 @@ public class TOCPayloadValidator {
 	}
 	
 	public TocPathOpResult validateOnS3(TOCPayload payload) {
+		long start = System.nanoTime();
+		TocPathOpResult result = doValidateOnS3(payload);
+		s3CheckLatency.updateNanosSince(start);
+		if (!result.success) {
+			s3CheckFailures.inc();
+		}
+		return result;
+	}
+	
+	private TocPathOpResult doValidateOnS3(TOCPayload payload) {
 		
 		if (s3Client == null || s3BucketName == null) {
 			throw new RuntimeException("Cannot validateOnS3(), TOCPayloadValidator is not configured w/ s3Client or bucket name");
@@ -135,6 +173,7 @@ public class TOCPayloadValidator {
 			if (e.getStatusCode() == 404) {
 				
 				logger.error("validateOnS3() " + payload.tocInfo.getPath() + " s3check returned 404");
+				s3Check404s.inc();
 				
 				return new TocPathOpResult(payload.mode, false, payload.tocInfo.getPath(),
 						"s3.check.404", "key not found 404 at " + this.getS3BucketName());
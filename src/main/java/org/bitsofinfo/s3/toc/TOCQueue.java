@@ -2,36 +2,37 @@ package org.bitsofinfo.s3.toc;
 
 import java.net.InetAddress;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
+import org.bitsofinfo.s3.metrics.Counter;
+import org.bitsofinfo.s3.metrics.Histogram;
+import org.bitsofinfo.s3.metrics.Meter;
+import org.bitsofinfo.s3.metrics.MetricsRegistry;
 import org.bitsofinfo.s3.toc.TOCPayload.MODE;
+import org.bitsofinfo.s3.transport.SqsSnsTransport;
+import org.bitsofinfo.s3.transport.Transport;
+import org.bitsofinfo.s3.transport.TransportMessage;
 
 import com.amazonaws.AmazonClientException;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.sqs.AmazonSQSClient;
-import com.amazonaws.services.sqs.model.CreateQueueResult;
-import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
-import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
-import com.amazonaws.services.sqs.model.ListQueuesResult;
-import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
-import com.amazonaws.services.sqs.model.ReceiveMessageResult;
-import com.google.gson.Gson;
 
 public class TOCQueue implements Runnable {
 	
 	private static final Logger logger = Logger.getLogger(TOCQueue.class);
 	
-	private AmazonSQSClient sqsClient = null;
+	// 30 minutes a received message is invisible to other consumers, extended while still being handled
+	private static final int VISIBILITY_TIMEOUT_SECONDS = 600*3;
+	
+	private Transport transport = null;
 	private String tocQueueUrl = null;
 	
 	private Thread consumerThread = null;
+	private Thread visibilityExtenderThread = null;
 	
-	private Gson gson = new Gson();
+	// how we encode what we send(), what we receive is decoded w/ whatever codec it was sent w/
+	private TOCPayloadCodec codec = new JsonTOCPayloadCodec();
 	
 	private TOCPayloadHandler tocPayloadHandler = null;
 	private String mySourceIdentifier = null;
@@ -46,10 +47,47 @@ public class TOCQueue implements Runnable {
 	private int totalMessageRequestsMade = 0;
 	private boolean currentlyProcessingMessage = false;
 	
+	// the message being handled right now, kept invisible by the VisibilityExtender
+	private volatile TransportMessage inProgressMsg = null;
+	private volatile String inProgressQueueUrl = null;
+	private volatile long inProgressVisibleUntil = 0;
+	
+	// other queues (i.e. other size bands) to take work from once ours runs dry
+	private List<String> stealFromQueueUrls = new ArrayList<String>();
+	private int stealAfterEmptyReceives = 0;
+	private int consecutiveEmptyReceives = 0;
+	private int totalMessagesStolen = 0;
+	
+	// shared by all TOCQueue instances in this process
+	private Histogram receiveLatency = MetricsRegistry.getInstance().histogram("tocqueue_receive_micros", "TOCQueue transport receive() latency (micros)");
+	private Histogram ackLatency = MetricsRegistry.getInstance().histogram("tocqueue_ack_micros", "TOCQueue transport ack() latency (micros)");
+	private Histogram sendLatency = MetricsRegistry.getInstance().histogram("tocqueue_send_micros", "TOCQueue transport send() latency (micros)");
+	private Histogram handleLatency = MetricsRegistry.getInstance().histogram("tocqueue_handle_micros", "TOCPayloadHandler execution time per message (micros)");
+	private Meter messagesReceived = MetricsRegistry.getInstance().meter("tocqueue_messages_received", "TOCQueue messages received");
+	private Meter messagesSent = MetricsRegistry.getInstance().meter("tocqueue_messages_sent", "TOCQueue messages sent");
+	private Counter emptyReceives = MetricsRegistry.getInstance().counter("tocqueue_empty_receives", "TOCQueue receive() calls that returned nothing");
+	private Counter payloadErrors = MetricsRegistry.getInstance().counter("tocqueue_payload_errors", "TOCQueue messages that could not be converted to a TOCPayload");
+	private Counter handleErrors = MetricsRegistry.getInstance().counter("tocqueue_handle_errors", "TOCQueue receive/handle/ack unexpected errors");
+	private Counter messagesStolen = MetricsRegistry.getInstance().counter("tocqueue_messages_stolen", "TOCQueue messages taken from another size band's queue");
+	private Counter visibilityExtensions = MetricsRegistry.getInstance().counter("tocqueue_visibility_extensions", "TOCQueue messages kept invisible longer as their handling was still in progress");
+	
 	public TOCQueue(boolean isConsumer, String awsAccessKey, String awsSecretKey, String sqsQueueName, TOCPayloadHandler tocPayloadHandler) throws Exception {
+		this(isConsumer, new SqsSnsTransport(awsAccessKey, awsSecretKey), sqsQueueName, tocPayloadHandler);
+	}
+	
+	public TOCQueue(boolean isConsumer, Transport transport, String sqsQueueName, TOCPayloadHandler tocPayloadHandler) throws Exception {
+		this(isConsumer, transport, sqsQueueName, tocPayloadHandler, null);
+	}
+	
+	/**
+	 * @param sourceIdentifier if non-null, used in place of a newly generated one, so a 
+	 * 			restarted master re-attaches to the queue it created before (see getMySourceIdentifier())
+	 */
+	public TOCQueue(boolean isConsumer, Transport transport, String sqsQueueName, TOCPayloadHandler tocPayloadHandler, String sourceIdentifier) throws Exception {
 		super();
 
-		mySourceIdentifier = determineHostName() + "-" + UUID.randomUUID().toString().replace("-", "").substring(0,4);
+		mySourceIdentifier = (sourceIdentifier != null ? sourceIdentifier : 
+								determineHostName() + "-" + UUID.randomUUID().toString().replace("-", "").substring(0,4));
 		this.sqsQueueName = sqsQueueName;
 		this.tocPayloadHandler = tocPayloadHandler;
 		
@@ -58,18 +96,18 @@ public class TOCQueue implements Runnable {
 			this.sqsQueueName += "-" + mySourceIdentifier;
 		}
 		
-
-		sqsClient = new AmazonSQSClient(new BasicAWSCredentials(awsAccessKey, awsSecretKey));
-
+		this.transport = transport;
 		
 		connectToQueue(isConsumer, 1000);
 		
 		if (isConsumer) {
 			this.consumerThread = new Thread(this,"TOCQueue["+myId+"] msg consumer thread");
+			this.visibilityExtenderThread = new Thread(new VisibilityExtender(),"TOCQueue["+myId+"] visibility extender thread");
+			this.visibilityExtenderThread.setDaemon(true);
 		}
 		
 		logger.info("\n-------------------------------------------\n" +
-					"TOC Queue["+myId+"]: ALL SQS resources hooked up OK: "+this.tocQueueUrl+"\n" +
+					"TOC Queue["+myId+"]: ALL transport resources hooked up OK: "+this.tocQueueUrl+"\n" +
 					"-------------------------------------------\n");
 	}
 	
@@ -79,6 +117,7 @@ public class TOCQueue implements Runnable {
 	
 	public void start() {
 		this.consumerThread.start();
+		this.visibilityExtenderThread.start();
 		this.paused = false;
 	}
 	
@@ -96,6 +135,16 @@ public class TOCQueue implements Runnable {
 		return this.paused;
 	}
 	
+	/**
+	 * Once our own queue has returned nothing 'afterEmptyReceives' times in a row
+	 * (i.e. the tail end of a phase) each further poll will also try these queues, 
+	 * in order. 0 disables stealing.
+	 */
+	public void setStealFrom(List<String> queueUrls, int afterEmptyReceives) {
+		this.stealFromQueueUrls = queueUrls;
+		this.stealAfterEmptyReceives = afterEmptyReceives;
+	}
+	
 	/**
 	 * Note here we attempt to the TOCQueue which may take some time to be shown as available
 	 * @param isConsumer
@@ -103,36 +152,11 @@ public class TOCQueue implements Runnable {
 	 * @throws Exception
 	 */
 	public void connectToQueue(boolean isConsumer, int maxAttempts) throws Exception{
-		
-		for (int i=0; i<maxAttempts; i++) {
-			
-			logger.debug("connectToQueue() attempt: " + (i+1));
-			
-			ListQueuesResult queuesResult = sqsClient.listQueues();
-			if (queuesResult != null) {
-				for (String queueUrl : queuesResult.getQueueUrls()) {
-					if (queueUrl.indexOf(sqsQueueName) != -1) {
-						tocQueueUrl = queueUrl;
-						break;
-					}
-				}
-			}
-			
-			// if consumer, retry, otherwise is master, so just exit quick to create...
-			if (tocQueueUrl == null && isConsumer) {
-				Thread.currentThread().sleep(1000);
-				continue;
-			} else {
-				break; // exit;
-			}
-		}
-		
-		if (tocQueueUrl == null && !isConsumer) {
-			CreateQueueResult createQueueResult = sqsClient.createQueue(sqsQueueName);
-			this.tocQueueUrl = createQueueResult.getQueueUrl();
-			
-		} else if (tocQueueUrl == null) {
-			throw new Exception("TOCQueue() isConsumer:"+ isConsumer+ " cannot start, sqsQueueName has yet to be created by master?: " + sqsQueueName);
+		try {
+			// only the master (non-consumer) can create the queue
+			this.tocQueueUrl = transport.connectToQueue(sqsQueueName, !isConsumer, maxAttempts);
+		} catch(Exception e) {
+			throw new Exception("TOCQueue() isConsumer:"+ isConsumer+ " cannot start, sqsQueueName has yet to be created by master?: " + sqsQueueName, e);
 		}
 	}
 	
@@ -142,7 +166,7 @@ public class TOCQueue implements Runnable {
 		payload.mode = mode;
 		
 		// send!
-		this.sqsClient.sendMessage(this.tocQueueUrl, gson.toJson(payload));
+		sendMessage(codec.encode(payload));
 	}
 	
 	public int emptyTOCQueue() {
@@ -152,31 +176,16 @@ public class TOCQueue implements Runnable {
 			int totalRemoved = 0;
 			
 			// to empty it we will just consume all the messages
-			ReceiveMessageRequest req = new ReceiveMessageRequest();
-			req.setQueueUrl(this.tocQueueUrl);
-			req.setVisibilityTimeout(900); // 15 minutes it will be invisible to other consumers
-			req.setMaxNumberOfMessages(10);
-			
-			ReceiveMessageResult msgResult = sqsClient.receiveMessage(req);
-			List<Message> messages = msgResult.getMessages();
+			// 15 minutes it will be invisible to other consumers
+			List<TransportMessage> messages = transport.receive(this.tocQueueUrl, 10, 0, 900);
 			
-			DeleteMessageBatchRequest deleteRequest = new DeleteMessageBatchRequest();
-			deleteRequest.setQueueUrl(tocQueueUrl);
-			Collection<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
-			for (Message msg : messages) {
-				entries.add(new DeleteMessageBatchRequestEntry()
-									.withId(msg.getReceiptHandle())
-									.withReceiptHandle(msg.getReceiptHandle()));
-			}
-
-			if (entries.size() > 0) {
+			if (messages.size() > 0) {
 				// delete batch
-				deleteRequest.setEntries(entries);
-				sqsClient.deleteMessageBatch(deleteRequest);
+				transport.ackBatch(this.tocQueueUrl, messages);
 			}
 			
 			// if ok inc, total removed
-			totalRemoved += entries.size();
+			totalRemoved += messages.size();
 			
 			logger.trace("emptyTOCQueue() purging completed!");
 			return totalRemoved;
@@ -201,38 +210,59 @@ public class TOCQueue implements Runnable {
 				try {
 					this.totalMessageRequestsMade++;
 					
-					ReceiveMessageRequest req = new ReceiveMessageRequest();
-					req.setWaitTimeSeconds(10);
-					req.setQueueUrl(this.tocQueueUrl);
-					
 					// 30 minutes it will be invisible to other consumers
 					// this should be enought time for the tocPayloadHandler to
-					// complete and then we delete the message
-					req.setVisibilityTimeout(600*3); 
-					req.setMaxNumberOfMessages(1); // only one at a time..
+					// complete and then we delete the message, if not (i.e. a 
+					// manifest shard) the VisibilityExtender keeps it invisible
+					// only one at a time..
+					long receiveStart = System.nanoTime();
+					List<TransportMessage> messages = transport.receive(this.tocQueueUrl, 1, 10, VISIBILITY_TIMEOUT_SECONDS);
+					receiveLatency.updateNanosSince(receiveStart);
+					String receivedFromUrl = this.tocQueueUrl;
 					
-					ReceiveMessageResult msgResult = sqsClient.receiveMessage(req);
-					List<Message> messages = msgResult.getMessages();
+					if (messages.size() == 0) {
+						emptyReceives.inc();
+						this.consecutiveEmptyReceives++;
+						
+						// our queue is dry, help out on the others
+						if (this.stealAfterEmptyReceives > 0 && this.consecutiveEmptyReceives >= this.stealAfterEmptyReceives) {
+							for (String stealFromUrl : this.stealFromQueueUrls) {
+								messages = transport.receive(stealFromUrl, 1, 0, VISIBILITY_TIMEOUT_SECONDS);
+								if (messages.size() > 0) {
+									receivedFromUrl = stealFromUrl;
+									this.totalMessagesStolen += messages.size();
+									this.messagesStolen.inc(messages.size());
+									logger.debug("TOCQueue["+myId+"] stole " + messages.size() + " message(s) from: " + stealFromUrl);
+									break;
+								}
+							}
+						}
+						
+					} else {
+						this.consecutiveEmptyReceives = 0;
+					}
 	
-					for (Message msg : messages) {
+					for (TransportMessage msg : messages) {
 						
 						this.currentlyProcessingMessage = true;
 						this.lastSQSMessageReceivedMS = System.currentTimeMillis();
 						this.totalMessagesProcessed++;
+						this.messagesReceived.mark();
 						
 						logger.debug("TOCQueue["+myId+"] Received SQS Message " +
-								"body (json -> TOCPayload) body= " + msg.getBody());
+								"body (-> TOCPayload) body= " + msg.getBody());
 						TOCPayload payload = null;
 	
 						try {
-							payload = gson.fromJson(msg.getBody(), TOCPayload.class);
+							payload = TOCPayloadCodecs.decode(msg.getBody());
 						
 						} catch(Exception e) {
 							logger.error("TOCQueue["+myId+"] ERROR: unexpected error converting SQS Message " +
-									"body (json -> TOCPayload) body= " + msg.getBody()+ " error="+e.getMessage());
+									"body (-> TOCPayload) body= " + msg.getBody()+ " error="+e.getMessage());
+							payloadErrors.inc();
 							
 							// delete the message we just analyzed
-							sqsClient.deleteMessage(tocQueueUrl, msg.getReceiptHandle());
+							ack(receivedFromUrl, msg);
 							
 							continue;
 						}
@@ -240,10 +270,19 @@ public class TOCQueue implements Runnable {
 						logger.debug("TOCQueue["+myId+"] TOCPayload received: filePath:" + payload.tocInfo.getPath());
 	
 						// handle
-						this.tocPayloadHandler.handlePayload(payload);
+						long handleStart = System.nanoTime();
+						this.inProgressVisibleUntil = System.currentTimeMillis() + (VISIBILITY_TIMEOUT_SECONDS * 1000L);
+						this.inProgressQueueUrl = receivedFromUrl;
+						this.inProgressMsg = msg;
+						try {
+							this.tocPayloadHandler.handlePayload(payload);
+						} finally {
+							this.inProgressMsg = null;
+						}
+						handleLatency.updateNanosSince(handleStart);
 						
 						// delete the message, got here no exception
-						sqsClient.deleteMessage(tocQueueUrl, msg.getReceiptHandle());
+						ack(receivedFromUrl, msg);
 						
 						// set to false, we are done processing message
 						this.currentlyProcessingMessage = false;
@@ -252,6 +291,7 @@ public class TOCQueue implements Runnable {
 	
 				} catch(Exception e) {
 					logger.error("TOCQueue["+myId+"] run() unexpected error in handling TOCPayload: " + e.getMessage(),e);
+					handleErrors.inc();
 					
 					// set to false, we are done processing message
 					this.currentlyProcessingMessage = false;
@@ -265,29 +305,71 @@ public class TOCQueue implements Runnable {
 		}
 	}
 
+	/**
+	 * Once the message being handled is half way to becoming visible again,
+	 * makes it invisible for another VISIBILITY_TIMEOUT_SECONDS
+	 */
+	private class VisibilityExtender implements Runnable {
+		public void run() {
+			while(running) {
+				try {
+					Thread.currentThread().sleep(60000);
+					
+					TransportMessage msg = inProgressMsg;
+					String queueUrl = inProgressQueueUrl;
+					long now = System.currentTimeMillis();
+					if (msg == null || (inProgressVisibleUntil - now) > (VISIBILITY_TIMEOUT_SECONDS * 500L)) {
+						continue;
+					}
+					
+					transport.extendVisibility(queueUrl, msg, VISIBILITY_TIMEOUT_SECONDS);
+					inProgressVisibleUntil = now + (VISIBILITY_TIMEOUT_SECONDS * 1000L);
+					visibilityExtensions.inc();
+					logger.debug("TOCQueue["+myId+"] extended visibility of message still being handled: " + msg.getId());
+					
+				} catch(InterruptedException e) {
+					return;
+				} catch(Exception e) {
+					logger.warn("TOCQueue["+myId+"] VisibilityExtender could not extend visibility, " +
+							"the message may be re-delivered: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void ack(String queueUrl, TransportMessage msg) throws Exception {
+		long ackStart = System.nanoTime();
+		transport.ack(queueUrl, msg);
+		ackLatency.updateNanosSince(ackStart);
+	}
+
 	public void stopConsuming() {
 		this.running = false;
 	}
 	
 	public void destroy() throws Exception {
+		destroy(30000);
+	}
+	
+	public void destroy(long waitMS) throws Exception {
 
-		Thread.currentThread().sleep(30000);
+		Thread.currentThread().sleep(waitMS);
 		
 		try {
 			if (canDestroyQueue) {
 				logger.debug("TOCQueue["+myId+"] destroy() " + this.tocQueueUrl);
-				this.sqsClient.deleteQueue(this.tocQueueUrl);
+				this.transport.deleteQueue(this.tocQueueUrl);
 			}
 		} catch(Exception e) {
 			logger.error("TOCQueue["+myId+"] destroy() error deleting TOCQueue: " + e.getMessage(),e);
 		}
 	}
 	
-	public AmazonSQSClient getSqsClient() {
-		return sqsClient;
+	public Transport getTransport() {
+		return transport;
 	}
-	public void setSqsClient(AmazonSQSClient sqsClient) {
-		this.sqsClient = sqsClient;
+	public String getMySourceIdentifier() {
+		return mySourceIdentifier;
 	}
 	public String getTocQueueUrl() {
 		return tocQueueUrl;
@@ -295,9 +377,18 @@ public class TOCQueue implements Runnable {
 	public void setTocQueueUrl(String tocQueueUrl) {
 		this.tocQueueUrl = tocQueueUrl;
 	}
+	public TOCPayloadCodec getCodec() {
+		return codec;
+	}
+	public void setCodec(TOCPayloadCodec codec) {
+		this.codec = codec;
+	}
 	
-	public void sendMessage(String messageBody) {
-		this.sqsClient.sendMessage(this.tocQueueUrl, messageBody);
+	public void sendMessage(String messageBody) throws Exception {
+		long sendStart = System.nanoTime();
+		this.transport.send(this.tocQueueUrl, messageBody);
+		sendLatency.updateNanosSince(sendStart);
+		messagesSent.mark();
 	}
 	
 	private static String determineHostName() throws Exception {
@@ -332,6 +423,10 @@ public class TOCQueue implements Runnable {
 	public int getTotalMessageRequestsMade() {
 		return this.totalMessageRequestsMade;
 	}
+	
+	public int getTotalMessagesStolen() {
+		return this.totalMessagesStolen;
+	}
 
 }
 
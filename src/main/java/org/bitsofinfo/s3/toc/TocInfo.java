@@ -5,6 +5,10 @@ public class TocInfo {
 	public String path = null;
 	public boolean isDirectory = false;
 	public long size = 0;
+	public ManifestShard manifestShard = null; // when set this entry stands for a manifest shard
+	public boolean isCrawlSubtree = false; // when set this directory and everything under it is crawled by the worker
+	public String stratum = null; // when set, the sampling stratum this entry was picked from for VALIDATE
+	public Long lastModified = null; // when set (CONTINUOUS), the source mtime of the change this entry stands for
 	
 	public String getPath() {
 		return path;
@@ -32,5 +36,33 @@ public class TocInfo {
 	public void setIsDirectory(boolean isDirectory) {
 		this.isDirectory = isDirectory;
 	}
+	
+	public ManifestShard getManifestShard() {
+		return manifestShard;
+	}
+	
+	public void setManifestShard(ManifestShard manifestShard) {
+		this.manifestShard = manifestShard;
+	}
+	
+	public boolean isManifestShard() {
+		return manifestShard != null;
+	}
+	
+	public Long getLastModified() {
+		return lastModified;
+	}
+	
+	public void setLastModified(Long lastModified) {
+		this.lastModified = lastModified;
+	}
+	
+	public boolean isCrawlSubtree() {
+		return isCrawlSubtree;
+	}
+	
+	public void setIsCrawlSubtree(boolean isCrawlSubtree) {
+		this.isCrawlSubtree = isCrawlSubtree;
+	}
 
 }
@@ -0,0 +1,272 @@
+package org.bitsofinfo.s3.toc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The TOC of a previous run (path, size, last modified) so the next run
+ * can dispatch only what was added or changed since (see DirectoryCrawler)
+ *
+ * One entry per line, always UTF-8, gzipped if the file name ends in .gz:
+ *
+ *   F|D <tab> size <tab> lastModified <tab> path
+ *
+ * entries are in crawl order, which is path order per comparePaths(), so
+ * a crawl can be merged against the previous snapshot as it goes.
+ *
+ * A run writes its snapshot to [file].new which is only promoted to [file]
+ * by promote() once the run completed w/o errors, until then each run
+ * diffs against the last good one. Deleted paths go to [file].deleted
+ */
+public class TocSnapshot {
+
+	private static final Logger logger = Logger.getLogger(TocSnapshot.class);
+
+	private File file = null;
+
+	public static class Entry {
+		public String path = null;
+		public boolean isDirectory = false;
+		public long size = 0;
+		public long lastModified = 0;
+
+		public Entry(String path, boolean isDirectory, long size, long lastModified) {
+			this.path = path;
+			this.isDirectory = isDirectory;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * Directories only change by being added (their mtime changes
+		 * w/ their contents), files when their size or mtime does
+		 */
+		public boolean isChangedFrom(Entry previous) {
+			if (isDirectory != previous.isDirectory) {
+				return true;
+			}
+			return !isDirectory && (size != previous.size || lastModified != previous.lastModified);
+		}
+	}
+
+	public TocSnapshot(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns null if 'tocGenerator.snapshot.file' is not configured
+	 */
+	public static TocSnapshot fromProperties(Properties props) {
+		String file = props.getProperty("tocGenerator.snapshot.file");
+		if (file == null || file.trim().length() == 0) {
+			return null;
+		}
+		return new TocSnapshot(new File(file.trim()));
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public File getPendingFile() {
+		return new File(file.getAbsolutePath() + ".new");
+	}
+
+	public File getDeletedFile() {
+		return new File(file.getAbsolutePath() + ".deleted");
+	}
+
+	public boolean exists() {
+		return file.exists();
+	}
+
+	/**
+	 * Reads the last good snapshot
+	 */
+	public EntryReader openReader() throws Exception {
+		return new EntryReader(file, isCompressed());
+	}
+
+	/**
+	 * Writes this run's snapshot, to the pending file
+	 */
+	public EntryWriter openPendingWriter() throws Exception {
+		return new EntryWriter(getPendingFile(), isCompressed());
+	}
+
+	/**
+	 * Makes this run's snapshot the one the next run diffs against,
+	 * false if there is none (i.e. this run did not crawl)
+	 */
+	public boolean promote() throws Exception {
+		File pending = getPendingFile();
+		if (!pending.exists()) {
+			return false;
+		}
+
+		// not atomic on every platform, but the old one is only gone once the new one is complete
+		if (file.exists() && !file.delete()) {
+			throw new Exception("TocSnapshot cannot delete previous snapshot: " + file.getAbsolutePath());
+		}
+		if (!pending.renameTo(file)) {
+			throw new Exception("TocSnapshot cannot rename " + pending.getAbsolutePath() + " to " + file.getAbsolutePath());
+		}
+		logger.info("promote() TOC snapshot for the next run is now: " + file.getAbsolutePath());
+		return true;
+	}
+
+	private boolean isCompressed() {
+		return file.getName().toLowerCase().endsWith(".gz");
+	}
+
+	/**
+	 * String order except '/' sorts before any other char, so a directory's
+	 * entries sort right after it, before its siblings (i.e. /a, /a/x, /a-b),
+	 * which is the order a crawl visiting each dir's children by name produces
+	 */
+	public static int comparePaths(String a, String b) {
+		int length = Math.min(a.length(), b.length());
+		for (int i=0; i<length; i++) {
+			char ca = a.charAt(i);
+			char cb = b.charAt(i);
+			if (ca != cb) {
+				if (ca == '/') {
+					return -1;
+				}
+				if (cb == '/') {
+					return 1;
+				}
+				return ca - cb;
+			}
+		}
+		return a.length() - b.length();
+	}
+
+	/**
+	 * Paths w/ newlines are rare, but one would otherwise break the file
+	 */
+	protected static String escape(String path) {
+		if (path.indexOf('\\') < 0 && path.indexOf('\n') < 0 && path.indexOf('\r') < 0) {
+			return path;
+		}
+		return path.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	protected static String unescape(String path) {
+		if (path.indexOf('\\') < 0) {
+			return path;
+		}
+		StringBuilder sb = new StringBuilder(path.length());
+		for (int i=0; i<path.length(); i++) {
+			char c = path.charAt(i);
+			if (c == '\\' && i+1 < path.length()) {
+				char next = path.charAt(++i);
+				sb.append(next == 'n' ? '\n' : (next == 'r' ? '\r' : next));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	public static class EntryReader {
+
+		private File file = null;
+		private BufferedReader reader = null;
+		private Entry next = null;
+		private long lineNumber = 0;
+
+		private EntryReader(File file, boolean compressed) throws Exception {
+			this.file = file;
+			InputStream in = new BufferedInputStream(new FileInputStream(file), 256*1024);
+			if (compressed) {
+				in = new GZIPInputStream(in, 256*1024);
+			}
+			this.reader = new BufferedReader(new InputStreamReader(in, "UTF-8"), 256*1024);
+			this.next = readEntry();
+		}
+
+		/**
+		 * The next entry w/o consuming it, null at the end
+		 */
+		public Entry peek() {
+			return next;
+		}
+
+		public Entry next() throws Exception {
+			Entry entry = next;
+			if (entry != null) {
+				next = readEntry();
+				if (next != null && comparePaths(entry.path, next.path) >= 0) {
+					throw new Exception("TocSnapshot " + file.getAbsolutePath() + " is not in path order at line " +
+							lineNumber + ": " + next.path + " after " + entry.path);
+				}
+			}
+			return entry;
+		}
+
+		private Entry readEntry() throws Exception {
+			String line = reader.readLine();
+			if (line == null) {
+				return null;
+			}
+			lineNumber++;
+
+			String[] parts = line.split("\t", 4);
+			if (parts.length != 4) {
+				throw new Exception("TocSnapshot " + file.getAbsolutePath() + " invalid line " + lineNumber + ": " + line);
+			}
+			return new Entry(unescape(parts[3]), parts[0].equals("D"), Long.valueOf(parts[1]), Long.valueOf(parts[2]));
+		}
+
+		public void close() {
+			try {
+				reader.close();
+			} catch(Exception ignore) {}
+		}
+	}
+
+	public static class EntryWriter {
+
+		private Writer writer = null;
+
+		private EntryWriter(File file, boolean compressed) throws Exception {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 256*1024);
+			if (compressed) {
+				out = new GZIPOutputStream(out, 256*1024);
+			}
+			this.writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 256*1024);
+		}
+
+		public void write(Entry entry) throws Exception {
+			writer.write(entry.isDirectory ? "D" : "F");
+			writer.write('\t');
+			writer.write(String.valueOf(entry.size));
+			writer.write('\t');
+			writer.write(String.valueOf(entry.lastModified));
+			writer.write('\t');
+			writer.write(escape(entry.path));
+			writer.write('\n');
+		}
+
+		public void close() throws Exception {
+			writer.close();
+		}
+	}
+
+}
@@ -1,7 +1,20 @@
 package org.bitsofinfo.s3.toc;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.log4j.Logger;
 import org.bitsofinfo.s3.cmd.TocPathOpResult;
+import org.bitsofinfo.s3.metrics.Gauge;
+import org.bitsofinfo.s3.metrics.Meter;
+import org.bitsofinfo.s3.metrics.MetricsRegistry;
 import org.bitsofinfo.s3.worker.WorkerState;
 
 import com.amazonaws.services.s3.AmazonS3Client;
@@ -18,11 +31,24 @@ public class ValidatingTOCPayloadHandler implements TOCPayloadHandler {
 	
 	private TOCPayloadValidator validator = new TOCPayloadValidator();
 	
+	private Meter pathsValidated = MetricsRegistry.getInstance().meter("validate_paths_ok", "Paths successfully validated");
+	private Meter pathsFailed = MetricsRegistry.getInstance().meter("validate_paths_failed", "Paths that failed validation");
+	
+	// when validating both local and S3, the S3 check is issued on this pool
+	// while the local check runs, up to s3MaxInflight at once (0 = one after the other)
+	private int s3MaxInflight = 0;
+	private ExecutorService s3CheckExecutor = null;
+	private Semaphore s3CheckPermits = null;
+	
 	public ValidatingTOCPayloadHandler() {
 		
 	}
 	
-	public void destroy() {}
+	public void destroy() {
+		if (this.s3CheckExecutor != null) {
+			this.s3CheckExecutor.shutdownNow();
+		}
+	}
 	
 	public void handlePayload(TOCPayload payload, WorkerState workerState) throws Exception {
 
@@ -31,22 +57,27 @@ public class ValidatingTOCPayloadHandler implements TOCPayloadHandler {
 			// VALIDATE LOCAL first, then S3
 			if (validateMode == MODE.validateLocallyThenS3OnFailure) {
 				
+				// issue the S3 check up front, a failing local check can take ~10s to give up
+				Future<TocPathOpResult> pendingS3Check = submitS3Check(payload);
 				TocPathOpResult localCheck = validator.validateLocally(payload,this.targetDirectoryRootPath);
 				
 				if (localCheck.success) {
-					workerState.addTocPathValidated(localCheck);
+					if (pendingS3Check != null) {
+						pendingS3Check.cancel(false); // not needed, if it has not started yet
+					}
+					recordValidated(workerState, localCheck);
 
 				// failed? check s3
 				} else {
 					logger.error("validateLocally() failed, falling back to S3 check..." + payload.tocInfo.getPath());
-					TocPathOpResult s3Check = validator.validateOnS3(payload);
+					TocPathOpResult s3Check = getS3Check(pendingS3Check, payload);
 					
 					if (s3Check.success) {
-						workerState.addTocPathValidated(s3Check);
+						recordValidated(workerState, s3Check);
 						
 					// both failed....
 					} else {
-						workerState.addTocPathValidateFailure(new TocPathOpResult(payload.mode, false, payload.tocInfo.path, 
+						recordValidateFailure(workerState, payload, new TocPathOpResult(payload.mode, false, payload.tocInfo.path, 
 								"localFS["+localCheck.success+"]_then_s3["+s3Check.success+"]", "failed: s3["+s3Check.message+"] local["+localCheck.message+"]"));
 					}
 					
@@ -57,13 +88,14 @@ public class ValidatingTOCPayloadHandler implements TOCPayloadHandler {
 			
 			// VALIDATE BOTH
 			if (validateMode == MODE.validateEverywhere) {
+				Future<TocPathOpResult> pendingS3Check = submitS3Check(payload);
 				TocPathOpResult localCheck = validator.validateLocally(payload,this.targetDirectoryRootPath);
-				TocPathOpResult s3Check = validator.validateOnS3(payload);
+				TocPathOpResult s3Check = getS3Check(pendingS3Check, payload);
 				
 				if (localCheck.success && s3Check.success) {
-					workerState.addTocPathValidated(new TocPathOpResult(payload.mode, true, payload.tocInfo.path, "localFS_and_s3", "both validated ok"));
+					recordValidated(workerState, new TocPathOpResult(payload.mode, true, payload.tocInfo.path, "localFS_and_s3", "both validated ok"));
 				} else {
-					workerState.addTocPathValidateFailure(new TocPathOpResult(payload.mode, false, payload.tocInfo.path, 
+					recordValidateFailure(workerState, payload, new TocPathOpResult(payload.mode, false, payload.tocInfo.path, 
 							"localFS["+localCheck.success+"]_and_s3["+s3Check.success+"]", "failed: s3["+s3Check.message+"] local["+localCheck.message+"]"));
 				}
 				
@@ -75,9 +107,9 @@ public class ValidatingTOCPayloadHandler implements TOCPayloadHandler {
 				TocPathOpResult localCheck = validator.validateLocally(payload,this.targetDirectoryRootPath);
 				
 				if (localCheck.success) {
-					workerState.addTocPathValidated(localCheck);
+					recordValidated(workerState, localCheck);
 				} else {
-					workerState.addTocPathValidateFailure(localCheck);
+					recordValidateFailure(workerState, payload, localCheck);
 				}
 				
 				return;
@@ -89,9 +121,9 @@ public class ValidatingTOCPayloadHandler implements TOCPayloadHandler {
 				TocPathOpResult s3Check = validator.validateOnS3(payload);
 				
 				if (s3Check.success) {
-					workerState.addTocPathValidated(s3Check);
+					recordValidated(workerState, s3Check);
 				} else {
-					workerState.addTocPathValidateFailure(s3Check);
+					recordValidateFailure(workerState, payload, s3Check);
 				}
 				
 				return;
@@ -100,7 +132,7 @@ public class ValidatingTOCPayloadHandler implements TOCPayloadHandler {
 			
 		} catch(Exception e) {
 			
-			workerState.addTocPathValidateFailure(
+			recordValidateFailure(workerState, payload, 
 					new TocPathOpResult(payload.mode, false, payload.tocInfo.path, "validation_error", "exception: " + e.getMessage()));
 			
 			logger.error("File validation exception: " + e.getMessage(),e);
@@ -108,6 +140,66 @@ public class ValidatingTOCPayloadHandler implements TOCPayloadHandler {
 	}
 
 	
+	/**
+	 * Issues the S3 check on the s3CheckExecutor, null if not configured or
+	 * s3MaxInflight checks are already in flight (the caller then checks inline)
+	 */
+	private Future<TocPathOpResult> submitS3Check(final TOCPayload payload) {
+		if (this.s3CheckExecutor == null || !this.s3CheckPermits.tryAcquire()) {
+			return null;
+		}
+		
+		// done() runs once it completes, fails or is cancelled (even before it started)
+		FutureTask<TocPathOpResult> s3Check = new FutureTask<TocPathOpResult>(new Callable<TocPathOpResult>() {
+			public TocPathOpResult call() throws Exception {
+				return validator.validateOnS3(payload);
+			}
+		}) {
+			protected void done() {
+				s3CheckPermits.release();
+			}
+		};
+		
+		try {
+			s3CheckExecutor.execute(s3Check);
+			return s3Check;
+		} catch(Exception e) {
+			s3CheckPermits.release(); // rejected
+			return null;
+		}
+	}
+	
+	private TocPathOpResult getS3Check(Future<TocPathOpResult> pendingS3Check, TOCPayload payload) throws Exception {
+		if (pendingS3Check == null) {
+			return validator.validateOnS3(payload);
+		}
+		
+		try {
+			return pendingS3Check.get();
+			
+		} catch(ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception)e.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	private void recordValidated(WorkerState workerState, TocPathOpResult result) {
+		pathsValidated.mark();
+		workerState.addTocPathValidated(result);
+	}
+	
+	private void recordValidateFailure(WorkerState workerState, TOCPayload payload, TocPathOpResult result) {
+		pathsFailed.mark();
+		workerState.addTocPathValidateFailure(result);
+		
+		// sampled? the master escalates strata w/ failures
+		if (payload.tocInfo.stratum != null) {
+			workerState.addValidateFailureInStratum(payload.tocInfo.stratum);
+		}
+	}
+	
 	public void setTargetDirectoryRootPath(String targetDirectoryRootPath) {
 		this.targetDirectoryRootPath = targetDirectoryRootPath;
 	}
@@ -144,4 +236,31 @@ public class ValidatingTOCPayloadHandler implements TOCPayloadHandler {
 		this.validateMode = validateMode;
 	}
 
+	public int getS3MaxInflight() {
+		return s3MaxInflight;
+	}
+
+	/**
+	 * Max S3 checks in flight concurrently w/ the local checks, 0 = check sequentially
+	 */
+	public void setS3MaxInflight(int s3MaxInflight) {
+		this.s3MaxInflight = s3MaxInflight;
+		
+		if (s3MaxInflight > 0 && this.s3CheckExecutor == null) {
+			this.s3CheckPermits = new Semaphore(s3MaxInflight);
+			this.s3CheckExecutor = Executors.newFixedThreadPool(s3MaxInflight, new ThreadFactory() {
+				private AtomicInteger count = new AtomicInteger(0);
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "validate-s3-check-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			
+			MetricsRegistry.getInstance().register(new Gauge("validate_s3_checks_inflight", "S3 validation checks issued concurrently w/ local checks, in flight") {
+				public long getValue() { return ValidatingTOCPayloadHandler.this.s3MaxInflight - s3CheckPermits.availablePermits(); }
+			});
+		}
+	}
+
 }
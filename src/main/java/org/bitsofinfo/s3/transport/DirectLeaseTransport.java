@@ -0,0 +1,333 @@
+package org.bitsofinfo.s3.transport;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Worker side TOC queue transport that leases batches of work directly
+ * from the Master's LeaseWorkServer over a single TCP connection that
+ * is shared by all TOCQueue consumers using this instance.
+ *
+ * Only the queue consumer operations are supported, on the master side
+ * (createIfMissing = true) connectToQueue() is a no-op as the master
+ * hands out work via the LeaseWorkServer itself. A connected worker can
+ * send() new work (i.e. split crawl subtrees) which the master leases
+ * out before anything else. Topics are not supported.
+ *
+ * On any connection/protocol error (or no response within the read timeout)
+ * the connection is dropped, the master re-queues whatever it held, and the
+ * next request reconnects.
+ *
+ */
+public class DirectLeaseTransport implements Transport {
+
+	private static final Logger logger = Logger.getLogger(DirectLeaseTransport.class);
+
+	private String masterHost = null;
+	private int masterPort = 0;
+	private int readTimeoutMS = 60000;
+
+	// connectToQueue() was called as a consumer, reconnect as needed until deleteQueue()
+	private boolean consumer = false;
+
+	private Socket socket = null;
+	private BufferedReader reader = null;
+	private BufferedWriter writer = null;
+
+	// leased from the master but not yet handed to a consumer
+	private LinkedBlockingQueue<TransportMessage> leasedBuffer = new LinkedBlockingQueue<TransportMessage>();
+
+	private String workerId = null;
+
+	public DirectLeaseTransport() {}
+
+	public DirectLeaseTransport(String masterHost, int masterPort) {
+		this.masterHost = masterHost;
+		this.masterPort = masterPort;
+	}
+
+	public String connectToQueue(String queueName, boolean createIfMissing, int maxAttempts) throws Exception {
+
+		// master side, nothing to connect to
+		if (createIfMissing) {
+			return queueName;
+		}
+
+		synchronized(this) {
+			this.consumer = true;
+			if (this.socket == null) {
+				connect(maxAttempts);
+			}
+			return queueName;
+		}
+	}
+
+	/**
+	 * Connects and says HELLO, callers must hold the lock
+	 */
+	private void connect(int maxAttempts) throws Exception {
+		if (this.workerId == null) {
+			this.workerId = InetAddress.getLocalHost().getHostName() + "-" + UUID.randomUUID().toString().replace("-", "").substring(0,4);
+		}
+
+		Exception lastError = null;
+		for (int i=0; i<maxAttempts; i++) {
+			Socket s = new Socket();
+			try {
+				logger.debug("connect() attempt: " + (i+1) + " to " + masterHost + ":" + masterPort);
+
+				s.connect(new InetSocketAddress(masterHost, masterPort), readTimeoutMS);
+				s.setSoTimeout(readTimeoutMS);
+				this.reader = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+				this.writer = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), "UTF-8"));
+				this.socket = s;
+
+				request("HELLO " + workerId);
+
+				logger.info("connect() connected to LeaseWorkServer @ " + masterHost + ":" + masterPort + " as: " + workerId);
+				return;
+
+			} catch(Exception e) {
+				lastError = e;
+				this.socket = null;
+				try {
+					s.close();
+				} catch(Exception ignore){}
+
+				if (i+1 < maxAttempts) {
+					Thread.currentThread().sleep(1000);
+				}
+			}
+		}
+
+		throw new Exception("connect() cannot connect to LeaseWorkServer @ " + masterHost + ":" + masterPort, lastError);
+	}
+
+	/**
+	 * Drops the connection after an error, the master re-queues everything we
+	 * leased on it, so what we have not handed out yet is dropped too. Callers must hold the lock
+	 */
+	private void disconnect(Exception cause) {
+		logger.warn("disconnect() dropping connection to LeaseWorkServer @ " + masterHost + ":" + masterPort + 
+				", will reconnect on the next request: " + cause.getMessage());
+		try {
+			this.socket.close();
+		} catch(Exception ignore){}
+		this.socket = null;
+		this.leasedBuffer.clear();
+	}
+
+	/**
+	 * Sends a single line request and returns the first line of the response, 
+	 * (re)connecting first if need be. Callers must hold the lock
+	 */
+	private String request(String line) throws Exception {
+		if (this.socket == null) {
+			connect(1);
+		}
+
+		String response = null;
+		try {
+			writer.write(line + "\n");
+			writer.flush();
+
+			response = reader.readLine();
+			if (response == null) {
+				throw new IOException("LeaseWorkServer closed the connection");
+			}
+		} catch(IOException e) {
+			disconnect(e);
+			throw e;
+		}
+
+		if (response.startsWith("ERR")) {
+			throw new Exception("LeaseWorkServer error: " + response);
+		}
+		return response;
+	}
+
+	private void lease() throws Exception {
+		synchronized(this) {
+
+			// another consumer may have just leased
+			if (!leasedBuffer.isEmpty()) {
+				return;
+			}
+
+			String response = request("LEASE");
+
+			// a partial response leaves the connection out of step, drop it
+			try {
+				if (!response.startsWith("N ")) {
+					throw new IOException("LeaseWorkServer unexpected LEASE response: " + response);
+				}
+				int count = Integer.valueOf(response.substring(2).trim());
+
+				for (int i=0; i<count; i++) {
+					String line = reader.readLine();
+					if (line == null) {
+						throw new IOException("LeaseWorkServer closed the connection after " + i + " of " + count + " leased items");
+					}
+					int tab = line.indexOf('\t');
+					if (tab < 0) {
+						throw new IOException("LeaseWorkServer invalid leased item: " + line);
+					}
+					String itemId = line.substring(0,tab);
+					leasedBuffer.add(new TransportMessage(itemId, itemId, line.substring(tab+1)));
+				}
+			} catch(Exception e) {
+				disconnect(e);
+				throw e;
+			}
+		}
+	}
+
+	public List<TransportMessage> receive(String queueId, int maxMessages, int waitSeconds, int visibilityTimeoutSeconds) throws Exception {
+
+		List<TransportMessage> received = new ArrayList<TransportMessage>();
+		long waitUntil = System.currentTimeMillis() + (waitSeconds * 1000L);
+
+		while(true) {
+			leasedBuffer.drainTo(received, maxMessages);
+			if (received.size() > 0) {
+				return received;
+			}
+
+			lease();
+
+			if (leasedBuffer.isEmpty()) {
+				if (System.currentTimeMillis() >= waitUntil) {
+					return received;
+				}
+				Thread.currentThread().sleep(1000);
+			}
+		}
+	}
+
+	public void ack(String queueId, TransportMessage message) throws Exception {
+		synchronized(this) {
+			request("ACK " + message.getReceiptHandle());
+		}
+	}
+
+	public void ackBatch(String queueId, List<TransportMessage> messages) throws Exception {
+		if (messages.size() == 0) {
+			return;
+		}
+
+		StringBuffer sb = new StringBuffer("ACK");
+		for (TransportMessage msg : messages) {
+			sb.append(" ").append(msg.getReceiptHandle());
+		}
+
+		synchronized(this) {
+			request(sb.toString());
+		}
+	}
+
+	public void extendVisibility(String queueId, TransportMessage message, int visibilityTimeoutSeconds) throws Exception {
+		synchronized(this) {
+			request("EXTEND " + visibilityTimeoutSeconds + " " + message.getReceiptHandle());
+		}
+	}
+
+	/**
+	 * On destroy anything we have leased but not yet handed out is returned to the master
+	 */
+	public void deleteQueue(String queueId) throws Exception {
+		synchronized(this) {
+			this.consumer = false;
+			if (this.socket == null) {
+				return;
+			}
+
+			List<TransportMessage> unprocessed = new ArrayList<TransportMessage>();
+			leasedBuffer.drainTo(unprocessed);
+
+			try {
+				if (unprocessed.size() > 0) {
+					StringBuffer sb = new StringBuffer("RETURN");
+					for (TransportMessage msg : unprocessed) {
+						sb.append(" ").append(msg.getReceiptHandle());
+					}
+					request(sb.toString());
+				}
+			} finally {
+				this.socket.close();
+				this.socket = null;
+			}
+		}
+	}
+
+	public void send(String queueId, String body) throws Exception {
+		synchronized(this) {
+			if (!this.consumer) {
+				throw new UnsupportedOperationException("DirectLeaseTransport can only send once connected to the master, the master hands out work via its LeaseWorkServer");
+			}
+			request("SUBMIT " + body);
+		}
+	}
+
+	public void sendBatch(String queueId, List<String> bodies) throws Exception {
+		for (String body : bodies) {
+			send(queueId, body);
+		}
+	}
+
+	public String connectToTopic(String topicName, boolean createIfMissing, int maxAttempts) throws Exception {
+		throw new UnsupportedOperationException("DirectLeaseTransport does not support topics");
+	}
+
+	public String subscribe(String topicId, String queueId) throws Exception {
+		throw new UnsupportedOperationException("DirectLeaseTransport does not support topics");
+	}
+
+	public void unsubscribe(String subscriptionId) throws Exception {
+		throw new UnsupportedOperationException("DirectLeaseTransport does not support topics");
+	}
+
+	public void deleteTopic(String topicId) throws Exception {
+		throw new UnsupportedOperationException("DirectLeaseTransport does not support topics");
+	}
+
+	public void broadcast(String topicId, String body) throws Exception {
+		throw new UnsupportedOperationException("DirectLeaseTransport does not support topics");
+	}
+
+	public String getMasterHost() {
+		return masterHost;
+	}
+
+	public void setMasterHost(String masterHost) {
+		this.masterHost = masterHost;
+	}
+
+	public int getMasterPort() {
+		return masterPort;
+	}
+
+	public void setMasterPort(int masterPort) {
+		this.masterPort = masterPort;
+	}
+
+	public int getReadTimeoutMS() {
+		return readTimeoutMS;
+	}
+
+	public void setReadTimeoutMS(int readTimeoutMS) {
+		this.readTimeoutMS = readTimeoutMS;
+	}
+
+}
@@ -0,0 +1,245 @@
+package org.bitsofinfo.s3.transport;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-JVM transport, all instances share the same set of queues and topics
+ * so a Master and any number of Workers running in the same process can talk
+ * to one another w/o any external queue service.
+ *
+ * Honors visibility timeouts, messages received but not acked before their
+ * timeout expires are put back on the queue for re-delivery.
+ *
+ */
+public class InMemoryTransport implements Transport {
+
+	private static final Logger logger = Logger.getLogger(InMemoryTransport.class);
+
+	private static final Map<String,InMemoryQueue> queues = new ConcurrentHashMap<String,InMemoryQueue>();
+	private static final Map<String,Set<String>> topic2SubscribedQueueIds = new ConcurrentHashMap<String,Set<String>>();
+	private static final Map<String,String> subscription2TopicId = new ConcurrentHashMap<String,String>();
+
+	private static final AtomicLong messageIdSequence = new AtomicLong();
+
+	public String connectToQueue(String queueName, boolean createIfMissing, int maxAttempts) throws Exception {
+		synchronized(queues) {
+			String queueId = findByName(queues, queues.keySet(), queueName, createIfMissing, maxAttempts);
+			if (queueId == null) {
+				queueId = "inmem:queue:" + queueName;
+				queues.put(queueId, new InMemoryQueue());
+				queues.notifyAll();
+				logger.debug("connectToQueue() created in-memory queue: " + queueId);
+			}
+			return queueId;
+		}
+	}
+
+	public String connectToTopic(String topicName, boolean createIfMissing, int maxAttempts) throws Exception {
+		synchronized(topic2SubscribedQueueIds) {
+			String topicId = findByName(topic2SubscribedQueueIds, topic2SubscribedQueueIds.keySet(), topicName, createIfMissing, maxAttempts);
+			if (topicId == null) {
+				topicId = "inmem:topic:" + topicName;
+				topic2SubscribedQueueIds.put(topicId, new CopyOnWriteArraySet<String>());
+				topic2SubscribedQueueIds.notifyAll();
+				logger.debug("connectToTopic() created in-memory topic: " + topicId);
+			}
+			return topicId;
+		}
+	}
+
+	/**
+	 * Returns the id containing the given name, or null if it should be created. Note
+	 * the caller holds the lock, which we release while waiting for it to be created
+	 */
+	private String findByName(Object lock, Set<String> ids, String name, boolean createIfMissing, int maxAttempts) throws Exception {
+
+		for (int i=0; i<maxAttempts; i++) {
+			for (String id : ids) {
+				if (id.indexOf(name) != -1) {
+					return id;
+				}
+			}
+
+			if (createIfMissing) {
+				return null;
+			}
+
+			lock.wait(1000);
+		}
+
+		throw new Exception("InMemoryTransport cannot find queue/topic, has it yet to be created by master?: " + name);
+	}
+
+	public void deleteQueue(String queueId) throws Exception {
+		queues.remove(queueId);
+		for (Set<String> subscribers : topic2SubscribedQueueIds.values()) {
+			subscribers.remove(queueId);
+		}
+	}
+
+	public void send(String queueId, String body) throws Exception {
+		getQueue(queueId).visible.offer(
+				new TransportMessage(String.valueOf(messageIdSequence.incrementAndGet()), null, body));
+	}
+
+	public void sendBatch(String queueId, List<String> bodies) throws Exception {
+		for (String body : bodies) {
+			send(queueId, body);
+		}
+	}
+
+	public List<TransportMessage> receive(String queueId, int maxMessages, int waitSeconds, int visibilityTimeoutSeconds) throws Exception {
+
+		InMemoryQueue queue = getQueue(queueId);
+		queue.requeueExpired();
+
+		List<TransportMessage> received = new ArrayList<TransportMessage>();
+
+		TransportMessage first = queue.visible.poll(waitSeconds, TimeUnit.SECONDS);
+		if (first == null) {
+			return received;
+		}
+
+		List<TransportMessage> batch = new ArrayList<TransportMessage>();
+		batch.add(first);
+		queue.visible.drainTo(batch, maxMessages-1);
+
+		long visibleAgainAt = System.currentTimeMillis() + (visibilityTimeoutSeconds * 1000L);
+		for (TransportMessage msg : batch) {
+			String receiptHandle = UUID.randomUUID().toString();
+			TransportMessage delivery = new TransportMessage(msg.getId(), receiptHandle, msg.getBody());
+			queue.inFlight.put(receiptHandle, new InFlight(msg, visibleAgainAt));
+			received.add(delivery);
+		}
+
+		return received;
+	}
+
+	public void ack(String queueId, TransportMessage message) throws Exception {
+		InMemoryQueue queue = queues.get(queueId);
+		if (queue != null) {
+			queue.inFlight.remove(message.getReceiptHandle());
+		}
+	}
+
+	public void ackBatch(String queueId, List<TransportMessage> messages) throws Exception {
+		for (TransportMessage msg : messages) {
+			ack(queueId, msg);
+		}
+	}
+
+	public void extendVisibility(String queueId, TransportMessage message, int visibilityTimeoutSeconds) throws Exception {
+		InFlight f = getQueue(queueId).inFlight.get(message.getReceiptHandle());
+		if (f == null) {
+			throw new Exception("extendVisibility() message no longer in flight (expired?): " + message.getId());
+		}
+		f.visibleAgainAt = System.currentTimeMillis() + (visibilityTimeoutSeconds * 1000L);
+	}
+
+	public String subscribe(String topicId, String queueId) throws Exception {
+		Set<String> subscribers = topic2SubscribedQueueIds.get(topicId);
+		if (subscribers == null) {
+			throw new Exception("subscribe() no such in-memory topic: " + topicId);
+		}
+		subscribers.add(queueId);
+
+		String subscriptionId = topicId + ":" + queueId;
+		subscription2TopicId.put(subscriptionId, topicId);
+		return subscriptionId;
+	}
+
+	public void unsubscribe(String subscriptionId) throws Exception {
+		String topicId = subscription2TopicId.remove(subscriptionId);
+		if (topicId != null) {
+			Set<String> subscribers = topic2SubscribedQueueIds.get(topicId);
+			if (subscribers != null) {
+				subscribers.remove(subscriptionId.substring(topicId.length()+1));
+			}
+		}
+	}
+
+	public void deleteTopic(String topicId) throws Exception {
+		topic2SubscribedQueueIds.remove(topicId);
+	}
+
+	public void broadcast(String topicId, String body) throws Exception {
+		Set<String> subscribers = topic2SubscribedQueueIds.get(topicId);
+		if (subscribers == null) {
+			throw new Exception("broadcast() no such in-memory topic: " + topicId);
+		}
+
+		for (String queueId : subscribers) {
+			if (queues.containsKey(queueId)) {
+				send(queueId, body);
+			}
+		}
+	}
+
+	/**
+	 * Total messages visible + in flight for the given queue
+	 */
+	public int getApproximateSize(String queueId) {
+		InMemoryQueue queue = queues.get(queueId);
+		if (queue == null) {
+			return 0;
+		}
+		return queue.visible.size() + queue.inFlight.size();
+	}
+
+	/**
+	 * Drops all in-memory queues and topics (i.e. between runs in the same JVM)
+	 */
+	public static void reset() {
+		queues.clear();
+		topic2SubscribedQueueIds.clear();
+		subscription2TopicId.clear();
+	}
+
+	private InMemoryQueue getQueue(String queueId) throws Exception {
+		InMemoryQueue queue = queues.get(queueId);
+		if (queue == null) {
+			throw new Exception("No such in-memory queue: " + queueId);
+		}
+		return queue;
+	}
+
+	private static class InFlight {
+		private TransportMessage message = null;
+		private long visibleAgainAt = 0;
+
+		private InFlight(TransportMessage message, long visibleAgainAt) {
+			this.message = message;
+			this.visibleAgainAt = visibleAgainAt;
+		}
+	}
+
+	private static class InMemoryQueue {
+
+		private LinkedBlockingQueue<TransportMessage> visible = new LinkedBlockingQueue<TransportMessage>();
+		private Map<String,InFlight> inFlight = new ConcurrentHashMap<String,InFlight>();
+
+		private void requeueExpired() {
+			long now = System.currentTimeMillis();
+			for (Iterator<InFlight> itr = inFlight.values().iterator(); itr.hasNext(); ) {
+				InFlight f = itr.next();
+				if (f.visibleAgainAt <= now) {
+					itr.remove();
+					visible.offer(f.message);
+				}
+			}
+		}
+	}
+
+}
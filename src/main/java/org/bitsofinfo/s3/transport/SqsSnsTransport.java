@@ -0,0 +1,308 @@
+package org.bitsofinfo.s3.transport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.policy.Policy;
+import com.amazonaws.auth.policy.Principal;
+import com.amazonaws.auth.policy.Resource;
+import com.amazonaws.auth.policy.Statement;
+import com.amazonaws.auth.policy.Statement.Effect;
+import com.amazonaws.auth.policy.actions.SQSActions;
+import com.amazonaws.auth.policy.conditions.ConditionFactory;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sns.model.CreateTopicResult;
+import com.amazonaws.services.sns.model.ListTopicsResult;
+import com.amazonaws.services.sns.model.SubscribeResult;
+import com.amazonaws.services.sns.model.Topic;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ListQueuesResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Transport backed by AWS SQS (queues) and SNS (topics) where
+ * topic subscriptions are delivered to SQS queues
+ *
+ */
+public class SqsSnsTransport implements Transport {
+
+	private static final Logger logger = Logger.getLogger(SqsSnsTransport.class);
+
+	// SQS batch operations max out at 10 entries
+	private static final int SQS_MAX_BATCH_SIZE = 10;
+
+	private AmazonSQSClient sqsClient = null;
+	private AmazonSNSClient snsClient = null;
+
+	private String userARN = null;
+
+	// queues subscribed to a topic, messages received from these
+	// are wrapped in an SNS envelope that we unwrap
+	private Set<String> subscribedQueueUrls = Collections.synchronizedSet(new HashSet<String>());
+
+	private Gson gson = new Gson();
+
+	public SqsSnsTransport() {}
+
+	public SqsSnsTransport(String awsAccessKey, String awsSecretKey) {
+		setAwsCredentials(awsAccessKey, awsSecretKey);
+	}
+
+	public void setAwsCredentials(String awsAccessKey, String awsSecretKey) {
+		this.sqsClient = new AmazonSQSClient(new BasicAWSCredentials(awsAccessKey, awsSecretKey));
+		this.snsClient = new AmazonSNSClient(new BasicAWSCredentials(awsAccessKey, awsSecretKey));
+	}
+
+	public String connectToQueue(String queueName, boolean createIfMissing, int maxAttempts) throws Exception {
+
+		String queueUrl = null;
+
+		for (int i=0; i<maxAttempts; i++) {
+
+			logger.debug("connectToQueue() attempt: " + (i+1));
+
+			ListQueuesResult queuesResult = sqsClient.listQueues();
+			if (queuesResult != null) {
+				for (String url : queuesResult.getQueueUrls()) {
+					if (url.indexOf(queueName) != -1) {
+						queueUrl = url;
+						break;
+					}
+				}
+			}
+
+			// if we cannot create, retry, otherwise just exit quick to create...
+			if (queueUrl == null && !createIfMissing) {
+				Thread.currentThread().sleep(1000);
+				continue;
+			} else {
+				break; // exit;
+			}
+		}
+
+		if (queueUrl == null && createIfMissing) {
+			CreateQueueResult createQueueResult = sqsClient.createQueue(queueName);
+			queueUrl = createQueueResult.getQueueUrl();
+
+		} else if (queueUrl == null) {
+			throw new Exception("connectToQueue() cannot find SQS queue, has it yet to be created by master?: " + queueName);
+		}
+
+		return queueUrl;
+	}
+
+	public void deleteQueue(String queueUrl) throws Exception {
+		this.subscribedQueueUrls.remove(queueUrl);
+		this.sqsClient.deleteQueue(queueUrl);
+	}
+
+	public void send(String queueUrl, String body) throws Exception {
+		this.sqsClient.sendMessage(queueUrl, body);
+	}
+
+	public void sendBatch(String queueUrl, List<String> bodies) throws Exception {
+		for (int i=0; i<bodies.size(); i+=SQS_MAX_BATCH_SIZE) {
+
+			List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+			for (int j=i; j<bodies.size() && j<(i+SQS_MAX_BATCH_SIZE); j++) {
+				entries.add(new SendMessageBatchRequestEntry("m"+j, bodies.get(j)));
+			}
+
+			this.sqsClient.sendMessageBatch(new SendMessageBatchRequest(queueUrl, entries));
+		}
+	}
+
+	public List<TransportMessage> receive(String queueUrl, int maxMessages, int waitSeconds, int visibilityTimeoutSeconds) throws Exception {
+
+		ReceiveMessageRequest req = new ReceiveMessageRequest();
+		req.setQueueUrl(queueUrl);
+		req.setWaitTimeSeconds(waitSeconds);
+		req.setVisibilityTimeout(visibilityTimeoutSeconds);
+		req.setMaxNumberOfMessages(maxMessages);
+
+		ReceiveMessageResult msgResult = sqsClient.receiveMessage(req);
+
+		boolean isSubscription = this.subscribedQueueUrls.contains(queueUrl);
+
+		List<TransportMessage> received = new ArrayList<TransportMessage>();
+		for (Message msg : msgResult.getMessages()) {
+			String body = msg.getBody();
+			if (isSubscription) {
+				body = unwrapSnsEnvelope(body);
+			}
+			received.add(new TransportMessage(msg.getMessageId(), msg.getReceiptHandle(), body));
+		}
+
+		return received;
+	}
+
+	private String unwrapSnsEnvelope(String body) {
+		try {
+			Map<String,String> envelope = gson.fromJson(body, new TypeToken<Map<String, String>>(){}.getType());
+			if (envelope != null && envelope.get("Message") != null) {
+				return envelope.get("Message");
+			}
+		} catch(Exception e) {
+			logger.error("unwrapSnsEnvelope() could not parse SNS envelope, returning raw body: " + body + " error=" + e.getMessage());
+		}
+		return body;
+	}
+
+	public void ack(String queueUrl, TransportMessage message) throws Exception {
+		this.sqsClient.deleteMessage(queueUrl, message.getReceiptHandle());
+	}
+
+	public void ackBatch(String queueUrl, List<TransportMessage> messages) throws Exception {
+		for (int i=0; i<messages.size(); i+=SQS_MAX_BATCH_SIZE) {
+
+			List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
+			for (int j=i; j<messages.size() && j<(i+SQS_MAX_BATCH_SIZE); j++) {
+				entries.add(new DeleteMessageBatchRequestEntry("m"+j, messages.get(j).getReceiptHandle()));
+			}
+
+			this.sqsClient.deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, entries));
+		}
+	}
+
+	public void extendVisibility(String queueUrl, TransportMessage message, int visibilityTimeoutSeconds) throws Exception {
+		this.sqsClient.changeMessageVisibility(queueUrl, message.getReceiptHandle(), visibilityTimeoutSeconds);
+	}
+
+	public String connectToTopic(String topicName, boolean createIfMissing, int maxAttempts) throws Exception {
+
+		String topicARN = null;
+
+		// try up to max attempts to connect to pre-existing topic
+		for (int i=0; i<maxAttempts; i++) {
+
+			logger.debug("connectToTopic() attempt: " + (i+1));
+
+			ListTopicsResult listResult = snsClient.listTopics();
+			List<Topic> topics = listResult.getTopics();
+
+			while(topics != null) {
+
+				for (Topic topic : topics) {
+
+					// note we do index of match....
+					if (topic.getTopicArn().indexOf(topicName) != -1) {
+						topicARN = topic.getTopicArn();
+						logger.info("Found existing SNS topic by name: "+topicName + " @ " + topicARN);
+						break;
+					}
+				}
+
+				String nextToken = listResult.getNextToken();
+
+				if (nextToken != null && topicARN == null) {
+					listResult = snsClient.listTopics(nextToken);
+					topics = listResult.getTopics();
+
+				} else {
+					break;
+				}
+			}
+
+			// if we cannot create, retry, otherwise just exit quick to create...
+			if (topicARN == null && !createIfMissing) {
+				Thread.currentThread().sleep(1000);
+				continue;
+			} else {
+				break; // exit;
+			}
+		}
+
+		if (topicARN == null && createIfMissing) {
+
+			logger.info("Attempting to create new SNS topic by name: "+topicName);
+
+			CreateTopicResult createTopicResult = snsClient.createTopic(topicName);
+			topicARN = createTopicResult.getTopicArn();
+			snsClient.addPermission(topicARN, "Permit_SNSAdd",
+									Arrays.asList(new String[]{userARN}),
+									Arrays.asList(new String[]{"Publish","Subscribe","Receive"}));
+			logger.info("Created new SNS topic by name: "+topicName + " @ " + topicARN);
+
+		} else if (topicARN == null) {
+			throw new Exception("connectToTopic() cannot find SNS topic, has it yet to be created by master?: " + topicName);
+		}
+
+		return topicARN;
+	}
+
+	public String subscribe(String topicARN, String queueUrl) throws Exception {
+
+		// http://www.jorgjanke.com/2013/01/aws-sns-topic-subscriptions-with-sqs.html
+		String queueARN = sqsClient.getQueueAttributes(queueUrl, Arrays.asList(new String[]{"QueueArn"})).getAttributes().get("QueueArn");
+
+		Statement statement = new Statement(Effect.Allow)
+								.withActions(SQSActions.SendMessage)
+								 .withPrincipals(new Principal("*"))
+								 .withConditions(ConditionFactory.newSourceArnCondition(topicARN))
+								 .withResources(new Resource(queueARN));
+		Policy policy = new Policy("SubscriptionPermission").withStatements(statement);
+
+		HashMap<String, String> attributes = new HashMap<String, String>();
+		attributes.put("Policy", policy.toJson());
+		SetQueueAttributesRequest request = new SetQueueAttributesRequest(queueUrl, attributes);
+		sqsClient.setQueueAttributes(request);
+
+		logger.info("Set SNS subscription policy on SQS queue: " + queueARN + " @ " + queueUrl);
+
+		// subscribe our SQS queue to the SNS topic
+		SubscribeResult subscribeResult = snsClient.subscribe(topicARN,"sqs",queueARN);
+		this.subscribedQueueUrls.add(queueUrl);
+
+		logger.info("Subscribed for messages from SNS topic:" + topicARN + " ----> SQS: "+queueARN);
+
+		return subscribeResult.getSubscriptionArn();
+	}
+
+	public void unsubscribe(String subscriptionARN) throws Exception {
+		this.snsClient.unsubscribe(subscriptionARN);
+	}
+
+	public void deleteTopic(String topicARN) throws Exception {
+		this.snsClient.deleteTopic(topicARN);
+	}
+
+	public void broadcast(String topicARN, String body) throws Exception {
+		this.snsClient.publish(topicARN, body);
+	}
+
+	public AmazonSQSClient getSqsClient() {
+		return sqsClient;
+	}
+
+	public AmazonSNSClient getSnsClient() {
+		return snsClient;
+	}
+
+	public String getUserARN() {
+		return userARN;
+	}
+
+	public void setUserARN(String userARN) {
+		this.userARN = userARN;
+	}
+
+}
@@ -0,0 +1,70 @@
+package org.bitsofinfo.s3.transport;
+
+import java.util.List;
+
+/**
+ * Abstraction over the messaging services that the TOCQueue
+ * and ControlChannel use; point-to-point queues (send, receive, ack)
+ * and broadcast topics whose messages are fanned out to every
+ * subscribed queue.
+ * 
+ * Queue and topic "ids" are opaque handles returned by the connect methods
+ * (i.e. an SQS queue url or SNS topic ARN)
+ *
+ */
+public interface Transport {
+
+	/**
+	 * Locates an existing queue whose name contains <code>queueName</code>. If not found
+	 * and <code>createIfMissing</code> is true, it is created, otherwise this will
+	 * retry up to maxAttempts (waiting for someone else to create it)
+	 * 
+	 * @return the queue id
+	 * @throws Exception if the queue could not be found/created
+	 */
+	public String connectToQueue(String queueName, boolean createIfMissing, int maxAttempts) throws Exception;
+	
+	public void deleteQueue(String queueId) throws Exception;
+	
+	public void send(String queueId, String body) throws Exception;
+	
+	public void sendBatch(String queueId, List<String> bodies) throws Exception;
+	
+	/**
+	 * Receive up to maxMessages, waiting at most waitSeconds for at least one. Messages
+	 * received will be invisible to other receivers for visibilityTimeoutSeconds unless acked
+	 * before then, after which they will be re-delivered.
+	 */
+	public List<TransportMessage> receive(String queueId, int maxMessages, int waitSeconds, int visibilityTimeoutSeconds) throws Exception;
+	
+	public void ack(String queueId, TransportMessage message) throws Exception;
+	
+	public void ackBatch(String queueId, List<TransportMessage> messages) throws Exception;
+	
+	/**
+	 * Keeps a received, not yet acked, message invisible to other receivers
+	 * for another visibilityTimeoutSeconds from now (i.e. its handling is taking long)
+	 */
+	public void extendVisibility(String queueId, TransportMessage message, int visibilityTimeoutSeconds) throws Exception;
+	
+	/**
+	 * Same semantics as connectToQueue() but for broadcast topics
+	 */
+	public String connectToTopic(String topicName, boolean createIfMissing, int maxAttempts) throws Exception;
+	
+	/**
+	 * Subscribes the given queue to the topic, all subsequent broadcasts
+	 * will be delivered to the queue. The body of messages received from
+	 * the queue will be exactly what was broadcast.
+	 * 
+	 * @return the subscription id
+	 */
+	public String subscribe(String topicId, String queueId) throws Exception;
+	
+	public void unsubscribe(String subscriptionId) throws Exception;
+	
+	public void deleteTopic(String topicId) throws Exception;
+	
+	public void broadcast(String topicId, String body) throws Exception;
+	
+}
@@ -0,0 +1,46 @@
+package org.bitsofinfo.s3.transport;
+
+import java.util.Properties;
+
+/**
+ * Creates the Transport to use for a given purpose ("tocqueue" or "controlchannel")
+ * 
+ * 'transport.[purpose].class' is consulted first, then 'transport.class' and 
+ * if neither are set we default to the SqsSnsTransport
+ *
+ */
+public class TransportFactory {
+	
+	public static final String PURPOSE_TOC_QUEUE = "tocqueue";
+	public static final String PURPOSE_CONTROL_CHANNEL = "controlchannel";
+
+	public static Transport newTransport(Properties props, String purpose) throws Exception {
+		
+		String className = props.getProperty("transport."+purpose+".class");
+		if (className == null) {
+			className = props.getProperty("transport.class", SqsSnsTransport.class.getName());
+		}
+		
+		Transport transport = (Transport)Class.forName(className.trim()).newInstance();
+		
+		if (transport instanceof SqsSnsTransport) {
+			SqsSnsTransport sqsSns = (SqsSnsTransport)transport;
+			sqsSns.setAwsCredentials(props.getProperty("aws.access.key"), props.getProperty("aws.secret.key"));
+			sqsSns.setUserARN(props.getProperty("aws.user.arn"));
+		}
+		
+		if (transport instanceof DirectLeaseTransport) {
+			DirectLeaseTransport direct = (DirectLeaseTransport)transport;
+			direct.setMasterHost(props.getProperty("transport.lease.master.host"));
+			
+			String port = props.getProperty("transport.lease.master.port");
+			if (port == null || port.trim().length() == 0) {
+				throw new Exception("'transport.lease.master.port' is required when using " + className.trim());
+			}
+			direct.setMasterPort(Integer.valueOf(port.trim()));
+			direct.setReadTimeoutMS(Integer.valueOf(props.getProperty("transport.lease.read.timeout.ms", "60000").trim()));
+		}
+		
+		return transport;
+	}
+}
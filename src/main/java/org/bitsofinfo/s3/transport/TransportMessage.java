@@ -0,0 +1,26 @@
+package org.bitsofinfo.s3.transport;
+
+public class TransportMessage {
+
+	private String id = null;
+	private String receiptHandle = null;
+	private String body = null;
+	
+	public TransportMessage(String id, String receiptHandle, String body) {
+		super();
+		this.id = id;
+		this.receiptHandle = receiptHandle;
+		this.body = body;
+	}
+	
+	public String getId() {
+		return id;
+	}
+	public String getReceiptHandle() {
+		return receiptHandle;
+	}
+	public String getBody() {
+		return body;
+	}
+	
+}
@@ -0,0 +1,125 @@
+package org.bitsofinfo.s3.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append only, line per entry, file used by the MasterCheckpointer
+ * and the worker CompletionJournal.
+ * Appends are buffered, sync() forces everything appended so far to disk.
+ * On read a trailing partial line (i.e. we died mid write) is ignored.
+ */
+public class CheckpointJournal {
+	
+	private static final Logger logger = Logger.getLogger(CheckpointJournal.class);
+	
+	public interface LineHandler {
+		public void handle(String line) throws Exception;
+	}
+	
+	private File file = null;
+	private FileOutputStream fileOutputStream = null;
+	private Writer writer = null;
+	private long linesAppended = 0;
+	
+	public CheckpointJournal(File file) {
+		this.file = file;
+	}
+	
+	public synchronized void append(String line) throws Exception {
+		if (writer == null) {
+			fileOutputStream = new FileOutputStream(file, true);
+			writer = new BufferedWriter(new OutputStreamWriter(fileOutputStream, "UTF-8"), 64*1024);
+		}
+		writer.write(line);
+		writer.write('\n');
+		linesAppended++;
+	}
+	
+	public synchronized void sync() throws Exception {
+		if (writer != null) {
+			writer.flush();
+			fileOutputStream.getFD().sync();
+		}
+	}
+	
+	public synchronized void close() {
+		try {
+			if (writer != null) {
+				sync();
+				writer.close();
+			}
+		} catch(Exception e) {
+			logger.error("close() error closing journal: " + file.getAbsolutePath() + " " + e.getMessage(),e);
+		}
+		writer = null;
+	}
+	
+	/**
+	 * Returns the number of complete lines handled
+	 */
+	public long read(LineHandler handler) throws Exception {
+		if (!file.exists()) {
+			return 0;
+		}
+		
+		long lines = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 64*1024);
+		try {
+			String line = null;
+			String next = reader.readLine();
+			while ((line = next) != null) {
+				next = reader.readLine();
+				
+				// last line may be partial
+				if (next == null && !endsWithNewline()) {
+					logger.warn("read() ignoring trailing partial line in: " + file.getAbsolutePath());
+					break;
+				}
+				
+				if (line.length() > 0) {
+					handler.handle(line);
+					lines++;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+	
+	private boolean endsWithNewline() throws Exception {
+		if (file.length() == 0) {
+			return true;
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			in.skip(file.length()-1);
+			return in.read() == '\n';
+		} finally {
+			in.close();
+		}
+	}
+	
+	public void delete() {
+		close();
+		file.delete();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized long getLinesAppended() {
+		return linesAppended;
+	}
+
+}
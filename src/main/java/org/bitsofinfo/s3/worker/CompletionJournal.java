@@ -0,0 +1,167 @@
+package org.bitsofinfo.s3.worker;
+
+import java.io.File;
+
+import org.apache.log4j.Logger;
+import org.bitsofinfo.s3.toc.TOCPayload.MODE;
+import org.bitsofinfo.s3.toc.TocInfo;
+import org.bitsofinfo.s3.util.CheckpointJournal;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Durable record of every TOC path (mode + path + size, + last modified
+ * when the entry carries it i.e. CONTINUOUS changes) this worker
+ * has successfully completed. SQS is at-least-once, so the same
+ * TOCPayload can be delivered more than once (visibility timeouts,
+ * worker restarts), consulting this first lets the Worker skip
+ * work it has already done rather than repeating it.
+ *
+ * Completions are appended to a line per entry file, in memory we only
+ * keep a 64 bit hash of each entry in an open addressing set
+ * (16-32 bytes per entry), a hash collision would at worst skip a path,
+ * the odds of that for even 100M paths are ~1 in 3700.
+ *
+ * Appends are buffered, sync() is called periodically by the Worker,
+ * losing the tail of the journal on a crash only means that work
+ * is repeated.
+ */
+public class CompletionJournal {
+
+	private static final Logger logger = Logger.getLogger(CompletionJournal.class);
+
+	private static final HashFunction hashFunction = Hashing.murmur3_128();
+
+	private CheckpointJournal journal = null;
+	private LongHashSet completed = new LongHashSet(1024);
+
+	public CompletionJournal(File file) throws Exception {
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+
+		this.journal = new CheckpointJournal(file);
+
+		long loaded = journal.read(new CheckpointJournal.LineHandler() {
+			public void handle(String line) throws Exception {
+				completed.add(hash(line));
+			}
+		});
+
+		logger.info("CompletionJournal() loaded " + loaded + " previously completed entries from: " + file.getAbsolutePath());
+	}
+
+	private static String toEntry(MODE mode, TocInfo tocInfo) {
+		if (tocInfo.getLastModified() != null) {
+			return mode + "|" + tocInfo.getSize() + "|" + tocInfo.getLastModified() + "|" + tocInfo.getPath();
+		}
+		return mode + "|" + tocInfo.getSize() + "|" + tocInfo.getPath();
+	}
+
+	private static long hash(String entry) {
+		return hashFunction.hashString(entry, Charsets.UTF_8).asLong();
+	}
+
+	public boolean isCompleted(MODE mode, TocInfo tocInfo) {
+		return completed.contains(hash(toEntry(mode,tocInfo)));
+	}
+
+	public void completed(MODE mode, TocInfo tocInfo) throws Exception {
+		String entry = toEntry(mode,tocInfo);
+		if (completed.add(hash(entry))) {
+			journal.append(entry);
+		}
+	}
+
+	public void sync() throws Exception {
+		journal.sync();
+	}
+
+	public void close() {
+		journal.close();
+	}
+
+	public long size() {
+		return completed.size();
+	}
+
+	/**
+	 * Minimal synchronized open addressing set of longs (linear probing)
+	 * 0 is reserved as the empty slot marker and stored separately
+	 */
+	private static class LongHashSet {
+
+		private long[] slots = null;
+		private int size = 0;
+		private boolean containsZero = false;
+
+		public LongHashSet(int initialCapacity) {
+			this.slots = new long[Integer.highestOneBit(Math.max(initialCapacity,16)-1) << 1];
+		}
+
+		public synchronized boolean contains(long value) {
+			if (value == 0) {
+				return containsZero;
+			}
+			int mask = slots.length-1;
+			for (int i = slot(value,mask); slots[i] != 0; i = (i+1) & mask) {
+				if (slots[i] == value) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public synchronized boolean add(long value) {
+			if (value == 0) {
+				if (containsZero) {
+					return false;
+				}
+				containsZero = true;
+				size++;
+				return true;
+			}
+
+			if (!insert(slots, value)) {
+				return false;
+			}
+			size++;
+
+			// keep load factor under 0.5
+			if (size*2 > slots.length) {
+				long[] grown = new long[slots.length*2];
+				for (long existing : slots) {
+					if (existing != 0) {
+						insert(grown, existing);
+					}
+				}
+				slots = grown;
+			}
+			return true;
+		}
+
+		public synchronized int size() {
+			return size;
+		}
+
+		private static boolean insert(long[] table, long value) {
+			int mask = table.length-1;
+			int i = slot(value,mask);
+			while (table[i] != 0) {
+				if (table[i] == value) {
+					return false;
+				}
+				i = (i+1) & mask;
+			}
+			table[i] = value;
+			return true;
+		}
+
+		private static int slot(long value, int mask) {
+			return (int)(value ^ (value >>> 32)) & mask;
+		}
+	}
+
+}
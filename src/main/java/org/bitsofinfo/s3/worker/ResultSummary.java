@@ -1,5 +1,7 @@
 package org.bitsofinfo.s3.worker;
 
+import java.util.Map;
+
 public class ResultSummary {
 
 	public boolean TOCConsumptionPaused = false;
@@ -9,6 +11,14 @@ public class ResultSummary {
 	public int writeMonitorErrors;
 	public int postWriteLocalValidateErrors;
 	public int total;
+	public long bytes; // file bytes processed
+	public long duplicatesSkipped; // redelivered paths already completed, skipped
+	public long manifestShards; // manifest shards completed
+	public long crawledEntries; // entries found crawling subtrees
+	public long crawledBytes; // file bytes found crawling subtrees
+	public long commandTimeouts; // write commands killed for exceeding their timeout
+	public long processesKilled; // processes killed by those timeouts
+	public Map<String,Integer> validateFailuresByStratum; // validate failures per sampling stratum (sampled VALIDATE only)
 	
 	
 	public ResultSummary(boolean TOCConsumptionPaused, int ok, int failed, 
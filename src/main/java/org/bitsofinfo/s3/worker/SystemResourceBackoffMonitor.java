@@ -0,0 +1,316 @@
+package org.bitsofinfo.s3.worker;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.bitsofinfo.s3.metrics.Counter;
+import org.bitsofinfo.s3.metrics.Gauge;
+import org.bitsofinfo.s3.metrics.MetricsRegistry;
+
+/**
+ * Target agnostic WriteBackoffMonitor that samples the host every checkEveryMS
+ * and states writes should backoff when any configured limit is reached:
+ *
+ *  - maxLoadPerCpu:      1 minute /proc/loadavg divided by the number of cpus
+ *  - maxIoPressure:      'some avg10' % of /proc/pressure/io (kernels w/ PSI)
+ *  - maxNicBytesPerSec:  rx or tx bytes/sec of 'nic' per /proc/net/dev (all non lo if not set)
+ *  - minFreeBytes:       usable space on the filesystem of 'freeSpacePath' (i.e. a cache dir or the target)
+ *  - maxRssBytes:        VmRSS of 'rssPid' per /proc/[pid]/status (default self)
+ *
+ * Limits <= 0 are disabled, signals whose /proc file does not exist are skipped.
+ *
+ * Hysteresis: once backing off, writes only resume when every signal is back
+ * under its limit * resumeRatio (for minFreeBytes above limit / resumeRatio),
+ * so consumers are not flapped paused/resumed by a value hovering at a limit.
+ */
+public class SystemResourceBackoffMonitor implements WriteBackoffMonitor, Runnable {
+
+	private static final Logger logger = Logger.getLogger(SystemResourceBackoffMonitor.class);
+
+	private static final String PROC_LOADAVG = "/proc/loadavg";
+	private static final String PROC_PRESSURE_IO = "/proc/pressure/io";
+	private static final String PROC_NET_DEV = "/proc/net/dev";
+
+	private long checkEveryMS = 1000;
+	private double resumeRatio = 0.8;
+
+	private double maxLoadPerCpu = 0;
+	private double maxIoPressure = 0;
+	private long maxNicBytesPerSec = 0;
+	private String nic = null;
+	private long minFreeBytes = 0;
+	private String freeSpacePath = null;
+	private long maxRssBytes = 0;
+	private String rssPid = "self";
+
+	private boolean running = true;
+	private Thread monitorThread = null;
+
+	private volatile boolean backoff = false;
+	private volatile String backoffReason = null;
+
+	// previous /proc/net/dev sample for rates
+	private long lastNicRxBytes = -1;
+	private long lastNicTxBytes = -1;
+	private long lastNicSampleAtMS = -1;
+
+	private MetricsRegistry metrics = MetricsRegistry.getInstance();
+	private Counter backoffs = metrics.counter("worker_system_backoffs", "Times the SystemResourceBackoffMonitor started a backoff");
+
+	public SystemResourceBackoffMonitor() {
+		monitorThread = new Thread(this);
+
+		metrics.register(new Gauge("worker_system_backoff", "1 while the SystemResourceBackoffMonitor states writes should backoff") {
+			public long getValue() { return (backoff ? 1 : 0); }
+		});
+	}
+
+	public void start() {
+		monitorThread.start();
+	}
+
+	public void destroy() {
+		this.running = false;
+	}
+
+	public boolean writesShouldBackoff() {
+		if (backoff) {
+			logger.debug("writesShouldBackoff() YES: " + backoffReason);
+		}
+		return backoff;
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				Thread.currentThread().sleep(this.checkEveryMS);
+
+				List<String> over = check(backoff);
+				boolean shouldBackoff = !over.isEmpty();
+
+				if (shouldBackoff != backoff) {
+					if (shouldBackoff) {
+						backoffs.inc();
+						logger.info("Backing off writes, over limit: " + over);
+					} else {
+						logger.info("Resuming writes, all signals under " + (int)(resumeRatio*100) + "% of their limits");
+					}
+				}
+
+				this.backoffReason = over.toString();
+				this.backoff = shouldBackoff;
+
+			} catch(Exception e) {
+				logger.error("Unexpected error checking system resources: " + e.getMessage(),e);
+			}
+		}
+	}
+
+	/**
+	 * Samples every configured signal, returning a description of those over
+	 * their limit (the resume limit when we are currently backing off)
+	 */
+	private List<String> check(boolean backingOff) {
+		List<String> over = new ArrayList<String>();
+
+		if (maxLoadPerCpu > 0) {
+			try {
+				double loadPerCpu = readLoadPerCpu();
+				if (isOver(loadPerCpu, maxLoadPerCpu, backingOff)) {
+					over.add("loadPerCpu=" + String.format("%.2f", loadPerCpu) + " max=" + maxLoadPerCpu);
+				}
+			} catch(Exception e) {
+				logger.trace("check() cannot read " + PROC_LOADAVG + ": " + e.getMessage());
+			}
+		}
+
+		if (maxIoPressure > 0) {
+			try {
+				double ioPressure = readIoPressure();
+				if (isOver(ioPressure, maxIoPressure, backingOff)) {
+					over.add("ioPressure=" + ioPressure + " max=" + maxIoPressure);
+				}
+			} catch(Exception e) {
+				logger.trace("check() cannot read " + PROC_PRESSURE_IO + ": " + e.getMessage());
+			}
+		}
+
+		if (maxNicBytesPerSec > 0) {
+			try {
+				long nicBytesPerSec = readNicBytesPerSec();
+				if (nicBytesPerSec >= 0 && isOver(nicBytesPerSec, maxNicBytesPerSec, backingOff)) {
+					over.add("nicBytesPerSec=" + nicBytesPerSec + " max=" + maxNicBytesPerSec);
+				}
+			} catch(Exception e) {
+				logger.trace("check() cannot read " + PROC_NET_DEV + ": " + e.getMessage());
+			}
+		}
+
+		if (minFreeBytes > 0 && freeSpacePath != null) {
+			long freeBytes = new File(freeSpacePath).getUsableSpace();
+			double limit = (backingOff ? minFreeBytes / resumeRatio : minFreeBytes);
+			if (freeBytes <= limit) {
+				over.add("freeBytes=" + freeBytes + " min=" + minFreeBytes + " path=" + freeSpacePath);
+			}
+		}
+
+		if (maxRssBytes > 0) {
+			try {
+				long rssBytes = readRssBytes();
+				if (isOver(rssBytes, maxRssBytes, backingOff)) {
+					over.add("rssBytes=" + rssBytes + " max=" + maxRssBytes + " pid=" + rssPid);
+				}
+			} catch(Exception e) {
+				logger.trace("check() cannot read RSS of pid " + rssPid + ": " + e.getMessage());
+			}
+		}
+
+		return over;
+	}
+
+	private boolean isOver(double value, double limit, boolean backingOff) {
+		return value >= (backingOff ? limit * resumeRatio : limit);
+	}
+
+	/**
+	 * 0.37 0.40 0.33 3/72 14051
+	 */
+	private double readLoadPerCpu() throws Exception {
+		String[] fields = readLines(PROC_LOADAVG).get(0).trim().split("\\s+");
+		return Double.valueOf(fields[0]) / Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * some avg10=0.00 avg60=0.02 avg300=0.11 total=6104622
+	 * full avg10=0.00 avg60=0.02 avg300=0.06 total=4670739
+	 */
+	private double readIoPressure() throws Exception {
+		for (String line : readLines(PROC_PRESSURE_IO)) {
+			if (line.startsWith("some ")) {
+				for (String field : line.split("\\s+")) {
+					if (field.startsWith("avg10=")) {
+						return Double.valueOf(field.substring("avg10=".length()));
+					}
+				}
+			}
+		}
+		throw new Exception("no 'some avg10' in " + PROC_PRESSURE_IO);
+	}
+
+	/**
+	 * Max of the rx/tx bytes/sec since the last sample, -1 on the first one
+	 *
+	 *  face |bytes    packets errs drop fifo frame compressed multicast|bytes    packets ...
+	 *  eth0: 76685568   10924    0    0    0     0          0         0 76685568   10924 ...
+	 */
+	private long readNicBytesPerSec() throws Exception {
+		long rxBytes = 0;
+		long txBytes = 0;
+		for (String line : readLines(PROC_NET_DEV)) {
+			int colon = line.indexOf(':');
+			if (colon == -1) {
+				continue; // headers
+			}
+
+			String iface = line.substring(0,colon).trim();
+			if ((nic != null && !nic.equals(iface)) || (nic == null && iface.equals("lo"))) {
+				continue;
+			}
+
+			String[] fields = line.substring(colon+1).trim().split("\\s+");
+			rxBytes += Long.valueOf(fields[0]);
+			txBytes += Long.valueOf(fields[8]);
+		}
+
+		long now = System.currentTimeMillis();
+		long bytesPerSec = -1;
+		if (lastNicSampleAtMS > 0 && now > lastNicSampleAtMS) {
+			long elapsedMS = now - lastNicSampleAtMS;
+			long rxPerSec = ((rxBytes - lastNicRxBytes) * 1000) / elapsedMS;
+			long txPerSec = ((txBytes - lastNicTxBytes) * 1000) / elapsedMS;
+			bytesPerSec = Math.max(0, Math.max(rxPerSec, txPerSec)); // counters reset w/ the interface
+		}
+
+		lastNicRxBytes = rxBytes;
+		lastNicTxBytes = txBytes;
+		lastNicSampleAtMS = now;
+
+		return bytesPerSec;
+	}
+
+	/**
+	 * VmRSS:	    1744 kB
+	 */
+	private long readRssBytes() throws Exception {
+		for (String line : readLines("/proc/" + rssPid + "/status")) {
+			if (line.startsWith("VmRSS:")) {
+				String[] fields = line.substring("VmRSS:".length()).trim().split("\\s+");
+				return Long.valueOf(fields[0]) * 1024;
+			}
+		}
+		throw new Exception("no VmRSS for pid " + rssPid);
+	}
+
+	private static List<String> readLines(String procFile) throws Exception {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(procFile), "US-ASCII"));
+		try {
+			List<String> lines = new ArrayList<String>();
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+			return lines;
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void setCheckEveryMS(long checkEveryMS) {
+		this.checkEveryMS = checkEveryMS;
+	}
+
+	public void setResumeRatio(double resumeRatio) {
+		if (resumeRatio <= 0 || resumeRatio > 1) {
+			throw new RuntimeException("SystemResourceBackoffMonitor invalid resumeRatio: " + resumeRatio + " must be > 0 and <= 1");
+		}
+		this.resumeRatio = resumeRatio;
+	}
+
+	public void setMaxLoadPerCpu(double maxLoadPerCpu) {
+		this.maxLoadPerCpu = maxLoadPerCpu;
+	}
+
+	public void setMaxIoPressure(double maxIoPressure) {
+		this.maxIoPressure = maxIoPressure;
+	}
+
+	public void setMaxNicBytesPerSec(long maxNicBytesPerSec) {
+		this.maxNicBytesPerSec = maxNicBytesPerSec;
+	}
+
+	public void setNic(String nic) {
+		this.nic = nic;
+	}
+
+	public void setMinFreeBytes(long minFreeBytes) {
+		this.minFreeBytes = minFreeBytes;
+	}
+
+	public void setFreeSpacePath(String freeSpacePath) {
+		this.freeSpacePath = freeSpacePath;
+	}
+
+	public void setMaxRssBytes(long maxRssBytes) {
+		this.maxRssBytes = maxRssBytes;
+	}
+
+	public void setRssPid(String rssPid) {
+		this.rssPid = rssPid;
+	}
+
+}
@@ -1,7 +1,10 @@
 package org.bitsofinfo.s3.worker;
 
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -11,25 +14,38 @@ import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
 import org.apache.log4j.Logger;
 import org.bitsofinfo.s3.S3Util;
+import org.bitsofinfo.s3.cmd.CommandExecutor;
+import org.bitsofinfo.s3.cmd.CoprocessCommandExecutor;
 import org.bitsofinfo.s3.control.CCMode;
 import org.bitsofinfo.s3.control.CCPayload;
 import org.bitsofinfo.s3.control.CCPayloadHandler;
 import org.bitsofinfo.s3.control.CCPayloadType;
 import org.bitsofinfo.s3.control.ControlChannel;
 import org.bitsofinfo.s3.master.ShutdownInfo;
+import org.bitsofinfo.s3.metrics.Counter;
+import org.bitsofinfo.s3.metrics.Gauge;
+import org.bitsofinfo.s3.metrics.MetricsHttpServer;
+import org.bitsofinfo.s3.metrics.MetricsRegistry;
 import org.bitsofinfo.s3.toc.FileCopyTOCPayloadHandler;
+import org.bitsofinfo.s3.toc.ManifestReader;
+import org.bitsofinfo.s3.toc.ManifestShard;
 import org.bitsofinfo.s3.toc.S3KeyCopyingTOCPayloadHandler;
+import org.bitsofinfo.s3.toc.SizeBands;
 import org.bitsofinfo.s3.toc.TOCPayload;
 import org.bitsofinfo.s3.toc.TOCPayload.MODE;
 import org.bitsofinfo.s3.toc.TOCPayloadHandler;
+import org.bitsofinfo.s3.toc.TOCManifestBasedGenerator;
 import org.bitsofinfo.s3.toc.TOCPayloadValidator;
 import org.bitsofinfo.s3.toc.TOCQueue;
+import org.bitsofinfo.s3.toc.TocInfo;
 import org.bitsofinfo.s3.toc.ValidatingTOCPayloadHandler;
+import org.bitsofinfo.s3.transport.DirectLeaseTransport;
+import org.bitsofinfo.s3.transport.Transport;
+import org.bitsofinfo.s3.transport.TransportFactory;
 import org.bitsofinfo.s3.util.CompressUtil;
 import org.bitsofinfo.s3.yas3fs.Yas3fsS3UploadMonitor;
 import org.springframework.util.StringUtils;
 
-import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.StorageClass;
 import com.google.common.base.Splitter;
@@ -66,6 +82,8 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 	private long initializedLastSentAtMS = -1;
 	
 	private long sendCurrentSummariesEveryMS = 60000;
+	private long selfMonitorEveryMS = 20000;
+	private boolean exitOnShutdown = true;
 	private long currentSummaryLastSentAtMS = -1;
 	
 	private boolean tocQueueConsumersArePaused = false;
@@ -74,6 +92,22 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 	private ShutdownInfo shutdownInfo = null;
 	private S3Util s3util = null;
 	private AmazonS3Client s3Client = null;
+	private Transport tocQueueTransport = null;
+	private MetricsHttpServer metricsHttpServer = null;
+	
+	// optional, one consumer pool per size band queue
+	private SizeBands sizeBands = null;
+	private int[] bandConsumerThreads = null;
+	private int stealAfterEmptyReceives = 3;
+	
+	private CompletionJournal completionJournal = null;
+	// for manifest shards (parses + stats the shard's lines)
+	private TOCManifestBasedGenerator manifestShardLineParser = null;
+	
+	// hand a crawl subtree's subdirectories back to the TOCQueue right away?
+	private boolean crawlSubtreeSplit = true;
+	
+	private Counter duplicatesSkipped = MetricsRegistry.getInstance().counter("worker_duplicates_skipped", "Redelivered TOC paths skipped as already completed by this worker");
 	
 	
 	public Worker(Properties props) {
@@ -84,11 +118,12 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 			
 			this.properties = props;
 			
+			// before anything registers metrics
+			MetricsRegistry.getInstance().configure(props);
+			
 			String snsControlTopicName = props.getProperty("aws.sns.control.topic.name");
 			this.awsAccessKey = 		 props.getProperty("aws.access.key");
 			this.awsSecretKey = 		 props.getProperty("aws.secret.key");
-			String userAccountPrincipalId = 	 props.getProperty("aws.account.principal.id");
-			String userARN = 					 props.getProperty("aws.user.arn");
 
 			this.sqsQueueName = 		 props.getProperty("aws.sqs.queue.name");
 			
@@ -96,9 +131,40 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 			
 			this.consumerThreadMinRequestsBeforeIdle = Integer.valueOf(props.getProperty("worker.toc.consumer.threads.min.requests.before.idle"));
 			
-			this.s3Client = new AmazonS3Client(new BasicAWSCredentials(this.awsAccessKey, this.awsSecretKey));
+			if (props.getProperty("worker.toc.consumer.threads.idle.after.ms") != null) {
+				this.declareWorkerIdleAtMinLastMsgReceivedMS = Long.valueOf(props.getProperty("worker.toc.consumer.threads.idle.after.ms"));
+			}
+			
+			if (props.getProperty("worker.self.monitor.every.ms") != null) {
+				this.selfMonitorEveryMS = Long.valueOf(props.getProperty("worker.self.monitor.every.ms"));
+			}
+			
+			if (props.getProperty("worker.current.summary.every.ms") != null) {
+				this.sendCurrentSummariesEveryMS = Long.valueOf(props.getProperty("worker.current.summary.every.ms"));
+			}
+			
+			if (props.getProperty("worker.exit.on.shutdown") != null) {
+				this.exitOnShutdown = Boolean.valueOf(props.getProperty("worker.exit.on.shutdown"));
+			}
+			
+			if (props.getProperty("worker.crawl.subtree.split") != null) {
+				this.crawlSubtreeSplit = Boolean.valueOf(props.getProperty("worker.crawl.subtree.split"));
+			}
+			
+			this.s3Client = s3util.newS3Client(props);
+			
+			// shared by all of our TOCQueue consumer threads
+			this.tocQueueTransport = TransportFactory.newTransport(props, TransportFactory.PURPOSE_TOC_QUEUE);
+			
+			// separately sized consumer pools per size band?
+			initSizeBands(props);
 			
 			mode2TOCHandlerMap = initTOCPayloadHandlers(props);
+			
+			// skip redelivered work already completed (optional)
+			if (props.getProperty("worker.completion.journal.file") != null) {
+				this.completionJournal = new CompletionJournal(new File(props.getProperty("worker.completion.journal.file")));
+			}
 
 			// handle init command
 			runInitOrDestroyCommand("initialize",props);
@@ -113,13 +179,17 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 			initWriteErrorMonitor(props);
 	
 			// spawn control channel
-			controlChannel = new ControlChannel(false, awsAccessKey, awsSecretKey, snsControlTopicName, userAccountPrincipalId, userARN, this);
+			controlChannel = new ControlChannel(false, TransportFactory.newTransport(props, TransportFactory.PURPOSE_CONTROL_CHANNEL), snsControlTopicName, this);
 			
 			// for tracking my info
 			this.myWorkerState = new WorkerState(
 										controlChannel.getMySourceIdentifier(), 
 										controlChannel.getMySourceIp());
 			
+			// metrics (optional http endpoint)
+			registerMetrics();
+			this.metricsHttpServer = MetricsHttpServer.startIfConfigured(props, "worker.metrics.http.port");
+			
 
 			// let master know we are initialized
 			myWorkerState.setCurrentMode(CCMode.INITIALIZED);
@@ -135,6 +205,111 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 		}
 	}
 	
+	private void initSizeBands(Properties props) throws Exception {
+		this.sizeBands = SizeBands.fromProperties(props);
+		if (this.sizeBands == null) {
+			return;
+		}
+		
+		if (this.tocQueueTransport instanceof DirectLeaseTransport) {
+			logger.warn("tocqueue.size.bands is ignored w/ the DirectLeaseTransport, leasing from a single queue");
+			this.sizeBands = null;
+			return;
+		}
+		
+		String[] counts = props.getProperty("worker.toc.consumer.threads.bands", "").split(",");
+		if (counts.length != this.sizeBands.getTotalBands()) {
+			throw new Exception("worker.toc.consumer.threads.bands must specify a thread count for each of the " + 
+								this.sizeBands.getTotalBands() + " tocqueue.size.bands");
+		}
+		
+		this.bandConsumerThreads = new int[counts.length];
+		this.totalConsumerThreads = 0;
+		for (int i=0; i<counts.length; i++) {
+			this.bandConsumerThreads[i] = Integer.valueOf(counts[i].trim());
+			this.totalConsumerThreads += this.bandConsumerThreads[i];
+			logger.debug("initSizeBands() band " + i + " " + this.sizeBands.describeBand(i) + " consumer threads: " + this.bandConsumerThreads[i]);
+		}
+		
+		if (props.getProperty("worker.toc.consumer.threads.steal.after.empty.receives") != null) {
+			this.stealAfterEmptyReceives = Integer.valueOf(props.getProperty("worker.toc.consumer.threads.steal.after.empty.receives"));
+		}
+	}
+	
+	/**
+	 * Creates our TOCQueue consumers, one pool per size band if configured, otherwise
+	 * 'totalConsumerThreads' all consuming the one TOC queue.
+	 */
+	private void spawnTOCQueueConsumers() throws Exception {
+		
+		if (this.sizeBands == null) {
+			for (int i=0; i<totalConsumerThreads; i++) {
+				tocQueueConsumers.add(new TOCQueue(true, tocQueueTransport, sqsQueueName, this));
+			}
+			return;
+		}
+		
+		// resolve every band's queue first so each pool knows where it can steal from
+		List<List<TOCQueue>> bandPools = new ArrayList<List<TOCQueue>>();
+		List<String> bandQueueUrls = new ArrayList<String>();
+		for (int band=0; band<sizeBands.getTotalBands(); band++) {
+			List<TOCQueue> pool = new ArrayList<TOCQueue>();
+			for (int i=0; i<bandConsumerThreads[band]; i++) {
+				pool.add(new TOCQueue(true, tocQueueTransport, SizeBands.bandQueueName(sqsQueueName, band), this));
+			}
+			bandPools.add(pool);
+			bandQueueUrls.add(tocQueueTransport.connectToQueue(SizeBands.bandQueueName(sqsQueueName, band), false, 1000));
+		}
+		
+		for (int band=0; band<bandPools.size(); band++) {
+			
+			// largest bands first, the tail of a phase is usually a few big files
+			List<String> stealFrom = new ArrayList<String>();
+			for (int other=bandQueueUrls.size()-1; other>=0; other--) {
+				if (other != band) {
+					stealFrom.add(bandQueueUrls.get(other));
+				}
+			}
+			
+			for (TOCQueue consumer : bandPools.get(band)) {
+				consumer.setStealFrom(stealFrom, this.stealAfterEmptyReceives);
+				tocQueueConsumers.add(consumer);
+			}
+		}
+	}
+	
+	private void registerMetrics() {
+		MetricsRegistry registry = MetricsRegistry.getInstance();
+		
+		registry.register(new Gauge("worker_writes_ok", "Paths written OK by this worker") {
+			public long getValue() { return myWorkerState.getTotalWritesOK(); }
+		});
+		registry.register(new Gauge("worker_writes_failed", "Paths that failed to write on this worker") {
+			public long getValue() { return myWorkerState.getTotalWritesFailed(); }
+		});
+		registry.register(new Gauge("worker_validates_ok", "Paths validated OK by this worker") {
+			public long getValue() { return myWorkerState.getTotalValidatesOK(); }
+		});
+		registry.register(new Gauge("worker_validates_failed", "Paths that failed validation on this worker") {
+			public long getValue() { return myWorkerState.getTotalValidatesFailed(); }
+		});
+		registry.register(new Gauge("worker_errors_tolerated", "Write errors tolerated by this worker") {
+			public long getValue() { return myWorkerState.getTotalErrorsTolerated(); }
+		});
+		registry.register(new Gauge("worker_consumer_threads", "TOCQueue consumer threads spawned") {
+			public long getValue() { return tocQueueConsumers.size(); }
+		});
+		registry.register(new Gauge("worker_consumer_threads_idle", "TOCQueue consumer threads currently considered idle") {
+			public long getValue() { return getIdleTOCQueueThreads(); }
+		});
+		registry.register(new Gauge("worker_consumers_paused", "1 if TOCQueue consumption is paused (i.e. backoff)") {
+			public long getValue() { return (tocQueueConsumersArePaused ? 1 : 0); }
+		});
+		registry.register(new Gauge("worker_mode", "Current CCMode ordinal of this worker") {
+			public long getValue() { return (myWorkerState.getCurrentMode() != null ? myWorkerState.getCurrentMode().ordinal() : -1); }
+		});
+	}
+	
 	private void sendInitializedState() throws Exception{
 		this.initializedLastSentAtMS = System.currentTimeMillis();
 		this.controlChannel.send(false, CCPayloadType.WORKER_CURRENT_MODE, CCMode.INITIALIZED);
@@ -225,6 +400,20 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 				m.setCheckEveryMS(Long.valueOf(props.getProperty("worker.write.backoff.monitor.yas3fs.checkEveryMS")));
 				m.setPathToLogFile(props.getProperty("worker.write.backoff.monitor.yas3fs.logFilePath"));
 			}
+			
+			if (writeBackoffMonitor instanceof SystemResourceBackoffMonitor) {
+				SystemResourceBackoffMonitor m = (SystemResourceBackoffMonitor)writeBackoffMonitor;
+				m.setCheckEveryMS(Long.valueOf(props.getProperty("worker.write.backoff.monitor.system.checkEveryMS", "1000")));
+				m.setResumeRatio(Double.valueOf(props.getProperty("worker.write.backoff.monitor.system.resumeRatio", "0.8")));
+				m.setMaxLoadPerCpu(Double.valueOf(props.getProperty("worker.write.backoff.monitor.system.maxLoadPerCpu", "0")));
+				m.setMaxIoPressure(Double.valueOf(props.getProperty("worker.write.backoff.monitor.system.maxIoPressure", "0")));
+				m.setMaxNicBytesPerSec(Long.valueOf(props.getProperty("worker.write.backoff.monitor.system.maxNicBytesPerSec", "0")));
+				m.setNic(props.getProperty("worker.write.backoff.monitor.system.nic"));
+				m.setMinFreeBytes(Long.valueOf(props.getProperty("worker.write.backoff.monitor.system.minFreeBytes", "0")));
+				m.setFreeSpacePath(props.getProperty("worker.write.backoff.monitor.system.freeSpacePath"));
+				m.setMaxRssBytes(Long.valueOf(props.getProperty("worker.write.backoff.monitor.system.maxRssBytes", "0")));
+				m.setRssPid(props.getProperty("worker.write.backoff.monitor.system.rssPid", "self"));
+			}
 		}
 	}
 	
@@ -313,6 +502,14 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 			runInitOrDestroyCommand("destroy",this.properties);
 		} catch(Exception ignore){}
 		
+		if (metricsHttpServer != null) {
+			metricsHttpServer.destroy();
+		}
+		
+		if (completionJournal != null) {
+			completionJournal.close();
+		}
+		
 	}
 
 
@@ -349,16 +546,15 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 				// set it
 				myWorkerState.setCurrentMode(masterMode);
 				
-				// if we are now WRITE/VALIDATE mode ensure we spawn our threads
-				if (myWorkerState.getCurrentMode() == CCMode.WRITE || myWorkerState.getCurrentMode() == CCMode.VALIDATE) {
+				// if we are now WRITE/VALIDATE/CONTINUOUS mode ensure we spawn our threads
+				if (myWorkerState.getCurrentMode() == CCMode.WRITE || myWorkerState.getCurrentMode() == CCMode.VALIDATE ||
+					myWorkerState.getCurrentMode() == CCMode.CONTINUOUS) {
 					
 					if (this.tocQueueConsumers.size() == 0) {
 					
 						logger.debug("CCMode switched to mode "+myWorkerState.getCurrentMode()+
 								": Worker spawing " + totalConsumerThreads + " separate TOCQueue consumer threads...");
-						for (int i=0; i<totalConsumerThreads; i++) {
-							tocQueueConsumers.add(new TOCQueue(true, awsAccessKey, awsSecretKey, sqsQueueName, this));
-						}
+						spawnTOCQueueConsumers();
 						
 						// start the queue threads
 						this.startConsuming();
@@ -447,11 +643,32 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 				logger.error("CMD_WORKER_SHUTDOWN recieved error attempting to parse payload value into ShutdownInfo: " + e.getMessage(),e);
 			}
 			
-			System.exit(0); // this will trigger shutdown hook
+			if (this.exitOnShutdown) {
+				System.exit(0); // this will trigger shutdown hook
+			} else {
+				logger.info("CMD_WORKER_SHUTDOWN received, worker.exit.on.shutdown=false so leaving it to our owner to destroy() us");
+			}
 		}
 	}
 
 	public void handlePayload(TOCPayload payload) throws Exception {
+		if (payload.tocInfo.isManifestShard()) {
+			handleManifestShard(payload);
+			return;
+		}
+		
+		if (payload.tocInfo.isCrawlSubtree()) {
+			handleCrawlSubtree(payload);
+			return;
+		}
+		
+		handleTocInfo(payload);
+	}
+	
+	/**
+	 * Returns true if the path was handled OK (or was already completed before)
+	 */
+	private boolean handleTocInfo(TOCPayload payload) throws Exception {
 		logger.info("handlePayload() received TOCPayload: mode: "+payload.mode + " filePath:" + payload.tocInfo.getPath());
 
 		TOCPayloadHandler handler = this.mode2TOCHandlerMap.get(payload.mode);
@@ -460,7 +677,219 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 			throw new Exception("Cannot handle payload: " + payload.mode + " no TOCPayloadHandler configured for this MODE!");
 		}
 		
+		// redelivered (SQS is at-least-once) and already done by us?
+		if (this.completionJournal != null && this.completionJournal.isCompleted(payload.mode, payload.tocInfo)) {
+			logger.debug("handlePayload() skipping already completed: mode: "+payload.mode + " filePath:" + payload.tocInfo.getPath());
+			this.myWorkerState.addDuplicateSkipped(payload.mode);
+			this.duplicatesSkipped.inc();
+			return true;
+		}
+		
+		this.myWorkerState.clearLastTocPathOpResult();
+		
 		handler.handlePayload(payload,this.myWorkerState);
+		
+		if (!payload.tocInfo.isDirectory()) {
+			this.myWorkerState.addBytesProcessed(payload.mode, payload.tocInfo.getSize());
+		}
+		
+		boolean ok = this.myWorkerState.isLastTocPathOpOK();
+		if (this.completionJournal != null && ok) {
+			this.completionJournal.completed(payload.mode, payload.tocInfo);
+		}
+		return ok;
+	}
+	
+	/**
+	 * Reads the lines of the shard straight from the (shared) manifest 
+	 * and handles each entry locally as if it came over the TOCQueue, 
+	 * which keeps the shard's message invisible for as long as this takes
+	 */
+	private void handleManifestShard(final TOCPayload payload) throws Exception {
+		ManifestShard shard = payload.tocInfo.getManifestShard();
+		
+		if (this.completionJournal != null && this.completionJournal.isCompleted(payload.mode, payload.tocInfo)) {
+			logger.info("handleManifestShard() skipping already completed shard: mode: "+payload.mode + " shard:" + shard);
+			this.myWorkerState.addDuplicateSkipped(payload.mode);
+			this.duplicatesSkipped.inc();
+			return;
+		}
+		
+		// the manifest may be mounted elsewhere on this worker
+		File manifestFile = new File(shard.manifestFile);
+		if (this.properties.getProperty("worker.manifest.shard.file") != null) {
+			manifestFile = new File(this.properties.getProperty("worker.manifest.shard.file"));
+		}
+		
+		final TOCManifestBasedGenerator lineParser = getManifestShardLineParser();
+		final long[] counts = new long[3]; // ok, failed, missing
+		long start = System.currentTimeMillis();
+		
+		long lines = new ManifestReader(manifestFile).readRange(shard.start, shard.end, new ManifestReader.LineHandler() {
+			public void handle(String line) throws Exception {
+				if (line.trim().isEmpty()) {
+					return;
+				}
+				
+				TocInfo entry = lineParser.toTocInfo(line);
+				if (entry == null) {
+					counts[2]++;
+					return;
+				}
+				
+				TOCPayload entryPayload = new TOCPayload();
+				entryPayload.mode = payload.mode;
+				entryPayload.tocInfo = entry;
+				
+				if (handleTocInfo(entryPayload)) {
+					counts[0]++;
+				} else {
+					counts[1]++;
+				}
+			}
+		});
+		
+		this.myWorkerState.addManifestShardCompleted(payload.mode);
+		
+		logger.info("handleManifestShard() mode: " + payload.mode + " shard:" + shard + " complete in " + 
+				(System.currentTimeMillis()-start) + "ms lines: " + lines + " ok: " + counts[0] + 
+				" failed: " + counts[1] + " missing: " + counts[2]);
+		
+		if (this.completionJournal != null) {
+			this.completionJournal.completed(payload.mode, payload.tocInfo);
+		}
+	}
+	
+	/**
+	 * Crawls the subtree locally and handles each entry found as if it came 
+	 * over the TOCQueue. When crawlSubtreeSplit is on the subtree's subdirectories
+	 * are sent back to the TOCQueue as subtrees of their own as soon as they are
+	 * listed, so other consumers/workers share the load and no one subtree runs
+	 * for long, any that cannot be sent are crawled here
+	 */
+	private void handleCrawlSubtree(TOCPayload payload) throws Exception {
+		
+		if (this.completionJournal != null && this.completionJournal.isCompleted(payload.mode, payload.tocInfo)) {
+			logger.info("handleCrawlSubtree() skipping already completed subtree: mode: "+payload.mode + " path:" + payload.tocInfo.getPath());
+			this.myWorkerState.addDuplicateSkipped(payload.mode);
+			this.duplicatesSkipped.inc();
+			return;
+		}
+		
+		File sourceRoot = new File(this.properties.getProperty("worker.crawl.source.dir", 
+										this.properties.getProperty("tocPayloadHandler.source.dir.root","")));
+		if (!sourceRoot.isDirectory()) {
+			throw new Exception("worker.crawl.source.dir or tocPayloadHandler.source.dir.root must be " +
+					"an existing dir to handle crawl subtrees: " + sourceRoot.getAbsolutePath());
+		}
+		String sourceRootPath = sourceRoot.getAbsolutePath();
+		
+		long start = System.currentTimeMillis();
+		long entries = 0;
+		long bytes = 0;
+		long ok = 0;
+		long failed = 0;
+		int split = 0;
+		
+		Deque<File> pending = new ArrayDeque<File>();
+		pending.push(new File(sourceRootPath + payload.tocInfo.getPath()));
+		
+		boolean splitting = this.crawlSubtreeSplit;
+		
+		while (!pending.isEmpty()) {
+			
+			File dir = pending.pop();
+			
+			List<File> nodes = new ArrayList<File>();
+			nodes.add(dir);
+			File[] children = dir.listFiles();
+			if (children == null) {
+				logger.error("handleCrawlSubtree() cannot list (permission issue?): " + dir.getAbsolutePath());
+			} else {
+				nodes.addAll(Arrays.asList(children));
+			}
+			
+			for (File node : nodes) {
+				if (node.getName().startsWith(".")) {
+					continue;
+				}
+				
+				// subdirs are handed back, or handled when crawled
+				if (node != dir && node.isDirectory()) {
+					if (splitting && sendCrawlSubtree(node, sourceRootPath, payload.mode)) {
+						split++;
+					} else {
+						splitting = false;
+						pending.push(node);
+					}
+					continue;
+				}
+				
+				TocInfo entry = new TocInfo(node.getAbsolutePath().replace(sourceRootPath, ""), (node.isFile() ? node.length() : 0));
+				entry.setIsDirectory(node.isDirectory());
+				entries++;
+				bytes += entry.getSize();
+				
+				TOCPayload entryPayload = new TOCPayload();
+				entryPayload.mode = payload.mode;
+				entryPayload.tocInfo = entry;
+				
+				if (handleTocInfo(entryPayload)) {
+					ok++;
+				} else {
+					failed++;
+				}
+			}
+		}
+		
+		this.myWorkerState.addCrawled(payload.mode, entries, bytes);
+		
+		logger.info("handleCrawlSubtree() mode: " + payload.mode + " subtree:" + payload.tocInfo.getPath() + " complete in " + 
+				(System.currentTimeMillis()-start) + "ms entries: " + entries + " bytes: " + bytes + " ok: " + ok + 
+				" failed: " + failed + " split off: " + split);
+		
+		if (this.completionJournal != null) {
+			this.completionJournal.completed(payload.mode, payload.tocInfo);
+		}
+	}
+	
+	/**
+	 * False if it could not be sent (i.e. the transport does not support it)
+	 */
+	private boolean sendCrawlSubtree(File dir, String sourceRootPath, MODE mode) {
+		TocInfo subtree = new TocInfo(dir.getAbsolutePath().replace(sourceRootPath, ""), 0);
+		subtree.setIsDirectory(true);
+		subtree.setIsCrawlSubtree(true);
+		try {
+			this.tocQueueConsumers.get(0).send(subtree, mode); // band 0 when size banded (subtrees are size 0)
+			return true;
+		} catch(Exception e) {
+			logger.warn("handleCrawlSubtree() cannot send subtree back to the TOCQueue, crawling it here: " + 
+					subtree.getPath() + " error: " + e.getMessage());
+			return false;
+		}
+	}
+	
+	private synchronized TOCManifestBasedGenerator getManifestShardLineParser() {
+		if (this.manifestShardLineParser == null) {
+			String sourceDir = this.properties.getProperty("worker.manifest.shard.source.dir", 
+															this.properties.getProperty("tocPayloadHandler.source.dir.root"));
+			if (sourceDir == null) {
+				throw new RuntimeException("worker.manifest.shard.source.dir or tocPayloadHandler.source.dir.root " +
+						"must be set to handle manifest shards");
+			}
+			this.manifestShardLineParser = new TOCManifestBasedGenerator();
+			this.manifestShardLineParser.setRootDir(new File(sourceDir));
+		}
+		return this.manifestShardLineParser;
+	}
+	
+	private int getPostWriteLocalValidatesPending() {
+		TOCPayloadHandler handler = this.mode2TOCHandlerMap.get(MODE.WRITE);
+		if (handler instanceof FileCopyTOCPayloadHandler) {
+			return ((FileCopyTOCPayloadHandler)handler).getPostWriteLocalValidatesPending();
+		}
+		return 0;
 	}
 	
 	private Map<MODE,TOCPayloadHandler> initTOCPayloadHandlers(Properties props) throws Exception {
@@ -497,6 +926,23 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 			
 			fcHandler.setRetriesSleepMS(Long.valueOf(props.getProperty("tocPayloadHandler.write.retries.sleep.ms")));
 			
+			// run the commands through a pool of long lived shells rather than a fork per command?
+			if (Integer.valueOf(props.getProperty("tocPayloadHandler.write.coprocess.shells", "0")) > 0) {
+				fcHandler.setExecutor(new CoprocessCommandExecutor(
+						Integer.valueOf(props.getProperty("tocPayloadHandler.write.coprocess.shells"))));
+			}
+			
+			// per command timeouts (ms), w/ the default for all commands
+			CommandExecutor cmdExecutor = fcHandler.getExecutor();
+			cmdExecutor.setDefaultTimeoutMS(Long.valueOf(props.getProperty("tocPayloadHandler.write.timeout.ms", "0")));
+			for (String cmd : new String[]{"mkdir","rsync","cp","chown","chmod"}) {
+				if (props.getProperty("tocPayloadHandler.write.timeout."+cmd+".ms") != null) {
+					cmdExecutor.setTimeoutMS(cmd, Long.valueOf(props.getProperty("tocPayloadHandler.write.timeout."+cmd+".ms")));
+				}
+			}
+			cmdExecutor.setMaxCaptureChars(Integer.valueOf(props.getProperty("tocPayloadHandler.write.output.max.chars", 
+					String.valueOf(CommandExecutor.DEFAULT_MAX_CAPTURE_CHARS))));
+			
 			
 			if (props.getProperty("tocPayloadHandler.write.post.success.validate.local.dir") != null) {
 				
@@ -515,6 +961,16 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 				// set validator (note its not configured for S3! only local checks)
 				fcHandler.setTocPayloadValidator(new TOCPayloadValidator());
 				
+				// defer the validates to their own pool, rechecking until the file shows up in the cache
+				fcHandler.setPostWriteLocalValidateDelayMS(
+						Long.valueOf(props.getProperty("tocPayloadHandler.write.post.success.validate.delay.ms", "2000")));
+				fcHandler.setPostWriteLocalValidateRecheckMS(
+						Long.valueOf(props.getProperty("tocPayloadHandler.write.post.success.validate.recheck.ms", "2000")));
+				fcHandler.setPostWriteLocalValidateMaxChecks(
+						Integer.valueOf(props.getProperty("tocPayloadHandler.write.post.success.validate.max.checks", "5")));
+				fcHandler.setPostWriteLocalValidateThreads(
+						Integer.valueOf(props.getProperty("tocPayloadHandler.write.post.success.validate.threads", "2")));
+				
 			}
 					
 			if (props.getProperty("tocPayloadHandler.write.rsync.tolerable.error.regex") != null) {
@@ -558,7 +1014,10 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 			
 			vhandler.setS3BucketName(props.getProperty("tocPayloadHandler.validate.s3.bucketName"));
 			
-			vhandler.setS3Client(new AmazonS3Client(new BasicAWSCredentials(this.awsAccessKey, this.awsSecretKey)));
+			vhandler.setS3Client(s3util.newS3Client(props));
+			
+			// S3 checks in flight concurrently w/ the local checks (validateEverywhere, validateLocallyThenS3OnFailure)
+			vhandler.setS3MaxInflight(Integer.valueOf(props.getProperty("tocPayloadHandler.validate.s3.max.inflight", "10")));
 			
 			return vhandler;
 		}
@@ -595,6 +1054,13 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 														   myWorkerState.getTotalWriteMonitorErrors(),
 														   myWorkerState.getTotalPostWriteLocalValidateFailures(),
 														   myWorkerState.getTotalWritesProcessed());
+			writeSummary.bytes = myWorkerState.getTotalBytesWritesProcessed();
+			writeSummary.duplicatesSkipped = myWorkerState.getTotalWriteDuplicatesSkipped();
+			writeSummary.manifestShards = myWorkerState.getTotalWriteManifestShards();
+			writeSummary.crawledEntries = myWorkerState.getTotalWriteCrawledEntries();
+			writeSummary.crawledBytes = myWorkerState.getTotalWriteCrawledBytes();
+			writeSummary.commandTimeouts = myWorkerState.getTotalCommandTimeouts();
+			writeSummary.processesKilled = myWorkerState.getTotalProcessesKilled();
 	
 			return gson.toJson(writeSummary);
 			
@@ -608,6 +1074,12 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 					   									  	  myWorkerState.getTotalWriteMonitorErrors(),
 					   									      myWorkerState.getTotalPostWriteLocalValidateFailures(),
 					   									  	  myWorkerState.getTotalValidationsProcessed());
+			validateSummary.bytes = myWorkerState.getTotalBytesValidationsProcessed();
+			validateSummary.duplicatesSkipped = myWorkerState.getTotalValidateDuplicatesSkipped();
+			validateSummary.manifestShards = myWorkerState.getTotalValidateManifestShards();
+			validateSummary.crawledEntries = myWorkerState.getTotalValidateCrawledEntries();
+			validateSummary.crawledBytes = myWorkerState.getTotalValidateCrawledBytes();
+			validateSummary.validateFailuresByStratum = myWorkerState.getValidateFailuresByStratum();
 
 			return gson.toJson(validateSummary);
 		}
@@ -624,7 +1096,12 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 		while (running) {
 			try {
 
-				Thread.currentThread().sleep(20000);
+				Thread.currentThread().sleep(this.selfMonitorEveryMS);
+				
+				// make completions recorded so far durable
+				if (this.completionJournal != null) {
+					this.completionJournal.sync();
+				}
 				
 				// if just in Initialized/Idle state do nothing.
 				if (this.myWorkerState.getCurrentMode() == CCMode.INITIALIZED ||
@@ -662,6 +1139,11 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 							continue;
 						}
 						
+						// deferred post write validates still outstanding? their failures belong in the summary
+						if (getPostWriteLocalValidatesPending() > 0) {
+							continue;
+						}
+						
 						// final of update write error monitor if exists
 						if (this.writeErrorMonitor != null) {
 							this.myWorkerState.addWriteMonitorErrors(
@@ -721,6 +1203,19 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 				
 				
 				
+				/**
+				 * CONTINUOUS: never done, we write changes until shutdown
+				 */
+				if (this.myWorkerState.getCurrentMode() == CCMode.CONTINUOUS) {
+					long now = System.currentTimeMillis();
+					if ((now - this.currentSummaryLastSentAtMS) > this.sendCurrentSummariesEveryMS) {
+						// send out our summary
+						this.currentSummaryLastSentAtMS = now;
+						String asJson = getResultsSummaryAsJSON(MODE.WRITE);
+						this.controlChannel.send(false, CCPayloadType.WORKER_WRITES_CURRENT_SUMMARY, asJson);
+					}
+				}
+				
 				/**
 				 * VALIDATES DONE?
 				 */
@@ -798,4 +1293,8 @@ public class Worker implements TOCPayloadHandler, CCPayloadHandler, Runnable {
 	public void handlePayload(TOCPayload payload,WorkerState workerState) throws Exception {
 		this.handlePayload(payload);
 	}
+	
+	public WorkerState getWorkerState() {
+		return myWorkerState;
+	}
 }
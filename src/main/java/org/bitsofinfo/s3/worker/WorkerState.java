@@ -1,12 +1,15 @@
 package org.bitsofinfo.s3.worker;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.bitsofinfo.s3.cmd.TocPathOpResult;
 import org.bitsofinfo.s3.control.CCMode;
+import org.bitsofinfo.s3.toc.TOCPayload.MODE;
 
 public class WorkerState {
 	
@@ -20,6 +23,22 @@ public class WorkerState {
 	private List<TocPathOpResult> tocPathsValidated =new ArrayList<TocPathOpResult>();
 	private List<TocPathOpResult> tocPathsWriteFailures = new ArrayList<TocPathOpResult>();
 	private List<TocPathOpResult> tocPathsValidateFailures = new ArrayList<TocPathOpResult>();
+	private long totalBytesWritesProcessed = 0;
+	private long totalBytesValidationsProcessed = 0;
+	private long totalWriteDuplicatesSkipped = 0;
+	private long totalValidateDuplicatesSkipped = 0;
+	private long totalWriteManifestShards = 0;
+	private long totalValidateManifestShards = 0;
+	private long totalWriteCrawledEntries = 0;
+	private long totalWriteCrawledBytes = 0;
+	private long totalValidateCrawledEntries = 0;
+	private long totalValidateCrawledBytes = 0;
+	private long totalCommandTimeouts = 0;
+	private long totalProcessesKilled = 0;
+	private Map<String,Integer> validateFailuresByStratum = new HashMap<String,Integer>();
+	
+	// outcome of the last TocPathOpResult recorded by the calling thread
+	private ThreadLocal<Boolean> lastTocPathOpOK = new ThreadLocal<Boolean>();
 
 	public WorkerState(String workerHostSourceId, String workerIP) {
 		super();
@@ -69,10 +88,12 @@ public class WorkerState {
 	}
 	
 	public synchronized void addTocPathWritten(TocPathOpResult path) {
+		this.lastTocPathOpOK.set(true);
 		this.tocPathsWritten.add(path);
 	}
 	
 	public synchronized void addTocPathValidated(TocPathOpResult path) {
+		this.lastTocPathOpOK.set(true);
 		this.tocPathsValidated.add(path);
 	}
 	
@@ -81,13 +102,142 @@ public class WorkerState {
 	}
 	
 	public synchronized void addTocPathValidateFailure(TocPathOpResult path) {
+		this.lastTocPathOpOK.set(false);
 		this.tocPathsValidateFailures.add(path);
 	}
 	
+	public synchronized void addValidateFailureInStratum(String stratum) {
+		Integer failures = this.validateFailuresByStratum.get(stratum);
+		this.validateFailuresByStratum.put(stratum, (failures != null ? failures + 1 : 1));
+	}
+	
+	public synchronized Map<String,Integer> getValidateFailuresByStratum() {
+		return new HashMap<String,Integer>(this.validateFailuresByStratum);
+	}
+	
 	public synchronized void addTocPathWriteFailure(TocPathOpResult path) {
+		this.lastTocPathOpOK.set(false);
 		this.tocPathsWriteFailures.add(path);
 	}
 	
+	/**
+	 * File bytes handled (successfully or not) in the given mode
+	 */
+	public synchronized void addBytesProcessed(MODE mode, long bytes) {
+		if (mode == MODE.WRITE) {
+			this.totalBytesWritesProcessed += bytes;
+		} else if (mode == MODE.VALIDATE) {
+			this.totalBytesValidationsProcessed += bytes;
+		}
+	}
+	
+	/**
+	 * Clears the outcome recorded by the calling thread, call before
+	 * handing a TOCPayload to a TOCPayloadHandler
+	 */
+	public void clearLastTocPathOpResult() {
+		this.lastTocPathOpOK.remove();
+	}
+	
+	/**
+	 * True if the last path result recorded by the calling thread
+	 * (since clearLastTocPathOpResult()) was a success
+	 */
+	public boolean isLastTocPathOpOK() {
+		return Boolean.TRUE.equals(this.lastTocPathOpOK.get());
+	}
+	
+	/**
+	 * A redelivered TOCPayload already completed by this worker was skipped
+	 */
+	public synchronized void addDuplicateSkipped(MODE mode) {
+		if (mode == MODE.WRITE) {
+			this.totalWriteDuplicatesSkipped++;
+		} else if (mode == MODE.VALIDATE) {
+			this.totalValidateDuplicatesSkipped++;
+		}
+	}
+	
+	/**
+	 * All entries of a manifest shard were handled
+	 */
+	public synchronized void addManifestShardCompleted(MODE mode) {
+		if (mode == MODE.WRITE) {
+			this.totalWriteManifestShards++;
+		} else if (mode == MODE.VALIDATE) {
+			this.totalValidateManifestShards++;
+		}
+	}
+	
+	public synchronized long getTotalWriteManifestShards() {
+		return totalWriteManifestShards;
+	}
+	
+	public synchronized long getTotalValidateManifestShards() {
+		return totalValidateManifestShards;
+	}
+	
+	/**
+	 * Commands that timed out and the processes killed as a result
+	 */
+	public synchronized void addCommandTimeouts(int timeouts, int processesKilled) {
+		this.totalCommandTimeouts += timeouts;
+		this.totalProcessesKilled += processesKilled;
+	}
+	
+	public synchronized long getTotalCommandTimeouts() {
+		return totalCommandTimeouts;
+	}
+	
+	public synchronized long getTotalProcessesKilled() {
+		return totalProcessesKilled;
+	}
+	
+	/**
+	 * Entries (files + dirs) and file bytes found crawling a subtree
+	 */
+	public synchronized void addCrawled(MODE mode, long entries, long bytes) {
+		if (mode == MODE.WRITE) {
+			this.totalWriteCrawledEntries += entries;
+			this.totalWriteCrawledBytes += bytes;
+		} else if (mode == MODE.VALIDATE) {
+			this.totalValidateCrawledEntries += entries;
+			this.totalValidateCrawledBytes += bytes;
+		}
+	}
+	
+	public synchronized long getTotalWriteCrawledEntries() {
+		return totalWriteCrawledEntries;
+	}
+	
+	public synchronized long getTotalWriteCrawledBytes() {
+		return totalWriteCrawledBytes;
+	}
+	
+	public synchronized long getTotalValidateCrawledEntries() {
+		return totalValidateCrawledEntries;
+	}
+	
+	public synchronized long getTotalValidateCrawledBytes() {
+		return totalValidateCrawledBytes;
+	}
+	
+	public synchronized long getTotalWriteDuplicatesSkipped() {
+		return totalWriteDuplicatesSkipped;
+	}
+	
+	public synchronized long getTotalValidateDuplicatesSkipped() {
+		return totalValidateDuplicatesSkipped;
+	}
+	
+	public synchronized long getTotalBytesWritesProcessed() {
+		return totalBytesWritesProcessed;
+	}
+	
+	public synchronized long getTotalBytesValidationsProcessed() {
+		return totalBytesValidationsProcessed;
+	}
+	
 	public int getTotalWritesProcessed() {
 		// note we do not include "tolerated" here because they are part of the OKs
 		// and the "tolerated" stuff is just supplemental information
@@ -1,16 +1,23 @@
 	package org.bitsofinfo.s3.yas3fs;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Set;
-import java.util.Stack;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,69 +35,113 @@ import org.bitsofinfo.s3.worker.WriteMonitorError;
  * Monitors the Yas3fs log for entries like this looking for the s3_queue being zero
  * meaning that there are no uploads to s3 in progress. It also can act as a WriteBackoffMonitor
  * to monitor when the total number in s3_queue gets to high.
- * 
+ *
  * INFO entries, mem_size, disk_size, download_queue, prefetch_queue, s3_queue: 1, 0, 0, 0, 0, 0
- * 
+ *
  * Also has the ability to monitor the number of outgoing 443 SSL connections (to S3)
  * and can instruct to backoff if these are > that whatever the max is configured for
- *	
+ *
+ * The log is tailed incrementally: every checkEveryMS only the bytes appended since the
+ * last check are read and each new line is run through precompiled matchers that update
+ * the latest s3_queue/multipart values and collect errors. Rotation (the log being renamed
+ * and recreated, or truncated) is detected by comparing the open file against the path.
+ * Connections are counted from /proc/net/tcp{,6} (falling back to netstat where there is
+ * no /proc), so checks every ~1s are cheap.
+ *
  * @author bitsofinfo
  *
  */
 public class Yas3fsS3UploadMonitor implements WriteMonitor, WriteBackoffMonitor, WriteErrorMonitor, Runnable {
-	
+
 	private static final Logger logger = Logger.getLogger(Yas3fsS3UploadMonitor.class);
 
-	private long checkEveryMS = 10000;
+	// how much of an existing log is read when we first open it
+	private static final int INITIAL_TAIL_BYTES = 32768;
+
+	// leading bytes compared to detect the log having been rotated
+	private static final int ROTATION_CHECK_BYTES = 128;
+
+	// max errors retained between getWriteErrors() calls
+	private static final int MAX_RETAINED_ERRORS = 1000;
+
+	private static final Pattern S3_QUEUE_SIZE_PATTERN =
+			Pattern.compile(".+s3_queue: \\d+, \\d+, \\d+, \\d+, \\d+, (\\d+).*");
+
+	private static final Pattern MULTIPART_UPLOADS_PATTERN =
+			Pattern.compile("\\d{4}-\\d{1,2}-\\d{1,2}\\s+\\d{1,2}:\\d{1,2}:\\d{1,2},\\d{3}.+multipart_uploads_in_progress\\s+=\\s+(\\d+)");
+
+	private static final Pattern[] FAILURE_PATTERNS = new Pattern[] {
+		// 2014-10-22 19:11:29,799 ERROR PLUGIN do_cmd_on_s3_now_w_retries FAILED
+		Pattern.compile("(\\d{4}-\\d{1,2}-\\d{1,2}\\s+\\d{1,2}:\\d{1,2}:\\d{1,2},\\d{3}).+(do_cmd_on_s3_now_w_retries FAILED.*)"),
+	};
+
+	private static final Pattern NETSTAT_PATTERN = Pattern.compile("443\\s+ESTABLISHED");
+
+	private static final String[] PROC_NET_TCP_FILES = new String[]{"/proc/net/tcp", "/proc/net/tcp6"};
+	private static final String HTTPS_PORT_HEX = "01BB"; // 443
+	private static final String TCP_ESTABLISHED = "01";
+
+	private long checkEveryMS = 1000;
 	private int isIdleWhenNZeroUploads = 0; // count of the total number of s3UploadCounts entries must be ZERO to declare we are idel
-	
+
 	private String pathToLogFile = null;
 	private boolean running = true;
 	private Thread monitorThread = null;
-	private String latestLogTail = null;
-	
+
+	// tail state, only touched by the monitor thread
+	private RandomAccessFile logFile = null;
+	private long logPosition = 0;
+	private ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+	private byte[] readBuffer = new byte[65536];
+
 	private SimpleDateFormat logDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
-	
+
+	// rolling state fed by the tailed lines
+	private volatile int latestS3UploadQueueSize = -1;
+	private volatile int latestMultipartUploads = 0;
+	private Set<WriteMonitorError> recentErrors = new LinkedHashSet<WriteMonitorError>();
+
 	private Integer backoffWhenTotalS3Uploads = 10;
-	
+
 	private Integer backoffWhenTotalHTTPSConns = 10;
-	private int latestHTTPSConnTotal = 0;
-	
+	private volatile int latestHTTPSConnTotal = 0;
+
 	private Integer backoffWhenMultipartUploads = 2;
-	
-	private Stack<Integer> s3UploadCounts = new Stack<Integer>();
-	
+
+	// most recent -> oldest, only the last isIdleWhenNZeroUploads+1 are kept
+	private ArrayDeque<Integer> s3UploadCounts = new ArrayDeque<Integer>();
+
 	public Yas3fsS3UploadMonitor() {
 		monitorThread = new Thread(this);
 	}
-	
-	
+
+
 	public Yas3fsS3UploadMonitor(String pathToLogFile, long checkEveryMS) {
-		this.pathToLogFile = pathToLogFile;	
+		this.pathToLogFile = pathToLogFile;
 		this.checkEveryMS = checkEveryMS;
 		monitorThread = new Thread(this);
 	}
-	
-	
+
+
 	public Yas3fsS3UploadMonitor(String pathToLogFile, long checkEveryMS, int isIdleWhenNZeroUploads) {
-		this.pathToLogFile = pathToLogFile;	
+		this.pathToLogFile = pathToLogFile;
 		this.checkEveryMS = checkEveryMS;
 		this.isIdleWhenNZeroUploads = isIdleWhenNZeroUploads;
 		monitorThread = new Thread(this);
 	}
-	
-	
+
+
 	public Yas3fsS3UploadMonitor(String pathToLogFile, int backoffWhenTotalS3Uploads, long checkEveryMS) {
-		this.pathToLogFile = pathToLogFile;	
+		this.pathToLogFile = pathToLogFile;
 		this.checkEveryMS = checkEveryMS;
 		this.backoffWhenTotalS3Uploads = backoffWhenTotalS3Uploads;
 		monitorThread = new Thread(this);
 	}
-	
+
 	public void start() {
 		monitorThread.start();
 	}
-	
+
 	public void destroy() {
 		this.running = false;
 	}
@@ -98,156 +149,369 @@ public class Yas3fsS3UploadMonitor implements WriteMonitor, WriteBackoffMonitor,
 	public void run() {
 		while(running) {
 			try {
-				
+
 				Thread.currentThread().sleep(this.checkEveryMS);
-				
-				
+
 				try {
 					/**
 					 * Check the log file
 					 */
-					RandomAccessFile file = new RandomAccessFile(new File(pathToLogFile), "r");
-					byte[] buffer = new byte[32768]; // read ~32k
-					if (file.length() >= buffer.length) {
-						file.seek(file.length()-buffer.length);
-					}
-					file.read(buffer, 0, buffer.length);	
-					file.close();
-					
-					this.latestLogTail = new String(buffer,"UTF-8");
+					tailLogFile();
+
 				} catch(Exception e) {
 					logger.error("Unexpected error tailing yas3fs.log: " + this.pathToLogFile + " " + e.getMessage(),e);
+					closeLogFile();
 				}
-				
+
 				try {
 					/**
-					 * Check netstat
+					 * Check outgoing HTTPS conns
 					 */
-					
-					CommandLine cmdLine = new CommandLine("netstat");
-					cmdLine.addArgument("-na");
-					
-					final StringWriter stdOut = new StringWriter();
-					final StringWriter stdErr = new StringWriter();
-					DefaultExecutor executor = new DefaultExecutor();
-					executor.setStreamHandler(new ExecuteStreamHandler() {
-							public void setProcessOutputStream(InputStream is) throws IOException {IOUtils.copy(is, stdOut, "UTF-8");}
-							public void setProcessErrorStream(InputStream is) throws IOException {IOUtils.copy(is, stdErr, "UTF-8");}
-							public void stop() throws IOException {}
-							public void start() throws IOException {}
-							public void setProcessInputStream(OutputStream os) throws IOException {}
-						});
-						
-					logger.trace("Executing: " + cmdLine.toString());
-						
-					int exitValue = executor.execute(cmdLine);
-					if (exitValue > 0) {
-						logger.error("Netstat check ERROR: exitCode: "+exitValue+" cmd=" + cmdLine.toString());
-					}
-					
-					String netstatOutput = stdOut.toString();
-					Pattern netstatPattern = Pattern.compile("443\\s+ESTABLISHED");
-					Matcher netstatMatcher = netstatPattern.matcher(netstatOutput);
-					int total = 0;
-					while (netstatMatcher.find()) {
-						total += 1;
-					}
-					
-					logger.trace("Latest total of Netstat outgoing HTTPS connections = " + total);
+					int total = countHTTPSConnections();
+
+					logger.trace("Latest total of outgoing HTTPS connections = " + total);
 					this.latestHTTPSConnTotal = total;
-					
+
 				} catch(Exception e) {
-					logger.error("Unexpected error netstating current HTTPS conns: " + this.pathToLogFile + " " + e.getMessage(),e);
+					logger.error("Unexpected error counting current HTTPS conns: " + this.pathToLogFile + " " + e.getMessage(),e);
 				}
-				
+
 			} catch(Exception e) {
 				logger.error("Unexpected error: " + this.pathToLogFile + " " + e.getMessage(),e);
 			}
 		}
+
+		closeLogFile();
 	}
-	
-	public int getS3UploadQueueSize() {
-		if (this.latestLogTail != null) {
-			Pattern s3QueueSizePatten = Pattern.compile(".+s3_queue: \\d+, \\d+, \\d+, \\d+, \\d+, (\\d+).*");
-			Matcher m = s3QueueSizePatten.matcher(this.latestLogTail);
-			int lastMatch = -1;
-			
-			while (m.find()) {
-			    lastMatch = Integer.valueOf(m.group(1).trim());
+
+	/**
+	 * Reads everything appended to the log since the last call, following
+	 * rotation, and hands each complete line to handleLogLine()
+	 */
+	private void tailLogFile() throws Exception {
+		File path = new File(pathToLogFile);
+
+		if (logFile == null) {
+			if (!path.exists()) {
+				return;
 			}
-			
-			return lastMatch;
+			openLogFile(path, true);
+		}
+
+		// truncated in place
+		if (logFile.length() < logPosition) {
+			logger.debug("tailLogFile() log truncated, re-reading from start: " + pathToLogFile);
+			logPosition = 0;
+			partialLine.reset();
+		}
+
+		readNewLines();
+
+		// rotated? the path no longer refers to what we have open (we are now at
+		// the end of the old file). Drain done above, so switch to the new one
+		if (isRotated(path)) {
+			logger.debug("tailLogFile() log rotated, following new file: " + pathToLogFile);
+			closeLogFile();
+			openLogFile(path, false);
+			readNewLines();
 		}
-		
-		return -1;
 	}
-	
+
+	/**
+	 * No inodes in java 6, so the path is a different file than the one we
+	 * have open if it is shorter or starts differently (yas3fs lines begin
+	 * with a millisecond timestamp)
+	 */
+	private boolean isRotated(File path) throws Exception {
+		if (!path.exists()) {
+			return false; // mid rotation, keep the one we have
+		}
+
+		RandomAccessFile current = new RandomAccessFile(path, "r");
+		try {
+			if (current.length() < logFile.length()) {
+				return true;
+			}
+
+			byte[] ours = new byte[ROTATION_CHECK_BYTES];
+			byte[] theirs = new byte[ROTATION_CHECK_BYTES];
+			logFile.seek(0);
+			int len = logFile.read(ours);
+			logFile.seek(logPosition);
+			if (len <= 0) {
+				return false;
+			}
+			current.readFully(theirs, 0, len);
+			return !Arrays.equals(ours, theirs);
+
+		} finally {
+			current.close();
+		}
+	}
+
+	private void openLogFile(File path, boolean initialTail) throws Exception {
+		logFile = new RandomAccessFile(path, "r");
+		logPosition = 0;
+		partialLine.reset();
+
+		// first open of an existing log, only pick up its tail, skipping the partial first line
+		if (initialTail && logFile.length() > INITIAL_TAIL_BYTES) {
+			logFile.seek(logFile.length() - INITIAL_TAIL_BYTES);
+			logFile.readLine(); // bytes only, we just want to get past the next \n
+			logPosition = logFile.getFilePointer();
+		}
+	}
+
+	private void closeLogFile() {
+		if (logFile != null) {
+			try {
+				logFile.close();
+			} catch(Exception ignore) {}
+		}
+		logFile = null;
+		logPosition = 0;
+		partialLine.reset();
+	}
+
+	private void readNewLines() throws Exception {
+		logFile.seek(logPosition);
+
+		int read = 0;
+		while ((read = logFile.read(readBuffer)) > 0) {
+			int lineStart = 0;
+			for (int i=0; i<read; i++) {
+				if (readBuffer[i] == '\n') {
+					partialLine.write(readBuffer, lineStart, i-lineStart);
+					handleLogLine(partialLine.toString("UTF-8"));
+					partialLine.reset();
+					lineStart = i+1;
+				}
+			}
+
+			// carry the incomplete last line over to the next read
+			partialLine.write(readBuffer, lineStart, read-lineStart);
+			logPosition += read;
+		}
+	}
+
+	/**
+	 * Updates the rolling state from a single yas3fs log line
+	 */
+	public void handleLogLine(String line) {
+
+		if (line.indexOf("s3_queue:") != -1) {
+			Matcher m = S3_QUEUE_SIZE_PATTERN.matcher(line);
+			if (m.find()) {
+				this.latestS3UploadQueueSize = Integer.valueOf(m.group(1).trim());
+			}
+			return;
+		}
+
+		if (line.indexOf("multipart_uploads_in_progress") != -1) {
+			Matcher m = MULTIPART_UPLOADS_PATTERN.matcher(line);
+			if (m.find()) {
+				this.latestMultipartUploads = Integer.valueOf(m.group(1).trim());
+			}
+			return;
+		}
+
+		if (line.indexOf("FAILED") != -1) {
+			for (Pattern pattern : FAILURE_PATTERNS) {
+				try {
+					Matcher m = pattern.matcher(line);
+					if (m.find()) {
+					    String date = m.group(1).trim();
+					    Date timestamp = logDateFormat.parse(date);
+					    String msg = m.group(2).trim();
+
+					    logger.debug("handleLogLine() found Yas3FSError: " + date + " msg: " + msg);
+					    addError(new WriteMonitorError(timestamp,msg));
+					}
+				} catch(Exception e) {
+					logger.error("handleLogLine() unexpected error attempting" +
+							" to parse Yas3fs log line for ERRORs: " + e.getMessage(),e);
+				}
+			}
+		}
+	}
+
+	private void addError(WriteMonitorError error) {
+		synchronized(recentErrors) {
+			recentErrors.add(error);
+
+			// drop the oldest
+			if (recentErrors.size() > MAX_RETAINED_ERRORS) {
+				Iterator<WriteMonitorError> itr = recentErrors.iterator();
+				itr.next();
+				itr.remove();
+			}
+		}
+	}
+
+	/**
+	 * Counts ESTABLISHED connections to a remote port 443
+	 */
+	private int countHTTPSConnections() throws Exception {
+		if (!new File(PROC_NET_TCP_FILES[0]).exists()) {
+			return countHTTPSConnectionsViaNetstat();
+		}
+
+		int total = 0;
+		for (String procFile : PROC_NET_TCP_FILES) {
+			if (new File(procFile).exists()) {
+				total += countHTTPSConnections(procFile);
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Parses a /proc/net/tcp(6) table:
+	 *
+	 *   sl  local_address rem_address   st ...
+	 *    0: 0F02000A:C7A2 34D8F2B6:01BB 01 ...
+	 */
+	private static int countHTTPSConnections(String procFile) throws Exception {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(procFile), "US-ASCII"));
+		try {
+			int total = 0;
+			reader.readLine(); // header
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.trim().split("\\s+");
+				if (fields.length < 4) {
+					continue;
+				}
+
+				String remAddress = fields[2];
+				if (TCP_ESTABLISHED.equals(fields[3]) &&
+					remAddress.regionMatches(true, remAddress.length()-HTTPS_PORT_HEX.length(), HTTPS_PORT_HEX, 0, HTTPS_PORT_HEX.length()) &&
+					remAddress.charAt(remAddress.length()-HTTPS_PORT_HEX.length()-1) == ':') {
+					total++;
+				}
+			}
+			return total;
+
+		} finally {
+			reader.close();
+		}
+	}
+
+	private int countHTTPSConnectionsViaNetstat() throws Exception {
+		CommandLine cmdLine = new CommandLine("netstat");
+		cmdLine.addArgument("-na");
+
+		final StringWriter stdOut = new StringWriter();
+		final StringWriter stdErr = new StringWriter();
+		DefaultExecutor executor = new DefaultExecutor();
+		executor.setStreamHandler(new ExecuteStreamHandler() {
+				public void setProcessOutputStream(InputStream is) throws IOException {IOUtils.copy(is, stdOut, "UTF-8");}
+				public void setProcessErrorStream(InputStream is) throws IOException {IOUtils.copy(is, stdErr, "UTF-8");}
+				public void stop() throws IOException {}
+				public void start() throws IOException {}
+				public void setProcessInputStream(OutputStream os) throws IOException {}
+			});
+
+		logger.trace("Executing: " + cmdLine.toString());
+
+		int exitValue = executor.execute(cmdLine);
+		if (exitValue > 0) {
+			logger.error("Netstat check ERROR: exitCode: "+exitValue+" cmd=" + cmdLine.toString());
+		}
+
+		Matcher netstatMatcher = NETSTAT_PATTERN.matcher(stdOut.toString());
+		int total = 0;
+		while (netstatMatcher.find()) {
+			total += 1;
+		}
+		return total;
+	}
+
+	public int getS3UploadQueueSize() {
+		return this.latestS3UploadQueueSize;
+	}
+
+	/**
+	 * Returns the last s3_queue size reported in the given log tail, -1 if none
+	 */
+	public static int parseS3UploadQueueSize(String logTail) {
+		Matcher m = S3_QUEUE_SIZE_PATTERN.matcher(logTail);
+		int lastMatch = -1;
+
+		while (m.find()) {
+		    lastMatch = Integer.valueOf(m.group(1).trim());
+		}
+
+		return lastMatch;
+	}
+
 	public boolean writesShouldBackoff() {
-		
+
 		int currentMultipartUploads = this.getCurrentMultipartUploads();
 		int currentS3UploadSize = this.getS3UploadQueueSize();
 		logger.debug("Latest Yas3fs s3_queue size = " + currentS3UploadSize);
-		logger.debug("Latest Netstat outgoing HTTPS connections = " + latestHTTPSConnTotal);
+		logger.debug("Latest outgoing HTTPS connections = " + latestHTTPSConnTotal);
 		logger.debug("Latest Yas3fs multipart uploads = " + currentMultipartUploads);
-		
+
 		if (currentMultipartUploads >= this.backoffWhenMultipartUploads) {
-			logger.debug("writesShouldBackoff() currentMultipartUploads=" + currentMultipartUploads + 
+			logger.debug("writesShouldBackoff() currentMultipartUploads=" + currentMultipartUploads +
 					" and backoffWhenMultipartUploads=" + this.backoffWhenMultipartUploads);
 			return true;
 		}
-		
-		
+
+
 		if (this.latestHTTPSConnTotal >= this.backoffWhenTotalHTTPSConns) {
-			logger.debug("writesShouldBackoff() latestHTTPSConnTotal=" + latestHTTPSConnTotal + 
+			logger.debug("writesShouldBackoff() latestHTTPSConnTotal=" + latestHTTPSConnTotal +
 					" and backoffWhenTotalHTTPSConns=" + this.backoffWhenTotalHTTPSConns);
 			return true;
 		}
-		
+
 
 		if (currentS3UploadSize >= this.backoffWhenTotalS3Uploads) {
-			logger.debug("writesShouldBackoff() currentS3UploadSize=" + currentS3UploadSize + 
+			logger.debug("writesShouldBackoff() currentS3UploadSize=" + currentS3UploadSize +
 					" and backoffWhenTotalS3Uploads=" + this.backoffWhenTotalS3Uploads);
 			return true;
 		}
-		
+
 		return false;
 	}
-	
-	public boolean writesAreComplete() {
+
+	public synchronized boolean writesAreComplete() {
 		// get the latest s3upload queue size
 		int s3UploadQueueSize = this.getS3UploadQueueSize();
-		
-		// add it to our list (most recent -> oldest)
-		this.s3UploadCounts.push(s3UploadQueueSize);
-		
+
+		// add it to our history (most recent -> oldest), we only
+		// ever need the last isIdleWhenNZeroUploads+1 of them
+		this.s3UploadCounts.addFirst(s3UploadQueueSize);
+		while (this.s3UploadCounts.size() > this.isIdleWhenNZeroUploads+1) {
+			this.s3UploadCounts.removeLast();
+		}
+
 		int count = -1;
-		
+
 		// if we have enought upload count history...
 		if (this.s3UploadCounts.size() > this.isIdleWhenNZeroUploads) {
-			
-			// clone it
-			Stack<Integer> toScan = (Stack<Integer>)this.s3UploadCounts.clone();
-			
+
 			// look through N past upload counts we have checked
-			// and add them all up... (the stack is a LIFO stack)
-			// so most recent -> oldest
+			// and add them all up... most recent -> oldest
 			count = 0; // init to zero....
+			Iterator<Integer> toScan = this.s3UploadCounts.iterator();
 			for (int i=0; i<this.isIdleWhenNZeroUploads; i++) {
-				count += toScan.pop();
+				count += toScan.next();
 			}
-			
+
 			// if they all add up to ZERO, then yas3fs is not uploading anymore.
 			if (count == 0) {
 				logger.debug("writesAreComplete() YES: count = 0");
 				return true;
 			}
 		}
-		
-		
+
+
 		logger.debug("writesAreComplete() NO: count = " + count);
 		return false;
-		
-		
+
+
 	}
 
 	public void setCheckEveryMS(long checkEveryMS) {
@@ -268,125 +532,48 @@ public class Yas3fsS3UploadMonitor implements WriteMonitor, WriteBackoffMonitor,
 
 	@Override
 	public Set<WriteMonitorError> getWriteErrors() {
-		Set<WriteMonitorError> errs = new HashSet<WriteMonitorError>();
-		
-		logger.debug("getWriteErrors() checking for errors in Yas3fs logfile....");
-		
-		
-		String[] failuresToMatch = 
-				new String[]
-					{
-					// 2014-10-22 19:11:29,799 ERROR PLUGIN do_cmd_on_s3_now_w_retries FAILED
-					"(\\d{4}-\\d{1,2}-\\d{1,2}\\s+\\d{1,2}:\\d{1,2}:\\d{1,2},\\d{3}).+(do_cmd_on_s3_now_w_retries FAILED.*)",
-					
-					};
-		
-		
-		if (this.latestLogTail != null) {
-			
-			for (String pattern : failuresToMatch) {
-			
-				try {
-					Pattern errorPatterns = Pattern.compile(pattern);
-					Matcher m = errorPatterns.matcher(this.latestLogTail);
-	
-					while (m.find()) {
-					    String date = m.group(1).trim();
-					    Date timestamp = logDateFormat.parse(date);
-					    String msg = m.group(2).trim();
-					    
-					    logger.debug("getWriteErrors() found Yas3FSError: " + date + " msg: " + msg);
-					    errs.add(new WriteMonitorError(timestamp,msg));
-					    
-					}
-				} catch(Exception e) {
-					logger.error("getWriteErrors() unexpected error attempting" +
-							" to parse Yas3fs log file for ERRORs: " + e.getMessage(),e);
-				}
-			}
+		logger.debug("getWriteErrors() returning errors found in Yas3fs logfile....");
+
+		synchronized(recentErrors) {
+			return new HashSet<WriteMonitorError>(recentErrors);
 		}
-		
-		return errs;
 	}
 	
 	
 	private int getCurrentMultipartUploads() {
-		
-		if (this.latestLogTail != null) {
-
-			try {
-				String toCheck = this.latestLogTail;
-				Pattern p = Pattern.compile("\\d{4}-\\d{1,2}-\\d{1,2}\\s+\\d{1,2}:\\d{1,2}:\\d{1,2},\\d{3}.+multipart_uploads_in_progress\\s+=\\s+(\\d+)");
-				Matcher m = p.matcher(toCheck);
-
-				int lastMpTotal = 0;
-				while (m.find()) {
-				    String mpTotal = m.group(1).trim();
-				    lastMpTotal = Integer.valueOf(mpTotal);
-				}
-				
-				return lastMpTotal;
-				
-			} catch(Exception e) {
-				logger.error("getCurrentMultipartUploads() unexpected error attempting" +
-						" to parse Yas3fs log file for multipart_uploads_in_progress: " + e.getMessage(),e);
-			}
+		return this.latestMultipartUploads;
+	}
+	
+	/**
+	 * Returns the last multipart_uploads_in_progress reported in the given log tail, 0 if none
+	 */
+	public static int parseMultipartUploadsInProgress(String logTail) {
+		Matcher m = MULTIPART_UPLOADS_PATTERN.matcher(logTail);
 
+		int lastMpTotal = 0;
+		while (m.find()) {
+		    String mpTotal = m.group(1).trim();
+		    lastMpTotal = Integer.valueOf(mpTotal);
 		}
 		
-		return 0;
-		
+		return lastMpTotal;
 	}
 	
 	public static void main(String[] args) throws Exception {
 		
 		Yas3fsS3UploadMonitor m = new Yas3fsS3UploadMonitor();
-		m.setCheckEveryMS(10000);
+		m.setCheckEveryMS(1000);
 		m.setPathToLogFile("//testyaslog.log");
 		
 		m.start();
 		
-
-		
 		while(true) {
 			Thread.currentThread().sleep(10000);
-			int x = m.getCurrentMultipartUploads();
-
-			int v = 1;
+			logger.info("s3_queue=" + m.getS3UploadQueueSize() + 
+					" multipart=" + m.getCurrentMultipartUploads() + 
+					" https=" + m.latestHTTPSConnTotal + 
+					" errors=" + m.getWriteErrors().size());
 		}
-		
-		/*
-		CommandLine cmdLine = new CommandLine("netstat");
-		cmdLine.addArgument("-na");
-		
-		final StringWriter stdOut = new StringWriter();
-		final StringWriter stdErr = new StringWriter();
-		DefaultExecutor executor = new DefaultExecutor();
-		executor.setStreamHandler(new ExecuteStreamHandler() {
-				public void setProcessOutputStream(InputStream is) throws IOException {IOUtils.copy(is, stdOut, "UTF-8");}
-				public void setProcessErrorStream(InputStream is) throws IOException {IOUtils.copy(is, stdErr, "UTF-8");}
-				public void stop() throws IOException {}
-				public void start() throws IOException {}
-				public void setProcessInputStream(OutputStream os) throws IOException {}
-			});
-			
-		logger.debug("Executing: " + cmdLine.toString());
-			
-		int exitValue = executor.execute(cmdLine);
-		if (exitValue > 0) {
-			logger.error("Netstat check ERROR: exitCode: "+exitValue+" cmd=" + cmdLine.toString());
-		}
-		
-		String netstatOutput = stdOut.toString();
-		Pattern netstatPattern = Pattern.compile("443\\s+ESTABLISHED");
-		Matcher netstatMatcher = netstatPattern.matcher(netstatOutput);
-		int total = 0;
-		while (netstatMatcher.find()) {
-			total += 1;
-		}
-		
-		System.out.println(total);
-		*/
 	}
 
 